@@ -2,13 +2,10 @@ package de.ofahrt.catfish;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import javax.net.ssl.SSLContext;
 import de.ofahrt.catfish.internal.network.NetworkEngine;
 import de.ofahrt.catfish.model.HttpRequest;
@@ -16,6 +13,7 @@ import de.ofahrt.catfish.model.HttpResponse;
 import de.ofahrt.catfish.model.StandardResponses;
 import de.ofahrt.catfish.model.network.Connection;
 import de.ofahrt.catfish.model.network.NetworkEventListener;
+import de.ofahrt.catfish.model.server.AsyncHttpHandler;
 import de.ofahrt.catfish.model.server.HttpHandler;
 import de.ofahrt.catfish.model.server.HttpResponseWriter;
 import de.ofahrt.catfish.model.server.HttpServerListener;
@@ -26,37 +24,27 @@ import de.ofahrt.catfish.model.server.UploadPolicy;
  * A <code>CatfishHttpServer</code> manages a HTTP-Server.
  */
 public final class CatfishHttpServer {
-  interface RequestCallback extends Runnable {
-    void reject();
-  }
-
   private final ConcurrentHashMap<String, HttpVirtualHost> hosts = new ConcurrentHashMap<>();
 
   private final ArrayList<HttpServerListener> listeners = new ArrayList<>();
+  private final NetworkEventListener serverListener;
   private final NetworkEngine engine;
 
-  private final ThreadPoolExecutor executor =
-      new ThreadPoolExecutor(
-          8, 8, 1L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(128),
-          new ThreadFactory() {
-            private final AtomicInteger threadNumber = new AtomicInteger(0);
+  private final Executor executor;
 
-            @Override
-            public Thread newThread(Runnable r) {
-              return new Thread(r, "catfish-worker-" + threadNumber.getAndIncrement());
-            }
-          });
+  private volatile boolean http2;
 
   public CatfishHttpServer(NetworkEventListener serverListener) throws IOException {
-    // TODO: This implements tail drop; head drop might be better.
-    executor.setRejectedExecutionHandler(new RejectedExecutionHandler() {
-      @Override
-      public void rejectedExecution(Runnable task, ThreadPoolExecutor actualExecutor) {
-        if (task instanceof RequestCallback) {
-          ((RequestCallback) task).reject();
-        }
-      }
-    });
+    this(serverListener, HandlerExecutors.fixedThreadPool(8, 128));
+  }
+
+  /**
+   * Creates a server that runs handlers on the given executor; see {@link HandlerExecutors}.
+   * Requests that the executor rejects are answered with 503 Service Unavailable.
+   */
+  public CatfishHttpServer(NetworkEventListener serverListener, Executor executor) throws IOException {
+    this.executor = executor;
+    this.serverListener = serverListener;
     this.engine = new NetworkEngine(serverListener);
   }
 
@@ -87,6 +75,15 @@ public final class CatfishHttpServer {
     hosts.put(name, new HttpVirtualHost(handler, responsePolicy, uploadPolicy, sslContext));
   }
 
+  /**
+   * Sets whether clients may use HTTP/2, which is disabled by default. On TLS ports, the server
+   * then offers h2 through ALPN; on plain ports, it accepts connections that start with the HTTP/2
+   * connection preface (prior knowledge). This only affects ports that are opened afterwards.
+   */
+  public void setHttp2(boolean http2) {
+    this.http2 = http2;
+  }
+
   public void addRequestListener(HttpServerListener l) {
     listeners.add(l);
   }
@@ -116,28 +113,58 @@ public final class CatfishHttpServer {
   }
 
   void queueRequest(HttpHandler httpHandler, Connection connection, HttpRequest request, HttpResponseWriter responseWriter) {
-    executor.execute(new RequestCallback() {
-      @Override
-      public void run() {
+    try {
+      executor.execute(() -> {
+        if (httpHandler instanceof AsyncHttpHandler) {
+          handleAsync((AsyncHttpHandler) httpHandler, connection, request, responseWriter);
+          return;
+        }
         try {
           httpHandler.handle(connection, request, responseWriter);
         } catch (IOException e) {
           throw new RuntimeException(e);
         }
+      });
+    } catch (RejectedExecutionException e) {
+      // TODO: This implements tail drop; head drop might be better.
+      try {
+        HttpResponse responseToWrite = StandardResponses.SERVICE_UNAVAILABLE;
+        responseWriter.commitBuffered(responseToWrite);
+      } catch (IOException e2) {
+        throw new RuntimeException(e2);
       }
+    }
+  }
 
-      @Override
-      public void reject() {
-        try {
-          HttpResponse responseToWrite = StandardResponses.SERVICE_UNAVAILABLE;
-          responseWriter.commitBuffered(responseToWrite);
-        } catch (IOException e) {
-          throw new RuntimeException(e);
-        }
+  private void handleAsync(
+      AsyncHttpHandler httpHandler, Connection connection, HttpRequest request, HttpResponseWriter responseWriter) {
+    CompletionStage<Void> stage;
+    try {
+      stage = httpHandler.handleAsync(connection, request, responseWriter);
+    } catch (RuntimeException e) {
+      serverListener.notifyInternalError(connection, e);
+      commitErrorIfUncommitted(connection, responseWriter);
+      return;
+    }
+    stage.whenComplete((result, error) -> {
+      if (error != null) {
+        serverListener.notifyInternalError(connection, error);
       }
+      commitErrorIfUncommitted(connection, responseWriter);
     });
   }
 
+  private void commitErrorIfUncommitted(Connection connection, HttpResponseWriter responseWriter) {
+    if (responseWriter.isCommitted()) {
+      return;
+    }
+    try {
+      responseWriter.commitBuffered(StandardResponses.INTERNAL_SERVER_ERROR);
+    } catch (IOException | RuntimeException e) {
+      serverListener.notifyInternalError(connection, e);
+    }
+  }
+
   HttpVirtualHost determineHttpVirtualHost(String hostHeader) {
     HttpVirtualHost def = hosts.get("default");
     if (hostHeader == null) {
@@ -158,19 +185,19 @@ public final class CatfishHttpServer {
   }
 
   public void listenHttpLocal(int port) throws IOException, InterruptedException {
-    engine.listenLocalhost(port, new HttpServerHandler(this, /*ssl=*/false));
+    engine.listenLocalhost(port, new HttpServerHandler(this, /*ssl=*/false, http2));
   }
 
   public void listenHttpsLocal(int port) throws IOException, InterruptedException {
-    engine.listenLocalhost(port, new HttpServerHandler(this, /*ssl=*/true));
+    engine.listenLocalhost(port, new HttpServerHandler(this, /*ssl=*/true, http2));
   }
 
   public void listenHttp(int port) throws IOException, InterruptedException {
-    engine.listenAll(port, new HttpServerHandler(this, /*ssl=*/false));
+    engine.listenAll(port, new HttpServerHandler(this, /*ssl=*/false, http2));
   }
 
   public void listenHttps(int port) throws IOException, InterruptedException {
-    engine.listenAll(port, new HttpServerHandler(this, /*ssl=*/true));
+    engine.listenAll(port, new HttpServerHandler(this, /*ssl=*/true, http2));
   }
 
   public int getOpenConnections() {
@@ -1,15 +1,16 @@
 package de.ofahrt.catfish;
 
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Locale;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
 import de.ofahrt.catfish.model.HttpHeaderName;
 import de.ofahrt.catfish.model.HttpRequest;
 import de.ofahrt.catfish.model.server.ResponsePolicy;
+import de.ofahrt.catfish.utils.HttpAcceptEncoding;
 import de.ofahrt.catfish.utils.HttpConnectionHeader;
 
-final class DefaultResponsePolicy implements ResponsePolicy {
+public final class DefaultResponsePolicy implements ResponsePolicy {
   private static final String MIME_APPLICATION_JAVASCRIPT = "application/javascript";
   private static final String MIME_APPLICATION_XHTML_AND_XML = "application/xhtml+xml";
   private static final String MIME_APPLICATION_XML = "application/xml";
@@ -24,32 +25,89 @@ final class DefaultResponsePolicy implements ResponsePolicy {
   private static final String MIME_TEXT_RTF = "text/rtf";
   private static final String MIME_TEXT_XML = "text/xml";
 
-  private static final Set<String> COMPRESSION_WHITELIST = constructCompressionWhitelist();
-
-  private static Set<String> constructCompressionWhitelist() {
-    HashSet<String> result = new HashSet<>();
-    result.add(MIME_APPLICATION_JAVASCRIPT);
-    result.add(MIME_APPLICATION_XHTML_AND_XML);
-    result.add(MIME_APPLICATION_XML);
-    result.add(MIME_APPLICATION_XML_DTD);
-
-    result.add(MIME_TEXT_CSS);
-    result.add(MIME_TEXT_CSV);
-    result.add(MIME_TEXT_HTML);
-    result.add(MIME_TEXT_JAVASCRIPT);
-    result.add(MIME_TEXT_PLAIN);
-    result.add(MIME_TEXT_RICHTEXT);
-    result.add(MIME_TEXT_RTF);
-    result.add(MIME_TEXT_XML);
-    return Collections.unmodifiableSet(result);
+  private static final String[] DEFAULT_COMPRESSIBLE_TYPES = {
+    MIME_APPLICATION_JAVASCRIPT,
+    MIME_APPLICATION_XHTML_AND_XML,
+    MIME_APPLICATION_XML,
+    MIME_APPLICATION_XML_DTD,
+
+    MIME_TEXT_CSS,
+    MIME_TEXT_CSV,
+    MIME_TEXT_HTML,
+    MIME_TEXT_JAVASCRIPT,
+    MIME_TEXT_PLAIN,
+    MIME_TEXT_RICHTEXT,
+    MIME_TEXT_RTF,
+    MIME_TEXT_XML,
+  };
+
+  private static final int DEFAULT_LEVEL = 6;
+  private static final int DEFAULT_MIN_SIZE = 512;
+
+  private static final class CompressionSettings {
+    private final int level;
+    private final int minSize;
+
+    CompressionSettings(int level, int minSize) {
+      this.level = level;
+      this.minSize = minSize;
+    }
+  }
+
+  /**
+   * Configures keep-alive and response compression. Compression is enabled per MIME type, each
+   * with its own deflate level and minimum body size.
+   */
+  public static final class Builder {
+    private boolean mayKeepAlive = true;
+    private final Map<String, CompressionSettings> compression = new HashMap<>();
+
+    public Builder setKeepAlive(boolean mayKeepAlive) {
+      this.mayKeepAlive = mayKeepAlive;
+      return this;
+    }
+
+    /** Enables compression for the usual textual MIME types with default settings. */
+    public Builder compressDefaultTypes() {
+      for (String mimeType : DEFAULT_COMPRESSIBLE_TYPES) {
+        compress(mimeType, DEFAULT_LEVEL, DEFAULT_MIN_SIZE);
+      }
+      return this;
+    }
+
+    public Builder compress(String mimeType, int level, int minSize) {
+      if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+        throw new IllegalArgumentException("Illegal compression level: " + level);
+      }
+      if (minSize < 0) {
+        throw new IllegalArgumentException("Minimum size must not be negative, but is " + minSize);
+      }
+      compression.put(mimeType, new CompressionSettings(level, minSize));
+      return this;
+    }
+
+    public Builder doNotCompress(String mimeType) {
+      compression.remove(mimeType);
+      return this;
+    }
+
+    public DefaultResponsePolicy build() {
+      return new DefaultResponsePolicy(this);
+    }
   }
 
   private final boolean mayKeepAlive;
-  private final boolean mayCompress;
+  private final Map<String, CompressionSettings> compression;
 
   DefaultResponsePolicy(boolean mayKeepAlive, boolean mayCompress) {
-    this.mayKeepAlive = mayKeepAlive;
-    this.mayCompress = mayCompress;
+    this(mayCompress
+        ? new Builder().setKeepAlive(mayKeepAlive).compressDefaultTypes()
+        : new Builder().setKeepAlive(mayKeepAlive));
+  }
+
+  private DefaultResponsePolicy(Builder builder) {
+    this.mayKeepAlive = builder.mayKeepAlive;
+    this.compression = Collections.unmodifiableMap(new HashMap<>(builder.compression));
   }
 
   @Override
@@ -59,15 +117,26 @@ final class DefaultResponsePolicy implements ResponsePolicy {
 
   @Override
   public boolean shouldCompress(HttpRequest request, String mimeType) {
-    return mayCompress && COMPRESSION_WHITELIST.contains(mimeType) && supportGzipCompression(request);
+    return compression.containsKey(mimeType) && supportsCompression(request);
   }
 
-  private boolean supportGzipCompression(HttpRequest request) {
-    String temp = request.getHeaders().get(HttpHeaderName.ACCEPT_ENCODING);
-    if (temp != null) {
-      if (temp.toLowerCase(Locale.US).indexOf("gzip") >= 0) {
-        return true;
-      }
+  @Override
+  public int getCompressionLevel(String mimeType) {
+    CompressionSettings settings = compression.get(mimeType);
+    return settings != null ? settings.level : DEFAULT_LEVEL;
+  }
+
+  @Override
+  public int getMinCompressionSize(String mimeType) {
+    CompressionSettings settings = compression.get(mimeType);
+    return settings != null ? settings.minSize : DEFAULT_MIN_SIZE;
+  }
+
+  private boolean supportsCompression(HttpRequest request) {
+    String acceptEncoding = request.getHeaders().get(HttpHeaderName.ACCEPT_ENCODING);
+    if (HttpAcceptEncoding.negotiate(
+        acceptEncoding, HttpAcceptEncoding.GZIP, HttpAcceptEncoding.DEFLATE) != null) {
+      return true;
     }
     // Some firewalls disable compression, but leave a header like this in place of the original one:
     // "~~~~~~~~~~~~~~~" -> "~~~~~ ~~~~~~~"
@@ -75,4 +144,4 @@ final class DefaultResponsePolicy implements ResponsePolicy {
     // Norton sometimes eats the HTTP response if we compress anyway.
     return false;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,73 @@
+package de.ofahrt.catfish;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Strategies for running {@link de.ofahrt.catfish.model.server.HttpHandler}s. The server hands
+ * each request to an {@link Executor}; if the executor throws a
+ * {@link RejectedExecutionException}, the request is answered with 503 Service Unavailable. The
+ * executor is called from a network thread, so it must never block.
+ */
+public final class HandlerExecutors {
+  /**
+   * Returns an executor that runs handlers on a fixed number of threads, queueing up to the given
+   * number of requests. This is the default, with 8 threads and a queue of 128.
+   */
+  public static Executor fixedThreadPool(int threads, int queueSize) {
+    return new ThreadPoolExecutor(
+        threads, threads, 1L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+        namedThreadFactory("catfish-worker-"));
+  }
+
+  /**
+   * Returns an executor that starts a new thread from the given factory for every request, and
+   * rejects requests while the given number of handlers is already running. This is meant for
+   * virtual threads, where handlers that block on I/O are cheap; on Java 21 and later, pass
+   * {@code Thread.ofVirtual().name("catfish-virtual-", 0).factory()}.
+   */
+  public static Executor threadPerRequest(ThreadFactory threadFactory, int maxConcurrency) {
+    if (maxConcurrency <= 0) {
+      throw new IllegalArgumentException("Concurrency must be positive, but is " + maxConcurrency);
+    }
+    Semaphore permits = new Semaphore(maxConcurrency);
+    return (task) -> {
+      if (!permits.tryAcquire()) {
+        throw new RejectedExecutionException("Too many concurrent requests");
+      }
+      Thread t;
+      try {
+        t = threadFactory.newThread(() -> {
+          try {
+            task.run();
+          } finally {
+            permits.release();
+          }
+        });
+      } catch (RuntimeException | Error e) {
+        permits.release();
+        throw e;
+      }
+      if (t == null) {
+        permits.release();
+        throw new RejectedExecutionException("Thread factory did not create a thread");
+      }
+      t.start();
+    };
+  }
+
+  static ThreadFactory namedThreadFactory(String prefix) {
+    AtomicInteger threadNumber = new AtomicInteger(0);
+    return (r) -> new Thread(r, prefix + threadNumber.getAndIncrement());
+  }
+
+  private HandlerExecutors() {
+    // Not instantiable.
+  }
+}
@@ -0,0 +1,92 @@
+package de.ofahrt.catfish;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.Function;
+import de.ofahrt.catfish.http2.Frames;
+import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
+import de.ofahrt.catfish.internal.network.Stage;
+import de.ofahrt.catfish.model.network.Connection;
+
+/**
+ * Selects between HTTP/1.1 and HTTP/2 on connections without TLS. Clients with prior knowledge
+ * (RFC 9113 section 3.3) start with the HTTP/2 connection preface, which is not a valid HTTP/1.1
+ * request; anything else is passed to the HTTP/1.1 stage. The bytes are left in the input buffer
+ * for the selected stage.
+ */
+final class Http2PriorKnowledgeStage implements Stage {
+  private final Pipeline parent;
+  // Creates the next stage for "h2" or "http/1.1", using the same names as ALPN.
+  private final Function<String, Stage> nextFactory;
+  private final ByteBuffer inputBuffer;
+  private Connection connection;
+  private Stage next;
+
+  Http2PriorKnowledgeStage(
+      Pipeline parent, Function<String, Stage> nextFactory, ByteBuffer inputBuffer) {
+    this.parent = parent;
+    this.nextFactory = nextFactory;
+    this.inputBuffer = inputBuffer;
+  }
+
+  @Override
+  public InitialConnectionState connect(@SuppressWarnings("hiding") Connection connection) {
+    this.connection = connection;
+    return InitialConnectionState.READ_ONLY;
+  }
+
+  @Override
+  public ConnectionControl read() throws IOException {
+    if (next == null) {
+      byte[] preface = Frames.CONNECTION_PREFACE;
+      int length = Math.min(inputBuffer.remaining(), preface.length);
+      boolean matches = true;
+      for (int i = 0; i < length; i++) {
+        if (inputBuffer.get(inputBuffer.position() + i) != preface[i]) {
+          matches = false;
+          break;
+        }
+      }
+      if (matches && length < preface.length) {
+        return ConnectionControl.NEED_MORE_DATA;
+      }
+      String protocol = matches ? "h2" : "http/1.1";
+      parent.log("Selected %s", protocol);
+      next = nextFactory.apply(protocol);
+      if (next.connect(connection) != InitialConnectionState.READ_ONLY) {
+        parent.encourageWrites();
+      }
+    }
+    return next.read();
+  }
+
+  @Override
+  public void inputClosed() throws IOException {
+    if (next == null) {
+      parent.close();
+      return;
+    }
+    next.inputClosed();
+  }
+
+  @Override
+  public ConnectionControl write() throws IOException {
+    if (next == null) {
+      return ConnectionControl.PAUSE;
+    }
+    return next.write();
+  }
+
+  @Override
+  public long transferTo(WritableByteChannel channel) throws IOException {
+    return next == null ? -1 : next.transferTo(channel);
+  }
+
+  @Override
+  public void close() {
+    if (next != null) {
+      next.close();
+    }
+  }
+}
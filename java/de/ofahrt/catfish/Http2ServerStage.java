@@ -0,0 +1,1708 @@
+package de.ofahrt.catfish;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import de.ofahrt.catfish.HttpServerStage.RequestListener;
+import de.ofahrt.catfish.HttpServerStage.RequestQueue;
+import de.ofahrt.catfish.http2.ErrorCode;
+import de.ofahrt.catfish.http2.FrameType;
+import de.ofahrt.catfish.http2.Frames;
+import de.ofahrt.catfish.http2.HpackDecoder;
+import de.ofahrt.catfish.http2.HpackEncoder;
+import de.ofahrt.catfish.http2.Http2Exception;
+import de.ofahrt.catfish.http2.Setting;
+import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
+import de.ofahrt.catfish.internal.network.Stage;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpHeaders;
+import de.ofahrt.catfish.model.HttpMethodName;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpStatusCode;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.MalformedRequestException;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
+import de.ofahrt.catfish.model.StandardResponses;
+import de.ofahrt.catfish.model.network.Connection;
+import de.ofahrt.catfish.model.server.HttpResponseWriter;
+import de.ofahrt.catfish.model.server.NonBlockingResponseBody;
+import de.ofahrt.catfish.model.server.PayloadParser;
+import de.ofahrt.catfish.model.server.ResponsePolicy;
+import de.ofahrt.catfish.model.server.UploadPolicy;
+import de.ofahrt.catfish.utils.CompressingOutputStream;
+import de.ofahrt.catfish.utils.ConnectionClosedException;
+import de.ofahrt.catfish.utils.DeflaterPool;
+
+/**
+ * The server side of an HTTP/2 connection (RFC 9113). Unlike {@link HttpServerStage}, which
+ * handles one request at a time, this stage passes every request to the handlers as soon as it
+ * is complete, and interleaves the responses as DATA frames in round-robin order, so a slow
+ * response does not hold up the others.
+ *
+ * <p>All state is owned by the network thread, except for the bodies of streamed responses, which
+ * handlers write from their own threads. Request bodies are passed to the upload policy like for
+ * HTTP/1.1, which requires a Content-Length header. Server push and stream priorities are not
+ * supported.
+ */
+final class Http2ServerStage implements Stage {
+  private static final int MAX_CONCURRENT_STREAMS = 100;
+  private static final int MAX_HEADER_LIST_SIZE = 65536;
+  // Header blocks are buffered until they are complete; larger blocks close the connection.
+  private static final int MAX_HEADER_BLOCK_SIZE = 2 * MAX_HEADER_LIST_SIZE;
+  // We accept frames of the default size, and do not advertise a larger one.
+  private static final int MAX_FRAME_SIZE = Frames.DEFAULT_MAX_FRAME_SIZE;
+  // Receive windows. We do not change the stream window from its default, but widen the
+  // connection window so that a few concurrent uploads don't block each other.
+  private static final int STREAM_WINDOW = Setting.SETTINGS_INITIAL_WINDOW_SIZE.getInitialValue();
+  private static final int CONNECTION_WINDOW = 1 << 20;
+  // Don't send DATA frames smaller than this if the output buffer is merely full.
+  private static final int MIN_FRAME_SIZE = 1024;
+  private static final int STREAMED_BODY_BUFFER_SIZE = 65536;
+  private static final byte[] EMPTY_BODY = new byte[0];
+  private static final String EXPECT_CONTINUE = "100-continue";
+
+  // Results of writeStream.
+  private static final int NO_SPACE = -1;
+  private static final int NO_PROGRESS = 0;
+  private static final int PROGRESS = 1;
+
+  /** The body of a response, which the network thread copies into DATA frames. */
+  private interface ResponseBody {
+    /**
+     * Copies up to the given number of bytes into the buffer. Returns the number of bytes copied,
+     * which is zero if no data is available right now, or -1 if the body is complete.
+     */
+    int read(ByteBuffer out, int maxLength) throws IOException;
+
+    /** Returns whether the handler closed the body before writing the declared length. */
+    default boolean isTruncated() {
+      return false;
+    }
+
+    /** Releases the body; called when the stream ends, whether it is complete or not. */
+    void release();
+  }
+
+  private static final class ByteBufferBody implements ResponseBody {
+    private final ByteBuffer data;
+
+    ByteBufferBody(ByteBuffer data) {
+      this.data = data;
+    }
+
+    @Override
+    public int read(ByteBuffer out, int maxLength) {
+      if (!data.hasRemaining()) {
+        return -1;
+      }
+      int length = Math.min(maxLength, data.remaining());
+      ByteBuffer slice = data.duplicate();
+      slice.limit(slice.position() + length);
+      out.put(slice);
+      data.position(data.position() + length);
+      return length;
+    }
+
+    @Override
+    public void release() {
+    }
+  }
+
+  private static final class FileBody implements ResponseBody {
+    private final FileChannel channel;
+    private long position;
+    private long remaining;
+
+    FileBody(FileChannel channel, long position, long length) {
+      this.channel = channel;
+      this.position = position;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read(ByteBuffer out, int maxLength) throws IOException {
+      if (remaining == 0) {
+        return -1;
+      }
+      int length = (int) Math.min(maxLength, remaining);
+      if (length == 0) {
+        return 0;
+      }
+      int limit = out.limit();
+      out.limit(out.position() + length);
+      int count;
+      try {
+        count = channel.read(out, position);
+      } finally {
+        out.limit(limit);
+      }
+      if (count < 0) {
+        throw new IOException("File is shorter than the declared response length");
+      }
+      position += count;
+      remaining -= count;
+      return count;
+    }
+
+    @Override
+    public void release() {
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+        // There's nothing we can do if this fails.
+      }
+    }
+  }
+
+  /**
+   * The body of a streamed or non-blocking response. The handler thread copies data into a ring
+   * buffer, and the network thread copies it out into DATA frames. Like for HTTP/1.1, the network
+   * thread is only woken up when the buffer is full, or when the handler flushes or closes the
+   * body.
+   */
+  private final class StreamedBody extends OutputStream implements ResponseBody {
+    private final Stream stream;
+    private final long contentLength;
+    // Bodies of responses to HEAD requests are counted, but not sent.
+    private final boolean discard;
+    private final byte[] buffer;
+    // Guards the ring buffer, which the handler thread fills and the network thread drains; writers
+    // wait on spaceAvailable while the buffer is full.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition spaceAvailable = lock.newCondition();
+
+    // All guarded by lock.
+    private int start;
+    private int count;
+    private long written;
+    private boolean closed;
+    private boolean truncated;
+    private boolean released;
+    private boolean consumerWaiting = true;
+    private Runnable readyCallback;
+
+    StreamedBody(Stream stream, long contentLength, boolean discard) {
+      this.stream = stream;
+      this.contentLength = contentLength;
+      this.discard = discard;
+      this.buffer = discard ? EMPTY_BODY : new byte[STREAMED_BODY_BUFFER_SIZE];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+      lock.lock();
+      try {
+        checkWritable(length);
+        if (discard) {
+          written += length;
+          return;
+        }
+        while (length > 0) {
+          if (released) {
+            throw new ConnectionClosedException("Stream was closed from the other side");
+          }
+          int copied = copyIn(ByteBuffer.wrap(data, offset, length));
+          if (copied == 0) {
+            wakeUpConsumer();
+            spaceAvailable.awaitUninterruptibly();
+          }
+          offset += copied;
+          length -= copied;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    int writeNonBlocking(ByteBuffer data) throws IOException {
+      lock.lock();
+      try {
+        if (released) {
+          throw new ConnectionClosedException("Stream was closed from the other side");
+        }
+        if (discard) {
+          int length = data.remaining();
+          checkWritable(length);
+          written += length;
+          data.position(data.limit());
+          return length;
+        }
+        int length = Math.min(data.remaining(), buffer.length - count);
+        checkWritable(length);
+        ByteBuffer slice = data.duplicate();
+        slice.limit(slice.position() + length);
+        copyIn(slice);
+        data.position(data.position() + length);
+        if (count == buffer.length) {
+          wakeUpConsumer();
+        }
+        return length;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    // Guarded by lock.
+    private void checkWritable(int length) throws IOException {
+      if (released) {
+        throw new ConnectionClosedException("Stream was closed from the other side");
+      }
+      if (closed) {
+        throw new IOException("Response body is already closed");
+      }
+      if (!discard && contentLength >= 0 && written + length > contentLength) {
+        throw new IOException(
+            String.format("Response body exceeds the declared content length of %d bytes",
+                Long.valueOf(contentLength)));
+      }
+    }
+
+    // Guarded by lock.
+    private int copyIn(ByteBuffer data) {
+      int length = Math.min(data.remaining(), buffer.length - count);
+      int end = (start + count) % buffer.length;
+      int first = Math.min(length, buffer.length - end);
+      data.get(buffer, end, first);
+      data.get(buffer, 0, length - first);
+      count += length;
+      written += length;
+      return length;
+    }
+
+    // Guarded by lock.
+    private void wakeUpConsumer() {
+      if (consumerWaiting) {
+        consumerWaiting = false;
+        parent.queue(() -> resumeStream(stream));
+      }
+    }
+
+    boolean isReady() {
+      lock.lock();
+      try {
+        return released || discard || count < buffer.length;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void onReady(Runnable callback) {
+      lock.lock();
+      try {
+        if (!isReady()) {
+          readyCallback = callback;
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+      callback.run();
+    }
+
+    @Override
+    public void flush() {
+      lock.lock();
+      try {
+        if (count > 0) {
+          wakeUpConsumer();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      lock.lock();
+      try {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        truncated = !discard && contentLength >= 0 && written < contentLength;
+        wakeUpConsumer();
+      } finally {
+        lock.unlock();
+      }
+      if (truncated) {
+        throw new IOException(
+            String.format("Response body has %d bytes, but the declared content length is %d bytes",
+                Long.valueOf(written), Long.valueOf(contentLength)));
+      }
+    }
+
+    @Override
+    public int read(ByteBuffer out, int maxLength) {
+      Runnable callback;
+      int length;
+      lock.lock();
+      try {
+        if (count == 0) {
+          if (closed) {
+            return -1;
+          }
+          consumerWaiting = true;
+          return 0;
+        }
+        length = Math.min(count, maxLength);
+        int first = Math.min(length, buffer.length - start);
+        out.put(buffer, start, first);
+        out.put(buffer, 0, length - first);
+        start = (start + length) % buffer.length;
+        count -= length;
+        spaceAvailable.signalAll();
+        callback = readyCallback;
+        readyCallback = null;
+      } finally {
+        lock.unlock();
+      }
+      if (callback != null && length > 0) {
+        callback.run();
+      }
+      return length;
+    }
+
+    @Override
+    public boolean isTruncated() {
+      lock.lock();
+      try {
+        return truncated;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void release() {
+      Runnable callback;
+      lock.lock();
+      try {
+        released = true;
+        spaceAvailable.signalAll();
+        callback = readyCallback;
+        readyCallback = null;
+      } finally {
+        lock.unlock();
+      }
+      if (callback != null) {
+        callback.run();
+      }
+    }
+
+    NonBlockingResponseBody nonBlocking() {
+      return new NonBlockingResponseBody() {
+        @Override
+        public int write(ByteBuffer data) throws IOException {
+          return writeNonBlocking(data);
+        }
+
+        @Override
+        public boolean isReady() {
+          return StreamedBody.this.isReady();
+        }
+
+        @Override
+        public void onReady(Runnable callback) {
+          StreamedBody.this.onReady(callback);
+        }
+
+        @Override
+        public void flush() {
+          StreamedBody.this.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          StreamedBody.this.close();
+        }
+      };
+    }
+  }
+
+  private static final class Stream {
+    private final int id;
+
+    // Request side.
+    private final SimpleHttpRequest.Builder builder = new SimpleHttpRequest.Builder();
+    private HttpVirtualHost host;
+    private long contentLength = -1;
+    private long receivedLength;
+    private PayloadParser payloadParser;
+    // Data that arrived while the payload parser was not ready.
+    private final ArrayDeque<byte[]> pendingInput = new ArrayDeque<>();
+    private boolean waitingForParser;
+    // Set while the client waits for 100 Continue, which is only sent once the parser is ready.
+    private boolean continueExpected;
+    private int receiveWindow = STREAM_WINDOW;
+    // Bytes that were processed, but not yet acknowledged with a WINDOW_UPDATE frame.
+    private int consumedBytes;
+    private boolean endStreamReceived;
+    private HttpRequest request;
+
+    // Response side.
+    private boolean interimResponsePending;
+    // Set once a response is known, possibly before the request is complete.
+    private boolean responseCommitted;
+    private HttpResponse response;
+    private ResponseBody body;
+    private boolean headersSent;
+    private int sendWindow;
+    private boolean scheduled;
+    private boolean closed;
+
+    Stream(int id, int sendWindow) {
+      this.id = id;
+      this.sendWindow = sendWindow;
+    }
+  }
+
+  private final class Http2ResponseWriter implements HttpResponseWriter {
+    private final Stream stream;
+    private final HttpRequest request;
+    private final ResponsePolicy responsePolicy;
+    private final boolean headRequest;
+    private final AtomicBoolean committed = new AtomicBoolean();
+
+    Http2ResponseWriter(Stream stream, HttpRequest request, ResponsePolicy responsePolicy) {
+      this.stream = stream;
+      this.request = request;
+      this.responsePolicy = responsePolicy;
+      this.headRequest = HttpMethodName.HEAD.equals(request.getMethod());
+    }
+
+    @Override
+    public boolean isCommitted() {
+      return committed.get();
+    }
+
+    private void commit() {
+      if (!committed.compareAndSet(false, true)) {
+        throw new IllegalStateException("This response is already committed");
+      }
+    }
+
+    private void checkBodyAllowed(HttpResponse responseToWrite) {
+      if (!HttpStatusCode.mayHaveBody(responseToWrite.getStatusCode())) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Responses with status code %d are not allowed to have a body",
+                Integer.valueOf(responseToWrite.getStatusCode())));
+      }
+    }
+
+    @Override
+    public void commitBuffered(HttpResponse responseToWrite) throws IOException {
+      commit();
+      byte[] body = responseToWrite.getBody();
+      boolean bodyAllowed = HttpStatusCode.mayHaveBody(responseToWrite.getStatusCode());
+      if (!bodyAllowed) {
+        if (body != null && body.length != 0) {
+          throw new IllegalArgumentException(
+              String.format(
+                  "Responses with status code %d are not allowed to have a body",
+                  Integer.valueOf(responseToWrite.getStatusCode())));
+        }
+        if (responseToWrite.getHeaders().get(HttpHeaderName.CONTENT_LENGTH) != null) {
+          throw new IllegalArgumentException(
+              String.format(
+                  "Responses with status code %d are not allowed to have a content length",
+                  Integer.valueOf(responseToWrite.getStatusCode())));
+        }
+        body = EMPTY_BODY;
+      }
+      if (body == null) {
+        throw new IllegalArgumentException("Buffered responses must have a non-null body");
+      }
+
+      Map<String, String> overrides = new HashMap<>();
+      String mimeType = HttpServerStage.getMimeType(responseToWrite);
+      String contentEncoding =
+          HttpServerStage.selectContentEncoding(request, responsePolicy, responseToWrite, mimeType);
+      if (contentEncoding != null && body.length >= responsePolicy.getMinCompressionSize(mimeType)) {
+        overrides.put(HttpHeaderName.CONTENT_ENCODING, contentEncoding);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length / 2 + 32);
+        try (OutputStream out = new CompressingOutputStream(
+            buffer, contentEncoding, responsePolicy.getCompressionLevel(mimeType), DeflaterPool.DEFAULT, false)) {
+          out.write(body);
+        }
+        body = buffer.toByteArray();
+        responseToWrite = responseToWrite.withBody(body);
+      }
+      if (bodyAllowed) {
+        overrides.put(HttpHeaderName.CONTENT_LENGTH, Integer.toString(body.length));
+      }
+      HttpResponse response = responseToWrite.withHeaderOverrides(HttpHeaders.of(overrides));
+      ResponseBody responseBody =
+          headRequest || body.length == 0 ? null : new ByteBufferBody(ByteBuffer.wrap(body));
+      parent.queue(() -> startResponse(stream, response, responseBody));
+    }
+
+    @Override
+    public OutputStream commitStreamed(HttpResponse responseToWrite) throws IOException {
+      commit();
+      checkBodyAllowed(responseToWrite);
+      String mimeType = HttpServerStage.getMimeType(responseToWrite);
+      // We can't compress if the handler promised a specific length.
+      String contentEncoding = responseToWrite.getHeaders().get(HttpHeaderName.CONTENT_LENGTH) != null
+          ? null
+          : HttpServerStage.selectContentEncoding(request, responsePolicy, responseToWrite, mimeType);
+      if (contentEncoding != null) {
+        responseToWrite = responseToWrite.withHeaderOverrides(
+            HttpHeaders.of(HttpHeaderName.CONTENT_ENCODING, contentEncoding));
+      }
+      StreamedBody body = startStreamed(responseToWrite);
+      if (contentEncoding == null) {
+        return body;
+      }
+      // Use sync flushes so that handlers can still push partial output to the client.
+      return new CompressingOutputStream(
+          body, contentEncoding, responsePolicy.getCompressionLevel(mimeType), DeflaterPool.DEFAULT, true);
+    }
+
+    @Override
+    public NonBlockingResponseBody commitNonBlocking(HttpResponse responseToWrite) throws IOException {
+      commit();
+      checkBodyAllowed(responseToWrite);
+      return startStreamed(responseToWrite).nonBlocking();
+    }
+
+    private StreamedBody startStreamed(HttpResponse response) {
+      long contentLength = HttpResponseGenerator.parseContentLength(response);
+      StreamedBody body = new StreamedBody(stream, contentLength, headRequest);
+      parent.queue(() -> startResponse(stream, response, headRequest ? null : body));
+      return body;
+    }
+
+    @Override
+    public void commitFile(HttpResponse responseToWrite, FileChannel channel, long position, long length)
+        throws IOException {
+      commit();
+      checkBodyAllowed(responseToWrite);
+      if (position < 0 || length < 0) {
+        throw new IllegalArgumentException(
+            String.format("Illegal file region: position=%d, length=%d",
+                Long.valueOf(position), Long.valueOf(length)));
+      }
+      HttpResponse response = responseToWrite.withHeaderOverrides(
+          HttpHeaders.of(HttpHeaderName.CONTENT_LENGTH, Long.toString(length)));
+      FileBody body = new FileBody(channel, position, length);
+      if (headRequest || length == 0) {
+        body.release();
+        parent.queue(() -> startResponse(stream, response, null));
+      } else {
+        parent.queue(() -> startResponse(stream, response, body));
+      }
+    }
+
+    @Override
+    public void commitBuffered(HttpResponse responseToWrite, ByteBuffer body) throws IOException {
+      commit();
+      checkBodyAllowed(responseToWrite);
+      HttpResponse response = responseToWrite.withHeaderOverrides(
+          HttpHeaders.of(HttpHeaderName.CONTENT_LENGTH, Integer.toString(body.remaining())));
+      ResponseBody responseBody =
+          headRequest || !body.hasRemaining() ? null : new ByteBufferBody(body.duplicate());
+      parent.queue(() -> startResponse(stream, response, responseBody));
+    }
+  }
+
+  private final Pipeline parent;
+  private final RequestQueue requestHandler;
+  private final RequestListener requestListener;
+  private final Function<String, HttpVirtualHost> virtualHostLookup;
+  private final ByteBuffer inputBuffer;
+  private final ByteBuffer outputBuffer;
+  private final HpackDecoder decoder = new HpackDecoder();
+  private final HpackEncoder encoder = new HpackEncoder();
+  private final Map<Integer, Stream> streams = new HashMap<>();
+  private final ArrayDeque<Stream> readyStreams = new ArrayDeque<>();
+  private final ArrayDeque<byte[]> controlFrames = new ArrayDeque<>();
+  private Connection connection;
+
+  private int prefaceBytesReceived;
+  private boolean settingsReceived;
+  private int lastStreamId;
+  // A frame that arrived in pieces. We copy these out of the input buffer, since a TLS record may
+  // not fit in next to a partial frame.
+  private final byte[] partialFrame = new byte[Frames.HEADER_LENGTH + MAX_FRAME_SIZE];
+  private int partialFrameLength;
+
+  // The header block that is being received, which may span several frames.
+  private ByteArrayOutputStream incomingHeaderBlock;
+  private int incomingHeaderStreamId;
+  private boolean incomingHeaderEndStream;
+
+  // The header block that is being sent. No other frame may be sent until it is complete.
+  private byte[] outgoingHeaderBlock;
+  private int outgoingHeaderOffset;
+  private Stream outgoingHeaderStream;
+  private boolean outgoingHeaderEndStream;
+
+  private int peerInitialWindowSize = Setting.SETTINGS_INITIAL_WINDOW_SIZE.getInitialValue();
+  private int peerMaxFrameSize = Setting.SETTINGS_MAX_FRAME_SIZE.getInitialValue();
+  private int connectionSendWindow = Setting.SETTINGS_INITIAL_WINDOW_SIZE.getInitialValue();
+  private int connectionReceiveWindow = CONNECTION_WINDOW;
+  private int connectionConsumedBytes;
+
+  // Set when the client sent GOAWAY or closed its side; we close once all streams are done.
+  private boolean goingAway;
+  // Set after a connection error; we close as soon as the GOAWAY frame is sent.
+  private boolean closing;
+
+  Http2ServerStage(
+      Pipeline parent,
+      RequestQueue requestHandler,
+      RequestListener requestListener,
+      Function<String, HttpVirtualHost> virtualHostLookup,
+      ByteBuffer inputBuffer,
+      ByteBuffer outputBuffer) {
+    this.parent = parent;
+    this.requestHandler = requestHandler;
+    this.requestListener = requestListener;
+    this.virtualHostLookup = virtualHostLookup;
+    this.inputBuffer = inputBuffer;
+    this.outputBuffer = outputBuffer;
+  }
+
+  @Override
+  public InitialConnectionState connect(@SuppressWarnings("hiding") Connection connection) {
+    this.connection = connection;
+    // The server connection preface.
+    controlFrames.add(Frames.settings(
+        Setting.SETTINGS_MAX_CONCURRENT_STREAMS.getId(), MAX_CONCURRENT_STREAMS,
+        Setting.SETTINGS_MAX_HEADER_LIST_SIZE.getId(), MAX_HEADER_LIST_SIZE));
+    controlFrames.add(Frames.windowUpdate(0, CONNECTION_WINDOW - connectionSendWindow));
+    return InitialConnectionState.READ_AND_WRITE;
+  }
+
+  @Override
+  public ConnectionControl read() {
+    if (closing) {
+      inputBuffer.position(inputBuffer.limit());
+      return ConnectionControl.CLOSE_INPUT;
+    }
+    try {
+      // Process everything that's buffered: a TLS stage below us does not call us again for data
+      // that it already decrypted.
+      while (inputBuffer.hasRemaining() && !closing) {
+        boolean complete = prefaceBytesReceived < Frames.CONNECTION_PREFACE.length
+            ? readPreface()
+            : readFrame();
+        if (!complete) {
+          break;
+        }
+      }
+      return closing ? ConnectionControl.CLOSE_INPUT : ConnectionControl.NEED_MORE_DATA;
+    } catch (Http2Exception e) {
+      connectionError(e.getErrorCode(), e.getMessage());
+      return ConnectionControl.CLOSE_INPUT;
+    } finally {
+      if (hasPendingOutput()) {
+        parent.encourageWrites();
+      }
+    }
+  }
+
+  /** Consumes the client connection preface; returns false if it is incomplete. */
+  private boolean readPreface() throws Http2Exception {
+    int length = Math.min(
+        inputBuffer.remaining(), Frames.CONNECTION_PREFACE.length - prefaceBytesReceived);
+    byte[] data = inputBuffer.array();
+    int position = inputBuffer.position();
+    for (int i = 0; i < length; i++) {
+      if (data[position + i] != Frames.CONNECTION_PREFACE[prefaceBytesReceived + i]) {
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Invalid connection preface");
+      }
+    }
+    inputBuffer.position(position + length);
+    prefaceBytesReceived += length;
+    return prefaceBytesReceived == Frames.CONNECTION_PREFACE.length;
+  }
+
+  /** Consumes and processes one frame; returns false if the frame is incomplete. */
+  private boolean readFrame() throws Http2Exception {
+    byte[] data;
+    int offset;
+    if (partialFrameLength == 0 && containsCompleteFrame()) {
+      data = inputBuffer.array();
+      offset = inputBuffer.position();
+      inputBuffer.position(offset + Frames.HEADER_LENGTH + Frames.getLength(data, offset));
+    } else {
+      int needed = partialFrameLength < Frames.HEADER_LENGTH
+          ? Frames.HEADER_LENGTH - partialFrameLength
+          : Frames.HEADER_LENGTH + Frames.getLength(partialFrame, 0) - partialFrameLength;
+      int length = Math.min(needed, inputBuffer.remaining());
+      inputBuffer.get(partialFrame, partialFrameLength, length);
+      partialFrameLength += length;
+      if (partialFrameLength < Frames.HEADER_LENGTH) {
+        return false;
+      }
+      checkFrameLength(partialFrame, 0);
+      if (partialFrameLength < Frames.HEADER_LENGTH + Frames.getLength(partialFrame, 0)) {
+        // The header may have been completed just now, so try again for the payload.
+        return inputBuffer.hasRemaining();
+      }
+      data = partialFrame;
+      offset = 0;
+      partialFrameLength = 0;
+    }
+    int length = Frames.getLength(data, offset);
+    int type = Frames.getType(data, offset);
+    int flags = Frames.getFlags(data, offset);
+    int streamId = Frames.getStreamId(data, offset);
+    try {
+      processFrame(type, flags, streamId, data, offset + Frames.HEADER_LENGTH, length);
+    } catch (Http2Exception e) {
+      if (e.isConnectionError()) {
+        throw e;
+      }
+      parent.log("Stream error %d: %s", Integer.valueOf(e.getErrorCode()), e.getMessage());
+      resetStream(e.getStreamId(), e.getErrorCode());
+    }
+    return true;
+  }
+
+  private boolean containsCompleteFrame() throws Http2Exception {
+    if (inputBuffer.remaining() < Frames.HEADER_LENGTH) {
+      return false;
+    }
+    checkFrameLength(inputBuffer.array(), inputBuffer.position());
+    int length = Frames.getLength(inputBuffer.array(), inputBuffer.position());
+    return inputBuffer.remaining() >= Frames.HEADER_LENGTH + length;
+  }
+
+  private static void checkFrameLength(byte[] data, int offset) throws Http2Exception {
+    int length = Frames.getLength(data, offset);
+    if (length > MAX_FRAME_SIZE) {
+      throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, String.format(
+          "Frame size %d exceeds the maximum of %d",
+          Integer.valueOf(length), Integer.valueOf(MAX_FRAME_SIZE)));
+    }
+  }
+
+  private void processFrame(int type, int flags, int streamId, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (incomingHeaderBlock != null
+        && (type != FrameType.CONTINUATION || streamId != incomingHeaderStreamId)) {
+      throw new Http2Exception(
+          ErrorCode.PROTOCOL_ERROR, "Expected CONTINUATION frame for stream " + incomingHeaderStreamId);
+    }
+    if (!settingsReceived && type != FrameType.SETTINGS) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Expected SETTINGS frame after preface");
+    }
+    switch (type) {
+      case FrameType.DATA:
+        processData(flags, streamId, data, offset, length);
+        break;
+      case FrameType.HEADERS:
+        processHeaders(flags, streamId, data, offset, length);
+        break;
+      case FrameType.PRIORITY:
+        processPriority(streamId, length);
+        break;
+      case FrameType.RST_STREAM:
+        processRstStream(streamId, data, offset, length);
+        break;
+      case FrameType.SETTINGS:
+        processSettings(flags, streamId, data, offset, length);
+        break;
+      case FrameType.PUSH_PROMISE:
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Clients must not send PUSH_PROMISE");
+      case FrameType.PING:
+        processPing(flags, streamId, data, offset, length);
+        break;
+      case FrameType.GOAWAY:
+        processGoAway(streamId, data, offset, length);
+        break;
+      case FrameType.WINDOW_UPDATE:
+        processWindowUpdate(streamId, data, offset, length);
+        break;
+      case FrameType.CONTINUATION:
+        processContinuation(flags, data, offset, length);
+        break;
+      default:
+        // Frames of unknown types must be ignored.
+        break;
+    }
+  }
+
+  private void processData(int flags, int streamId, byte[] data, int offset, int frameLength)
+      throws Http2Exception {
+    if (streamId == 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "DATA frame on stream 0");
+    }
+    // Flow control applies to the entire frame, including the padding.
+    connectionReceiveWindow -= frameLength;
+    if (connectionReceiveWindow < 0) {
+      throw new Http2Exception(ErrorCode.FLOW_CONTROL_ERROR, "Connection window exceeded");
+    }
+    // Data that is not discarded is bounded by the stream windows, so we can acknowledge it now.
+    connectionConsumedBytes += frameLength;
+    if (connectionConsumedBytes >= CONNECTION_WINDOW / 2) {
+      controlFrames.add(Frames.windowUpdate(0, connectionConsumedBytes));
+      connectionReceiveWindow += connectionConsumedBytes;
+      connectionConsumedBytes = 0;
+    }
+    int length = frameLength;
+    if ((flags & Frames.FLAG_PADDED) != 0) {
+      int padding = length == 0 ? -1 : data[offset] & 0xff;
+      if (padding < 0 || padding >= length) {
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Padding exceeds the frame size");
+      }
+      offset++;
+      length -= padding + 1;
+    }
+    Stream stream = streams.get(Integer.valueOf(streamId));
+    if (stream == null) {
+      if (streamId > lastStreamId) {
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "DATA frame on idle stream " + streamId);
+      }
+      // The stream is closed, but the client may not have seen our RST_STREAM frame yet.
+      return;
+    }
+    if (stream.endStreamReceived) {
+      throw new Http2Exception(ErrorCode.STREAM_CLOSED, streamId, "DATA frame after END_STREAM");
+    }
+    stream.receiveWindow -= frameLength;
+    if (stream.receiveWindow < 0) {
+      throw new Http2Exception(ErrorCode.FLOW_CONTROL_ERROR, streamId, "Stream window exceeded");
+    }
+    stream.consumedBytes += frameLength - length;
+    receiveBody(stream, data, offset, length);
+    if ((flags & Frames.FLAG_END_STREAM) != 0) {
+      endOfRequest(stream);
+    } else {
+      updateStreamWindow(stream);
+    }
+  }
+
+  private void updateStreamWindow(Stream stream) {
+    if (!stream.closed && !stream.endStreamReceived && stream.consumedBytes >= STREAM_WINDOW / 2) {
+      controlFrames.add(Frames.windowUpdate(stream.id, stream.consumedBytes));
+      stream.receiveWindow += stream.consumedBytes;
+      stream.consumedBytes = 0;
+    }
+  }
+
+  private void receiveBody(Stream stream, byte[] data, int offset, int length) throws Http2Exception {
+    if (length == 0) {
+      return;
+    }
+    stream.receivedLength += length;
+    if (stream.contentLength >= 0 && stream.receivedLength > stream.contentLength) {
+      throw new Http2Exception(
+          ErrorCode.PROTOCOL_ERROR, stream.id, "Request body exceeds the declared content length");
+    }
+    if (stream.responseCommitted) {
+      // We already sent an error response; the body doesn't matter anymore.
+      stream.consumedBytes += length;
+      return;
+    }
+    if (stream.contentLength < 0) {
+      // We only pass bodies with a declared length to the upload policy, like for HTTP/1.1.
+      stream.consumedBytes += length;
+      startErrorResponse(stream, null, StandardResponses.LENGTH_REQUIRED);
+      return;
+    }
+    if (stream.payloadParser == null) {
+      // The declared content length is zero.
+      return;
+    }
+    // The client did not wait for the interim response.
+    stream.continueExpected = false;
+    if (!stream.pendingInput.isEmpty() || !stream.payloadParser.isReady()) {
+      stream.pendingInput.add(Arrays.copyOfRange(data, offset, offset + length));
+      waitForParser(stream);
+      return;
+    }
+    parseBody(stream, data, offset, length);
+  }
+
+  private void parseBody(Stream stream, byte[] data, int offset, int length) {
+    PayloadParser parser = stream.payloadParser;
+    while (length > 0) {
+      if (!parser.isReady()) {
+        stream.pendingInput.addFirst(Arrays.copyOfRange(data, offset, offset + length));
+        waitForParser(stream);
+        return;
+      }
+      int parsed = parser.parse(data, offset, length);
+      if (parsed <= 0) {
+        throw new IllegalStateException("Parser must process at least one byte");
+      }
+      offset += parsed;
+      length -= parsed;
+      stream.consumedBytes += parsed;
+    }
+    if (parser.isDone() && stream.builder.getBody() == null) {
+      try {
+        stream.builder.setBody(parser.getParsedBody());
+      } catch (MalformedRequestException e) {
+        stream.builder.setError(e.getErrorResponse());
+      } catch (IOException e) {
+        stream.builder.setError(HttpStatusCode.BAD_REQUEST, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Sends 100 Continue if the client waits for it and the upload policy's parser can take the body
+   * now, like HTTP/1.1 does; otherwise, waits until the parser is ready.
+   */
+  private void sendContinueIfReady(Stream stream) {
+    if (!stream.continueExpected) {
+      return;
+    }
+    if (!stream.payloadParser.isReady()) {
+      waitForParser(stream);
+      return;
+    }
+    stream.continueExpected = false;
+    stream.interimResponsePending = true;
+    schedule(stream);
+  }
+
+  private void waitForParser(Stream stream) {
+    if (!stream.waitingForParser) {
+      stream.waitingForParser = true;
+      stream.payloadParser.whenReady(() -> parent.queue(() -> resumeBody(stream)));
+    }
+  }
+
+  private void resumeBody(Stream stream) {
+    stream.waitingForParser = false;
+    if (stream.closed) {
+      return;
+    }
+    try {
+      sendContinueIfReady(stream);
+      while (!stream.pendingInput.isEmpty() && !stream.waitingForParser) {
+        byte[] data = stream.pendingInput.poll();
+        parseBody(stream, data, 0, data.length);
+      }
+      if (stream.pendingInput.isEmpty() && stream.endStreamReceived) {
+        completeRequest(stream);
+      } else {
+        updateStreamWindow(stream);
+      }
+    } catch (Http2Exception e) {
+      resetStream(stream.id, e.getErrorCode());
+    }
+    if (hasPendingOutput()) {
+      parent.encourageWrites();
+    }
+  }
+
+  private void processHeaders(int flags, int streamId, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (streamId == 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "HEADERS frame on stream 0");
+    }
+    int padding = 0;
+    if ((flags & Frames.FLAG_PADDED) != 0) {
+      if (length == 0) {
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Padding exceeds the frame size");
+      }
+      padding = data[offset] & 0xff;
+      offset++;
+      length--;
+    }
+    if ((flags & Frames.FLAG_PRIORITY) != 0) {
+      if (length < Frames.PRIORITY_LENGTH) {
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "HEADERS frame too short for priority");
+      }
+      // We don't support priorities.
+      offset += Frames.PRIORITY_LENGTH;
+      length -= Frames.PRIORITY_LENGTH;
+    }
+    if (padding > length) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Padding exceeds the frame size");
+    }
+    length -= padding;
+    incomingHeaderBlock = new ByteArrayOutputStream(length);
+    incomingHeaderStreamId = streamId;
+    incomingHeaderEndStream = (flags & Frames.FLAG_END_STREAM) != 0;
+    appendHeaderFragment(flags, data, offset, length);
+  }
+
+  private void processContinuation(int flags, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (incomingHeaderBlock == null) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+    }
+    appendHeaderFragment(flags, data, offset, length);
+  }
+
+  private void appendHeaderFragment(int flags, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (incomingHeaderBlock.size() + length > MAX_HEADER_BLOCK_SIZE) {
+      throw new Http2Exception(ErrorCode.ENHANCE_YOUR_CALM, "Header block too large");
+    }
+    incomingHeaderBlock.write(data, offset, length);
+    if ((flags & Frames.FLAG_END_HEADERS) != 0) {
+      byte[] block = incomingHeaderBlock.toByteArray();
+      incomingHeaderBlock = null;
+      processHeaderBlock(incomingHeaderStreamId, block, incomingHeaderEndStream);
+    }
+  }
+
+  private void processHeaderBlock(int streamId, byte[] block, boolean endStream) throws Http2Exception {
+    // Always decode the block to keep the dynamic table in sync, even if we reject the stream.
+    List<String[]> fields = new ArrayList<>();
+    decoder.decode(block, 0, block.length, (name, value) -> fields.add(new String[] { name, value }));
+    Stream stream = streams.get(Integer.valueOf(streamId));
+    if (stream != null) {
+      if (stream.endStreamReceived) {
+        throw new Http2Exception(ErrorCode.STREAM_CLOSED, streamId, "HEADERS frame after END_STREAM");
+      }
+      if (!endStream) {
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, streamId, "Trailers must end the stream");
+      }
+      // Trailers are not passed on to handlers.
+      endOfRequest(stream);
+      return;
+    }
+    if (streamId <= lastStreamId) {
+      throw new Http2Exception(ErrorCode.STREAM_CLOSED, streamId, "HEADERS frame on closed stream");
+    }
+    if ((streamId & 1) == 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Clients must use odd stream ids");
+    }
+    lastStreamId = streamId;
+    if (streams.size() >= MAX_CONCURRENT_STREAMS) {
+      throw new Http2Exception(ErrorCode.REFUSED_STREAM, streamId, "Too many concurrent streams");
+    }
+    stream = new Stream(streamId, peerInitialWindowSize);
+    streams.put(Integer.valueOf(streamId), stream);
+    startRequest(stream, fields, endStream);
+  }
+
+  private static Http2Exception malformed(Stream stream, String message) {
+    return new Http2Exception(ErrorCode.PROTOCOL_ERROR, stream.id, message);
+  }
+
+  // RFC 9113 section 8.3.1.
+  private void startRequest(Stream stream, List<String[]> fields, boolean endStream)
+      throws Http2Exception {
+    SimpleHttpRequest.Builder builder = stream.builder;
+    builder.setVersion(HttpVersion.HTTP_2_0);
+    String method = null;
+    String scheme = null;
+    String path = null;
+    String authority = null;
+    StringBuilder cookies = null;
+    boolean regularFieldSeen = false;
+    long listSize = 0;
+    for (String[] field : fields) {
+      String name = field[0];
+      String value = field[1];
+      listSize += name.length() + value.length() + 32;
+      if (name.startsWith(":")) {
+        if (regularFieldSeen) {
+          throw malformed(stream, "Pseudo-header field after regular field");
+        }
+        String previous;
+        switch (name) {
+          case ":method":
+            previous = method;
+            method = value;
+            break;
+          case ":scheme":
+            previous = scheme;
+            scheme = value;
+            break;
+          case ":path":
+            previous = path;
+            path = value;
+            break;
+          case ":authority":
+            previous = authority;
+            authority = value;
+            break;
+          default:
+            throw malformed(stream, "Unknown pseudo-header field " + name);
+        }
+        if (previous != null) {
+          throw malformed(stream, "Duplicate pseudo-header field " + name);
+        }
+        continue;
+      }
+      regularFieldSeen = true;
+      if (!name.equals(name.toLowerCase(Locale.US))) {
+        throw malformed(stream, "Upper-case header field name " + name);
+      }
+      if (isConnectionSpecific(name)) {
+        throw malformed(stream, "Connection-specific header field " + name);
+      }
+      if ("te".equals(name) && !"trailers".equals(value)) {
+        throw malformed(stream, "Illegal TE header field");
+      }
+      if ("cookie".equals(name)) {
+        // Clients may split the cookie header into several fields (RFC 9113 section 8.2.3).
+        cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+        continue;
+      }
+      builder.addHeader(name, value);
+    }
+    if (method == null || scheme == null || path == null || path.isEmpty()) {
+      throw malformed(stream, "Missing pseudo-header field");
+    }
+    builder.setMethod(method);
+    builder.setUri(path);
+    if (cookies != null) {
+      builder.addHeader(HttpHeaderName.COOKIE, cookies.toString());
+    }
+    if (authority != null && builder.getHeader(HttpHeaderName.HOST) == null) {
+      builder.addHeader(HttpHeaderName.HOST, authority);
+    }
+    if (listSize > MAX_HEADER_LIST_SIZE) {
+      builder.setError(HttpStatusCode.REQUEST_HEADER_FIELDS_TOO_LARGE);
+    }
+    String contentLengthValue = builder.getHeader(HttpHeaderName.CONTENT_LENGTH);
+    if (contentLengthValue != null) {
+      try {
+        stream.contentLength = Long.parseLong(contentLengthValue);
+      } catch (NumberFormatException e) {
+        throw malformed(stream, "Illegal content length value");
+      }
+      if (stream.contentLength < 0) {
+        throw malformed(stream, "Illegal content length value");
+      }
+    }
+    stream.host = virtualHostLookup.apply(builder.getHeader(HttpHeaderName.HOST));
+    if (stream.contentLength == 0) {
+      builder.setBody(new HttpRequest.InMemoryBody(new byte[0]));
+    } else if (stream.contentLength > 0 && !builder.hasError()) {
+      if (endStream) {
+        throw malformed(stream, "Request body is shorter than the declared content length");
+      }
+      UploadPolicy uploadPolicy = stream.host == null ? UploadPolicy.DENY : stream.host.getUploadPolicy();
+      stream.payloadParser = uploadPolicy.accept(builder);
+      if (!builder.hasError()
+          && EXPECT_CONTINUE.equalsIgnoreCase(builder.getHeader(HttpHeaderName.EXPECT))) {
+        // The client waits for an interim response before sending the body.
+        stream.continueExpected = true;
+        sendContinueIfReady(stream);
+      }
+    }
+    if (builder.hasError()) {
+      startErrorResponse(stream, null, builder.getErrorResponse());
+    }
+    if (endStream) {
+      endOfRequest(stream);
+    }
+  }
+
+  private static boolean isConnectionSpecific(String name) {
+    return "connection".equals(name)
+        || "keep-alive".equals(name)
+        || "proxy-connection".equals(name)
+        || "transfer-encoding".equals(name)
+        || "upgrade".equals(name);
+  }
+
+  private void endOfRequest(Stream stream) throws Http2Exception {
+    stream.endStreamReceived = true;
+    if (stream.pendingInput.isEmpty()) {
+      completeRequest(stream);
+    }
+  }
+
+  private void completeRequest(Stream stream) throws Http2Exception {
+    if (stream.responseCommitted) {
+      // The error response may already be complete.
+      if (stream.response != null && stream.headersSent && stream.body == null) {
+        closeStream(stream);
+      }
+      return;
+    }
+    if (stream.payloadParser != null && !stream.payloadParser.isDone()) {
+      throw malformed(stream, "Request body is shorter than the declared content length");
+    }
+    HttpRequest request;
+    try {
+      request = stream.builder.build();
+    } catch (MalformedRequestException e) {
+      startErrorResponse(stream, null, e.getErrorResponse());
+      return;
+    }
+    stream.request = request;
+    parent.log("%s %s %s (stream %d)",
+        request.getMethod(), request.getUri(), request.getVersion(), Integer.valueOf(stream.id));
+    if (stream.host == null) {
+      startErrorResponse(stream, request, StandardResponses.NOT_FOUND);
+      return;
+    }
+    stream.responseCommitted = true;
+    HttpResponseWriter writer =
+        new Http2ResponseWriter(stream, request, stream.host.getResponsePolicy());
+    requestHandler.queueRequest(stream.host.getHttpHandler(), connection, request, writer);
+  }
+
+  private void startErrorResponse(Stream stream, HttpRequest request, HttpResponse response) {
+    byte[] body = response.getBody() == null ? EMPTY_BODY : response.getBody();
+    stream.request = request;
+    stream.responseCommitted = true;
+    // Drop the request body; we don't need it anymore.
+    releaseRequest(stream);
+    startResponse(
+        stream,
+        response.withHeaderOverrides(
+            HttpHeaders.of(HttpHeaderName.CONTENT_LENGTH, Integer.toString(body.length))),
+        body.length == 0 ? null : new ByteBufferBody(ByteBuffer.wrap(body)));
+  }
+
+  private void startResponse(Stream stream, HttpResponse response, ResponseBody body) {
+    if (stream.closed) {
+      if (body != null) {
+        body.release();
+      }
+      return;
+    }
+    parent.log("%d %s (stream %d)",
+        Integer.valueOf(response.getStatusCode()), response.getStatusMessage(), Integer.valueOf(stream.id));
+    stream.response = response;
+    stream.body = body;
+    resumeStream(stream);
+  }
+
+  /** Schedules the given stream for writing; called on the network thread. */
+  private void resumeStream(Stream stream) {
+    schedule(stream);
+    if (hasPendingOutput()) {
+      parent.encourageWrites();
+    }
+  }
+
+  private void processPriority(int streamId, int length) throws Http2Exception {
+    if (streamId == 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "PRIORITY frame on stream 0");
+    }
+    if (length != Frames.PRIORITY_LENGTH) {
+      throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, streamId, "Illegal PRIORITY frame size");
+    }
+    // We don't support priorities.
+  }
+
+  private void processRstStream(int streamId, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (length != Frames.RST_STREAM_LENGTH) {
+      throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, "Illegal RST_STREAM frame size");
+    }
+    if (streamId == 0 || streamId > lastStreamId) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "RST_STREAM frame on idle stream " + streamId);
+    }
+    Stream stream = streams.get(Integer.valueOf(streamId));
+    if (stream != null) {
+      parent.log("Stream %d reset by client: %d",
+          Integer.valueOf(streamId), Integer.valueOf(Frames.getInt(data, offset)));
+      closeStream(stream);
+    }
+  }
+
+  private void processSettings(int flags, int streamId, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (streamId != 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "SETTINGS frame on stream " + streamId);
+    }
+    if ((flags & Frames.FLAG_ACK) != 0) {
+      if (length != 0) {
+        throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, "SETTINGS acknowledgement with payload");
+      }
+      return;
+    }
+    if (length % Frames.SETTING_LENGTH != 0) {
+      throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, "Illegal SETTINGS frame size");
+    }
+    for (int i = offset; i < offset + length; i += Frames.SETTING_LENGTH) {
+      Setting setting = Setting.forId(((data[i] & 0xff) << 8) | (data[i + 1] & 0xff));
+      int value = Frames.getInt(data, i + 2);
+      if (setting == null) {
+        // Unknown settings must be ignored.
+        continue;
+      }
+      switch (setting) {
+        case SETTINGS_HEADER_TABLE_SIZE:
+          encoder.setMaxHeaderTableSize(value < 0 ? Integer.MAX_VALUE : value);
+          break;
+        case SETTINGS_ENABLE_PUSH:
+          if (value != 0 && value != 1) {
+            throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Illegal SETTINGS_ENABLE_PUSH value");
+          }
+          break;
+        case SETTINGS_INITIAL_WINDOW_SIZE:
+          if (value < 0) {
+            throw new Http2Exception(ErrorCode.FLOW_CONTROL_ERROR, "Initial window size too large");
+          }
+          int delta = value - peerInitialWindowSize;
+          peerInitialWindowSize = value;
+          for (Stream stream : streams.values()) {
+            if ((long) stream.sendWindow + delta > Frames.MAX_WINDOW_SIZE) {
+              throw new Http2Exception(ErrorCode.FLOW_CONTROL_ERROR, "Stream window too large");
+            }
+            stream.sendWindow += delta;
+            schedule(stream);
+          }
+          break;
+        case SETTINGS_MAX_FRAME_SIZE:
+          if (value < Frames.DEFAULT_MAX_FRAME_SIZE || value > Frames.MAX_MAX_FRAME_SIZE) {
+            throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Illegal SETTINGS_MAX_FRAME_SIZE value");
+          }
+          peerMaxFrameSize = value;
+          break;
+        default:
+          // The concurrent stream limit only applies to server push, which we don't use, and the
+          // header list size is advisory.
+          break;
+      }
+    }
+    settingsReceived = true;
+    controlFrames.add(Frames.settingsAck());
+  }
+
+  private void processPing(int flags, int streamId, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (streamId != 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "PING frame on stream " + streamId);
+    }
+    if (length != Frames.PING_LENGTH) {
+      throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, "Illegal PING frame size");
+    }
+    if ((flags & Frames.FLAG_ACK) == 0) {
+      controlFrames.add(Frames.ping(data, offset, true));
+    }
+  }
+
+  private void processGoAway(int streamId, byte[] data, int offset, int length) throws Http2Exception {
+    if (streamId != 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "GOAWAY frame on stream " + streamId);
+    }
+    if (length < 8) {
+      throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, "Illegal GOAWAY frame size");
+    }
+    parent.log("GOAWAY from client: %d", Integer.valueOf(Frames.getInt(data, offset + 4)));
+    // The client won't start new streams, but we still complete the existing ones.
+    goingAway = true;
+  }
+
+  private void processWindowUpdate(int streamId, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (length != Frames.WINDOW_UPDATE_LENGTH) {
+      throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, "Illegal WINDOW_UPDATE frame size");
+    }
+    int increment = Frames.getInt(data, offset) & 0x7fffffff;
+    if (streamId == 0) {
+      if (increment == 0) {
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Window increment must be positive");
+      }
+      if ((long) connectionSendWindow + increment > Frames.MAX_WINDOW_SIZE) {
+        throw new Http2Exception(ErrorCode.FLOW_CONTROL_ERROR, "Connection window too large");
+      }
+      connectionSendWindow += increment;
+      for (Stream stream : streams.values()) {
+        schedule(stream);
+      }
+      return;
+    }
+    if (streamId > lastStreamId) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "WINDOW_UPDATE frame on idle stream " + streamId);
+    }
+    Stream stream = streams.get(Integer.valueOf(streamId));
+    if (stream == null) {
+      return;
+    }
+    if (increment == 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, streamId, "Window increment must be positive");
+    }
+    if ((long) stream.sendWindow + increment > Frames.MAX_WINDOW_SIZE) {
+      throw new Http2Exception(ErrorCode.FLOW_CONTROL_ERROR, streamId, "Stream window too large");
+    }
+    stream.sendWindow += increment;
+    schedule(stream);
+  }
+
+  private void resetStream(int streamId, int errorCode) {
+    controlFrames.add(Frames.rstStream(streamId, errorCode));
+    Stream stream = streams.get(Integer.valueOf(streamId));
+    if (stream != null) {
+      closeStream(stream);
+    }
+  }
+
+  private void connectionError(int errorCode, String message) {
+    if (closing) {
+      return;
+    }
+    parent.log("Connection error %d: %s", Integer.valueOf(errorCode), message);
+    closing = true;
+    for (Stream stream : new ArrayList<>(streams.values())) {
+      closeStream(stream);
+    }
+    readyStreams.clear();
+    controlFrames.add(Frames.goAway(lastStreamId, errorCode, message));
+  }
+
+  private void closeStream(Stream stream) {
+    stream.closed = true;
+    streams.remove(Integer.valueOf(stream.id));
+    if (stream.body != null) {
+      stream.body.release();
+      stream.body = null;
+    }
+    releaseRequest(stream);
+    if (stream.request != null && stream.request.getBody() instanceof Closeable) {
+      try {
+        ((Closeable) stream.request.getBody()).close();
+      } catch (IOException e) {
+        parent.log("Failed to release request body: %s", e);
+      }
+    }
+  }
+
+  /** Releases a partially received request body. */
+  private void releaseRequest(Stream stream) {
+    if (stream.payloadParser != null && !stream.payloadParser.isDone()) {
+      stream.payloadParser.close();
+    }
+    stream.payloadParser = null;
+    stream.pendingInput.clear();
+  }
+
+  private void schedule(Stream stream) {
+    if (!stream.scheduled && !stream.closed && hasPendingOutput(stream)) {
+      stream.scheduled = true;
+      readyStreams.add(stream);
+    }
+  }
+
+  private static boolean hasPendingOutput(Stream stream) {
+    if (stream.interimResponsePending) {
+      return true;
+    }
+    return stream.response != null && (!stream.headersSent || stream.body != null);
+  }
+
+  private boolean hasPendingOutput() {
+    return !controlFrames.isEmpty() || outgoingHeaderBlock != null || !readyStreams.isEmpty();
+  }
+
+  @Override
+  public void inputClosed() {
+    goingAway = true;
+    // Requests that are not complete yet never will be.
+    for (Stream stream : new ArrayList<>(streams.values())) {
+      if (!stream.endStreamReceived) {
+        closeStream(stream);
+      }
+    }
+    if (streams.isEmpty() && !hasPendingOutput()) {
+      parent.close();
+    }
+  }
+
+  @Override
+  public ConnectionControl write() {
+    outputBuffer.compact(); // prepare buffer for writing
+    writeFrames();
+    outputBuffer.flip(); // prepare buffer for reading
+    if (closing || (goingAway && streams.isEmpty())) {
+      if (controlFrames.isEmpty() && outgoingHeaderBlock == null) {
+        return ConnectionControl.CLOSE_CONNECTION_AFTER_FLUSH;
+      }
+      return ConnectionControl.CONTINUE;
+    }
+    return hasPendingOutput() ? ConnectionControl.CONTINUE : ConnectionControl.PAUSE;
+  }
+
+  private void writeFrames() {
+    while (true) {
+      if (outgoingHeaderBlock != null) {
+        if (!writeHeaderFragment()) {
+          return;
+        }
+        continue;
+      }
+      if (!controlFrames.isEmpty()) {
+        byte[] frame = controlFrames.peek();
+        if (frame.length > outputBuffer.remaining()) {
+          return;
+        }
+        outputBuffer.put(controlFrames.poll());
+        continue;
+      }
+      Stream stream = readyStreams.peek();
+      if (stream == null || closing) {
+        return;
+      }
+      int result = stream.closed ? NO_PROGRESS : writeStream(stream);
+      if (result == NO_SPACE) {
+        return;
+      }
+      readyStreams.poll();
+      stream.scheduled = false;
+      if (result == PROGRESS) {
+        // Round robin: let the other streams go first.
+        schedule(stream);
+      }
+    }
+  }
+
+  private int writeStream(Stream stream) {
+    if (stream.interimResponsePending) {
+      stream.interimResponsePending = false;
+      startHeaderBlock(stream, Arrays.asList(field(":status", "100")), false);
+      return PROGRESS;
+    }
+    if (stream.response == null) {
+      return NO_PROGRESS;
+    }
+    if (!stream.headersSent) {
+      stream.headersSent = true;
+      startHeaderBlock(stream, responseFields(stream.response), stream.body == null);
+      return PROGRESS;
+    }
+    if (stream.body == null) {
+      return NO_PROGRESS;
+    }
+    return writeData(stream);
+  }
+
+  private int writeData(Stream stream) {
+    int space = outputBuffer.remaining() - Frames.HEADER_LENGTH;
+    if (space <= 0 || (space < MIN_FRAME_SIZE && outputBuffer.position() > 0)) {
+      return NO_SPACE;
+    }
+    int maxLength = Math.max(0, Math.min(
+        Math.min(stream.sendWindow, connectionSendWindow), Math.min(peerMaxFrameSize, space)));
+    int headerIndex = outputBuffer.position();
+    outputBuffer.position(headerIndex + Frames.HEADER_LENGTH);
+    ResponseBody body = stream.body;
+    int length;
+    boolean last;
+    try {
+      length = body.read(outputBuffer, maxLength);
+      last = length > 0 && body.read(outputBuffer, 0) < 0;
+    } catch (IOException e) {
+      outputBuffer.position(headerIndex);
+      parent.log("Failed to read response body: %s", e);
+      resetStream(stream.id, ErrorCode.INTERNAL_ERROR);
+      return PROGRESS;
+    }
+    if (length == 0) {
+      outputBuffer.position(headerIndex);
+      return NO_PROGRESS;
+    }
+    if (body.isTruncated() && (length < 0 || last)) {
+      // The response is malformed; tell the client rather than ending the stream normally.
+      resetStream(stream.id, ErrorCode.INTERNAL_ERROR);
+      if (length < 0) {
+        outputBuffer.position(headerIndex);
+        return PROGRESS;
+      }
+      last = false;
+    }
+    if (length < 0) {
+      length = 0;
+      last = true;
+    }
+    Frames.writeHeader(
+        outputBuffer, headerIndex, length, FrameType.DATA, last ? Frames.FLAG_END_STREAM : 0, stream.id);
+    stream.sendWindow -= length;
+    connectionSendWindow -= length;
+    if (last) {
+      finishStream(stream);
+    }
+    return PROGRESS;
+  }
+
+  private static Map.Entry<String, String> field(String name, String value) {
+    return new AbstractMap.SimpleImmutableEntry<>(name, value);
+  }
+
+  private static List<Map.Entry<String, String>> responseFields(HttpResponse response) {
+    List<Map.Entry<String, String>> fields = new ArrayList<>();
+    fields.add(field(":status", Integer.toString(response.getStatusCode())));
+    for (Map.Entry<String, String> header : response.getHeaders()) {
+      String name = header.getKey().toLowerCase(Locale.US);
+      if (!isConnectionSpecific(name)) {
+        fields.add(field(name, header.getValue()));
+      }
+    }
+    return fields;
+  }
+
+  private void startHeaderBlock(Stream stream, List<Map.Entry<String, String>> fields, boolean endStream) {
+    // We encode the block right before sending it, since the peer decodes in the same order.
+    outgoingHeaderBlock = encoder.encode(fields);
+    outgoingHeaderOffset = 0;
+    outgoingHeaderStream = stream;
+    outgoingHeaderEndStream = endStream;
+  }
+
+  private boolean writeHeaderFragment() {
+    int remaining = outgoingHeaderBlock.length - outgoingHeaderOffset;
+    int space = outputBuffer.remaining() - Frames.HEADER_LENGTH;
+    if (space < Math.min(remaining, MIN_FRAME_SIZE) || space <= 0) {
+      return false;
+    }
+    int length = Math.min(remaining, Math.min(space, peerMaxFrameSize));
+    boolean first = outgoingHeaderOffset == 0;
+    boolean last = length == remaining;
+    int flags = (last ? Frames.FLAG_END_HEADERS : 0)
+        | (first && outgoingHeaderEndStream ? Frames.FLAG_END_STREAM : 0);
+    Frames.writeHeader(
+        outputBuffer, length, first ? FrameType.HEADERS : FrameType.CONTINUATION, flags,
+        outgoingHeaderStream.id);
+    outputBuffer.put(outgoingHeaderBlock, outgoingHeaderOffset, length);
+    outgoingHeaderOffset += length;
+    if (last) {
+      Stream stream = outgoingHeaderStream;
+      boolean endStream = outgoingHeaderEndStream;
+      outgoingHeaderBlock = null;
+      outgoingHeaderStream = null;
+      if (endStream && !stream.closed) {
+        finishStream(stream);
+      }
+    }
+    return true;
+  }
+
+  /** Called once the last frame of the response is written. */
+  private void finishStream(Stream stream) {
+    requestListener.notifySent(connection, stream.request, stream.response);
+    if (!stream.endStreamReceived) {
+      // We don't need the rest of the request (RFC 9113 section 8.1).
+      controlFrames.add(Frames.rstStream(stream.id, ErrorCode.NO_ERROR));
+    }
+    closeStream(stream);
+  }
+
+  @Override
+  public void close() {
+    for (Stream stream : new ArrayList<>(streams.values())) {
+      closeStream(stream);
+    }
+    readyStreams.clear();
+  }
+}
@@ -1,9 +1,12 @@
 package de.ofahrt.catfish;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.Map;
+import de.ofahrt.catfish.model.HttpHeaderName;
 import de.ofahrt.catfish.model.HttpHeaders;
 import de.ofahrt.catfish.model.HttpRequest;
 import de.ofahrt.catfish.model.HttpResponse;
@@ -45,6 +48,27 @@ abstract class HttpResponseGenerator {
     return buffer.toString().getBytes(StandardCharsets.UTF_8);
   }
 
+  /**
+   * Returns the Content-Length set on the given response, or -1 if there is none. Throws an
+   * {@link IllegalArgumentException} if the value is invalid.
+   */
+  protected static long parseContentLength(HttpResponse response) {
+    String value = response.getHeaders().get(HttpHeaderName.CONTENT_LENGTH);
+    if (value == null) {
+      return -1;
+    }
+    long result;
+    try {
+      result = Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Illegal content length value: " + value);
+    }
+    if (result < 0) {
+      throw new IllegalArgumentException("Content length must not be negative, but is " + result);
+    }
+    return result;
+  }
+
   public abstract HttpRequest getRequest();
 
   public abstract HttpResponse getResponse();
@@ -53,6 +77,14 @@ abstract class HttpResponseGenerator {
 
   public abstract void close();
 
+  /**
+   * Writes pending body data directly to the given channel, bypassing the output buffer. Returns
+   * the number of bytes written, or -1 if no such data is pending.
+   */
+  long transferTo(@SuppressWarnings("unused") WritableByteChannel channel) throws IOException {
+    return -1;
+  }
+
   public boolean keepAlive() {
     return HttpConnectionHeader.isKeepAlive(getResponse().getHeaders());
   }
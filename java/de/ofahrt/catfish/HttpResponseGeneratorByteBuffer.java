@@ -0,0 +1,89 @@
+package de.ofahrt.catfish;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpResponse;
+
+/**
+ * Generates a response whose body is the content of a {@link ByteBuffer}, typically a cached or
+ * memory-mapped file. The status line and headers are copied into the output buffer. If zero-copy
+ * is enabled, the body is then written to the socket through {@link #transferTo}; otherwise it is
+ * copied into the output buffer.
+ */
+final class HttpResponseGeneratorByteBuffer extends HttpResponseGenerator {
+  public static HttpResponseGeneratorByteBuffer create(
+      HttpRequest request, HttpResponse response, ByteBuffer body, boolean includeBody, boolean zeroCopy) {
+    byte[] statusLine = statusLineToByteArray(response);
+    byte[] headers = headersToByteArray(response.getHeaders());
+    ByteBuffer head = ByteBuffer.allocate(statusLine.length + headers.length);
+    head.put(statusLine).put(headers).flip();
+    // Use our own view, so that the caller's position and limit are not changed.
+    ByteBuffer ownBody = includeBody ? body.duplicate() : ByteBuffer.allocate(0);
+    return new HttpResponseGeneratorByteBuffer(request, response, head, ownBody, zeroCopy);
+  }
+
+  private final HttpRequest request;
+  private final HttpResponse response;
+  private final ByteBuffer head;
+  private final ByteBuffer body;
+  private final boolean zeroCopy;
+
+  private HttpResponseGeneratorByteBuffer(
+      HttpRequest request, HttpResponse response, ByteBuffer head, ByteBuffer body, boolean zeroCopy) {
+    this.request = request;
+    this.response = response;
+    this.head = head;
+    this.body = body;
+    this.zeroCopy = zeroCopy;
+  }
+
+  @Override
+  public HttpRequest getRequest() {
+    return request;
+  }
+
+  @Override
+  public HttpResponse getResponse() {
+    return response;
+  }
+
+  @Override
+  public ContinuationToken generate(ByteBuffer outputBuffer) {
+    if (head.hasRemaining()) {
+      copy(head, outputBuffer);
+      return ContinuationToken.CONTINUE;
+    }
+    if (!body.hasRemaining()) {
+      return ContinuationToken.STOP;
+    }
+    if (zeroCopy) {
+      // Wait for the network engine to call transferTo once the headers are flushed.
+      return ContinuationToken.CONTINUE;
+    }
+    copy(body, outputBuffer);
+    return ContinuationToken.CONTINUE;
+  }
+
+  private static void copy(ByteBuffer from, ByteBuffer to) {
+    int count = Math.min(from.remaining(), to.remaining());
+    int limit = from.limit();
+    from.limit(from.position() + count);
+    to.put(from);
+    from.limit(limit);
+  }
+
+  @Override
+  long transferTo(WritableByteChannel target) throws IOException {
+    if (!zeroCopy || head.hasRemaining() || !body.hasRemaining()) {
+      return -1;
+    }
+    return target.write(body);
+  }
+
+  @Override
+  public void close() {
+    // Nothing to release; mapped buffers are unmapped by the garbage collector.
+  }
+}
@@ -0,0 +1,143 @@
+package de.ofahrt.catfish;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpResponse;
+
+/**
+ * Generates a response whose body is a region of a file. The status line and headers are copied
+ * into the output buffer. If zero-copy is enabled, the body is then sent by the network engine
+ * through {@link #transferTo}, which lets the kernel move the data straight from the page cache to
+ * the socket. Otherwise, for example if the connection is encrypted, the body is read into the
+ * output buffer.
+ *
+ * <p>The file channel is owned by the generator and closed once the body is complete or the
+ * connection is closed.
+ */
+final class HttpResponseGeneratorFile extends HttpResponseGenerator {
+  public static HttpResponseGeneratorFile create(
+      HttpRequest request,
+      HttpResponse response,
+      FileChannel channel,
+      long position,
+      long length,
+      boolean includeBody,
+      boolean zeroCopy) {
+    byte[] head = concat(statusLineToByteArray(response), headersToByteArray(response.getHeaders()));
+    return new HttpResponseGeneratorFile(
+        request, response, head, channel, position, includeBody ? length : 0, zeroCopy);
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] result = new byte[a.length + b.length];
+    System.arraycopy(a, 0, result, 0, a.length);
+    System.arraycopy(b, 0, result, a.length, b.length);
+    return result;
+  }
+
+  private final HttpRequest request;
+  private final HttpResponse response;
+  private final byte[] head;
+  private final FileChannel channel;
+  private final boolean zeroCopy;
+  private int headIndex;
+  private long position;
+  private long remaining;
+  private boolean closed;
+
+  private HttpResponseGeneratorFile(
+      HttpRequest request,
+      HttpResponse response,
+      byte[] head,
+      FileChannel channel,
+      long position,
+      long length,
+      boolean zeroCopy) {
+    this.request = request;
+    this.response = response;
+    this.head = head;
+    this.channel = channel;
+    this.position = position;
+    this.remaining = length;
+    this.zeroCopy = zeroCopy;
+  }
+
+  @Override
+  public HttpRequest getRequest() {
+    return request;
+  }
+
+  @Override
+  public HttpResponse getResponse() {
+    return response;
+  }
+
+  @Override
+  public ContinuationToken generate(ByteBuffer outputBuffer) {
+    if (headIndex < head.length) {
+      int bytesToCopy = Math.min(outputBuffer.remaining(), head.length - headIndex);
+      outputBuffer.put(head, headIndex, bytesToCopy);
+      headIndex += bytesToCopy;
+      return ContinuationToken.CONTINUE;
+    }
+    if (remaining == 0) {
+      close();
+      return ContinuationToken.STOP;
+    }
+    if (zeroCopy) {
+      // Wait for the network engine to call transferTo once the headers are flushed.
+      return ContinuationToken.CONTINUE;
+    }
+    int limit = outputBuffer.limit();
+    if (outputBuffer.remaining() > remaining) {
+      outputBuffer.limit(outputBuffer.position() + (int) remaining);
+    }
+    int count;
+    try {
+      count = channel.read(outputBuffer, position);
+      if (count < 0) {
+        throw new EOFException("File is shorter than the declared response length");
+      }
+    } catch (IOException e) {
+      // The network engine closes the connection; the client sees a truncated response.
+      throw new UncheckedIOException(e);
+    } finally {
+      outputBuffer.limit(limit);
+    }
+    position += count;
+    remaining -= count;
+    return ContinuationToken.CONTINUE;
+  }
+
+  @Override
+  long transferTo(WritableByteChannel target) throws IOException {
+    if (!zeroCopy || headIndex < head.length || remaining == 0) {
+      return -1;
+    }
+    long count = channel.transferTo(position, remaining, target);
+    if (count == 0 && position >= channel.size()) {
+      throw new EOFException("File is shorter than the declared response length");
+    }
+    position += count;
+    remaining -= count;
+    return count;
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      channel.close();
+    } catch (IOException ignored) {
+      // There's nothing we can do at this point.
+    }
+  }
+}
@@ -5,12 +5,30 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
 import de.ofahrt.catfish.model.HttpHeaderName;
 import de.ofahrt.catfish.model.HttpHeaders;
 import de.ofahrt.catfish.model.HttpRequest;
 import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.server.NonBlockingResponseBody;
 import de.ofahrt.catfish.utils.ConnectionClosedException;
+import de.ofahrt.catfish.utils.HttpConnectionHeader;
 
+/**
+ * Generates a response whose body is written by the handler through an output stream. The body
+ * passes through a ring buffer with a single producer, the handler thread, and a single consumer,
+ * the network thread; neither side takes a lock. The producer only parks when the buffer is full,
+ * and the consumer is only woken up through the data available callback when it ran out of data
+ * and paused.
+ *
+ * <p>If the handler sets a Content-Length, the body is sent as is, and the generator checks that
+ * the handler writes exactly that many bytes. Otherwise, a body that is complete before the first
+ * flush gets a Content-Length, and other bodies use chunked encoding or, for HTTP/1.0 clients,
+ * which don't support it, are delimited by closing the connection.
+ */
 final class HttpResponseGeneratorStreamed extends HttpResponseGenerator {
   private static final boolean DEBUG = false;
 
@@ -53,27 +71,50 @@ final class HttpResponseGeneratorStreamed extends HttpResponseGenerator {
     FINISHED;
   }
 
-  private WriteState writeState = WriteState.UNCOMMITTED;
-  private ReadState readState = ReadState.UNCOMMITTED;
-  private boolean requireCallback = true;
-  private boolean useChunking;
-
   private final HttpRequest request;
-  private HttpResponse response;
   private final boolean includeBody;
-
+  // The content length set by the handler, or -1 if there is none.
+  private final long contentLength;
+  private final boolean chunkingAllowed;
   private final Runnable dataAvailableCallback;
   private final AtomicBoolean outputStreamAcquired = new AtomicBoolean();
 
+  // The ring buffer. The producer owns the bytes from tail to head + capacity, the consumer the
+  // bytes from head to tail. Both counters only ever increase; positions are taken modulo the
+  // capacity. Each counter is only written by its owner, and the volatile write publishes the
+  // bytes to the other side.
+  private final byte[] buffer;
+  private volatile long head;
+  private volatile long tail;
+
+  // Written by the producer only. The volatile write of the state publishes the response.
+  private volatile WriteState writeState = WriteState.UNCOMMITTED;
+  private volatile HttpResponse response;
+  private boolean useChunking;
   private byte[][] data;
+  // Set if the handler closed the stream before writing the promised number of bytes; the
+  // connection must not be reused then.
+  private volatile boolean truncated;
+
+  // Set once the consumer will not read any more data; writes fail from then on.
+  private volatile boolean closed;
+  // Whether the consumer ran out of data and waits for the data available callback. It starts out
+  // paused, since nothing can be sent before the response is committed.
+  private final AtomicBoolean consumerPaused = new AtomicBoolean(true);
+  // The producer thread, while it is parked on a full buffer.
+  private volatile Thread parkedWriter;
+  // Run once there is space in the buffer, or the stream is closed; see onSpaceAvailable.
+  private final AtomicReference<Runnable> spaceAvailableCallback = new AtomicReference<>();
+
+  // Run by the consumer in pause(), with 0 before and 1 after it marks itself as paused; lets tests
+  // run the producer at exactly these points.
+  IntConsumer pauseHook;
+
+  // Accessed by the consumer only.
+  private ReadState readState = ReadState.UNCOMMITTED;
   private int currentBlock;
   private int currentIndex;
 
-  private byte[] buffer;
-  private int readPosition;
-  private int writePosition;
-  private boolean isFull;
-
   private HttpResponseGeneratorStreamed(
       Runnable dataAvailableCallback, HttpRequest request, HttpResponse response, boolean includeBody, int bufferSize) {
     if (bufferSize <= 0) {
@@ -82,6 +123,9 @@ final class HttpResponseGeneratorStreamed extends HttpResponseGenerator {
     this.request = request;
     this.response = response;
     this.includeBody = includeBody;
+    this.contentLength = parseContentLength(response);
+    this.chunkingAllowed =
+        request == null || request.getVersion().compareTo(HttpVersion.HTTP_1_1) >= 0;
     this.dataAvailableCallback = dataAvailableCallback;
     this.buffer = new byte[bufferSize];
   }
@@ -97,26 +141,28 @@ final class HttpResponseGeneratorStreamed extends HttpResponseGenerator {
   }
 
   @Override
-  public synchronized ContinuationToken generate(ByteBuffer outputBuffer) {
+  public ContinuationToken generate(ByteBuffer outputBuffer) {
     if (DEBUG) {
       System.out.println("generate(" + outputBuffer.remaining() + ")");
     }
     if (!outputBuffer.hasRemaining()) {
       throw new IllegalStateException();
     }
-    if (readState == ReadState.UNCOMMITTED) {
-      requireCallback = true;
-      return ContinuationToken.PAUSE;
-    }
     if (readState == ReadState.CLOSED) {
       return ContinuationToken.STOP;
     }
+    // We're running, so the producer doesn't need to wake us up.
+    consumerPaused.set(false);
+    long headBefore = head;
     ReadToken token = ReadToken.CONTINUE;
-    int before = outputBuffer.remaining();
     loop: while (outputBuffer.hasRemaining()) {
       switch (readState) {
         case UNCOMMITTED:
-          throw new IllegalStateException();
+          token = writeState == WriteState.UNCOMMITTED ? ReadToken.PAUSE : ReadToken.FINISHED;
+          if (token == ReadToken.FINISHED) {
+            readState = ReadState.READ_RESPONSE;
+          }
+          break;
         case READ_RESPONSE:
           token = generateResponse(outputBuffer);
           if (token == ReadToken.FINISHED) {
@@ -140,24 +186,64 @@ final class HttpResponseGeneratorStreamed extends HttpResponseGenerator {
         default:
           throw new IllegalStateException();
       }
-      if (token == ReadToken.PAUSE || token == ReadToken.NOT_ENOUGH_SPACE) {
+      if (token == ReadToken.PAUSE) {
+        if (pause()) {
+          break;
+        }
+        token = ReadToken.CONTINUE;
+      } else if (token == ReadToken.NOT_ENOUGH_SPACE) {
         break;
       }
     }
-    int bytesGenerated = before - outputBuffer.remaining();
-    if (DEBUG) {
-      System.out.println("Generated: " + bytesGenerated);
+    if (readState == ReadState.CLOSED) {
+      closed = true;
+    }
+    if (head != headBefore || closed) {
+      notifySpaceAvailable();
     }
-    notify();
     if (readState == ReadState.CLOSED) {
       return ContinuationToken.STOP;
     } else if (token == ReadToken.PAUSE) {
-      requireCallback = true;
       return ContinuationToken.PAUSE;
     }
     return ContinuationToken.CONTINUE;
   }
 
+  /**
+   * Marks the consumer as paused. Returns false if the producer made progress in the meantime, in
+   * which case the consumer must continue instead, since the producer may have checked the flag
+   * before we set it.
+   */
+  private boolean pause() {
+    if (pauseHook != null) {
+      pauseHook.accept(0);
+    }
+    consumerPaused.set(true);
+    if (pauseHook != null) {
+      pauseHook.accept(1);
+    }
+    boolean progress = readState == ReadState.UNCOMMITTED
+        ? writeState != WriteState.UNCOMMITTED
+        : writeState == WriteState.CLOSED || tail != head;
+    // If the producer also saw the flag, it calls the data available callback; only one of us may
+    // clear it.
+    return !progress || !consumerPaused.compareAndSet(true, false);
+  }
+
+  /** Wakes up the producer after the consumer made space, or closed the stream. */
+  private void notifySpaceAvailable() {
+    Thread writer = parkedWriter;
+    if (writer != null) {
+      LockSupport.unpark(writer);
+    }
+    if (spaceAvailableCallback.get() != null) {
+      Runnable callback = spaceAvailableCallback.getAndSet(null);
+      if (callback != null) {
+        callback.run();
+      }
+    }
+  }
+
   private ReadToken generateResponse(ByteBuffer outputBuffer) {
     if (currentBlock >= data.length) {
       return ReadToken.FINISHED;
@@ -173,18 +259,12 @@ final class HttpResponseGeneratorStreamed extends HttpResponseGenerator {
   }
 
   private ReadToken generateBody(ByteBuffer outputBuffer) {
-    boolean wrapAround;
-    int bytesAvailable;
-    if ((writePosition >= readPosition) && !isFull) {
-      bytesAvailable = writePosition - readPosition;
-      wrapAround = false;
-    } else {
-      bytesAvailable = buffer.length - readPosition + writePosition;
-      wrapAround = true;
-    }
+    // Read the state before the tail, so that we see all data if the stream is closed.
+    boolean writerClosed = writeState == WriteState.CLOSED;
+    long readCount = head;
+    int bytesAvailable = (int) (tail - readCount);
     if (bytesAvailable == 0) {
-      return writeState == WriteState.CLOSED
-          ? ReadToken.FINISHED : ReadToken.PAUSE;
+      return writerClosed ? ReadToken.FINISHED : ReadToken.PAUSE;
     }
     int bytesToCopy;
     if (useChunking) {
@@ -210,30 +290,18 @@ final class HttpResponseGeneratorStreamed extends HttpResponseGenerator {
     } else {
       bytesToCopy = Math.min(bytesAvailable, outputBuffer.remaining());
     }
-    if (wrapAround) {
-      int firstCopy = Math.min(buffer.length - readPosition, bytesToCopy);
-      outputBuffer.put(buffer, readPosition, firstCopy);
-      int secondCopy = bytesToCopy - firstCopy;
-      if (secondCopy > writePosition) {
-        throw new IllegalStateException();
-      }
-      if (secondCopy > 0) {
-        outputBuffer.put(buffer, 0, secondCopy);
-      }
-    } else {
-      outputBuffer.put(buffer, readPosition, bytesToCopy);
+    int readPosition = (int) (readCount % buffer.length);
+    int firstCopy = Math.min(buffer.length - readPosition, bytesToCopy);
+    outputBuffer.put(buffer, readPosition, firstCopy);
+    if (bytesToCopy > firstCopy) {
+      outputBuffer.put(buffer, 0, bytesToCopy - firstCopy);
     }
     if (useChunking) {
       outputBuffer.put(CRLF_BYTES);
     }
-    readPosition = (readPosition + bytesToCopy) % buffer.length;
-    isFull = false;
+    head = readCount + bytesToCopy;
     if (DEBUG) {
-      System.out.println(
-          "READ " + bytesToCopy + " (readPosition=" + readPosition + " writePosition=" + writePosition + ")");
-    }
-    if (bytesToCopy == 0 && writeState == WriteState.CLOSED) {
-      return ReadToken.FINISHED;
+      System.out.println("READ " + bytesToCopy + " (head=" + head + " tail=" + tail + ")");
     }
     return ReadToken.CONTINUE;
   }
@@ -254,59 +322,139 @@ final class HttpResponseGeneratorStreamed extends HttpResponseGenerator {
     }
   }
 
-  private synchronized void buffer(byte[] b, int off, int len) throws IOException {
+  private void checkNotClosed() throws ConnectionClosedException {
+    if (closed) {
+      throw new ConnectionClosedException("Stream was closed from the other side");
+    }
+  }
+
+  private void checkContentLength(int length) throws IOException {
+    if (includeBody && contentLength >= 0 && tail + length > contentLength) {
+      throw new IOException(
+          String.format("Response body exceeds the declared content length of %d bytes",
+              Long.valueOf(contentLength)));
+    }
+  }
+
+  private int freeSpace(long writeCount) {
+    return buffer.length - (int) (writeCount - head);
+  }
+
+  /**
+   * Copies as much of the given data into the buffer as fits, and returns the number of bytes
+   * copied. Flushes the buffer if it is full afterwards.
+   */
+  private int copyIn(byte[] b, int off, int len) {
+    long writeCount = tail;
+    int bytesToCopy = Math.min(freeSpace(writeCount), len);
+    int writePosition = (int) (writeCount % buffer.length);
+    int firstCopy = Math.min(buffer.length - writePosition, bytesToCopy);
+    System.arraycopy(b, off, buffer, writePosition, firstCopy);
+    if (bytesToCopy > firstCopy) {
+      System.arraycopy(b, off + firstCopy, buffer, 0, bytesToCopy - firstCopy);
+    }
+    tail = writeCount + bytesToCopy;
+    if (DEBUG) {
+      System.out.println("WROTE " + bytesToCopy + " (head=" + head + " tail=" + tail + ")");
+    }
+    if (bytesToCopy > 0 && freeSpace(tail) == 0) {
+      internalFlush(false);
+    }
+    return bytesToCopy;
+  }
+
+  private void buffer(byte[] b, int off, int len) throws IOException {
     checkActive();
+    checkContentLength(len);
     while (len > 0) {
-      int spaceAvailable;
-      do {
-        if (readState == ReadState.CLOSED) {
-          throw new ConnectionClosedException("Stream was closed from the other side");
-        }
-        spaceAvailable = (readPosition > writePosition) || isFull ? readPosition - writePosition
-            : buffer.length - writePosition;
-        if (spaceAvailable == 0) {
-          try {
-            wait();
-          } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-          }
+      checkNotClosed();
+      if (freeSpace(tail) == 0) {
+        awaitSpace();
+        continue;
+      }
+      int bytesCopied = copyIn(b, off, len);
+      off += bytesCopied;
+      len -= bytesCopied;
+    }
+  }
+
+  private void awaitSpace() {
+    boolean interrupted = false;
+    parkedWriter = Thread.currentThread();
+    try {
+      // The consumer reads parkedWriter after advancing the head, so either we see the new head
+      // here, or it sees us and unparks us.
+      while (freeSpace(tail) == 0 && !closed) {
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+          interrupted = true;
         }
-      } while (spaceAvailable == 0);
-      int bytesToCopy = Math.min(spaceAvailable, len);
-      System.arraycopy(b, off, buffer, writePosition, bytesToCopy);
-      off += bytesToCopy;
-      len -= bytesToCopy;
-      writePosition = (writePosition + bytesToCopy) % buffer.length;
-      isFull = writePosition == readPosition;
-      if (DEBUG) {
-        System.out.println(
-            "WROTE " + bytesToCopy + " -> " + readPosition + " " + writePosition + (isFull ? " FULL" : ""));
       }
-      if (isFull) {
-        internalFlush(false);
+    } finally {
+      parkedWriter = null;
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private int offer(ByteBuffer src) throws IOException {
+    checkActive();
+    checkNotClosed();
+    checkContentLength(src.remaining());
+    int total = 0;
+    while (src.hasRemaining() && freeSpace(tail) > 0) {
+      int length;
+      if (src.hasArray()) {
+        length = copyIn(src.array(), src.arrayOffset() + src.position(), src.remaining());
+      } else {
+        byte[] chunk = new byte[Math.min(src.remaining(), freeSpace(tail))];
+        src.duplicate().get(chunk);
+        length = copyIn(chunk, 0, chunk.length);
+      }
+      src.position(src.position() + length);
+      total += length;
+    }
+    return total;
+  }
+
+  private boolean hasSpace() {
+    return freeSpace(tail) > 0 || closed;
+  }
+
+  private void onSpaceAvailable(Runnable callback) {
+    if (!spaceAvailableCallback.compareAndSet(null, callback)) {
+      throw new IllegalStateException("A callback is already registered");
+    }
+    // The consumer may have made space before it could see the callback.
+    if (hasSpace()) {
+      Runnable registered = spaceAvailableCallback.getAndSet(null);
+      if (registered != null) {
+        registered.run();
       }
     }
   }
 
-  private synchronized void internalFlush(boolean close) {
+  private void internalFlush(boolean close) {
     if (DEBUG) {
-      System.out.println("flush(close=" + close + ") state=" + writeState + " callback=" + requireCallback);
+      System.out.println("flush(close=" + close + ") state=" + writeState + " paused=" + consumerPaused.get());
     }
     switch (writeState) {
       case UNCOMMITTED:
         finalizeResponse(close);
         writeState = close ? WriteState.CLOSED : WriteState.STREAM;
-        readState = ReadState.READ_RESPONSE;
         break;
       case STREAM:
-        writeState = close ? WriteState.CLOSED : WriteState.STREAM;
+        if (close) {
+          writeState = WriteState.CLOSED;
+        }
         break;
       case CLOSED:
         throw new IllegalStateException();
     }
-    if (requireCallback) {
+    // Only wake up the consumer if it's waiting for us.
+    if (!closed && consumerPaused.compareAndSet(true, false)) {
       dataAvailableCallback.run();
-      requireCallback = false;
     }
   }
 
@@ -314,47 +462,95 @@ final class HttpResponseGeneratorStreamed extends HttpResponseGenerator {
     if (data != null) {
       throw new IllegalStateException();
     }
-    if (close) {
-      int contentLength = writePosition;
-      response = response.withHeaderOverrides(
-          HttpHeaders.of(HttpHeaderName.CONTENT_LENGTH, Integer.toString(contentLength)));
-    } else {
-      // TODO: Only HTTP 1.1 clients support chunked encoding.
-      response = response.withHeaderOverrides(
+    HttpResponse committed = response;
+    if (contentLength >= 0) {
+      // The handler promised a length; we send the body as is.
+    } else if (close) {
+      // Nothing was sent yet, so the buffer holds the entire body.
+      committed = committed.withHeaderOverrides(
+          HttpHeaders.of(HttpHeaderName.CONTENT_LENGTH, Long.toString(tail)));
+    } else if (chunkingAllowed) {
+      committed = committed.withHeaderOverrides(
           HttpHeaders.of(HttpHeaderName.TRANSFER_ENCODING, "chunked"));
       useChunking = true;
+    } else {
+      // HTTP/1.0 clients don't support chunked encoding; the end of the connection marks the end
+      // of the body.
+      committed = committed.withHeaderOverrides(
+          HttpHeaders.of(HttpHeaderName.CONNECTION, HttpConnectionHeader.CLOSE));
     }
-    HttpHeaders headers = response.getHeaders();
+    HttpHeaders headers = committed.getHeaders();
     data = new byte[][] {
-      statusLineToByteArray(response),
+      statusLineToByteArray(committed),
       headersToByteArray(headers),
     };
+    response = committed;
   }
 
-//  private int parseContentLength(HttpResponse responseToWrite) {
-//    String value = responseToWrite.getHeaders().get(HttpHeaderName.CONTENT_LENGTH);
-//    if (value == null) {
-//      return -1;
-//    }
-//    try {
-//      return Integer.parseInt(value);
-//    } catch (NumberFormatException e) {
-//      return -1;
-//    }
-//  }
-
-  private synchronized void internalClose() {
+  private void internalClose() throws IOException {
     if (writeState == WriteState.CLOSED) {
       return;
     }
+    // Set this before closing, so that the consumer sees it once it is done.
+    boolean missingBytes = includeBody && contentLength >= 0 && tail < contentLength;
+    if (missingBytes) {
+      truncated = true;
+    }
     internalFlush(true);
+    if (missingBytes) {
+      throw new IOException(
+          String.format("Response body has %d bytes, but the declared content length is %d bytes",
+              Long.valueOf(tail), Long.valueOf(contentLength)));
+    }
   }
 
   @Override
-  public synchronized void close() {
-    writeState = WriteState.CLOSED;
+  public boolean keepAlive() {
+    return !truncated && super.keepAlive();
+  }
+
+  @Override
+  public void close() {
     readState = ReadState.CLOSED;
-    notify();
+    closed = true;
+    notifySpaceAvailable();
+  }
+
+  /**
+   * Returns a body whose writes never block. Data that does not fit into the buffer is rejected,
+   * and the writer is called back once the network has drained the buffer. Only one of this and
+   * {@link #getOutputStream} can be used.
+   */
+  public NonBlockingResponseBody getNonBlockingBody() {
+    if (!outputStreamAcquired.compareAndSet(false, true)) {
+      throw new IllegalStateException();
+    }
+    return new NonBlockingResponseBody() {
+      @Override
+      public int write(ByteBuffer src) throws IOException {
+        return offer(src);
+      }
+
+      @Override
+      public boolean isReady() {
+        return hasSpace();
+      }
+
+      @Override
+      public void onReady(Runnable callback) {
+        onSpaceAvailable(callback);
+      }
+
+      @Override
+      public void flush() {
+        HttpResponseGeneratorStreamed.this.internalFlush(false);
+      }
+
+      @Override
+      public void close() throws IOException {
+        HttpResponseGeneratorStreamed.this.internalClose();
+      }
+    };
   }
 
   public OutputStream getOutputStream() {
@@ -378,9 +574,9 @@ final class HttpResponseGeneratorStreamed extends HttpResponseGenerator {
       }
 
       @Override
-      public void close() {
+      public void close() throws IOException {
         HttpResponseGeneratorStreamed.this.internalClose();
       }
     };
   }
-}
\ No newline at end of file
+}
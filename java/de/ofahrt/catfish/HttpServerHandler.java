@@ -7,12 +7,20 @@ import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
 import de.ofahrt.catfish.internal.network.Stage;
 
 final class HttpServerHandler implements NetworkHandler {
+  private static final String HTTP_2 = "h2";
+  private static final String HTTP_1_1 = "http/1.1";
+  // In order of preference, as offered to clients in the TLS handshake.
+  private static final String[] APPLICATION_PROTOCOLS = { HTTP_2, HTTP_1_1 };
+  private static final String[] HTTP_1_APPLICATION_PROTOCOLS = { HTTP_1_1 };
+
   private final CatfishHttpServer server;
   private final boolean ssl;
+  private final boolean http2;
 
-  HttpServerHandler(CatfishHttpServer server, boolean ssl) {
+  HttpServerHandler(CatfishHttpServer server, boolean ssl, boolean http2) {
     this.server = server;
     this.ssl = ssl;
+    this.http2 = http2;
   }
 
   @Override
@@ -29,23 +37,35 @@ final class HttpServerHandler implements NetworkHandler {
       decryptedInputBuffer.flip(); // prepare for reading
       decryptedOutputBuffer.clear();
       decryptedOutputBuffer.flip(); // prepare for reading
-      HttpServerStage httpStage = new HttpServerStage(
-          pipeline,
-          server::queueRequest,
-          (conn, req, res) -> server.notifySent(conn, req, res, 0),
-          server::determineHttpVirtualHost,
-          decryptedInputBuffer,
-          decryptedOutputBuffer);
+      // The SSL stage has to encrypt all outgoing data, so the HTTP stage cannot bypass it.
       return new SslServerStage(
           pipeline,
-          httpStage,
+          (protocol) -> createStage(
+              protocol, pipeline, /*zeroCopy=*/false, decryptedInputBuffer, decryptedOutputBuffer),
+          http2 ? APPLICATION_PROTOCOLS : HTTP_1_APPLICATION_PROTOCOLS,
           server::getSSLContext,
           inputBuffer,
           outputBuffer,
           decryptedInputBuffer,
           decryptedOutputBuffer);
+    } else if (!http2) {
+      return createStage("", pipeline, /*zeroCopy=*/true, inputBuffer, outputBuffer);
     } else {
-      return new HttpServerStage(
+      return new Http2PriorKnowledgeStage(
+          pipeline,
+          (protocol) -> createStage(protocol, pipeline, /*zeroCopy=*/true, inputBuffer, outputBuffer),
+          inputBuffer);
+    }
+  }
+
+  private Stage createStage(
+      String protocol,
+      Pipeline pipeline,
+      boolean zeroCopy,
+      ByteBuffer inputBuffer,
+      ByteBuffer outputBuffer) {
+    if (HTTP_2.equals(protocol)) {
+      return new Http2ServerStage(
           pipeline,
           server::queueRequest,
           (conn, req, res) -> server.notifySent(conn, req, res, 0),
@@ -53,5 +73,13 @@ final class HttpServerHandler implements NetworkHandler {
           inputBuffer,
           outputBuffer);
     }
+    return new HttpServerStage(
+        pipeline,
+        zeroCopy,
+        server::queueRequest,
+        (conn, req, res) -> server.notifySent(conn, req, res, 0),
+        server::determineHttpVirtualHost,
+        inputBuffer,
+        outputBuffer);
   }
-}
\ No newline at end of file
+}
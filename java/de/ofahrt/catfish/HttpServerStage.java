@@ -1,14 +1,17 @@
 package de.ofahrt.catfish;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
-import java.util.zip.GZIPOutputStream;
 import de.ofahrt.catfish.HttpResponseGenerator.ContinuationToken;
 import de.ofahrt.catfish.internal.CoreHelper;
 import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
@@ -24,15 +27,20 @@ import de.ofahrt.catfish.model.StandardResponses;
 import de.ofahrt.catfish.model.network.Connection;
 import de.ofahrt.catfish.model.server.HttpHandler;
 import de.ofahrt.catfish.model.server.HttpResponseWriter;
+import de.ofahrt.catfish.model.server.NonBlockingResponseBody;
 import de.ofahrt.catfish.model.server.ResponsePolicy;
 import de.ofahrt.catfish.model.server.UploadPolicy;
+import de.ofahrt.catfish.utils.CompressingOutputStream;
+import de.ofahrt.catfish.utils.DeflaterPool;
+import de.ofahrt.catfish.utils.HttpAcceptEncoding;
 import de.ofahrt.catfish.utils.HttpConnectionHeader;
 import de.ofahrt.catfish.utils.HttpContentType;
 
 final class HttpServerStage implements Stage {
   private static final boolean VERBOSE = false;
   private static final byte[] EMPTY_BODY = new byte[0];
-  private static final String GZIP_ENCODING = "gzip";
+  private static final byte[] CONTINUE_RESPONSE =
+      "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
 
   // Incoming data:
   // Socket -> SSL Stage -> HTTP Stage -> Request Queue
@@ -46,7 +54,8 @@ final class HttpServerStage implements Stage {
   // Socket <- SSL Stage <- HTTP Stage <- Response Stage <- AsyncBuffer <- Servlet
   // Flow control:
   // - Data available -> select on write
-  // - AsyncBuffer blocks when the buffer is full
+  // - AsyncBuffer blocks when the buffer is full, unless the body is written without blocking; in
+  //   that case, the writer is called back once there is space again
 
   public interface RequestQueue {
     void queueRequest(HttpHandler httpHandler, Connection connection, HttpRequest request, HttpResponseWriter responseWriter);
@@ -66,6 +75,11 @@ final class HttpServerStage implements Stage {
       this.responsePolicy = responsePolicy;
     }
 
+    @Override
+    public boolean isCommitted() {
+      return committed.get();
+    }
+
     @Override
     public void commitBuffered(HttpResponse responseToWrite) throws IOException {
       if (!committed.compareAndSet(false, true)) {
@@ -95,17 +109,20 @@ final class HttpServerStage implements Stage {
 
       Map<String, String> overrides = new HashMap<>();
       overrides.put(HttpHeaderName.CONNECTION, shouldKeepAlive() ? HttpConnectionHeader.KEEP_ALIVE : HttpConnectionHeader.CLOSE);
-      if (bodyAllowed) {
-        overrides.put(HttpHeaderName.CONTENT_LENGTH, Integer.toString(body.length));
-      }
-      boolean compress = (body.length >= 512) && shouldCompress(responseToWrite);
-      if (compress) {
-        overrides.put(HttpHeaderName.CONTENT_ENCODING, GZIP_ENCODING);
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
-          gzip.write(body);
+      String mimeType = getMimeType(responseToWrite);
+      String contentEncoding = selectContentEncoding(request, responsePolicy, responseToWrite, mimeType);
+      if (contentEncoding != null && body.length >= responsePolicy.getMinCompressionSize(mimeType)) {
+        overrides.put(HttpHeaderName.CONTENT_ENCODING, contentEncoding);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length / 2 + 32);
+        try (OutputStream out = new CompressingOutputStream(
+            buffer, contentEncoding, responsePolicy.getCompressionLevel(mimeType), DeflaterPool.DEFAULT, false)) {
+          out.write(body);
         }
         body = buffer.toByteArray();
+        responseToWrite = responseToWrite.withBody(body);
+      }
+      if (bodyAllowed) {
+        overrides.put(HttpHeaderName.CONTENT_LENGTH, Integer.toString(body.length));
       }
       responseToWrite = responseToWrite.withHeaderOverrides(HttpHeaders.of(overrides));
       boolean headRequest = HttpMethodName.HEAD.equals(request.getMethod());
@@ -130,9 +147,13 @@ final class HttpServerStage implements Stage {
 
       Map<String, String> overrides = new HashMap<>();
       overrides.put(HttpHeaderName.CONNECTION, shouldKeepAlive() ? HttpConnectionHeader.KEEP_ALIVE : HttpConnectionHeader.CLOSE);
-      boolean compress = shouldCompress(responseToWrite);
-      if (compress) {
-        overrides.put(HttpHeaderName.CONTENT_ENCODING, GZIP_ENCODING);
+      String mimeType = getMimeType(responseToWrite);
+      // We can't compress if the handler promised a specific length.
+      String contentEncoding = responseToWrite.getHeaders().get(HttpHeaderName.CONTENT_LENGTH) != null
+          ? null
+          : selectContentEncoding(request, responsePolicy, responseToWrite, mimeType);
+      if (contentEncoding != null) {
+        overrides.put(HttpHeaderName.CONTENT_ENCODING, contentEncoding);
       }
       responseToWrite = responseToWrite.withHeaderOverrides(HttpHeaders.of(overrides));
       boolean headRequest = HttpMethodName.HEAD.equals(request.getMethod());
@@ -140,31 +161,127 @@ final class HttpServerStage implements Stage {
           HttpResponseGeneratorStreamed.create(
               parent::encourageWrites, request, responseToWrite, !headRequest);
       parent.queue(() -> startStreamed(gen));
-      return compress ? new GZIPOutputStream(gen.getOutputStream()) : gen.getOutputStream();
+      if (contentEncoding == null) {
+        return gen.getOutputStream();
+      }
+      // Use sync flushes so that handlers can still push partial output to the client.
+      return new CompressingOutputStream(
+          gen.getOutputStream(), contentEncoding, responsePolicy.getCompressionLevel(mimeType), DeflaterPool.DEFAULT, true);
     }
 
-    private boolean shouldKeepAlive() {
-      return HttpConnectionHeader.mayKeepAlive(request) && responsePolicy.shouldKeepAlive(request);
+    @Override
+    public NonBlockingResponseBody commitNonBlocking(HttpResponse responseToWrite) throws IOException {
+      if (!committed.compareAndSet(false, true)) {
+        throw new IllegalStateException("This response is already committed");
+      }
+      if (!HttpStatusCode.mayHaveBody(responseToWrite.getStatusCode())) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Responses with status code %d are not allowed to have a body",
+                Integer.valueOf(responseToWrite.getStatusCode())));
+      }
+
+      Map<String, String> overrides = new HashMap<>();
+      overrides.put(HttpHeaderName.CONNECTION, shouldKeepAlive() ? HttpConnectionHeader.KEEP_ALIVE : HttpConnectionHeader.CLOSE);
+      responseToWrite = responseToWrite.withHeaderOverrides(HttpHeaders.of(overrides));
+      boolean headRequest = HttpMethodName.HEAD.equals(request.getMethod());
+      HttpResponseGeneratorStreamed gen =
+          HttpResponseGeneratorStreamed.create(
+              parent::encourageWrites, request, responseToWrite, !headRequest);
+      parent.queue(() -> startStreamed(gen));
+      return gen.getNonBlockingBody();
     }
 
-    private boolean shouldCompress(HttpResponse responseToWrite) {
-      if (responseToWrite.getHeaders().get(HttpHeaderName.CONTENT_ENCODING) != null) {
-        return false;
+    @Override
+    public void commitFile(HttpResponse responseToWrite, FileChannel channel, long position, long length)
+        throws IOException {
+      if (!committed.compareAndSet(false, true)) {
+        throw new IllegalStateException("This response is already committed");
       }
-      String contentType = responseToWrite.getHeaders().get(HttpHeaderName.CONTENT_TYPE);
-      if (contentType == null) {
-        return false;
+      if (!HttpStatusCode.mayHaveBody(responseToWrite.getStatusCode())) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Responses with status code %d are not allowed to have a body",
+                Integer.valueOf(responseToWrite.getStatusCode())));
       }
-      try {
-        String mimeType = HttpContentType.getMimeTypeFromContentType(contentType);
-        return responsePolicy.shouldCompress(request, mimeType);
-      } catch (IllegalArgumentException e) {
-        return false;
+      if (position < 0 || length < 0) {
+        throw new IllegalArgumentException(
+            String.format("Illegal file region: position=%d, length=%d",
+                Long.valueOf(position), Long.valueOf(length)));
+      }
+
+      Map<String, String> overrides = new HashMap<>();
+      overrides.put(HttpHeaderName.CONNECTION, shouldKeepAlive() ? HttpConnectionHeader.KEEP_ALIVE : HttpConnectionHeader.CLOSE);
+      overrides.put(HttpHeaderName.CONTENT_LENGTH, Long.toString(length));
+      responseToWrite = responseToWrite.withHeaderOverrides(HttpHeaders.of(overrides));
+      boolean headRequest = HttpMethodName.HEAD.equals(request.getMethod());
+      HttpResponseGeneratorFile gen =
+          HttpResponseGeneratorFile.create(
+              request, responseToWrite, channel, position, length, !headRequest, zeroCopy);
+      parent.queue(() -> startFile(gen));
+    }
+
+    @Override
+    public void commitBuffered(HttpResponse responseToWrite, ByteBuffer body) throws IOException {
+      if (!committed.compareAndSet(false, true)) {
+        throw new IllegalStateException("This response is already committed");
       }
+      if (!HttpStatusCode.mayHaveBody(responseToWrite.getStatusCode())) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Responses with status code %d are not allowed to have a body",
+                Integer.valueOf(responseToWrite.getStatusCode())));
+      }
+
+      Map<String, String> overrides = new HashMap<>();
+      overrides.put(HttpHeaderName.CONNECTION, shouldKeepAlive() ? HttpConnectionHeader.KEEP_ALIVE : HttpConnectionHeader.CLOSE);
+      overrides.put(HttpHeaderName.CONTENT_LENGTH, Integer.toString(body.remaining()));
+      responseToWrite = responseToWrite.withHeaderOverrides(HttpHeaders.of(overrides));
+      boolean headRequest = HttpMethodName.HEAD.equals(request.getMethod());
+      HttpResponseGeneratorByteBuffer gen =
+          HttpResponseGeneratorByteBuffer.create(request, responseToWrite, body, !headRequest, zeroCopy);
+      parent.queue(() -> startByteBuffer(gen));
+    }
+
+    private boolean shouldKeepAlive() {
+      return HttpConnectionHeader.mayKeepAlive(request) && responsePolicy.shouldKeepAlive(request);
+    }
+  }
+
+  static String getMimeType(HttpResponse responseToWrite) {
+    String contentType = responseToWrite.getHeaders().get(HttpHeaderName.CONTENT_TYPE);
+    if (contentType == null) {
+      return null;
+    }
+    try {
+      return HttpContentType.getMimeTypeFromContentType(contentType);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /** Returns the content coding to compress the given response with, or null to send it as is. */
+  static String selectContentEncoding(
+      HttpRequest request, ResponsePolicy responsePolicy, HttpResponse responseToWrite, String mimeType) {
+    if (mimeType == null || responseToWrite.getHeaders().get(HttpHeaderName.CONTENT_ENCODING) != null) {
+      return null;
     }
+    // Byte ranges refer to the unencoded representation, so partial content must be sent as is.
+    if (responseToWrite.getStatusCode() == HttpStatusCode.PARTIAL_CONTENT.getStatusCode()
+        || responseToWrite.getHeaders().get(HttpHeaderName.CONTENT_RANGE) != null) {
+      return null;
+    }
+    if (!responsePolicy.shouldCompress(request, mimeType)) {
+      return null;
+    }
+    return HttpAcceptEncoding.negotiate(
+        request.getHeaders().get(HttpHeaderName.ACCEPT_ENCODING),
+        HttpAcceptEncoding.GZIP,
+        HttpAcceptEncoding.DEFLATE);
   }
 
   private final Pipeline parent;
+  private final boolean zeroCopy;
   private final RequestQueue requestHandler;
   private final RequestListener requestListener;
   private final Function<String, HttpVirtualHost> virtualHostLookup;
@@ -174,16 +291,20 @@ final class HttpServerStage implements Stage {
   private Connection connection;
   private boolean processing;
   private boolean keepAlive = true;
+  private HttpRequest activeRequest;
+  private ByteBuffer interimResponse;
   private HttpResponseGenerator responseGenerator;
 
   HttpServerStage(
       Pipeline parent,
+      boolean zeroCopy,
       RequestQueue requestHandler,
       RequestListener requestListener,
       Function<String, HttpVirtualHost> virtualHostLookup,
       ByteBuffer inputBuffer,
       ByteBuffer outputBuffer) {
     this.parent = parent;
+    this.zeroCopy = zeroCopy;
     this.requestHandler = requestHandler;
     this.requestListener = requestListener;
     this.virtualHostLookup = virtualHostLookup;
@@ -214,9 +335,36 @@ final class HttpServerStage implements Stage {
     if (parser.isDone()) {
       return processRequest();
     }
+    sendContinueIfExpected();
+    if (!parser.isReady()) {
+      // The request body cannot be buffered right now; stop reading until it can.
+      parser.whenReady(() -> parent.queue(this::resumeReading));
+      return ConnectionControl.PAUSE;
+    }
     return ConnectionControl.CONTINUE;
   }
 
+  private void sendContinueIfExpected() {
+    if (parser.pollContinueExpected()) {
+      // The upload policy accepted the body; ask the client to send it.
+      interimResponse = ByteBuffer.wrap(CONTINUE_RESPONSE);
+      parent.encourageWrites();
+    }
+  }
+
+  /**
+   * Called on the network thread once the request body may fit into memory again. A client that
+   * waits for 100 Continue doesn't send anything until then, so we can't rely on a read to send it.
+   */
+  private void resumeReading() {
+    if (!parser.isReady()) {
+      parser.whenReady(() -> parent.queue(this::resumeReading));
+      return;
+    }
+    sendContinueIfExpected();
+    parent.encourageReads();
+  }
+
   @Override
   public void inputClosed() {
     if (responseGenerator == null) {
@@ -231,6 +379,17 @@ final class HttpServerStage implements Stage {
     if (VERBOSE) {
       parent.log("write");
     }
+    if (interimResponse != null) {
+      outputBuffer.compact(); // prepare buffer for writing
+      int bytesToCopy = Math.min(outputBuffer.remaining(), interimResponse.remaining());
+      outputBuffer.put(interimResponse.array(), interimResponse.position(), bytesToCopy);
+      interimResponse.position(interimResponse.position() + bytesToCopy);
+      outputBuffer.flip(); // prepare buffer for reading
+      if (interimResponse.hasRemaining()) {
+        return ConnectionControl.CONTINUE;
+      }
+      interimResponse = null;
+    }
     if (responseGenerator == null) {
       // Spurious write() call. Ignore.
       return ConnectionControl.PAUSE;
@@ -243,6 +402,9 @@ final class HttpServerStage implements Stage {
       case PAUSE: return ConnectionControl.PAUSE;
       case STOP:
         requestListener.notifySent(connection, responseGenerator.getRequest(), responseGenerator.getResponse());
+        // Streamed responses only decide about the connection once the body is complete.
+        keepAlive = keepAlive && responseGenerator.keepAlive();
+        releaseRequestBody();
         responseGenerator = null;
         processing = false;
         parent.log("Completed. keepAlive=%s", Boolean.valueOf(keepAlive));
@@ -273,12 +435,36 @@ final class HttpServerStage implements Stage {
     throw new IllegalStateException(token.toString());
   }
 
+  @Override
+  public long transferTo(WritableByteChannel channel) throws IOException {
+    if (responseGenerator == null) {
+      return -1;
+    }
+    return responseGenerator.transferTo(channel);
+  }
+
   @Override
   public void close() {
     if (responseGenerator != null) {
       responseGenerator.close();
       responseGenerator = null;
     }
+    parser.close();
+    releaseRequestBody();
+  }
+
+  private void releaseRequestBody() {
+    if (activeRequest == null) {
+      return;
+    }
+    if (activeRequest.getBody() instanceof Closeable) {
+      try {
+        ((Closeable) activeRequest.getBody()).close();
+      } catch (IOException e) {
+        parent.log("Failed to release request body: %s", e);
+      }
+    }
+    activeRequest = null;
   }
 
   private final ConnectionControl processRequest() {
@@ -304,13 +490,38 @@ final class HttpServerStage implements Stage {
       startBuffered(request, StandardResponses.NOT_FOUND);
       return ConnectionControl.CONTINUE;
     } else {
+      activeRequest = request;
       HttpResponseWriter writer = new HttpResponseWriterImpl(request, host.getResponsePolicy());
       requestHandler.queueRequest(host.getHttpHandler(), connection, request, writer);
       return ConnectionControl.PAUSE;
     }
   }
 
-  private final void startStreamed(HttpResponseGeneratorStreamed gen) {
+  private final void startFile(HttpResponseGeneratorFile gen) {
+    this.responseGenerator = gen;
+    this.keepAlive = responseGenerator.keepAlive();
+    HttpResponse response = responseGenerator.getResponse();
+    parent.log("%s %d %s",
+        response.getProtocolVersion(), Integer.valueOf(response.getStatusCode()), response.getStatusMessage());
+    if (HttpServerStage.VERBOSE) {
+      System.out.println(CoreHelper.responseToString(response));
+    }
+    parent.encourageWrites();
+  }
+
+  private final void startByteBuffer(HttpResponseGeneratorByteBuffer gen) {
+    this.responseGenerator = gen;
+    this.keepAlive = responseGenerator.keepAlive();
+    HttpResponse response = responseGenerator.getResponse();
+    parent.log("%s %d %s",
+        response.getProtocolVersion(), Integer.valueOf(response.getStatusCode()), response.getStatusMessage());
+    if (HttpServerStage.VERBOSE) {
+      System.out.println(CoreHelper.responseToString(response));
+    }
+    parent.encourageWrites();
+  }
+
+  private final void startStreamed(HttpResponseGenerator gen) {
     this.responseGenerator = gen;
     this.keepAlive = responseGenerator.keepAlive();
     HttpResponse response = responseGenerator.getResponse();
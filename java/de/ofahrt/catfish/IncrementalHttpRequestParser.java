@@ -1,5 +1,6 @@
 package de.ofahrt.catfish;
 
+import java.io.Closeable;
 import java.io.IOException;
 
 import de.ofahrt.catfish.internal.CoreHelper;
@@ -17,6 +18,7 @@ final class IncrementalHttpRequestParser {
   private static final int MAX_HEADER_NAME_LENGTH = 1000;
   private static final int MAX_HEADER_VALUE_LENGTH = 10_000;
   private static final int MAX_HEADER_FIELD_COUNT = 1000;
+  private static final String EXPECT_CONTINUE = "100-continue";
 
   private static enum State {
     // Request-Line   = Method SP Request-URI SP HTTP-Version CRLF
@@ -43,6 +45,7 @@ final class IncrementalHttpRequestParser {
   private String messageHeaderValue;
 
   private PayloadParser payloadParser;
+  private boolean continueExpected;
 
   public IncrementalHttpRequestParser(UploadPolicy uploadPolicy) {
     this.uploadPolicy = uploadPolicy;
@@ -69,6 +72,7 @@ final class IncrementalHttpRequestParser {
     messageHeaderValue = null;
 
     payloadParser = null;
+    continueExpected = false;
   }
 
   //       CTL            = <any US-ASCII control character
@@ -331,6 +335,10 @@ final class IncrementalHttpRequestParser {
                 done = true;
                 return 1;
               }
+              // HTTP/1.0 servers must ignore the 100-continue expectation.
+              continueExpected =
+                  builder.getVersion().compareTo(HttpVersion.HTTP_1_1) >= 0
+                  && EXPECT_CONTINUE.equalsIgnoreCase(builder.getHeader(HttpHeaderName.EXPECT));
               state = State.PAYLOAD;
             } else {
               done = true;
@@ -346,6 +354,12 @@ final class IncrementalHttpRequestParser {
           }
           break;
         case PAYLOAD :
+          // The client did not wait for the interim response.
+          continueExpected = false;
+          if (!payloadParser.isReady()) {
+            // Leave the remaining input in the buffer; see isReady.
+            return i;
+          }
           int parsed = payloadParser.parse(input, offset + i, length - i);
           if (parsed <= 0) {
             throw new IllegalStateException("Parser must process at least one byte");
@@ -354,6 +368,10 @@ final class IncrementalHttpRequestParser {
           if (payloadParser.isDone()) {
             try {
               builder.setBody(payloadParser.getParsedBody());
+            } catch (MalformedRequestException e) {
+              builder.setError(e.getErrorResponse());
+              done = true;
+              return 1;
             } catch (IOException e) {
               return setError(HttpStatusCode.BAD_REQUEST, e.getMessage());
             }
@@ -386,10 +404,58 @@ final class IncrementalHttpRequestParser {
     return done;
   }
 
+  /**
+   * Returns false if the parser is waiting for the payload parser to become ready, in which case
+   * no further input is consumed. Use {@link #whenReady} to get notified.
+   */
+  boolean isReady() {
+    return done || state != State.PAYLOAD || payloadParser.isReady();
+  }
+
+  void whenReady(Runnable callback) {
+    if (isReady()) {
+      callback.run();
+    } else {
+      payloadParser.whenReady(callback);
+    }
+  }
+
+  /**
+   * Returns true exactly once per request if the client is waiting for a 100 Continue interim
+   * response before sending the body, and the upload policy accepted the body. This is only
+   * reported once the payload parser is ready to accept the body.
+   */
+  boolean pollContinueExpected() {
+    if (!continueExpected || done || !isReady()) {
+      return false;
+    }
+    continueExpected = false;
+    return true;
+  }
+
+  /** Releases any resources held by a partially parsed request body. */
+  void close() {
+    if (payloadParser != null && !payloadParser.isDone()) {
+      payloadParser.close();
+    }
+    payloadParser = null;
+  }
+
   public HttpRequest getRequest() throws MalformedRequestException {
     if (!done) {
       throw new IllegalStateException("No parsed request available!");
     }
-    return builder.build();
+    try {
+      return builder.build();
+    } catch (MalformedRequestException e) {
+      if (builder.getBody() instanceof Closeable) {
+        try {
+          ((Closeable) builder.getBody()).close();
+        } catch (IOException ignored) {
+          // The request is rejected anyway.
+        }
+      }
+      throw e;
+    }
   }
 }
@@ -2,11 +2,13 @@ package de.ofahrt.catfish;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.function.Function;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLParameters;
 import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
 import de.ofahrt.catfish.model.network.Connection;
 import de.ofahrt.catfish.internal.network.Stage;
@@ -25,18 +27,24 @@ final class SslServerStage implements Stage {
 
   private final SSLContextProvider contextProvider;
   private final Pipeline parent;
-  private final Stage next;
+  // Creates the next stage for the negotiated ALPN protocol, or for the empty string if the
+  // client did not use ALPN.
+  private final Function<String, Stage> nextFactory;
+  private final String[] applicationProtocols;
   private final ByteBuffer netInputBuffer;
   private final ByteBuffer netOutputBuffer;
   private final ByteBuffer inputBuffer;
   private final ByteBuffer outputBuffer;
+  private Connection connection;
+  private Stage next;
   private InitialConnectionState postHandshakeState;
   private FlowStatus status = FlowStatus.FIND_SNI;
   private SSLEngine sslEngine;
 
   public SslServerStage(
       Pipeline parent,
-      Stage next,
+      Function<String, Stage> nextFactory,
+      String[] applicationProtocols,
       SSLContextProvider contextProvider,
       ByteBuffer netInputBuffer,
       ByteBuffer netOutputBuffer,
@@ -44,7 +52,8 @@ final class SslServerStage implements Stage {
       ByteBuffer outputBuffer) {
     this.contextProvider = contextProvider;
     this.parent = parent;
-    this.next = next;
+    this.nextFactory = nextFactory;
+    this.applicationProtocols = applicationProtocols;
     this.netInputBuffer = netInputBuffer;
     this.netOutputBuffer = netOutputBuffer;
     this.inputBuffer = inputBuffer;
@@ -52,11 +61,19 @@ final class SslServerStage implements Stage {
   }
 
   @Override
-  public InitialConnectionState connect(Connection connection) {
-    postHandshakeState = next.connect(connection);
+  public InitialConnectionState connect(@SuppressWarnings("hiding") Connection connection) {
+    // The next stage depends on the application protocol, which is only known after the handshake.
+    this.connection = connection;
     return InitialConnectionState.READ_ONLY;
   }
 
+  private void connectNext() {
+    String protocol = sslEngine.getApplicationProtocol();
+    parent.log("SSL ALPN=%s", protocol);
+    next = nextFactory.apply(protocol == null ? "" : protocol);
+    postHandshakeState = next.connect(connection);
+  }
+
   private void checkStatus() {
     if (sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
       parent.log("SSL running task");
@@ -81,6 +98,9 @@ final class SslServerStage implements Stage {
     this.sslEngine.setUseClientMode(false);
     this.sslEngine.setNeedClientAuth(false);
     this.sslEngine.setWantClientAuth(false);
+    SSLParameters sslParameters = sslEngine.getSSLParameters();
+    sslParameters.setApplicationProtocols(applicationProtocols);
+    sslEngine.setSSLParameters(sslParameters);
 //    System.out.println(Arrays.toString(sslEngine.getEnabledCipherSuites()));
 //    System.out.println(Arrays.toString(sslEngine.getSupportedCipherSuites()));
 //    System.out.println(sslEngine.getSession().getApplicationBufferSize());
@@ -122,6 +142,7 @@ final class SslServerStage implements Stage {
       }
       if (sslEngine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING) {
         status = FlowStatus.OPEN;
+        connectNext();
         if (postHandshakeState != InitialConnectionState.READ_ONLY) {
           parent.encourageWrites();
         }
@@ -136,6 +157,9 @@ final class SslServerStage implements Stage {
         inputBuffer.flip(); // prepare buffer for reading
         if (result.getStatus() == Status.CLOSED) {
           return ConnectionControl.CLOSE_CONNECTION_IMMEDIATELY;
+        } else if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+          // The rest of the record is still in transit.
+          return ConnectionControl.NEED_MORE_DATA;
         } else if (result.getStatus() != Status.OK) {
           throw new IOException(result.toString());
         }
@@ -143,12 +167,23 @@ final class SslServerStage implements Stage {
       if (sslEngine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
         throw new IOException("Re-entering handshake mode - what's up?");
       }
-      return next.read();
+      ConnectionControl nextState = next.read();
+      if (nextState == ConnectionControl.NEED_MORE_DATA && netInputBuffer.hasRemaining()) {
+        // We only unwrap one record per call, and the network engine doesn't call us again for
+        // the remaining records if we ask for more data.
+        return ConnectionControl.CONTINUE;
+      }
+      return nextState;
     }
   }
 
   @Override
   public void inputClosed() throws IOException {
+    if (sslEngine == null || next == null) {
+      // The connection was closed before the handshake completed.
+      parent.close();
+      return;
+    }
     sslEngine.closeInbound();
     next.inputClosed();
   }
@@ -178,6 +213,7 @@ final class SslServerStage implements Stage {
       }
       if (sslEngine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING) {
         status = FlowStatus.OPEN;
+        connectNext();
         if (postHandshakeState != InitialConnectionState.WRITE_ONLY) {
           parent.encourageReads();
         }
@@ -248,6 +284,8 @@ final class SslServerStage implements Stage {
 
   @Override
   public void close() {
-    next.close();
+    if (next != null) {
+      next.close();
+    }
   }
 }
\ No newline at end of file
@@ -1,8 +1,8 @@
 package de.ofahrt.catfish.bridge;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
@@ -56,6 +56,7 @@ public final class RequestImpl implements HttpServletRequest {
   private final String unparsedUri;
   private final Map<String, String> headers;
   private byte[] body;
+  private HttpRequest.FileBody fileBody;
 
   private final ResponseImpl response;
   private final InetSocketAddress localAddress;
@@ -87,6 +88,8 @@ public final class RequestImpl implements HttpServletRequest {
     HttpRequest.Body entity = request.getBody();
     if (entity instanceof HttpRequest.InMemoryBody) {
       this.body = ((HttpRequest.InMemoryBody) entity).toByteArray();
+    } else if (entity instanceof HttpRequest.FileBody) {
+      this.fileBody = (HttpRequest.FileBody) entity;
     } else {
       this.body = null;
     }
@@ -196,7 +199,26 @@ public final class RequestImpl implements HttpServletRequest {
   }
 
   @Override
-  public ServletInputStream getInputStream() {
+  public ServletInputStream getInputStream() throws IOException {
+    if (fileBody != null) {
+      InputStream in = fileBody.openInputStream();
+      return new ServletInputStream() {
+        @Override
+        public int read() throws IOException {
+          return in.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+          return in.read(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+          in.close();
+        }
+      };
+    }
     final byte[] data = body != null ? body : new byte[0];
     return new ServletInputStream() {
       private int index = 0;
@@ -309,11 +331,10 @@ public final class RequestImpl implements HttpServletRequest {
   }
 
   @Override
-  public BufferedReader getReader() {
+  public BufferedReader getReader() throws IOException {
     // TODO: Use the correct charset.
     return new BufferedReader(
-        new InputStreamReader(
-            new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+        new InputStreamReader(getInputStream(), StandardCharsets.UTF_8));
   }
 
   @Override
@@ -129,6 +129,12 @@ public final class ResponseImpl implements HttpServletResponse {
         if (bufferOrForward == null) {
           return;
         }
+        if (!isCommitted && !HttpStatusCode.mayHaveBody(status)) {
+          // For example, a 304 response from a conditional request; it must not have a body.
+          responseWriter.commitBuffered(commitResponse().withBody(new byte[0]));
+          bufferOrForward = null;
+          return;
+        }
         flush();
         bufferOrForward.close();
         bufferOrForward = null;
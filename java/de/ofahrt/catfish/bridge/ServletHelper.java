@@ -14,6 +14,7 @@ import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.Locale;
 import java.util.Map;
@@ -133,6 +134,19 @@ public class ServletHelper {
     }
   }
 
+  public static void setBodyByteBuffer(HttpServletResponse response, MimeType type, ByteBuffer in)
+      throws IOException {
+    response.setContentType(type.toString());
+    OutputStream out = response.getOutputStream();
+    byte[] buffer = new byte[Math.min(in.remaining(), 8192)];
+    while (in.hasRemaining()) {
+      int i = Math.min(in.remaining(), buffer.length);
+      in.get(buffer, 0, i);
+      out.write(buffer, 0, i);
+    }
+    out.close();
+  }
+
   public static String getFilename(HttpServletRequest request) {
     try {
       String filename = new URI(request.getRequestURI()).getPath();
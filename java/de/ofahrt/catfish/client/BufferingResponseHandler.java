@@ -0,0 +1,68 @@
+package de.ofahrt.catfish.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import de.ofahrt.catfish.client.HttpClientStage.ResponseHandler;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpResponse;
+
+/**
+ * Collects a streamed response in memory and passes it to a {@link ResponseHandler} once it is
+ * complete. Bodies larger than the given limit abort the response.
+ */
+final class BufferingResponseHandler implements StreamingResponseHandler {
+  static final int DEFAULT_MAX_BODY_SIZE = 16 * 1024 * 1024;
+
+  private final ResponseHandler delegate;
+  private final int maxBodySize;
+  private HttpResponse response;
+  private byte[] content;
+  private int contentLength;
+
+  BufferingResponseHandler(ResponseHandler delegate, int maxBodySize) {
+    this.delegate = delegate;
+    this.maxBodySize = maxBodySize;
+  }
+
+  @Override
+  public void headers(@SuppressWarnings("hiding") HttpResponse response) {
+    this.response = response;
+    int expectedLength = 0;
+    String value = response.getHeaders().get(HttpHeaderName.CONTENT_LENGTH);
+    if (value != null) {
+      try {
+        // Don't trust the server with the allocation; the limit still applies as data arrives.
+        expectedLength = (int) Math.min(Long.parseLong(value), maxBodySize);
+      } catch (NumberFormatException e) {
+        // The parser already rejects these.
+      }
+    }
+    this.content = new byte[Math.max(expectedLength, 0)];
+  }
+
+  @Override
+  public void body(ByteBuffer data) throws IOException {
+    int length = data.remaining();
+    if (length > maxBodySize - contentLength) {
+      throw new IOException("Response body exceeds " + maxBodySize + " bytes");
+    }
+    if (contentLength + length > content.length) {
+      int newSize = (int) Math.min(Math.max(2L * content.length, contentLength + length), maxBodySize);
+      content = Arrays.copyOf(content, newSize);
+    }
+    data.get(content, contentLength, length);
+    contentLength += length;
+  }
+
+  @Override
+  public void done() {
+    byte[] body = contentLength == content.length ? content : Arrays.copyOf(content, contentLength);
+    delegate.received(response.withBody(body));
+  }
+
+  @Override
+  public void failed(Exception exception) {
+    delegate.failed(exception);
+  }
+}
@@ -0,0 +1,198 @@
+package de.ofahrt.catfish.client;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A host resolver that caches its results, including failures. The JDK only offers blocking
+ * lookups, so they run on a small pool of daemon threads; callers only ever wait on the returned
+ * future. Concurrent lookups of the same host share a single request.
+ *
+ * <p>Successful lookups are kept for the time-to-live, failed ones for the usually much shorter
+ * negative time-to-live. Note that the JDK keeps its own cache, controlled by the
+ * {@code networkaddress.cache.ttl} security property; this cache cannot make entries live shorter
+ * than that. The number of entries is limited; if the limit is exceeded, the least recently used
+ * entries are dropped.
+ */
+public final class CachingHostResolver implements HostResolver {
+  /** Looks up the address of a host, blocking until the answer is known. */
+  @FunctionalInterface
+  interface Lookup {
+    InetAddress lookup(String host) throws UnknownHostException;
+  }
+
+  public static final class Builder {
+    private long ttlNanos = TimeUnit.SECONDS.toNanos(30);
+    private long negativeTtlNanos = TimeUnit.SECONDS.toNanos(5);
+    private int maxEntries = 1024;
+    private Executor executor;
+    private Lookup lookup = InetAddress::getByName;
+    private LongSupplier clock = System::nanoTime;
+
+    /** Sets how long a resolved address is used. A value of zero disables caching. */
+    public Builder setTimeToLive(long duration, TimeUnit unit) {
+      if (duration < 0) {
+        throw new IllegalArgumentException("Duration must not be negative, but is " + duration);
+      }
+      this.ttlNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    /**
+     * Sets how long a failed lookup is remembered, so that requests to a host that does not exist
+     * fail without another lookup. A value of zero disables negative caching.
+     */
+    public Builder setNegativeTimeToLive(long duration, TimeUnit unit) {
+      if (duration < 0) {
+        throw new IllegalArgumentException("Duration must not be negative, but is " + duration);
+      }
+      this.negativeTtlNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    /** Sets the number of entries, positive and negative, that are kept. */
+    public Builder setMaxEntries(int maxEntries) {
+      if (maxEntries < 0) {
+        throw new IllegalArgumentException("Maximum count must not be negative, but is " + maxEntries);
+      }
+      this.maxEntries = maxEntries;
+      return this;
+    }
+
+    /**
+     * Sets the executor that runs the blocking lookups. By default, up to four daemon threads are
+     * started as needed.
+     */
+    public Builder setExecutor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    Builder setLookup(Lookup lookup) {
+      this.lookup = lookup;
+      return this;
+    }
+
+    Builder setClock(LongSupplier clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    public CachingHostResolver build() {
+      return new CachingHostResolver(this);
+    }
+  }
+
+  private static final class CacheEntry {
+    private final CompletableFuture<InetAddress> future;
+    private final long loadedAt;
+
+    CacheEntry(CompletableFuture<InetAddress> future, long loadedAt) {
+      this.future = future;
+      this.loadedAt = loadedAt;
+    }
+  }
+
+  private final long ttlNanos;
+  private final long negativeTtlNanos;
+  private final int maxEntries;
+  private final Executor executor;
+  private final Lookup lookup;
+  private final LongSupplier clock;
+
+  // Guarded by this. Iteration order is least recently used first. Includes lookups that are
+  // still in progress.
+  private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  private CachingHostResolver(Builder builder) {
+    this.ttlNanos = builder.ttlNanos;
+    this.negativeTtlNanos = builder.negativeTtlNanos;
+    this.maxEntries = builder.maxEntries;
+    this.executor = builder.executor != null ? builder.executor : newDefaultExecutor();
+    this.lookup = builder.lookup;
+    this.clock = builder.clock;
+  }
+
+  private static Executor newDefaultExecutor() {
+    ThreadPoolExecutor result = new ThreadPoolExecutor(
+        4, 4, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+          Thread t = new Thread(r, "catfish-dns");
+          t.setDaemon(true);
+          return t;
+        });
+    result.allowCoreThreadTimeOut(true);
+    return result;
+  }
+
+  @Override
+  public CompletableFuture<InetAddress> resolve(String host) {
+    long now = clock.getAsLong();
+    CompletableFuture<InetAddress> future;
+    synchronized (this) {
+      CacheEntry entry = entries.get(host);
+      if (entry != null && isValid(entry, now)) {
+        hitCount.incrementAndGet();
+        return entry.future;
+      }
+      future = new CompletableFuture<>();
+      entries.put(host, new CacheEntry(future, now));
+      trim();
+    }
+    missCount.incrementAndGet();
+    try {
+      executor.execute(() -> {
+        try {
+          future.complete(lookup.lookup(host));
+        } catch (UnknownHostException | RuntimeException e) {
+          future.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  private boolean isValid(CacheEntry entry, long now) {
+    if (!entry.future.isDone()) {
+      return true;
+    }
+    long ttl = entry.future.isCompletedExceptionally() ? negativeTtlNanos : ttlNanos;
+    return now - entry.loadedAt < ttl;
+  }
+
+  // Guarded by this.
+  private void trim() {
+    Iterator<CacheEntry> it = entries.values().iterator();
+    while (entries.size() > maxEntries && it.hasNext()) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  /** Removes all entries; lookups that are in progress still complete. */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+}
@@ -2,47 +2,534 @@ package de.ofahrt.catfish.client;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLParameters;
 
 import de.ofahrt.catfish.client.HttpClientStage.ResponseHandler;
 import de.ofahrt.catfish.internal.network.NetworkEngine;
+import de.ofahrt.catfish.internal.network.NetworkEngine.NetworkHandler;
+import de.ofahrt.catfish.internal.network.NetworkEngine.ScheduledTask;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpHeaders;
 import de.ofahrt.catfish.model.HttpRequest;
 import de.ofahrt.catfish.model.HttpResponse;
 import de.ofahrt.catfish.model.network.NetworkEventListener;
+import de.ofahrt.catfish.utils.InflaterPool;
 
 public class CatfishHttpClient {
+  /** Completes with the response, and cancels the request if it is cancelled itself. */
+  private static final class ResponseFuture extends CompletableFuture<HttpResponse>
+      implements ResponseHandler {
+    private volatile Exchange exchange;
+
+    @Override
+    public void received(HttpResponse response) {
+      complete(response);
+    }
+
+    @Override
+    public void failed(Exception exception) {
+      completeExceptionally(exception);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      Exchange current = exchange;
+      if (cancelled && current != null) {
+        current.cancel(new CancellationException("Request cancelled"));
+      }
+      return cancelled;
+    }
+  }
+
+  /**
+   * Identifies a connection pool. Connections are only shared between requests with the same TLS
+   * configuration; the SSL context and parameters are compared by identity, as neither defines
+   * equality, and a connection set up with one must not be reused for requests that ask for another.
+   */
+  private static final class OriginKey {
+    private final String host;
+    private final int port;
+    private final SSLContext sslContext;
+    private final SSLParameters sslParameters;
+
+    OriginKey(String host, int port, SSLContext sslContext, SSLParameters sslParameters) {
+      this.host = host;
+      this.port = port;
+      this.sslContext = sslContext;
+      this.sslParameters = sslParameters;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof OriginKey)) {
+        return false;
+      }
+      OriginKey other = (OriginKey) o;
+      return host.equals(other.host)
+          && port == other.port
+          && sslContext == other.sslContext
+          && sslParameters == other.sslParameters;
+    }
+
+    @Override
+    public int hashCode() {
+      return ((host.hashCode() * 31 + port) * 31 + System.identityHashCode(sslContext)) * 31
+          + System.identityHashCode(sslParameters);
+    }
+  }
+
+  public static final class Builder {
+    private final NetworkEventListener eventListener;
+    private boolean http2;
+    private boolean keepAlive = true;
+    private int maxConnectionsPerHost = 6;
+    private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    private long connectTimeoutNanos = TimeUnit.SECONDS.toNanos(10);
+    private HostResolver hostResolver;
+    private int maxResponseBodySize = BufferingResponseHandler.DEFAULT_MAX_BODY_SIZE;
+    private boolean decompressResponses;
+    private long maxDecompressedBodySize = 64 * 1024 * 1024;
+    private long requestTimeoutNanos;
+    private double hedgePercentile;
+    private double maxHedgeRate = 0.1;
+
+    public Builder(NetworkEventListener eventListener) {
+      this.eventListener = eventListener;
+    }
+
+    /**
+     * Sends requests to TLS origins over HTTP/2 if the server supports it, as negotiated with
+     * ALPN. All requests to the same host and port with the same SSL context and parameters then
+     * share a single connection; requests with other TLS settings get a connection of their own.
+     * Servers without HTTP/2 support, and plain connections, use HTTP/1.1 as before.
+     */
+    public Builder setHttp2(boolean http2) {
+      this.http2 = http2;
+      return this;
+    }
+
+    /**
+     * Sets whether HTTP/1.1 connections are kept open and reused for later requests to the same
+     * host and port, which is the default. Connections are only reused for requests with the same
+     * SSL context and parameters. If disabled, every request uses a new connection.
+     */
+    public Builder setKeepAlive(boolean keepAlive) {
+      this.keepAlive = keepAlive;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of HTTP/1.1 connections to the same host and port with the same TLS
+     * settings; further requests wait until a connection becomes available. Only applies if
+     * keep-alive is enabled.
+     */
+    public Builder setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+      if (maxConnectionsPerHost <= 0) {
+        throw new IllegalArgumentException(
+            "Maximum connection count must be positive, but is " + maxConnectionsPerHost);
+      }
+      this.maxConnectionsPerHost = maxConnectionsPerHost;
+      return this;
+    }
+
+    /**
+     * Sets how long an unused keep-alive connection is kept open. Servers close idle connections
+     * on their own after a while, so this should not be much longer than their timeout.
+     */
+    public Builder setIdleTimeout(long duration, TimeUnit unit) {
+      if (duration <= 0) {
+        throw new IllegalArgumentException("Duration must be positive, but is " + duration);
+      }
+      this.idleTimeoutNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    /**
+     * Sets how long to wait for a TCP connection to be established, not including the host name
+     * lookup and the TLS handshake. A value of zero waits indefinitely.
+     */
+    public Builder setConnectTimeout(long duration, TimeUnit unit) {
+      if (duration < 0) {
+        throw new IllegalArgumentException("Duration must not be negative, but is " + duration);
+      }
+      this.connectTimeoutNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    /**
+     * Sets the resolver for host names. By default, each client uses its own
+     * {@link CachingHostResolver} with default settings.
+     */
+    public Builder setHostResolver(HostResolver hostResolver) {
+      this.hostResolver = hostResolver;
+      return this;
+    }
+
+    /**
+     * Sets the maximum size of a response body that is collected in memory; larger responses fail.
+     * Does not apply to responses that are passed to a {@link StreamingResponseHandler}.
+     */
+    public Builder setMaxResponseBodySize(int maxResponseBodySize) {
+      if (maxResponseBodySize < 0) {
+        throw new IllegalArgumentException(
+            "Maximum response body size must not be negative, but is " + maxResponseBodySize);
+      }
+      this.maxResponseBodySize = maxResponseBodySize;
+      return this;
+    }
+
+    /**
+     * Sets whether requests ask for gzip or deflate compressed responses, which are then decoded
+     * transparently, also for streaming response handlers. Decoded responses have neither a
+     * Content-Encoding nor a Content-Length header. Requests that set their own Accept-Encoding
+     * header keep it. Disabled by default.
+     */
+    public Builder setDecompressResponses(boolean decompressResponses) {
+      this.decompressResponses = decompressResponses;
+      return this;
+    }
+
+    /**
+     * Sets the maximum size of a decoded response body; larger responses fail, so that a small
+     * compressed response cannot exhaust memory. Only applies if decompression is enabled.
+     */
+    public Builder setMaxDecompressedBodySize(long maxDecompressedBodySize) {
+      if (maxDecompressedBodySize < 0) {
+        throw new IllegalArgumentException(
+            "Maximum decompressed body size must not be negative, but is " + maxDecompressedBodySize);
+      }
+      this.maxDecompressedBodySize = maxDecompressedBodySize;
+      return this;
+    }
+
+    /**
+     * Sets the default deadline for requests, from the moment they are sent until the response is
+     * complete, including the host name lookup, the connection setup, and any time spent waiting
+     * for a connection. Requests that miss their deadline are cancelled, and fail with a
+     * {@link java.util.concurrent.TimeoutException}. A value of zero, the default, waits
+     * indefinitely.
+     */
+    public Builder setRequestTimeout(long duration, TimeUnit unit) {
+      if (duration < 0) {
+        throw new IllegalArgumentException("Duration must not be negative, but is " + duration);
+      }
+      this.requestTimeoutNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    /**
+     * Enables hedging of idempotent requests: if there is no response after the given percentile of
+     * the recent response times of the same origin, the request is sent a second time, and the
+     * first response wins; the other attempt is cancelled. This trades a few more requests for a
+     * shorter tail latency. Requests are only hedged once there are enough response times to go
+     * by. A value of zero, the default, disables hedging.
+     *
+     * <p>Hedges are always sent over HTTP/1.1, on a connection other than the first attempt's;
+     * with HTTP/2, the first attempt shares a single connection with all other requests to the
+     * origin, and a hedge on the same connection would be stuck behind the same slow server.
+     * Response times and the hedge budget are tracked per origin and TLS configuration.
+     */
+    public Builder setHedgePercentile(double hedgePercentile) {
+      if (!(hedgePercentile >= 0 && hedgePercentile < 100)) {
+        throw new IllegalArgumentException(
+            "Hedge percentile must be at least 0 and less than 100, but is " + hedgePercentile);
+      }
+      this.hedgePercentile = hedgePercentile;
+      return this;
+    }
+
+    /**
+     * Limits the fraction of idempotent requests to the same origin that are hedged, so that an
+     * origin that slows down does not also get more requests. Defaults to 0.1.
+     */
+    public Builder setMaxHedgeRate(double maxHedgeRate) {
+      if (!(maxHedgeRate >= 0 && maxHedgeRate <= 1)) {
+        throw new IllegalArgumentException(
+            "Maximum hedge rate must be between 0 and 1, but is " + maxHedgeRate);
+      }
+      this.maxHedgeRate = maxHedgeRate;
+      return this;
+    }
+
+    public CatfishHttpClient build() throws IOException {
+      return new CatfishHttpClient(this);
+    }
+  }
+
   private final NetworkEngine engine;
+  private final boolean http2;
+  private final boolean keepAlive;
+  private final int maxConnectionsPerHost;
+  private final long idleTimeoutNanos;
+  private final long connectTimeoutNanos;
+  private final HostResolver hostResolver;
+  private final int maxResponseBodySize;
+  private final boolean decompressResponses;
+  private final long maxDecompressedBodySize;
+  private final long requestTimeoutNanos;
+  private final double hedgePercentile;
+  private final double maxHedgeRate;
+  private final ConcurrentHashMap<OriginKey, Http1Origin> http1Origins = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<OriginKey, Http2Origin> origins = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<OriginKey, LatencyTracker> latencyTrackers =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<OriginKey, HedgeBudget> hedgeBudgets = new ConcurrentHashMap<>();
+  // Zero if keep-alive is disabled.
+  private final long evictionPeriodNanos;
+  // Null if keep-alive is disabled.
+  private volatile ScheduledTask evictionTask;
 
   public CatfishHttpClient(NetworkEventListener eventListener) throws IOException {
-    this.engine = new NetworkEngine(eventListener);
+    this(new Builder(eventListener));
   }
 
-  public Future<HttpResponse> send(String host, int port, SSLContext sslContext, SSLParameters sslParameters, HttpRequest request)
-      throws IOException, InterruptedException {
-    CompletableFuture<HttpResponse> future = new CompletableFuture<>();
-    HttpClientHandler handler = new HttpClientHandler(
-        request,
-        new ResponseHandler() {
-          @Override
-          public void received(HttpResponse response) {
-            future.complete(response);
-          }
-
-          @Override
-          public void failed(Exception exception) {
-            future.completeExceptionally(exception);
-          }
-        },
-        sslContext, sslParameters);
-    engine.connect(InetAddress.getByName(host), port, handler);
+  private CatfishHttpClient(Builder builder) throws IOException {
+    this.engine = new NetworkEngine(builder.eventListener);
+    this.http2 = builder.http2;
+    this.keepAlive = builder.keepAlive;
+    this.maxConnectionsPerHost = builder.maxConnectionsPerHost;
+    this.idleTimeoutNanos = builder.idleTimeoutNanos;
+    this.connectTimeoutNanos = builder.connectTimeoutNanos;
+    this.hostResolver =
+        builder.hostResolver != null ? builder.hostResolver : new CachingHostResolver.Builder().build();
+    this.maxResponseBodySize = builder.maxResponseBodySize;
+    this.decompressResponses = builder.decompressResponses;
+    this.maxDecompressedBodySize = builder.maxDecompressedBodySize;
+    this.requestTimeoutNanos = builder.requestTimeoutNanos;
+    this.hedgePercentile = builder.hedgePercentile;
+    this.maxHedgeRate = builder.maxHedgeRate;
+    // Connections are checked before reuse anyway; this only releases them in time.
+    this.evictionPeriodNanos =
+        keepAlive ? Math.max(idleTimeoutNanos / 2, TimeUnit.MILLISECONDS.toNanos(100)) : 0;
+    if (keepAlive) {
+      scheduleEviction();
+    }
+  }
+
+  /**
+   * Sends the given request without blocking; the host name lookup, the connection setup and all
+   * errors are reported through the returned future.
+   *
+   * <p>Request bodies of type {@link HttpRequest.StreamBody} or {@link HttpRequest.FileBody} are
+   * read while the request is sent, and files on plain connections go straight from the page cache
+   * to the socket. If the request has no Content-Length or Transfer-Encoding header, the client
+   * adds one; bodies of unknown length use chunked encoding. Such requests always use HTTP/1.1.
+   * A malformed or negative Content-Length header on such a request is rejected with an
+   * {@link IllegalArgumentException}.
+   *
+   * <p>Cancelling the returned future cancels the request: an HTTP/1.1 connection that is sending
+   * it is closed, and an HTTP/2 stream is reset.
+   */
+  public Future<HttpResponse> send(String host, int port, SSLContext sslContext, SSLParameters sslParameters, HttpRequest request) {
+    return send(host, port, sslContext, sslParameters, request, requestTimeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Sends the given request like {@link #send(String, int, SSLContext, SSLParameters, HttpRequest)},
+   * but with the given deadline instead of the default one; a timeout of zero waits indefinitely.
+   */
+  public Future<HttpResponse> send(
+      String host,
+      int port,
+      SSLContext sslContext,
+      SSLParameters sslParameters,
+      HttpRequest request,
+      long timeout,
+      TimeUnit unit) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("Timeout must not be negative, but is " + timeout);
+    }
+    ResponseFuture future = new ResponseFuture();
+    future.exchange = send(host, port, sslContext, sslParameters, request,
+        new BufferingResponseHandler(future, maxResponseBodySize), unit.toNanos(timeout));
     return future;
   }
 
+  /**
+   * Sends the given request without blocking, and passes the response to the given handler while
+   * it arrives, so that large bodies don't have to be held in memory. If the handler is not ready,
+   * the client stops reading the response until it is. The handler can abort the response by
+   * throwing an exception from {@link StreamingResponseHandler#body}.
+   */
+  public void send(
+      String host,
+      int port,
+      SSLContext sslContext,
+      SSLParameters sslParameters,
+      HttpRequest request,
+      StreamingResponseHandler responseHandler) {
+    send(host, port, sslContext, sslParameters, request, responseHandler, requestTimeoutNanos);
+  }
+
+  private Exchange send(
+      String host,
+      int port,
+      SSLContext sslContext,
+      SSLParameters sslParameters,
+      HttpRequest request,
+      StreamingResponseHandler responseHandler,
+      long timeoutNanos) {
+    if (HttpRequestGeneratorStreamed.isStreamed(request)) {
+      // Rejects a bad Content-Length here rather than on the network thread.
+      HttpRequestGeneratorStreamed.parseContentLength(request);
+    }
+    if (decompressResponses) {
+      if (!request.getHeaders().containsKey(HttpHeaderName.ACCEPT_ENCODING)) {
+        request = request.withHeaderOverrides(
+            HttpHeaders.of(HttpHeaderName.ACCEPT_ENCODING, "gzip, deflate"));
+      }
+      responseHandler = new DecompressingResponseHandler(
+          responseHandler, InflaterPool.DEFAULT, maxDecompressedBodySize);
+    }
+    LatencyTracker latencyTracker = getLatencyTracker(host, port, sslContext, sslParameters);
+    HedgeBudget hedgeBudget = getHedgeBudget(host, port, sslContext, sslParameters);
+    Exchange exchange = new Exchange(
+        request,
+        responseHandler,
+        pendingRequest -> send(host, port, sslContext, sslParameters, pendingRequest),
+        pendingRequest -> sendHedge(host, port, sslContext, sslParameters, pendingRequest),
+        latencyTracker,
+        hedgeBudget);
+    exchange.start(
+        (task, delayNanos) -> engine.schedule(task, delayNanos, TimeUnit.NANOSECONDS),
+        timeoutNanos,
+        latencyTracker != null ? latencyTracker.getEstimateNanos() : -1);
+    return exchange;
+  }
+
+  private void send(
+      String host, int port, SSLContext sslContext, SSLParameters sslParameters, PendingRequest pendingRequest) {
+    // The HTTP/2 stage only sends request bodies from memory.
+    if (http2 && sslParameters != null && !HttpRequestGeneratorStreamed.isStreamed(pendingRequest.request)) {
+      getHttp2Origin(host, port, sslContext, sslParameters).send(pendingRequest);
+    } else if (keepAlive) {
+      getHttp1Origin(host, port, sslContext, sslParameters).send(pendingRequest);
+    } else {
+      connector(host, port).connect(new HttpClientHandler(pendingRequest, sslContext, sslParameters));
+    }
+  }
+
+  /**
+   * Sends a hedge on an HTTP/1.1 connection of its own, even if HTTP/2 is enabled; over HTTP/2, it
+   * would share the connection of the first attempt, and could not get away from a slow one.
+   */
+  private void sendHedge(
+      String host, int port, SSLContext sslContext, SSLParameters sslParameters, PendingRequest pendingRequest) {
+    if (keepAlive) {
+      getHttp1Origin(host, port, sslContext, sslParameters).send(pendingRequest);
+    } else {
+      connector(host, port).connect(new HttpClientHandler(pendingRequest, sslContext, sslParameters));
+    }
+  }
+
+  /**
+   * Opens up to the given number of keep-alive connections to the given origin ahead of time, so
+   * that the first requests don't have to wait for the connection setup. Does nothing if
+   * keep-alive is disabled.
+   */
+  public void prewarm(String host, int port, SSLContext sslContext, SSLParameters sslParameters, int connections) {
+    if (keepAlive) {
+      getHttp1Origin(host, port, sslContext, sslParameters).prewarm(connections);
+    }
+  }
+
+  // Null if hedging is disabled.
+  LatencyTracker getLatencyTracker(
+      String host, int port, SSLContext sslContext, SSLParameters sslParameters) {
+    return hedgePercentile > 0
+        ? latencyTrackers.computeIfAbsent(
+            new OriginKey(host, port, sslContext, sslParameters),
+            key -> new LatencyTracker(hedgePercentile))
+        : null;
+  }
+
+  // Null if hedging is disabled.
+  HedgeBudget getHedgeBudget(
+      String host, int port, SSLContext sslContext, SSLParameters sslParameters) {
+    return hedgePercentile > 0
+        ? hedgeBudgets.computeIfAbsent(
+            new OriginKey(host, port, sslContext, sslParameters),
+            key -> new HedgeBudget(maxHedgeRate))
+        : null;
+  }
+
+  Http2Origin getHttp2Origin(
+      String host, int port, SSLContext sslContext, SSLParameters sslParameters) {
+    Http1Origin http1Origin = keepAlive ? getHttp1Origin(host, port, sslContext, sslParameters) : null;
+    return origins.computeIfAbsent(
+        new OriginKey(host, port, sslContext, sslParameters),
+        key -> new Http2Origin(connector(host, port), sslContext, sslParameters, http1Origin));
+  }
+
+  Http1Origin getHttp1Origin(
+      String host, int port, SSLContext sslContext, SSLParameters sslParameters) {
+    return http1Origins.computeIfAbsent(
+        new OriginKey(host, port, sslContext, sslParameters),
+        key -> new Http1Origin(
+            connector(host, port),
+            sslContext,
+            sslParameters,
+            maxConnectionsPerHost,
+            idleTimeoutNanos));
+  }
+
+  private Connector connector(String host, int port) {
+    return handler -> hostResolver.resolve(host).whenComplete((address, e) -> {
+      if (e != null) {
+        handler.connectFailed(toIOException(e));
+        return;
+      }
+      connect(handler, address, port);
+    });
+  }
+
+  private void connect(NetworkHandler handler, InetAddress address, int port) {
+    try {
+      engine.connect(address, port, handler, connectTimeoutNanos, TimeUnit.NANOSECONDS);
+    } catch (RuntimeException e) {
+      // The client was shut down.
+      handler.connectFailed(new IOException(e));
+    }
+  }
+
+  private static IOException toIOException(Throwable e) {
+    if (e instanceof CompletionException && e.getCause() != null) {
+      e = e.getCause();
+    }
+    return e instanceof IOException ? (IOException) e : new IOException(e);
+  }
+
+  private void scheduleEviction() {
+    try {
+      evictionTask = engine.schedule(this::evictIdleConnections, evictionPeriodNanos, TimeUnit.NANOSECONDS);
+    } catch (IllegalStateException e) {
+      // The client was shut down.
+    }
+  }
+
+  // Called on a network thread.
+  private void evictIdleConnections() {
+    long nowNanos = System.nanoTime();
+    for (Http1Origin origin : http1Origins.values()) {
+      origin.evictIdle(nowNanos);
+    }
+    scheduleEviction();
+  }
+
   public void shutdown() throws InterruptedException {
+    ScheduledTask task = evictionTask;
+    if (task != null) {
+      task.cancel();
+    }
     engine.shutdown();
   }
 }
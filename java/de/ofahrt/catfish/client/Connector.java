@@ -0,0 +1,11 @@
+package de.ofahrt.catfish.client;
+
+import de.ofahrt.catfish.internal.network.NetworkEngine.NetworkHandler;
+
+/**
+ * Opens a connection to an origin without blocking. If the connection cannot be established, the
+ * handler's {@link NetworkHandler#connectFailed} is called instead of its connect method.
+ */
+interface Connector {
+  void connect(NetworkHandler handler);
+}
@@ -0,0 +1,130 @@
+package de.ofahrt.catfish.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.zip.ZipException;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.MalformedResponseException;
+import de.ofahrt.catfish.model.SimpleHttpResponse;
+import de.ofahrt.catfish.utils.InflaterPool;
+import de.ofahrt.catfish.utils.InflatingDecoder;
+
+/**
+ * Removes a gzip or deflate content coding from a streamed response, and passes the decoded
+ * response on to another handler. The decoded response has neither a Content-Encoding nor a
+ * Content-Length header. Responses with other content codings are passed on unchanged.
+ *
+ * <p>Decoding fails as soon as the decoded size exceeds the given limit, so that small compressed
+ * responses cannot be used to exhaust memory.
+ */
+final class DecompressingResponseHandler implements StreamingResponseHandler {
+  private final StreamingResponseHandler delegate;
+  private final InflaterPool inflaterPool;
+  private final long maxDecodedLength;
+  // Null if the response is passed on unchanged.
+  private InflatingDecoder decoder;
+  private boolean receivedBody;
+
+  DecompressingResponseHandler(
+      StreamingResponseHandler delegate, InflaterPool inflaterPool, long maxDecodedLength) {
+    this.delegate = delegate;
+    this.inflaterPool = inflaterPool;
+    this.maxDecodedLength = maxDecodedLength;
+  }
+
+  @Override
+  public void headers(HttpResponse response) {
+    String contentEncoding = response.getHeaders().get(HttpHeaderName.CONTENT_ENCODING);
+    if (contentEncoding == null || !InflatingDecoder.isSupported(contentEncoding.trim())) {
+      delegate.headers(response);
+      return;
+    }
+    decoder = InflatingDecoder.forContentEncoding(contentEncoding.trim(), inflaterPool);
+    delegate.headers(withoutContentCoding(response));
+  }
+
+  private static HttpResponse withoutContentCoding(HttpResponse response) {
+    SimpleHttpResponse.Builder builder = new SimpleHttpResponse.Builder()
+        .setMajorVersion(response.getProtocolVersion().getMajorVersion())
+        .setMinorVersion(response.getProtocolVersion().getMinorVersion())
+        .setStatusCode(response.getStatusCode())
+        .setReasonPhrase(response.getStatusMessage());
+    for (Map.Entry<String, String> entry : response.getHeaders()) {
+      if (!HttpHeaderName.CONTENT_ENCODING.equalsIgnoreCase(entry.getKey())
+          && !HttpHeaderName.CONTENT_LENGTH.equalsIgnoreCase(entry.getKey())) {
+        builder.addHeader(entry.getKey(), entry.getValue());
+      }
+    }
+    try {
+      return builder.build();
+    } catch (MalformedResponseException e) {
+      // We only copy parts of a response that was already valid.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void body(ByteBuffer data) throws IOException {
+    if (decoder == null) {
+      delegate.body(data);
+      return;
+    }
+    receivedBody = true;
+    int length = data.remaining();
+    int consumed;
+    if (data.hasArray()) {
+      consumed = decoder.decode(data.array(), data.arrayOffset() + data.position(), length, this::emit);
+    } else {
+      byte[] copy = new byte[length];
+      data.duplicate().get(copy);
+      consumed = decoder.decode(copy, 0, length, this::emit);
+    }
+    data.position(data.position() + length);
+    if (consumed < length) {
+      throw new ZipException("Unexpected data after the end of the compressed body");
+    }
+  }
+
+  private void emit(byte[] buffer, int offset, int length) throws IOException {
+    if (decoder.getDecodedLength() > maxDecodedLength) {
+      throw new IOException("Decoded response body exceeds " + maxDecodedLength + " bytes");
+    }
+    delegate.body(ByteBuffer.wrap(buffer, offset, length));
+  }
+
+  @Override
+  public void done() {
+    if (decoder == null) {
+      delegate.done();
+      return;
+    }
+    decoder.close();
+    // Responses to HEAD requests, and 204 and 304 responses, have no body to decode.
+    if (receivedBody && !decoder.isFinished()) {
+      delegate.failed(new EOFException("Compressed response body is truncated"));
+      return;
+    }
+    delegate.done();
+  }
+
+  @Override
+  public void failed(Exception exception) {
+    if (decoder != null) {
+      decoder.close();
+    }
+    delegate.failed(exception);
+  }
+
+  @Override
+  public boolean isReady() {
+    return delegate.isReady();
+  }
+
+  @Override
+  public void whenReady(Runnable callback) {
+    delegate.whenReady(callback);
+  }
+}
@@ -0,0 +1,244 @@
+package de.ofahrt.catfish.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import de.ofahrt.catfish.internal.network.NetworkEngine.ScheduledTask;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpResponse;
+
+/**
+ * A request as seen by the caller, from the moment it is sent until the response is complete. The
+ * exchange enforces the deadline of the request, and hedges idempotent requests: if there is no
+ * response after a given delay, the request is sent a second time, through a separate transport so
+ * that it does not share a connection with the first attempt, and whichever attempt receives the
+ * response headers first wins; the other one is cancelled. The response handler only ever sees the
+ * winning response, or the failure of the last attempt.
+ *
+ * <p>Response times are measured from the start of the exchange rather than the start of the
+ * winning attempt; otherwise hedges that win would count as fast responses, and pull the hedge
+ * delay down until almost every request is hedged.
+ */
+final class Exchange {
+  /** Sends an attempt without blocking. */
+  interface Transport {
+    void send(PendingRequest request);
+  }
+
+  /** Runs a task once the given delay has passed. */
+  interface Scheduler {
+    ScheduledTask schedule(Runnable task, long delayNanos);
+  }
+
+  private final HttpRequest request;
+  private final StreamingResponseHandler responseHandler;
+  private final Transport transport;
+  private final Transport hedgeTransport;
+  // Null if response times are not tracked.
+  private final LatencyTracker latencyTracker;
+  // Null if the number of hedges is not limited.
+  private final HedgeBudget hedgeBudget;
+  private final long startNanos = System.nanoTime();
+
+  // All guarded by this.
+  private final List<Attempt> attempts = new ArrayList<>(2);
+  private Attempt winner;
+  private Exception cancellation;
+  private boolean finished;
+  private ScheduledTask deadline;
+  private ScheduledTask hedge;
+
+  Exchange(
+      HttpRequest request,
+      StreamingResponseHandler responseHandler,
+      Transport transport,
+      Transport hedgeTransport,
+      LatencyTracker latencyTracker,
+      HedgeBudget hedgeBudget) {
+    this.request = request;
+    this.responseHandler = responseHandler;
+    this.transport = transport;
+    this.hedgeTransport = hedgeTransport;
+    this.latencyTracker = latencyTracker;
+    this.hedgeBudget = hedgeBudget;
+  }
+
+  /**
+   * Sends the first attempt. If the timeout is positive, the exchange fails with a {@link
+   * TimeoutException} once it passes. If the hedge delay is not negative, and the request is
+   * idempotent and can be sent more than once, a second attempt is sent if neither has received a
+   * response after that delay, and the hedge budget allows it.
+   */
+  void start(Scheduler scheduler, long timeoutNanos, long hedgeDelayNanos) {
+    Attempt first = new Attempt();
+    if (hedgeBudget != null && isHedgeable(first.pending)) {
+      hedgeBudget.requestSent();
+    }
+    synchronized (this) {
+      attempts.add(first);
+      if (timeoutNanos > 0) {
+        deadline = scheduler.schedule(() -> cancel(new TimeoutException(
+            "Request did not complete within "
+            + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms")), timeoutNanos);
+      }
+      if (hedgeDelayNanos >= 0 && isHedgeable(first.pending)) {
+        hedge = scheduler.schedule(this::hedge, hedgeDelayNanos);
+      }
+    }
+    transport.send(first.pending);
+  }
+
+  private static boolean isHedgeable(PendingRequest request) {
+    return request.isIdempotent() && request.isRepeatable();
+  }
+
+  private void hedge() {
+    Attempt second;
+    synchronized (this) {
+      hedge = null;
+      if (finished || cancellation != null || winner != null) {
+        return;
+      }
+      if (hedgeBudget != null && !hedgeBudget.tryHedge()) {
+        return;
+      }
+      second = new Attempt();
+      attempts.add(second);
+    }
+    hedgeTransport.send(second.pending);
+  }
+
+  /**
+   * Cancels all attempts, and fails the response handler with the given exception, unless the
+   * response is already complete. This is safe to call from any thread.
+   */
+  void cancel(Exception exception) {
+    List<Attempt> running;
+    synchronized (this) {
+      if (finished || cancellation != null) {
+        return;
+      }
+      cancellation = exception;
+      running = new ArrayList<>(attempts);
+      cancelTimers();
+    }
+    // The last attempt to fail passes the exception on.
+    for (Attempt attempt : running) {
+      attempt.pending.cancel(exception);
+    }
+  }
+
+  // Guarded by this.
+  private void cancelTimers() {
+    if (deadline != null) {
+      deadline.cancel();
+      deadline = null;
+    }
+    if (hedge != null) {
+      hedge.cancel();
+      hedge = null;
+    }
+  }
+
+  // Guarded by this.
+  private boolean allAttemptsCompleted() {
+    for (Attempt attempt : attempts) {
+      if (!attempt.completed) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * One copy of the request. Each attempt is called on the network thread of its own connection,
+   * but only the winner passes calls on, so the response handler is never called concurrently.
+   */
+  private final class Attempt implements StreamingResponseHandler {
+    private final PendingRequest pending = new PendingRequest(request, this);
+    // Only accessed on the network thread of this attempt.
+    private boolean won;
+    // Guarded by Exchange.this.
+    private boolean completed;
+
+    @Override
+    public void headers(HttpResponse response) {
+      List<Attempt> losers = new ArrayList<>();
+      synchronized (Exchange.this) {
+        if (completed || finished || winner != null) {
+          return;
+        }
+        winner = this;
+        won = true;
+        for (Attempt attempt : attempts) {
+          if (attempt != this) {
+            losers.add(attempt);
+          }
+        }
+        if (hedge != null) {
+          hedge.cancel();
+          hedge = null;
+        }
+      }
+      if (latencyTracker != null && isHedgeable(pending)) {
+        latencyTracker.record(System.nanoTime() - startNanos);
+      }
+      for (Attempt loser : losers) {
+        loser.pending.cancel(new CancellationException("Another attempt received a response first"));
+      }
+      responseHandler.headers(response);
+    }
+
+    @Override
+    public void body(ByteBuffer data) throws IOException {
+      if (won) {
+        responseHandler.body(data);
+      }
+    }
+
+    @Override
+    public void done() {
+      synchronized (Exchange.this) {
+        if (completed || !won) {
+          return;
+        }
+        completed = true;
+        finished = true;
+        cancelTimers();
+      }
+      responseHandler.done();
+    }
+
+    @Override
+    public void failed(Exception exception) {
+      synchronized (Exchange.this) {
+        if (completed) {
+          return;
+        }
+        completed = true;
+        // If no attempt won yet, wait for the other attempts; one of them may still succeed.
+        if (!won && (winner != null || !allAttemptsCompleted())) {
+          return;
+        }
+        finished = true;
+        cancelTimers();
+      }
+      responseHandler.failed(exception);
+    }
+
+    @Override
+    public boolean isReady() {
+      return responseHandler.isReady();
+    }
+
+    @Override
+    public void whenReady(Runnable callback) {
+      responseHandler.whenReady(callback);
+    }
+  }
+}
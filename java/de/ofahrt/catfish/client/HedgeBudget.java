@@ -0,0 +1,38 @@
+package de.ofahrt.catfish.client;
+
+/**
+ * Limits the fraction of requests to one origin that are hedged. Every request earns a fraction of
+ * a hedge, and every hedge spends a whole one, so that a slow origin cannot double the load on
+ * itself; a few unspent hedges are kept for bursts.
+ */
+final class HedgeBudget {
+  static final double MAX_BALANCE = 10;
+
+  private final double maxRate;
+
+  // Guarded by this.
+  private double balance;
+
+  /** Creates a budget that allows the given fraction of requests to be hedged. */
+  HedgeBudget(double maxRate) {
+    if (!(maxRate >= 0 && maxRate <= 1)) {
+      throw new IllegalArgumentException(
+          "Maximum hedge rate must be between 0 and 1, but is " + maxRate);
+    }
+    this.maxRate = maxRate;
+  }
+
+  /** Called for every request that may be hedged. */
+  synchronized void requestSent() {
+    balance = Math.min(balance + maxRate, MAX_BALANCE);
+  }
+
+  /** Returns whether a request may be hedged, and if so, spends one hedge. */
+  synchronized boolean tryHedge() {
+    if (balance < 1) {
+      return false;
+    }
+    balance -= 1;
+    return true;
+  }
+}
@@ -0,0 +1,14 @@
+package de.ofahrt.catfish.client;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+
+/** Resolves host names without blocking the caller. */
+@FunctionalInterface
+public interface HostResolver {
+  /**
+   * Returns a future for the address of the given host, which completes exceptionally, usually
+   * with an {@link java.net.UnknownHostException}, if the host cannot be resolved.
+   */
+  CompletableFuture<InetAddress> resolve(String host);
+}
@@ -0,0 +1,286 @@
+package de.ofahrt.catfish.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
+import de.ofahrt.catfish.internal.network.Stage;
+
+/**
+ * Sends requests to one origin over a pool of HTTP/1.1 keep-alive connections. Each connection
+ * carries one request at a time; at most {@code maxConnections} connections are open at any time,
+ * and requests wait in a queue until a connection is available. Idle connections are reused most
+ * recently used first, and closed once they have been idle for longer than the idle timeout.
+ */
+final class Http1Origin implements HttpClientStage.ConnectionListener {
+  private static final class IdleConnection {
+    private final HttpClientStage stage;
+    private final long idleSinceNanos;
+
+    IdleConnection(HttpClientStage stage, long idleSinceNanos) {
+      this.stage = stage;
+      this.idleSinceNanos = idleSinceNanos;
+    }
+  }
+
+  private final Connector connector;
+  private final SSLContext sslContext;
+  private final SSLParameters sslParameters;
+  private final int maxConnections;
+  private final long idleTimeoutNanos;
+
+  // All guarded by this.
+  private final ArrayDeque<PendingRequest> waiting = new ArrayDeque<>();
+  // The most recently used connection is at the front.
+  private final ArrayDeque<IdleConnection> idle = new ArrayDeque<>();
+  // Closed by us, but the closed notification is still on its way; they no longer count against
+  // the limit.
+  private final Set<HttpClientStage> evicted = Collections.newSetFromMap(new IdentityHashMap<>());
+  // Includes connections that are still being established.
+  private int connections;
+
+  Http1Origin(
+      Connector connector,
+      SSLContext sslContext,
+      SSLParameters sslParameters,
+      int maxConnections,
+      long idleTimeoutNanos) {
+    this.connector = connector;
+    this.sslContext = sslContext;
+    this.sslParameters = sslParameters;
+    this.maxConnections = maxConnections;
+    this.idleTimeoutNanos = idleTimeoutNanos;
+  }
+
+  /** Sends the given request without blocking. */
+  void send(PendingRequest request) {
+    List<HttpClientStage> expired = new ArrayList<>();
+    HttpClientStage stage;
+    boolean connect = false;
+    synchronized (this) {
+      stage = takeIdle(System.nanoTime(), expired);
+      if (stage == null) {
+        waiting.add(request);
+        if (connections < maxConnections) {
+          connections++;
+          connect = true;
+        }
+      }
+    }
+    closeAll(expired);
+    if (stage != null) {
+      dispatch(stage, request);
+    } else if (connect) {
+      openConnection();
+    }
+  }
+
+  /**
+   * Opens connections until there are at least the given number, or the connection limit is
+   * reached, so later requests don't have to wait for the connection setup.
+   */
+  void prewarm(int count) {
+    int newConnections;
+    synchronized (this) {
+      newConnections = Math.max(0, Math.min(count, maxConnections) - connections);
+      connections += newConnections;
+    }
+    for (int i = 0; i < newConnections; i++) {
+      openConnection();
+    }
+  }
+
+  /**
+   * Adds a connection that was opened elsewhere to the pool, and returns its stage. The given
+   * request is sent on it first. Must be called on the network thread of the connection.
+   */
+  Stage adopt(Pipeline pipeline, PendingRequest request, ByteBuffer inputBuffer, ByteBuffer outputBuffer) {
+    synchronized (this) {
+      // This may briefly exceed the connection limit.
+      connections++;
+      waiting.addFirst(request);
+    }
+    return new HttpClientStage(pipeline, this, sslParameters == null, inputBuffer, outputBuffer);
+  }
+
+  /** Closes all connections that have been idle for longer than the idle timeout. */
+  void evictIdle(long nowNanos) {
+    List<HttpClientStage> expired = new ArrayList<>();
+    synchronized (this) {
+      Iterator<IdleConnection> it = idle.descendingIterator();
+      while (it.hasNext()) {
+        IdleConnection connection = it.next();
+        if (!isExpired(connection, nowNanos)) {
+          // All remaining connections were used more recently.
+          break;
+        }
+        it.remove();
+        evict(connection.stage, expired);
+      }
+    }
+    closeAll(expired);
+  }
+
+  /** Closes all idle connections. */
+  void closeIdle() {
+    List<HttpClientStage> stages = new ArrayList<>();
+    synchronized (this) {
+      for (IdleConnection connection : idle) {
+        evict(connection.stage, stages);
+      }
+      idle.clear();
+    }
+    closeAll(stages);
+  }
+
+  synchronized int getIdleConnections() {
+    return idle.size();
+  }
+
+  synchronized int getOpenConnections() {
+    return connections;
+  }
+
+  // Guarded by this.
+  private HttpClientStage takeIdle(long nowNanos, List<HttpClientStage> expired) {
+    IdleConnection connection;
+    while ((connection = idle.pollFirst()) != null) {
+      if (!connection.stage.isOpen()) {
+        // Already closed; the closed notification is still on its way.
+        continue;
+      }
+      if (isExpired(connection, nowNanos)) {
+        // The server may be about to close it; don't risk it.
+        evict(connection.stage, expired);
+        continue;
+      }
+      return connection.stage;
+    }
+    return null;
+  }
+
+  // Guarded by this.
+  private void evict(HttpClientStage stage, List<HttpClientStage> stages) {
+    evicted.add(stage);
+    connections--;
+    stages.add(stage);
+  }
+
+  private boolean isExpired(IdleConnection connection, long nowNanos) {
+    return nowNanos - connection.idleSinceNanos >= idleTimeoutNanos;
+  }
+
+  private static void closeAll(List<HttpClientStage> stages) {
+    for (HttpClientStage stage : stages) {
+      stage.closeConnection();
+    }
+  }
+
+  private void dispatch(HttpClientStage stage, PendingRequest request) {
+    stage.queue(() -> {
+      if (!stage.submit(request)) {
+        // The connection closed in the meantime.
+        send(request);
+      }
+    });
+  }
+
+  private void openConnection() {
+    connector.connect(new HttpClientHandler(new StageFactory(), sslContext, sslParameters, null));
+  }
+
+  /**
+   * Called when a new connection could not be established. If no other connection is left to
+   * send them, all waiting requests fail.
+   */
+  private void connectionFailed(Exception e) {
+    List<PendingRequest> failed = new ArrayList<>();
+    synchronized (this) {
+      connections--;
+      if (connections == 0) {
+        failed.addAll(waiting);
+        waiting.clear();
+      }
+    }
+    for (PendingRequest request : failed) {
+      request.responseHandler.failed(e);
+    }
+  }
+
+  @Override
+  public void idle(HttpClientStage stage) {
+    PendingRequest next;
+    synchronized (this) {
+      do {
+        next = waiting.poll();
+      } while (next != null && next.isCancelled());
+      if (next == null) {
+        idle.addFirst(new IdleConnection(stage, System.nanoTime()));
+        return;
+      }
+    }
+    if (!stage.submit(next)) {
+      throw new IllegalStateException();
+    }
+  }
+
+  @Override
+  public void closed(HttpClientStage stage, PendingRequest unfinished, boolean sentOnStaleConnection) {
+    if (!stage.wasConnected()) {
+      // Connect and TLS handshake failures are reported to connectFailed with their cause; this
+      // only happens if the connection closes before the stage is connected, without an error.
+      connectionFailed(new IOException("Connection closed before it was established"));
+      return;
+    }
+    boolean connect = false;
+    synchronized (this) {
+      if (evicted.remove(stage)) {
+        return;
+      }
+      connections--;
+      idle.removeIf(connection -> connection.stage == stage);
+      if (unfinished != null
+          && sentOnStaleConnection
+          && unfinished.isIdempotent()
+          && unfinished.isRepeatable()
+          && unfinished.retry()) {
+        waiting.addFirst(unfinished);
+        unfinished = null;
+      }
+      if (!waiting.isEmpty() && connections < maxConnections) {
+        connections++;
+        connect = true;
+      }
+    }
+    if (unfinished != null) {
+      unfinished.responseHandler.failed(new IOException("Closed prematurely"));
+    }
+    if (connect) {
+      openConnection();
+    }
+  }
+
+  private final class StageFactory implements HttpClientHandler.HttpStageFactory {
+    @Override
+    public Stage create(
+        Pipeline pipeline, String applicationProtocol, ByteBuffer inputBuffer, ByteBuffer outputBuffer) {
+      return new HttpClientStage(
+          pipeline, Http1Origin.this, sslParameters == null, inputBuffer, outputBuffer);
+    }
+
+    @Override
+    public void connectFailed(IOException e) {
+      connectionFailed(e);
+    }
+  }
+}
@@ -0,0 +1,990 @@
+package de.ofahrt.catfish.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import de.ofahrt.catfish.http2.ErrorCode;
+import de.ofahrt.catfish.http2.FrameType;
+import de.ofahrt.catfish.http2.Frames;
+import de.ofahrt.catfish.http2.HpackDecoder;
+import de.ofahrt.catfish.http2.HpackEncoder;
+import de.ofahrt.catfish.http2.Http2Exception;
+import de.ofahrt.catfish.http2.Setting;
+import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
+import de.ofahrt.catfish.internal.network.Stage;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpRequest.InMemoryBody;
+import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpStatusCode;
+import de.ofahrt.catfish.model.MalformedResponseException;
+import de.ofahrt.catfish.model.SimpleHttpResponse;
+import de.ofahrt.catfish.model.network.Connection;
+
+/**
+ * The client side of an HTTP/2 connection (RFC 9113). Every request is sent on its own stream, so
+ * any number of requests can share the connection, up to the server's concurrent stream limit;
+ * requests beyond that limit wait for a stream to complete. Responses are passed to the response
+ * handler as they arrive; while the handler is not ready, we stop extending the stream's receive
+ * window, so the server stops sending on that stream.
+ *
+ * <p>All state is owned by the network thread, so requests have to be submitted from there, using
+ * {@link Pipeline#queue}. Server push is disabled, and response trailers are dropped.
+ */
+final class Http2ClientStage implements Stage {
+  /** Called on the network thread once the connection stops accepting new streams. */
+  interface ConnectionListener {
+    /**
+     * Called at most once per connection. The server has not processed any of the given requests,
+     * so they can safely be sent again on another connection.
+     */
+    void closed(Http2ClientStage stage, List<PendingRequest> unprocessed);
+  }
+
+  // Header blocks are buffered until they are complete; larger blocks close the connection.
+  private static final int MAX_HEADER_BLOCK_SIZE = 1 << 18;
+  // We accept frames of the default size, and do not advertise a larger one.
+  private static final int MAX_FRAME_SIZE = Frames.DEFAULT_MAX_FRAME_SIZE;
+  // Receive windows. We use larger windows than the defaults, which saves WINDOW_UPDATE round trips
+  // on large responses. The connection window is acknowledged as data arrives, so a slow stream
+  // does not hold up the others.
+  private static final int STREAM_WINDOW = 1 << 20;
+  private static final int CONNECTION_WINDOW = 1 << 24;
+  // Don't write tiny DATA frames at the end of an almost full buffer.
+  private static final int MIN_FRAME_SIZE = 1024;
+
+  // Results of writing a stream.
+  private static final int NO_SPACE = -1;
+  private static final int NO_PROGRESS = 0;
+  private static final int PROGRESS = 1;
+
+  private static final class Stream {
+    private final int id;
+    private final PendingRequest request;
+    // The part of the request body that is not sent yet, or null.
+    private ByteBuffer body;
+    private int sendWindow;
+    private boolean scheduled;
+    private int receiveWindow = STREAM_WINDOW;
+    private int consumedBytes;
+    // Set once the final (non-informational) response headers are received.
+    private boolean headersReceived;
+    // Set while the window update waits for the response handler to become ready.
+    private boolean waitingForHandler;
+    private boolean closed;
+
+    Stream(int id, PendingRequest request, int sendWindow) {
+      this.id = id;
+      this.request = request;
+      this.sendWindow = sendWindow;
+    }
+  }
+
+  private final Pipeline parent;
+  private final String scheme;
+  private final ConnectionListener connectionListener;
+  private final ByteBuffer inputBuffer;
+  private final ByteBuffer outputBuffer;
+  private final HpackDecoder decoder = new HpackDecoder();
+  private final HpackEncoder encoder = new HpackEncoder();
+  private final Map<Integer, Stream> streams = new HashMap<>();
+  private final ArrayDeque<Stream> readyStreams = new ArrayDeque<>();
+  private final ArrayDeque<PendingRequest> pendingRequests = new ArrayDeque<>();
+  private final ArrayDeque<byte[]> controlFrames = new ArrayDeque<>();
+
+  private boolean settingsReceived;
+  private int nextStreamId = 1;
+
+  // A frame that is split across reads.
+  private final byte[] partialFrame = new byte[Frames.HEADER_LENGTH + MAX_FRAME_SIZE];
+  private int partialFrameLength;
+
+  // An incoming header block that continues in CONTINUATION frames.
+  private ByteArrayOutputStream incomingHeaderBlock;
+  private int incomingHeaderStreamId;
+  private boolean incomingHeaderEndStream;
+
+  // An outgoing header block that did not fit into the output buffer.
+  private byte[] outgoingHeaderBlock;
+  private int outgoingHeaderOffset;
+  private Stream outgoingHeaderStream;
+  private boolean outgoingHeaderEndStream;
+
+  private int peerInitialWindowSize = Setting.SETTINGS_INITIAL_WINDOW_SIZE.getInitialValue();
+  private int peerMaxFrameSize = Setting.SETTINGS_MAX_FRAME_SIZE.getInitialValue();
+  // The limit is unlimited until the server says otherwise, but servers refuse streams above
+  // their limit, so we assume the lowest recommended limit until we see the server's SETTINGS
+  // frame (RFC 9113 section 6.5.2).
+  private int peerMaxConcurrentStreams = 100;
+  private int connectionSendWindow = Setting.SETTINGS_INITIAL_WINDOW_SIZE.getInitialValue();
+  private int connectionReceiveWindow = Setting.SETTINGS_INITIAL_WINDOW_SIZE.getInitialValue();
+  private int connectionConsumedBytes;
+
+  // Set once we don't start new streams anymore; we close when the existing ones are complete.
+  private boolean goingAway;
+  // Set after a connection error; we close as soon as the GOAWAY frame is sent.
+  private boolean closing;
+
+  Http2ClientStage(
+      Pipeline parent,
+      String scheme,
+      ConnectionListener connectionListener,
+      ByteBuffer inputBuffer,
+      ByteBuffer outputBuffer) {
+    this.parent = parent;
+    this.scheme = scheme;
+    this.connectionListener = connectionListener;
+    this.inputBuffer = inputBuffer;
+    this.outputBuffer = outputBuffer;
+  }
+
+  @Override
+  public InitialConnectionState connect(Connection connection) {
+    // The client connection preface.
+    controlFrames.add(Frames.CONNECTION_PREFACE);
+    controlFrames.add(Frames.settings(
+        Setting.SETTINGS_ENABLE_PUSH.getId(), 0,
+        Setting.SETTINGS_INITIAL_WINDOW_SIZE.getId(), STREAM_WINDOW));
+    controlFrames.add(Frames.windowUpdate(0, CONNECTION_WINDOW - connectionReceiveWindow));
+    connectionReceiveWindow = CONNECTION_WINDOW;
+    return InitialConnectionState.READ_AND_WRITE;
+  }
+
+  /**
+   * Sends the given request on a new stream; must be called on the network thread. Returns false
+   * if the connection does not accept new streams anymore, in which case the caller still owns the
+   * request.
+   */
+  boolean submit(PendingRequest request) {
+    if (goingAway || closing) {
+      return false;
+    }
+    if (request.request.getHeaders().containsKey(HttpHeaderName.TRANSFER_ENCODING)) {
+      // HTTP/2 has its own framing, and we don't know how the given body is encoded.
+      request.responseHandler.failed(
+          new IOException("Transfer-Encoding is not supported over HTTP/2"));
+      return true;
+    }
+    pendingRequests.add(request);
+    parent.encourageWrites();
+    return true;
+  }
+
+  @Override
+  public ConnectionControl read() {
+    if (closing) {
+      inputBuffer.position(inputBuffer.limit());
+      return ConnectionControl.CLOSE_INPUT;
+    }
+    try {
+      // Process everything that's buffered: a TLS stage below us does not call us again for data
+      // that it already decrypted.
+      while (inputBuffer.hasRemaining() && !closing) {
+        if (!readFrame()) {
+          break;
+        }
+      }
+      return closing ? ConnectionControl.CLOSE_INPUT : ConnectionControl.NEED_MORE_DATA;
+    } catch (Http2Exception e) {
+      connectionError(e);
+      return ConnectionControl.CLOSE_INPUT;
+    } finally {
+      if (hasPendingOutput() || isDone()) {
+        parent.encourageWrites();
+      }
+    }
+  }
+
+  /** Consumes and processes one frame; returns false if the frame is incomplete. */
+  private boolean readFrame() throws Http2Exception {
+    byte[] data;
+    int offset;
+    if (partialFrameLength == 0 && containsCompleteFrame()) {
+      data = inputBuffer.array();
+      offset = inputBuffer.position();
+      inputBuffer.position(offset + Frames.HEADER_LENGTH + Frames.getLength(data, offset));
+    } else {
+      int needed = partialFrameLength < Frames.HEADER_LENGTH
+          ? Frames.HEADER_LENGTH - partialFrameLength
+          : Frames.HEADER_LENGTH + Frames.getLength(partialFrame, 0) - partialFrameLength;
+      int length = Math.min(needed, inputBuffer.remaining());
+      inputBuffer.get(partialFrame, partialFrameLength, length);
+      partialFrameLength += length;
+      if (partialFrameLength < Frames.HEADER_LENGTH) {
+        return false;
+      }
+      checkFrameLength(partialFrame, 0);
+      if (partialFrameLength < Frames.HEADER_LENGTH + Frames.getLength(partialFrame, 0)) {
+        // The header may have been completed just now, so try again for the payload.
+        return inputBuffer.hasRemaining();
+      }
+      data = partialFrame;
+      offset = 0;
+      partialFrameLength = 0;
+    }
+    int length = Frames.getLength(data, offset);
+    int type = Frames.getType(data, offset);
+    int flags = Frames.getFlags(data, offset);
+    int streamId = Frames.getStreamId(data, offset);
+    try {
+      processFrame(type, flags, streamId, data, offset + Frames.HEADER_LENGTH, length);
+    } catch (Http2Exception e) {
+      if (e.isConnectionError()) {
+        throw e;
+      }
+      parent.log("Stream error %d: %s", Integer.valueOf(e.getErrorCode()), e.getMessage());
+      resetStream(e.getStreamId(), e);
+    }
+    return true;
+  }
+
+  private boolean containsCompleteFrame() throws Http2Exception {
+    if (inputBuffer.remaining() < Frames.HEADER_LENGTH) {
+      return false;
+    }
+    checkFrameLength(inputBuffer.array(), inputBuffer.position());
+    int length = Frames.getLength(inputBuffer.array(), inputBuffer.position());
+    return inputBuffer.remaining() >= Frames.HEADER_LENGTH + length;
+  }
+
+  private static void checkFrameLength(byte[] data, int offset) throws Http2Exception {
+    int length = Frames.getLength(data, offset);
+    if (length > MAX_FRAME_SIZE) {
+      throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, String.format(
+          "Frame size %d exceeds the maximum of %d",
+          Integer.valueOf(length), Integer.valueOf(MAX_FRAME_SIZE)));
+    }
+  }
+
+  private void processFrame(int type, int flags, int streamId, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (incomingHeaderBlock != null
+        && (type != FrameType.CONTINUATION || streamId != incomingHeaderStreamId)) {
+      throw new Http2Exception(
+          ErrorCode.PROTOCOL_ERROR, "Expected CONTINUATION frame for stream " + incomingHeaderStreamId);
+    }
+    if (!settingsReceived && type != FrameType.SETTINGS) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Expected SETTINGS frame from server");
+    }
+    switch (type) {
+      case FrameType.DATA:
+        processData(flags, streamId, data, offset, length);
+        break;
+      case FrameType.HEADERS:
+        processHeaders(flags, streamId, data, offset, length);
+        break;
+      case FrameType.PRIORITY:
+        if (streamId == 0) {
+          throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "PRIORITY frame on stream 0");
+        }
+        if (length != Frames.PRIORITY_LENGTH) {
+          throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, streamId, "Illegal PRIORITY frame size");
+        }
+        // We don't support priorities.
+        break;
+      case FrameType.RST_STREAM:
+        processRstStream(streamId, data, offset, length);
+        break;
+      case FrameType.SETTINGS:
+        processSettings(flags, streamId, data, offset, length);
+        break;
+      case FrameType.PUSH_PROMISE:
+        // We disabled server push in our SETTINGS frame.
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Server push is disabled");
+      case FrameType.PING:
+        processPing(flags, streamId, data, offset, length);
+        break;
+      case FrameType.GOAWAY:
+        processGoAway(streamId, data, offset, length);
+        break;
+      case FrameType.WINDOW_UPDATE:
+        processWindowUpdate(streamId, data, offset, length);
+        break;
+      case FrameType.CONTINUATION:
+        if (incomingHeaderBlock == null) {
+          throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+        }
+        appendHeaderFragment(flags, data, offset, length);
+        break;
+      default:
+        // Frames of unknown types must be ignored.
+        break;
+    }
+  }
+
+  /** Returns the open stream with the given id, or null if the stream was already closed. */
+  private Stream getStream(int streamId, String frameType) throws Http2Exception {
+    if (streamId == 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, frameType + " frame on stream 0");
+    }
+    if ((streamId & 1) == 0 || streamId >= nextStreamId) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, frameType + " frame on idle stream " + streamId);
+    }
+    // We may have reset the stream, and the server has not seen the RST_STREAM frame yet.
+    return streams.get(Integer.valueOf(streamId));
+  }
+
+  private void processData(int flags, int streamId, byte[] data, int offset, int frameLength)
+      throws Http2Exception {
+    Stream stream = getStream(streamId, "DATA");
+    // Flow control applies to the entire frame, including the padding.
+    connectionReceiveWindow -= frameLength;
+    if (connectionReceiveWindow < 0) {
+      throw new Http2Exception(ErrorCode.FLOW_CONTROL_ERROR, "Connection window exceeded");
+    }
+    // The connection window is always acknowledged right away; only the stream window waits for
+    // the response handler.
+    connectionConsumedBytes += frameLength;
+    if (connectionConsumedBytes >= CONNECTION_WINDOW / 2) {
+      controlFrames.add(Frames.windowUpdate(0, connectionConsumedBytes));
+      connectionReceiveWindow += connectionConsumedBytes;
+      connectionConsumedBytes = 0;
+    }
+    int length = frameLength;
+    if ((flags & Frames.FLAG_PADDED) != 0) {
+      int padding = length == 0 ? -1 : data[offset] & 0xff;
+      if (padding < 0 || padding >= length) {
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Padding exceeds the frame size");
+      }
+      offset++;
+      length -= padding + 1;
+    }
+    if (stream == null) {
+      return;
+    }
+    if (!stream.headersReceived) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, streamId, "DATA frame before response headers");
+    }
+    stream.receiveWindow -= frameLength;
+    if (stream.receiveWindow < 0) {
+      throw new Http2Exception(ErrorCode.FLOW_CONTROL_ERROR, streamId, "Stream window exceeded");
+    }
+    if (length > 0) {
+      try {
+        stream.request.responseHandler.body(ByteBuffer.wrap(data, offset, length));
+      } catch (IOException | RuntimeException e) {
+        controlFrames.add(Frames.rstStream(stream.id, ErrorCode.CANCEL));
+        closeStream(stream);
+        stream.request.responseHandler.failed(e);
+        return;
+      }
+    }
+    if ((flags & Frames.FLAG_END_STREAM) != 0) {
+      completeResponse(stream);
+      return;
+    }
+    stream.consumedBytes += frameLength;
+    updateStreamWindow(stream);
+  }
+
+  /**
+   * Extends the receive window of the given stream if enough of it is used up, unless the response
+   * handler is not ready; in that case, we try again once it is.
+   */
+  private void updateStreamWindow(Stream stream) {
+    if (stream.waitingForHandler) {
+      return;
+    }
+    StreamingResponseHandler handler = stream.request.responseHandler;
+    if (!handler.isReady()) {
+      stream.waitingForHandler = true;
+      handler.whenReady(() -> parent.queue(() -> resumeStream(stream)));
+      return;
+    }
+    if (stream.consumedBytes >= STREAM_WINDOW / 2) {
+      controlFrames.add(Frames.windowUpdate(stream.id, stream.consumedBytes));
+      stream.receiveWindow += stream.consumedBytes;
+      stream.consumedBytes = 0;
+    }
+  }
+
+  private void resumeStream(Stream stream) {
+    stream.waitingForHandler = false;
+    if (stream.closed || closing) {
+      return;
+    }
+    updateStreamWindow(stream);
+    if (!controlFrames.isEmpty()) {
+      parent.encourageWrites();
+    }
+  }
+
+  private void processHeaders(int flags, int streamId, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (streamId == 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "HEADERS frame on stream 0");
+    }
+    int padding = 0;
+    if ((flags & Frames.FLAG_PADDED) != 0) {
+      if (length == 0) {
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Padding exceeds the frame size");
+      }
+      padding = data[offset] & 0xff;
+      offset++;
+      length--;
+    }
+    if ((flags & Frames.FLAG_PRIORITY) != 0) {
+      if (length < Frames.PRIORITY_LENGTH) {
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "HEADERS frame too short for priority");
+      }
+      offset += Frames.PRIORITY_LENGTH;
+      length -= Frames.PRIORITY_LENGTH;
+    }
+    if (padding > length) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Padding exceeds the frame size");
+    }
+    length -= padding;
+    incomingHeaderBlock = new ByteArrayOutputStream(length);
+    incomingHeaderStreamId = streamId;
+    incomingHeaderEndStream = (flags & Frames.FLAG_END_STREAM) != 0;
+    appendHeaderFragment(flags, data, offset, length);
+  }
+
+  private void appendHeaderFragment(int flags, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (incomingHeaderBlock.size() + length > MAX_HEADER_BLOCK_SIZE) {
+      throw new Http2Exception(ErrorCode.ENHANCE_YOUR_CALM, "Header block too large");
+    }
+    incomingHeaderBlock.write(data, offset, length);
+    if ((flags & Frames.FLAG_END_HEADERS) != 0) {
+      byte[] block = incomingHeaderBlock.toByteArray();
+      incomingHeaderBlock = null;
+      processHeaderBlock(incomingHeaderStreamId, block, incomingHeaderEndStream);
+    }
+  }
+
+  private void processHeaderBlock(int streamId, byte[] block, boolean endStream) throws Http2Exception {
+    // Always decode the block to keep the dynamic table in sync, even if we ignore the stream.
+    List<String[]> fields = new ArrayList<>();
+    decoder.decode(block, 0, block.length, (name, value) -> fields.add(new String[] { name, value }));
+    Stream stream = getStream(streamId, "HEADERS");
+    if (stream == null) {
+      return;
+    }
+    if (stream.headersReceived) {
+      if (!endStream) {
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, streamId, "Trailers must end the stream");
+      }
+      // Trailers are not passed on to the response handler.
+      completeResponse(stream);
+      return;
+    }
+    // RFC 9113 section 8.3.2.
+    SimpleHttpResponse.Builder builder = new SimpleHttpResponse.Builder();
+    int statusCode = -1;
+    boolean regularFieldSeen = false;
+    for (String[] field : fields) {
+      String name = field[0];
+      String value = field[1];
+      if (name.startsWith(":")) {
+        if (regularFieldSeen || !":status".equals(name) || statusCode >= 0) {
+          throw malformed(stream, "Illegal pseudo-header field " + name);
+        }
+        statusCode = parseStatusCode(stream, value);
+        continue;
+      }
+      regularFieldSeen = true;
+      if (!name.equals(name.toLowerCase(Locale.US))) {
+        throw malformed(stream, "Upper-case header field name " + name);
+      }
+      try {
+        builder.addHeader(name, value);
+      } catch (IllegalArgumentException e) {
+        throw malformed(stream, e.getMessage());
+      }
+    }
+    if (statusCode < 0) {
+      throw malformed(stream, "Missing :status pseudo-header field");
+    }
+    if (statusCode / 100 == 1) {
+      // Informational responses are followed by the final response.
+      if (endStream) {
+        throw malformed(stream, "Informational response must not end the stream");
+      }
+      return;
+    }
+    builder.setMajorVersion(2);
+    builder.setMinorVersion(0);
+    builder.setStatusCode(statusCode);
+    builder.setReasonPhrase(HttpStatusCode.getStatusMessage(statusCode));
+    HttpResponse response;
+    try {
+      response = builder.build();
+    } catch (MalformedResponseException e) {
+      throw malformed(stream, e.getMessage());
+    }
+    stream.headersReceived = true;
+    parent.log("%d (stream %d)", Integer.valueOf(statusCode), Integer.valueOf(stream.id));
+    stream.request.responseHandler.headers(response);
+    if (endStream) {
+      completeResponse(stream);
+    }
+  }
+
+  private static int parseStatusCode(Stream stream, String value) throws Http2Exception {
+    if (value.length() != 3) {
+      throw malformed(stream, "Illegal status code " + value);
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw malformed(stream, "Illegal status code " + value);
+    }
+  }
+
+  private static Http2Exception malformed(Stream stream, String message) {
+    return new Http2Exception(ErrorCode.PROTOCOL_ERROR, stream.id, message);
+  }
+
+  private void completeResponse(Stream stream) {
+    if (stream.body != null) {
+      // The server does not need the rest of the request body (RFC 9113 section 8.1).
+      controlFrames.add(Frames.rstStream(stream.id, ErrorCode.NO_ERROR));
+    }
+    closeStream(stream);
+    stream.request.responseHandler.done();
+  }
+
+  private void processRstStream(int streamId, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (length != Frames.RST_STREAM_LENGTH) {
+      throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, "Illegal RST_STREAM frame size");
+    }
+    Stream stream = getStream(streamId, "RST_STREAM");
+    if (stream != null) {
+      int errorCode = Frames.getInt(data, offset);
+      parent.log("Stream %d reset by server: %d", Integer.valueOf(streamId), Integer.valueOf(errorCode));
+      closeStream(stream);
+      if (errorCode == ErrorCode.REFUSED_STREAM && !goingAway && stream.request.retry()) {
+        // The server did not process the request, so we can send it again (RFC 9113 section 8.7).
+        pendingRequests.addFirst(stream.request);
+        return;
+      }
+      stream.request.responseHandler.failed(
+          new Http2Exception(errorCode, streamId, "Stream reset by server"));
+    }
+  }
+
+  private void processSettings(int flags, int streamId, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (streamId != 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "SETTINGS frame on stream " + streamId);
+    }
+    if ((flags & Frames.FLAG_ACK) != 0) {
+      if (length != 0) {
+        throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, "SETTINGS acknowledgement with payload");
+      }
+      return;
+    }
+    if (length % Frames.SETTING_LENGTH != 0) {
+      throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, "Illegal SETTINGS frame size");
+    }
+    for (int i = offset; i < offset + length; i += Frames.SETTING_LENGTH) {
+      Setting setting = Setting.forId(((data[i] & 0xff) << 8) | (data[i + 1] & 0xff));
+      int value = Frames.getInt(data, i + 2);
+      if (setting == null) {
+        // Unknown settings must be ignored.
+        continue;
+      }
+      switch (setting) {
+        case SETTINGS_HEADER_TABLE_SIZE:
+          encoder.setMaxHeaderTableSize(value < 0 ? Integer.MAX_VALUE : value);
+          break;
+        case SETTINGS_ENABLE_PUSH:
+          if (value != 0) {
+            throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Servers must not enable push");
+          }
+          break;
+        case SETTINGS_MAX_CONCURRENT_STREAMS:
+          // Streams that are already open stay open, but we don't start new ones until enough
+          // of them are closed.
+          peerMaxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+          break;
+        case SETTINGS_INITIAL_WINDOW_SIZE:
+          if (value < 0) {
+            throw new Http2Exception(ErrorCode.FLOW_CONTROL_ERROR, "Initial window size too large");
+          }
+          int delta = value - peerInitialWindowSize;
+          peerInitialWindowSize = value;
+          for (Stream stream : streams.values()) {
+            if ((long) stream.sendWindow + delta > Frames.MAX_WINDOW_SIZE) {
+              throw new Http2Exception(ErrorCode.FLOW_CONTROL_ERROR, "Stream window too large");
+            }
+            stream.sendWindow += delta;
+            schedule(stream);
+          }
+          break;
+        case SETTINGS_MAX_FRAME_SIZE:
+          if (value < Frames.DEFAULT_MAX_FRAME_SIZE || value > Frames.MAX_MAX_FRAME_SIZE) {
+            throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Illegal SETTINGS_MAX_FRAME_SIZE value");
+          }
+          peerMaxFrameSize = value;
+          break;
+        default:
+          // The header list size is advisory.
+          break;
+      }
+    }
+    settingsReceived = true;
+    controlFrames.add(Frames.settingsAck());
+  }
+
+  private void processPing(int flags, int streamId, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (streamId != 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "PING frame on stream " + streamId);
+    }
+    if (length != Frames.PING_LENGTH) {
+      throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, "Illegal PING frame size");
+    }
+    if ((flags & Frames.FLAG_ACK) == 0) {
+      controlFrames.add(Frames.ping(data, offset, true));
+    }
+  }
+
+  private void processGoAway(int streamId, byte[] data, int offset, int length) throws Http2Exception {
+    if (streamId != 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "GOAWAY frame on stream " + streamId);
+    }
+    if (length < 8) {
+      throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, "Illegal GOAWAY frame size");
+    }
+    int lastStreamId = Frames.getInt(data, offset) & 0x7fffffff;
+    parent.log("GOAWAY from server: last stream %d, error %d",
+        Integer.valueOf(lastStreamId), Integer.valueOf(Frames.getInt(data, offset + 4)));
+    // The server did not process any of the streams above the last stream id, and never will.
+    List<PendingRequest> unprocessed = new ArrayList<>();
+    for (Stream stream : new ArrayList<>(streams.values())) {
+      if (stream.id > lastStreamId) {
+        closeStream(stream);
+        unprocessed.add(stream.request);
+      }
+    }
+    stopAcceptingStreams(unprocessed);
+  }
+
+  private void processWindowUpdate(int streamId, byte[] data, int offset, int length)
+      throws Http2Exception {
+    if (length != Frames.WINDOW_UPDATE_LENGTH) {
+      throw new Http2Exception(ErrorCode.FRAME_SIZE_ERROR, "Illegal WINDOW_UPDATE frame size");
+    }
+    int increment = Frames.getInt(data, offset) & 0x7fffffff;
+    if (streamId == 0) {
+      if (increment == 0) {
+        throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, "Window increment must be positive");
+      }
+      if ((long) connectionSendWindow + increment > Frames.MAX_WINDOW_SIZE) {
+        throw new Http2Exception(ErrorCode.FLOW_CONTROL_ERROR, "Connection window too large");
+      }
+      connectionSendWindow += increment;
+      for (Stream stream : streams.values()) {
+        schedule(stream);
+      }
+      return;
+    }
+    Stream stream = getStream(streamId, "WINDOW_UPDATE");
+    if (stream == null) {
+      return;
+    }
+    if (increment == 0) {
+      throw new Http2Exception(ErrorCode.PROTOCOL_ERROR, streamId, "Window increment must be positive");
+    }
+    if ((long) stream.sendWindow + increment > Frames.MAX_WINDOW_SIZE) {
+      throw new Http2Exception(ErrorCode.FLOW_CONTROL_ERROR, streamId, "Stream window too large");
+    }
+    stream.sendWindow += increment;
+    schedule(stream);
+  }
+
+  /**
+   * Fails the given stream after its request was cancelled. Only the stream is reset, so that the
+   * other streams on the connection are not affected.
+   */
+  private void cancelStream(Stream stream, Exception e) {
+    if (!stream.closed && !closing) {
+      parent.log("Stream %d cancelled", Integer.valueOf(stream.id));
+      controlFrames.add(Frames.rstStream(stream.id, ErrorCode.CANCEL));
+      closeStream(stream);
+      parent.encourageWrites();
+    }
+    stream.request.responseHandler.failed(e);
+  }
+
+  private void resetStream(int streamId, Http2Exception e) {
+    controlFrames.add(Frames.rstStream(streamId, e.getErrorCode()));
+    Stream stream = streams.get(Integer.valueOf(streamId));
+    if (stream != null) {
+      closeStream(stream);
+      stream.request.responseHandler.failed(e);
+    }
+  }
+
+  private void connectionError(Http2Exception e) {
+    if (closing) {
+      return;
+    }
+    parent.log("Connection error %d: %s", Integer.valueOf(e.getErrorCode()), e.getMessage());
+    closing = true;
+    for (Stream stream : new ArrayList<>(streams.values())) {
+      closeStream(stream);
+      stream.request.responseHandler.failed(e);
+    }
+    readyStreams.clear();
+    // The server cannot open streams, so the last stream id is always zero.
+    controlFrames.add(Frames.goAway(0, e.getErrorCode(), e.getMessage()));
+    stopAcceptingStreams(new ArrayList<>());
+  }
+
+  /**
+   * Hands the given requests and all requests that don't have a stream yet back to the connection
+   * listener, unless we already did that.
+   */
+  private void stopAcceptingStreams(List<PendingRequest> unprocessed) {
+    if (goingAway) {
+      return;
+    }
+    goingAway = true;
+    unprocessed.addAll(pendingRequests);
+    pendingRequests.clear();
+    if (!settingsReceived) {
+      // The connection never worked, so another connection is unlikely to do better.
+      IOException e = new IOException("Connection failed before the HTTP/2 handshake completed");
+      for (PendingRequest request : unprocessed) {
+        request.responseHandler.failed(e);
+      }
+      unprocessed.clear();
+    }
+    connectionListener.closed(this, unprocessed);
+  }
+
+  private void closeStream(Stream stream) {
+    stream.closed = true;
+    stream.body = null;
+    streams.remove(Integer.valueOf(stream.id));
+  }
+
+  private void schedule(Stream stream) {
+    if (!stream.scheduled && !stream.closed && stream.body != null) {
+      stream.scheduled = true;
+      readyStreams.add(stream);
+    }
+  }
+
+  private boolean canStartStream() {
+    return !pendingRequests.isEmpty() && !goingAway && streams.size() < peerMaxConcurrentStreams;
+  }
+
+  private boolean hasPendingOutput() {
+    return !controlFrames.isEmpty()
+        || outgoingHeaderBlock != null
+        || !readyStreams.isEmpty()
+        || canStartStream();
+  }
+
+  /** Returns true if we can close the connection once all output is written. */
+  private boolean isDone() {
+    return closing || (goingAway && streams.isEmpty());
+  }
+
+  @Override
+  public void inputClosed() {
+    failStreams(new IOException("Connection closed by server"));
+    parent.close();
+  }
+
+  @Override
+  public ConnectionControl write() {
+    outputBuffer.compact(); // prepare buffer for writing
+    writeFrames();
+    outputBuffer.flip(); // prepare buffer for reading
+    if (isDone()) {
+      if (controlFrames.isEmpty() && outgoingHeaderBlock == null) {
+        return ConnectionControl.CLOSE_CONNECTION_AFTER_FLUSH;
+      }
+      return ConnectionControl.CONTINUE;
+    }
+    return hasPendingOutput() ? ConnectionControl.CONTINUE : ConnectionControl.PAUSE;
+  }
+
+  private void writeFrames() {
+    while (true) {
+      if (outgoingHeaderBlock != null) {
+        if (!writeHeaderFragment()) {
+          return;
+        }
+        continue;
+      }
+      if (!controlFrames.isEmpty()) {
+        byte[] frame = controlFrames.peek();
+        if (frame.length > outputBuffer.remaining()) {
+          return;
+        }
+        outputBuffer.put(controlFrames.poll());
+        continue;
+      }
+      if (closing) {
+        return;
+      }
+      if (canStartStream()) {
+        PendingRequest request = pendingRequests.poll();
+        if (!request.isCancelled()) {
+          startStream(request);
+        }
+        continue;
+      }
+      Stream stream = readyStreams.peek();
+      if (stream == null) {
+        return;
+      }
+      int result = stream.closed ? NO_PROGRESS : writeData(stream);
+      if (result == NO_SPACE) {
+        return;
+      }
+      readyStreams.poll();
+      stream.scheduled = false;
+      if (result == PROGRESS) {
+        // Round robin: let the other streams go first.
+        schedule(stream);
+      }
+    }
+  }
+
+  private void startStream(PendingRequest request) {
+    // Stream ids have to increase in the order in which the HEADERS frames are sent, so we only
+    // assign them here.
+    Stream stream = new Stream(nextStreamId, request, peerInitialWindowSize);
+    nextStreamId += 2;
+    streams.put(Integer.valueOf(stream.id), stream);
+    HttpRequest httpRequest = request.request;
+    byte[] body = httpRequest.getHeaders().containsKey(HttpHeaderName.CONTENT_LENGTH)
+        ? ((InMemoryBody) httpRequest.getBody()).toByteArray()
+        : null;
+    if (body != null && body.length > 0) {
+      stream.body = ByteBuffer.wrap(body);
+    }
+    parent.log("%s %s (stream %d)",
+        httpRequest.getMethod(), httpRequest.getUri(), Integer.valueOf(stream.id));
+    request.attach(e -> parent.queue(() -> cancelStream(stream, e)));
+    startHeaderBlock(stream, requestFields(httpRequest), stream.body == null);
+    schedule(stream);
+    if (nextStreamId < 0) {
+      // We ran out of stream ids; the remaining requests need a new connection.
+      stopAcceptingStreams(new ArrayList<>());
+    }
+  }
+
+  private int writeData(Stream stream) {
+    int space = outputBuffer.remaining() - Frames.HEADER_LENGTH;
+    if (space <= 0 || (space < MIN_FRAME_SIZE && outputBuffer.position() > 0)) {
+      return NO_SPACE;
+    }
+    int length = Math.min(
+        Math.min(stream.sendWindow, connectionSendWindow),
+        Math.min(Math.min(peerMaxFrameSize, space), stream.body.remaining()));
+    if (length <= 0) {
+      // Blocked on flow control; a WINDOW_UPDATE frame schedules the stream again.
+      return NO_PROGRESS;
+    }
+    boolean last = length == stream.body.remaining();
+    Frames.writeHeader(
+        outputBuffer, length, FrameType.DATA, last ? Frames.FLAG_END_STREAM : 0, stream.id);
+    ByteBuffer slice = stream.body.duplicate();
+    slice.limit(slice.position() + length);
+    outputBuffer.put(slice);
+    stream.body.position(stream.body.position() + length);
+    stream.sendWindow -= length;
+    connectionSendWindow -= length;
+    if (last) {
+      stream.body = null;
+    }
+    return PROGRESS;
+  }
+
+  private static Map.Entry<String, String> field(String name, String value) {
+    return new AbstractMap.SimpleImmutableEntry<>(name, value);
+  }
+
+  // RFC 9113 section 8.3.1.
+  private List<Map.Entry<String, String>> requestFields(HttpRequest request) {
+    List<Map.Entry<String, String>> fields = new ArrayList<>();
+    fields.add(field(":method", request.getMethod()));
+    fields.add(field(":scheme", scheme));
+    String authority = request.getHeaders().get(HttpHeaderName.HOST);
+    if (authority != null) {
+      fields.add(field(":authority", authority));
+    }
+    fields.add(field(":path", request.getUri()));
+    for (Map.Entry<String, String> header : request.getHeaders()) {
+      String name = header.getKey().toLowerCase(Locale.US);
+      if ("host".equals(name) || isConnectionSpecific(name)) {
+        continue;
+      }
+      if ("te".equals(name) && !"trailers".equalsIgnoreCase(header.getValue())) {
+        continue;
+      }
+      fields.add(field(name, header.getValue()));
+    }
+    return fields;
+  }
+
+  private static boolean isConnectionSpecific(String name) {
+    return "connection".equals(name)
+        || "keep-alive".equals(name)
+        || "proxy-connection".equals(name)
+        || "transfer-encoding".equals(name)
+        || "upgrade".equals(name);
+  }
+
+  private void startHeaderBlock(Stream stream, List<Map.Entry<String, String>> fields, boolean endStream) {
+    // We encode the block right before sending it, since the peer decodes in the same order.
+    outgoingHeaderBlock = encoder.encode(fields);
+    outgoingHeaderOffset = 0;
+    outgoingHeaderStream = stream;
+    outgoingHeaderEndStream = endStream;
+  }
+
+  private boolean writeHeaderFragment() {
+    int remaining = outgoingHeaderBlock.length - outgoingHeaderOffset;
+    int space = outputBuffer.remaining() - Frames.HEADER_LENGTH;
+    if (space < Math.min(remaining, MIN_FRAME_SIZE) || space <= 0) {
+      return false;
+    }
+    int length = Math.min(remaining, Math.min(space, peerMaxFrameSize));
+    boolean first = outgoingHeaderOffset == 0;
+    boolean last = length == remaining;
+    int flags = (last ? Frames.FLAG_END_HEADERS : 0)
+        | (first && outgoingHeaderEndStream ? Frames.FLAG_END_STREAM : 0);
+    Frames.writeHeader(
+        outputBuffer, length, first ? FrameType.HEADERS : FrameType.CONTINUATION, flags,
+        outgoingHeaderStream.id);
+    outputBuffer.put(outgoingHeaderBlock, outgoingHeaderOffset, length);
+    outgoingHeaderOffset += length;
+    if (last) {
+      outgoingHeaderBlock = null;
+      outgoingHeaderStream = null;
+    }
+    return true;
+  }
+
+  /** Fails all open streams, and hands the requests without a stream back to the listener. */
+  private void failStreams(IOException e) {
+    for (Stream stream : new ArrayList<>(streams.values())) {
+      closeStream(stream);
+      stream.request.responseHandler.failed(e);
+    }
+    readyStreams.clear();
+    stopAcceptingStreams(new ArrayList<>());
+  }
+
+  @Override
+  public void close() {
+    failStreams(new IOException("Connection closed"));
+  }
+}
@@ -0,0 +1,163 @@
+package de.ofahrt.catfish.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
+import de.ofahrt.catfish.internal.network.Stage;
+
+/**
+ * Sends all requests to one origin over a single HTTP/2 connection, which is negotiated with ALPN
+ * when the first request is sent. If the server does not support HTTP/2, all requests go to the
+ * HTTP/1.1 connection pool instead, starting with the negotiated connection, or use one connection
+ * each if there is no pool. A new HTTP/2 connection is opened whenever the previous one closes.
+ */
+final class Http2Origin {
+  static final String HTTP_2 = "h2";
+  // In order of preference, as offered to servers in the TLS handshake.
+  private static final String[] APPLICATION_PROTOCOLS = { HTTP_2, "http/1.1" };
+
+  private final Connector connector;
+  private final SSLContext sslContext;
+  private final SSLParameters sslParameters;
+  // Null if HTTP/1.1 connections are not reused.
+  private final Http1Origin http1Origin;
+
+  // All guarded by this.
+  private Http2ClientStage stage;
+  private Pipeline pipeline;
+  private boolean connecting;
+  private boolean http1Only;
+  private final List<PendingRequest> waiting = new ArrayList<>();
+
+  Http2Origin(
+      Connector connector,
+      SSLContext sslContext,
+      SSLParameters sslParameters,
+      Http1Origin http1Origin) {
+    this.connector = connector;
+    this.sslContext = sslContext;
+    this.sslParameters = sslParameters;
+    this.http1Origin = http1Origin;
+  }
+
+  /** Sends the given request without blocking. */
+  void send(PendingRequest request) {
+    Http2ClientStage currentStage = null;
+    Pipeline currentPipeline = null;
+    boolean useHttp1;
+    synchronized (this) {
+      useHttp1 = http1Only;
+      if (!useHttp1 && stage != null) {
+        currentStage = stage;
+        currentPipeline = pipeline;
+      } else if (!useHttp1) {
+        waiting.add(request);
+        if (connecting) {
+          return;
+        }
+        connecting = true;
+      }
+    }
+    if (currentStage != null) {
+      Http2ClientStage target = currentStage;
+      currentPipeline.queue(() -> {
+        if (!target.submit(request)) {
+          // The connection closed in the meantime.
+          send(request);
+        }
+      });
+    } else if (useHttp1 && http1Origin != null) {
+      http1Origin.send(request);
+    } else if (useHttp1) {
+      connector.connect(new HttpClientHandler(request, sslContext, sslParameters));
+    } else {
+      connector.connect(new HttpClientHandler(
+          new StageFactory(), sslContext, sslParameters, APPLICATION_PROTOCOLS));
+    }
+  }
+
+  private void failWaiting(Exception e) {
+    List<PendingRequest> failed;
+    synchronized (this) {
+      connecting = false;
+      failed = new ArrayList<>(waiting);
+      waiting.clear();
+    }
+    for (PendingRequest request : failed) {
+      request.responseHandler.failed(e);
+    }
+  }
+
+  private final class StageFactory
+      implements HttpClientHandler.HttpStageFactory, Http2ClientStage.ConnectionListener {
+    @Override
+    public Stage create(
+        @SuppressWarnings("hiding") Pipeline pipeline,
+        String applicationProtocol,
+        ByteBuffer inputBuffer,
+        ByteBuffer outputBuffer) {
+      List<PendingRequest> requests;
+      if (HTTP_2.equals(applicationProtocol)) {
+        Http2ClientStage newStage =
+            new Http2ClientStage(pipeline, "https", this, inputBuffer, outputBuffer);
+        synchronized (Http2Origin.this) {
+          stage = newStage;
+          Http2Origin.this.pipeline = pipeline;
+          connecting = false;
+          requests = new ArrayList<>(waiting);
+          waiting.clear();
+        }
+        for (PendingRequest request : requests) {
+          newStage.submit(request);
+        }
+        return newStage;
+      }
+      synchronized (Http2Origin.this) {
+        http1Only = true;
+        connecting = false;
+        requests = new ArrayList<>(waiting);
+        waiting.clear();
+      }
+      pipeline.log("Server does not support HTTP/2, falling back to HTTP/1.1");
+      // Everything but the first request needs a new connection.
+      for (int i = 1; i < requests.size(); i++) {
+        send(requests.get(i));
+      }
+      PendingRequest first = requests.get(0);
+      if (http1Origin != null) {
+        return http1Origin.adopt(pipeline, first, inputBuffer, outputBuffer);
+      }
+      // HTTP/2 is only negotiated over TLS, so zero-copy is out.
+      return new HttpClientStage(pipeline, first, /*zeroCopy=*/false, inputBuffer, outputBuffer);
+    }
+
+    @Override
+    public void connectFailed(IOException e) {
+      failWaiting(e);
+    }
+
+    @Override
+    public void closed(Http2ClientStage closedStage, List<PendingRequest> unprocessed) {
+      synchronized (Http2Origin.this) {
+        if (stage == closedStage) {
+          stage = null;
+          pipeline = null;
+        }
+      }
+      for (PendingRequest request : unprocessed) {
+        if (request.retry()) {
+          send(request);
+        } else {
+          request.responseHandler.failed(new IOException(
+              "Server did not process the request after " + request.attempts + " attempts"));
+        }
+      }
+    }
+  }
+}
@@ -1,28 +1,66 @@
 package de.ofahrt.catfish.client;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLParameters;
 
-import de.ofahrt.catfish.client.HttpClientStage.ResponseHandler;
 import de.ofahrt.catfish.internal.network.NetworkEngine.NetworkHandler;
 import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
 import de.ofahrt.catfish.internal.network.Stage;
-import de.ofahrt.catfish.model.HttpRequest;
 
 final class HttpClientHandler implements NetworkHandler {
-  private final HttpRequest request;
-  private final ResponseHandler responseHandler;
+  /** Creates the HTTP stage of a connection. */
+  interface HttpStageFactory {
+    /**
+     * Returns the stage for the given ALPN protocol, which is the empty string for plain
+     * connections, or if the server did not select one.
+     */
+    Stage create(Pipeline pipeline, String applicationProtocol, ByteBuffer inputBuffer, ByteBuffer outputBuffer);
+
+    /**
+     * Called instead of {@link #create} if the connection cannot be established, or closes during
+     * the TLS handshake.
+     */
+    void connectFailed(IOException e);
+  }
+
+  private final HttpStageFactory stageFactory;
   private final SSLContext sslContext;
   private final SSLParameters sslParameters;
+  // The ALPN protocols to offer in the TLS handshake, or null.
+  private final String[] applicationProtocols;
+
+  HttpClientHandler(PendingRequest request, SSLContext sslContext, SSLParameters sslParameters) {
+    this(
+        new HttpStageFactory() {
+          @Override
+          public Stage create(Pipeline pipeline, String applicationProtocol, ByteBuffer inputBuffer, ByteBuffer outputBuffer) {
+            return new HttpClientStage(
+                pipeline, request, sslParameters == null, inputBuffer, outputBuffer);
+          }
 
-  HttpClientHandler(HttpRequest request, ResponseHandler responseHandler, SSLContext sslContext, SSLParameters sslParameters) {
-    this.request = request;
-    this.responseHandler = responseHandler;
+          @Override
+          public void connectFailed(IOException e) {
+            request.responseHandler.failed(e);
+          }
+        },
+        sslContext,
+        sslParameters,
+        null);
+  }
+
+  HttpClientHandler(
+      HttpStageFactory stageFactory,
+      SSLContext sslContext,
+      SSLParameters sslParameters,
+      String[] applicationProtocols) {
+    this.stageFactory = stageFactory;
     this.sslContext = sslContext;
     this.sslParameters = sslParameters;
+    this.applicationProtocols = applicationProtocols;
   }
 
   @Override
@@ -30,6 +68,11 @@ final class HttpClientHandler implements NetworkHandler {
     return sslParameters != null;
   }
 
+  @Override
+  public void connectFailed(IOException e) {
+    stageFactory.connectFailed(e);
+  }
+
   @Override
   public Stage connect(Pipeline pipeline, ByteBuffer inputBuffer, ByteBuffer outputBuffer) {
     if (usesSsl()) {
@@ -39,29 +82,36 @@ final class HttpClientHandler implements NetworkHandler {
       decryptedInputBuffer.flip(); // prepare for reading
       decryptedOutputBuffer.clear();
       decryptedOutputBuffer.flip(); // prepare for reading
-      HttpClientStage httpStage = new HttpClientStage(
-          pipeline,
-          request,
-          responseHandler,
-          decryptedInputBuffer,
-          decryptedOutputBuffer);
       SSLEngine sslEngine = sslContext.createSSLEngine();
       sslEngine.setSSLParameters(sslParameters);
+      if (applicationProtocols != null) {
+        // Don't modify the caller's parameters; they may be shared between requests.
+        SSLParameters parameters = sslEngine.getSSLParameters();
+        parameters.setApplicationProtocols(applicationProtocols);
+        sslEngine.setSSLParameters(parameters);
+      }
       return new SslClientStage(
           pipeline,
-          httpStage,
+          new SslClientStage.NextStageFactory() {
+            @Override
+            public Stage create(String applicationProtocol) {
+              return stageFactory.create(
+                  pipeline, applicationProtocol, decryptedInputBuffer, decryptedOutputBuffer);
+            }
+
+            @Override
+            public void closedDuringHandshake(IOException cause) {
+              stageFactory.connectFailed(
+                  cause != null ? cause : new IOException("Closed during the TLS handshake"));
+            }
+          },
           sslEngine,
           inputBuffer,
           outputBuffer,
           decryptedInputBuffer,
           decryptedOutputBuffer);
     } else {
-      return new HttpClientStage(
-          pipeline,
-          request,
-          responseHandler,
-          inputBuffer,
-          outputBuffer);
+      return stageFactory.create(pipeline, "", inputBuffer, outputBuffer);
     }
   }
-}
\ No newline at end of file
+}
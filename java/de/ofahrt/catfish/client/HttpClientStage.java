@@ -2,12 +2,15 @@ package de.ofahrt.catfish.client;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import de.ofahrt.catfish.client.HttpRequestGenerator.ContinuationToken;
 import de.ofahrt.catfish.internal.CoreHelper;
 import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
 import de.ofahrt.catfish.internal.network.Stage;
+import de.ofahrt.catfish.model.HttpMethodName;
 import de.ofahrt.catfish.model.HttpRequest;
 import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpVersion;
 import de.ofahrt.catfish.model.MalformedResponseException;
 import de.ofahrt.catfish.model.network.Connection;
 import de.ofahrt.catfish.utils.HttpConnectionHeader;
@@ -34,61 +37,275 @@ final class HttpClientStage implements Stage {
     void failed(Exception exception);
   }
 
+  /**
+   * Notified when a keep-alive connection is ready for another request, and when it closes. All
+   * calls happen on the network thread.
+   */
+  interface ConnectionListener {
+    /**
+     * Called when the connection is established and after every complete response that allows
+     * reusing the connection. The listener may {@link #submit} the next request right away.
+     */
+    void idle(HttpClientStage stage);
+
+    /**
+     * Called once when the connection closes. The unfinished request, if any, did not get a
+     * response; if the connection had been reused and nothing was received for the request, the
+     * server may have closed the connection before the request arrived, so it can be sent again
+     * on another connection, provided it is idempotent.
+     */
+    void closed(HttpClientStage stage, PendingRequest unfinished, boolean sentOnStaleConnection);
+  }
+
 //  public interface RequestListener {
 //    void notifySent(Connection connection, HttpRequest request, HttpResponse response);
 //  }
 
   private final Pipeline parent;
-  private final ResponseHandler responseHandler;
+  // Null if the connection is closed after the first response.
+  private final ConnectionListener listener;
 //  private final RequestListener requestListener;
   private final ByteBuffer inputBuffer;
   private final ByteBuffer outputBuffer;
+  // Whether file bodies may be sent with transferTo; only for plain connections.
+  private final boolean zeroCopy;
   private final IncrementalHttpResponseParser parser;
+  // The request that is currently in flight; null while the connection is idle.
+  private PendingRequest current;
   private HttpRequestGenerator requestGenerator;
+  private boolean connected;
+  private int requestCount;
+  private boolean responseStarted;
+  private boolean headersDelivered;
+  // Thrown by the response handler while receiving the body.
+  private Exception bodyException;
+  // Reading is paused until the response handler is ready again.
+  private boolean paused;
+  private boolean inputClosedWhilePaused;
+  // Read from other threads to skip connections that are known to be closed.
+  private volatile boolean closed;
+
+  HttpClientStage(
+      Pipeline parent,
+      PendingRequest request,
+      boolean zeroCopy,
+      ByteBuffer inputBuffer,
+      ByteBuffer outputBuffer) {
+    this(parent, (ConnectionListener) null, zeroCopy, inputBuffer, outputBuffer);
+    start(request);
+  }
 
   HttpClientStage(
       Pipeline parent,
-      HttpRequest request,
-      ResponseHandler responseHandler,
+      ConnectionListener listener,
+      boolean zeroCopy,
       ByteBuffer inputBuffer,
       ByteBuffer outputBuffer) {
     this.parent = parent;
-    this.requestGenerator = HttpRequestGeneratorBuffered.create(request);
-    this.responseHandler = responseHandler;
+    this.listener = listener;
+    this.zeroCopy = zeroCopy;
     this.inputBuffer = inputBuffer;
     this.outputBuffer = outputBuffer;
     this.parser = new IncrementalHttpResponseParser();
+    parser.setBodyConsumer(this::body);
+  }
+
+  /**
+   * Sends the given request on this connection; must be called on the network thread. Returns
+   * false if the connection is closed or busy.
+   */
+  boolean submit(PendingRequest request) {
+    if (closed || !connected || current != null) {
+      return false;
+    }
+    start(request);
+    parent.encourageWrites();
+    return true;
+  }
+
+  /** Returns whether the connection was established; must be called on the network thread. */
+  boolean wasConnected() {
+    return connected;
+  }
+
+  /** Returns false if the connection is known to be closed. This is safe to call from any thread. */
+  boolean isOpen() {
+    return !closed;
+  }
+
+  /** Runs the given task on the network thread of this connection. */
+  void queue(Runnable runnable) {
+    parent.queue(runnable);
+  }
+
+  /** Closes the connection; this is safe to call from any thread. */
+  void closeConnection() {
+    parent.close();
+  }
+
+  private void start(PendingRequest request) {
+    current = request;
+    requestCount++;
+    responseStarted = false;
+    requestGenerator = HttpRequestGeneratorStreamed.isStreamed(request.request)
+        ? HttpRequestGeneratorStreamed.create(request.request, zeroCopy)
+        : HttpRequestGeneratorBuffered.create(request.request);
+    if (HttpMethodName.HEAD.equals(request.request.getMethod())) {
+      parser.setNoBody();
+    }
+    request.attach(e -> parent.queue(() -> abort(request, e)));
     parent.log("%s %s %s",
-        request.getMethod(), request.getUri(), request.getVersion());
+        request.request.getMethod(), request.request.getUri(), request.request.getVersion());
     if (VERBOSE) {
-      System.out.println(CoreHelper.requestToString(request));
+      System.out.println(CoreHelper.requestToString(request.request));
     }
   }
 
   @Override
   public InitialConnectionState connect(Connection connection) {
-    return InitialConnectionState.WRITE_ONLY;
+    connected = true;
+    if (listener == null) {
+      return InitialConnectionState.WRITE_ONLY;
+    }
+    // Idle connections keep reading, so we notice when the server closes them.
+    listener.idle(this);
+    return InitialConnectionState.READ_AND_WRITE;
   }
 
   @Override
   public ConnectionControl read() {
     // invariant: inputBuffer is readable
-    if (inputBuffer.hasRemaining()) {
-      int consumed = parser.parse(inputBuffer.array(), inputBuffer.position(), inputBuffer.limit());
-      inputBuffer.position(inputBuffer.position() + consumed);
+    if (current == null) {
+      if (inputBuffer.hasRemaining()) {
+        // The server must not send anything without a request.
+        parent.log("Unexpected data on idle connection");
+        return ConnectionControl.CLOSE_CONNECTION_IMMEDIATELY;
+      }
+      return ConnectionControl.CONTINUE;
     }
-    if (parser.isDone()) {
-      processResponse();
-      return ConnectionControl.CLOSE_CONNECTION_IMMEDIATELY;
+    while (!parser.isDone()) {
+      if (!inputBuffer.hasRemaining()) {
+        return ConnectionControl.CONTINUE;
+      }
+      if (!current.responseHandler.isReady()) {
+        // Stop reading until the handler catches up; the server eventually stops sending.
+        paused = true;
+        current.responseHandler.whenReady(() -> parent.queue(this::resume));
+        return ConnectionControl.PAUSE;
+      }
+      responseStarted = true;
+      // The parser returns after the headers and after every piece of the body.
+      int consumed = parser.parse(inputBuffer.array(), inputBuffer.position(), inputBuffer.remaining());
+      inputBuffer.position(inputBuffer.position() + consumed);
+      if (bodyException != null) {
+        failResponse();
+        return ConnectionControl.CLOSE_CONNECTION_IMMEDIATELY;
+      }
+      if (parser.isHeadersComplete() && !headersDelivered) {
+        deliverHeaders();
+      }
+      if (parser.isDone()) {
+        boolean keepAlive = processResponse();
+        if (current != null) {
+          // An interim response; the final response follows.
+          continue;
+        }
+        if (listener == null || !keepAlive || requestGenerator != null || inputBuffer.hasRemaining()) {
+          return ConnectionControl.CLOSE_CONNECTION_IMMEDIATELY;
+        }
+        listener.idle(this);
+        return ConnectionControl.CONTINUE;
+      }
     }
     return ConnectionControl.CONTINUE;
   }
 
   @Override
   public void inputClosed() {
+    if (paused && inputBuffer.hasRemaining()) {
+      // The rest of the response is still in the buffer; we get back to it in resume.
+      inputClosedWhilePaused = true;
+      return;
+    }
+    if (current != null && parser.endOfInput()) {
+      processResponse();
+    }
     parent.close();
   }
 
+  /** Continues reading once the response handler is ready again. */
+  private void resume() {
+    if (!paused || closed) {
+      return;
+    }
+    paused = false;
+    // Data that was already read, possibly decrypted by the stage below, is not read again.
+    ConnectionControl control = read();
+    if (control == ConnectionControl.CLOSE_CONNECTION_IMMEDIATELY) {
+      parent.close();
+    } else if (control != ConnectionControl.PAUSE) {
+      if (inputClosedWhilePaused) {
+        inputClosed();
+      } else {
+        parent.encourageReads();
+      }
+    }
+  }
+
+  private void body(byte[] data, int offset, int length) {
+    if (bodyException != null) {
+      return;
+    }
+    try {
+      current.responseHandler.body(ByteBuffer.wrap(data, offset, length));
+    } catch (IOException | RuntimeException e) {
+      bodyException = e;
+    }
+  }
+
+  /** Passes the headers of the final response to the response handler. */
+  private void deliverHeaders() {
+    HttpResponse response;
+    try {
+      response = parser.getResponseHeaders();
+    } catch (MalformedResponseException e) {
+      // The parser is done; processResponse reports the error.
+      return;
+    }
+    if (isInterim(response)) {
+      return;
+    }
+    headersDelivered = true;
+    current.responseHandler.headers(response);
+  }
+
+  /**
+   * Fails the given request after it was cancelled. If it is still in flight, the server may still
+   * be sending the response, so the connection can't be reused.
+   */
+  private void abort(PendingRequest request, Exception e) {
+    if (current == request) {
+      parent.log("Request cancelled");
+      current = null;
+      parent.close();
+    }
+    request.responseHandler.failed(e);
+  }
+
+  private void failResponse() {
+    PendingRequest request = current;
+    Exception e = bodyException;
+    current = null;
+    bodyException = null;
+    headersDelivered = false;
+    parser.reset();
+    request.responseHandler.failed(e);
+  }
+
+  private static boolean isInterim(HttpResponse response) {
+    return response.getStatusCode() / 100 == 1 && response.getStatusCode() != 101;
+  }
+
   @Override
   public ConnectionControl write() throws IOException {
     if (VERBOSE) {
@@ -115,31 +332,67 @@ final class HttpClientStage implements Stage {
     }
   }
 
+  @Override
+  public long transferTo(WritableByteChannel channel) throws IOException {
+    if (requestGenerator == null) {
+      return -1;
+    }
+    return requestGenerator.transferTo(channel);
+  }
+
   @Override
   public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
     if (requestGenerator != null) {
       requestGenerator.close();
       requestGenerator = null;
     }
-    responseHandler.failed(new IOException("Closed prematurely"));
+    PendingRequest unfinished = current;
+    current = null;
+    if (listener != null) {
+      listener.closed(this, unfinished, unfinished != null && requestCount > 1 && !responseStarted);
+    } else if (unfinished != null) {
+      unfinished.responseHandler.failed(new IOException("Closed prematurely"));
+    }
   }
 
+  /**
+   * Completes the current response, unless it is an interim (1xx) response. Returns whether the
+   * connection may be reused.
+   */
   private final boolean processResponse() {
     HttpResponse response;
     try {
       response = parser.getResponse();
     } catch (MalformedResponseException e) {
-      e.printStackTrace();
-      throw new IllegalStateException(e);
+      PendingRequest request = current;
+      current = null;
+      request.responseHandler.failed(e);
+      return false;
     } finally {
       parser.reset();
+      headersDelivered = false;
     }
     parent.log("%s %d %s",
         response.getProtocolVersion(), Integer.valueOf(response.getStatusCode()), response.getStatusMessage());
     if (VERBOSE) {
       System.out.println(CoreHelper.responseToString(response));
     }
-    responseHandler.received(response);
-    return HttpConnectionHeader.isKeepAlive(response.getHeaders());
+    if (isInterim(response)) {
+      if (HttpMethodName.HEAD.equals(current.request.getMethod())) {
+        parser.setNoBody();
+      }
+      return true;
+    }
+    StreamingResponseHandler responseHandler = current.responseHandler;
+    boolean keepAlive = HttpConnectionHeader.mayKeepAlive(current.request)
+        && HttpConnectionHeader.isKeepAlive(response.getHeaders())
+        && response.getProtocolVersion().compareTo(HttpVersion.HTTP_1_1) >= 0;
+    current = null;
+    responseHandler.done();
+    return keepAlive;
   }
-}
\ No newline at end of file
+}
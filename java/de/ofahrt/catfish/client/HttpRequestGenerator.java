@@ -1,6 +1,8 @@
 package de.ofahrt.catfish.client;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.Map;
@@ -49,4 +51,12 @@ abstract class HttpRequestGenerator {
   public abstract ContinuationToken generate(ByteBuffer buffer);
 
   public abstract void close();
+
+  /**
+   * Writes pending body data directly to the given channel, bypassing the output buffer. Returns
+   * the number of bytes written, or -1 if no such data is pending.
+   */
+  long transferTo(@SuppressWarnings("unused") WritableByteChannel channel) throws IOException {
+    return -1;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,256 @@
+package de.ofahrt.catfish.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpHeaders;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpRequest.FileBody;
+import de.ofahrt.catfish.model.HttpRequest.StreamBody;
+
+/**
+ * Generates a request whose body is read from a channel while it is sent, rather than copied into
+ * memory up front. If the length of the body is known, it is sent as is, and the generator checks
+ * that the channel has that many bytes; otherwise, the body uses chunked encoding. If zero-copy is
+ * enabled and the body is a file of known length, the network engine sends it through
+ * {@link #transferTo}, which lets the kernel move the data straight from the page cache to the
+ * socket; this only works on plain connections.
+ *
+ * <p>The channel is owned by the generator and closed once the body is complete or the
+ * connection is closed. A {@link FileBody} is not closed, as that would delete the file.
+ */
+final class HttpRequestGeneratorStreamed extends HttpRequestGenerator {
+  private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+  // Chunk lengths are written with a fixed width, so we can fill in the length after reading.
+  private static final int CHUNK_LENGTH_DIGITS = 8;
+  // Don't write tiny chunks at the end of an almost full buffer.
+  private static final int MIN_CHUNK_SPACE = 1024;
+
+  /** Returns whether the body of the given request is sent with this generator. */
+  static boolean isStreamed(HttpRequest request) {
+    return request.getBody() instanceof StreamBody || request.getBody() instanceof FileBody;
+  }
+
+  public static HttpRequestGeneratorStreamed create(HttpRequest request, boolean zeroCopy) {
+    HttpRequest.Body body = request.getBody();
+    long length = body instanceof FileBody
+        ? ((FileBody) body).size()
+        : ((StreamBody) body).getLength();
+    HttpHeaders headers = request.getHeaders();
+    if (headers.containsKey(HttpHeaderName.TRANSFER_ENCODING)) {
+      length = -1;
+    } else if (headers.containsKey(HttpHeaderName.CONTENT_LENGTH)) {
+      length = parseContentLength(request);
+    } else if (length >= 0) {
+      request = request.withHeaderOverrides(
+          HttpHeaders.of(HttpHeaderName.CONTENT_LENGTH, Long.toString(length)));
+    } else {
+      request = request.withHeaderOverrides(
+          HttpHeaders.of(HttpHeaderName.TRANSFER_ENCODING, "chunked"));
+    }
+    byte[] head = concat(requestLineToByteArray(request), headersToByteArray(request.getHeaders()));
+    return new HttpRequestGeneratorStreamed(request, head, length, zeroCopy);
+  }
+
+  /**
+   * Returns the value of the Content-Length header of the given request, or -1 if there is none.
+   * Throws an {@link IllegalArgumentException} if the value is malformed or negative; a negative
+   * value would otherwise select chunked encoding without a Transfer-Encoding header.
+   */
+  static long parseContentLength(HttpRequest request) {
+    String value = request.getHeaders().get(HttpHeaderName.CONTENT_LENGTH);
+    if (value == null) {
+      return -1;
+    }
+    long result;
+    try {
+      result = Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Illegal content length value: " + value);
+    }
+    if (result < 0) {
+      throw new IllegalArgumentException("Content length must not be negative, but is " + result);
+    }
+    return result;
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] result = new byte[a.length + b.length];
+    System.arraycopy(a, 0, result, 0, a.length);
+    System.arraycopy(b, 0, result, a.length, b.length);
+    return result;
+  }
+
+  private final HttpRequest request;
+  private final byte[] head;
+  private final boolean chunked;
+  private final boolean zeroCopy;
+  private int headIndex;
+  // Opened on first use, so that errors close the connection like any other read error.
+  private ReadableByteChannel channel;
+  // Only set if the body is a file; we then use positional reads and transfers.
+  private FileChannel fileChannel;
+  private long position;
+  // The remaining length of the body, or -1 if it is chunked.
+  private long remaining;
+  private boolean finished;
+  private boolean closed;
+
+  private HttpRequestGeneratorStreamed(HttpRequest request, byte[] head, long length, boolean zeroCopy) {
+    this.request = request;
+    this.head = head;
+    this.chunked = length < 0;
+    this.remaining = length;
+    this.zeroCopy = zeroCopy;
+  }
+
+  @Override
+  public HttpRequest getRequest() {
+    return request;
+  }
+
+  @Override
+  public ContinuationToken generate(ByteBuffer outputBuffer) {
+    if (headIndex < head.length) {
+      int bytesToCopy = Math.min(outputBuffer.remaining(), head.length - headIndex);
+      outputBuffer.put(head, headIndex, bytesToCopy);
+      headIndex += bytesToCopy;
+      return ContinuationToken.CONTINUE;
+    }
+    if (finished || remaining == 0) {
+      close();
+      return ContinuationToken.STOP;
+    }
+    try {
+      open();
+      if (chunked) {
+        generateChunk(outputBuffer);
+      } else if (zeroCopy && fileChannel != null) {
+        // Wait for the network engine to call transferTo once the headers are flushed.
+      } else {
+        generateContent(outputBuffer);
+      }
+    } catch (IOException e) {
+      // The network engine closes the connection, which fails the request.
+      throw new UncheckedIOException(e);
+    }
+    return ContinuationToken.CONTINUE;
+  }
+
+  private void open() throws IOException {
+    if (channel != null) {
+      return;
+    }
+    HttpRequest.Body body = request.getBody();
+    if (body instanceof FileBody) {
+      fileChannel = ((FileBody) body).openChannel();
+      channel = fileChannel;
+    } else {
+      channel = ((StreamBody) body).getChannel();
+      if (channel instanceof FileChannel) {
+        fileChannel = (FileChannel) channel;
+        position = fileChannel.position();
+      }
+    }
+  }
+
+  private int read(ByteBuffer buffer) throws IOException {
+    if (fileChannel == null) {
+      return channel.read(buffer);
+    }
+    int count = fileChannel.read(buffer, position);
+    if (count > 0) {
+      position += count;
+    }
+    return count;
+  }
+
+  private void generateContent(ByteBuffer outputBuffer) throws IOException {
+    int limit = outputBuffer.limit();
+    if (outputBuffer.remaining() > remaining) {
+      outputBuffer.limit(outputBuffer.position() + (int) remaining);
+    }
+    int count;
+    try {
+      count = read(outputBuffer);
+    } finally {
+      outputBuffer.limit(limit);
+    }
+    if (count < 0) {
+      throw new EOFException("Request body is shorter than its declared length");
+    }
+    remaining -= count;
+  }
+
+  private void generateChunk(ByteBuffer outputBuffer) throws IOException {
+    if (outputBuffer.remaining() < MIN_CHUNK_SPACE && outputBuffer.position() > 0) {
+      // Wait until the network engine made room.
+      return;
+    }
+    int start = outputBuffer.position();
+    int limit = outputBuffer.limit();
+    outputBuffer.position(start + CHUNK_LENGTH_DIGITS + CRLF_BYTES.length);
+    outputBuffer.limit(limit - CRLF_BYTES.length);
+    int count;
+    try {
+      count = read(outputBuffer);
+    } finally {
+      outputBuffer.limit(limit);
+    }
+    if (count < 0) {
+      outputBuffer.position(start);
+      outputBuffer.put(LAST_CHUNK);
+      finished = true;
+      return;
+    }
+    if (count == 0) {
+      outputBuffer.position(start);
+      return;
+    }
+    for (int i = 0; i < CHUNK_LENGTH_DIGITS; i++) {
+      int shift = 4 * (CHUNK_LENGTH_DIGITS - 1 - i);
+      outputBuffer.put(start + i, HEX_DIGITS[(count >>> shift) & 0xf]);
+    }
+    outputBuffer.put(start + CHUNK_LENGTH_DIGITS, CRLF_BYTES[0]);
+    outputBuffer.put(start + CHUNK_LENGTH_DIGITS + 1, CRLF_BYTES[1]);
+    outputBuffer.put(CRLF_BYTES);
+  }
+
+  @Override
+  long transferTo(WritableByteChannel target) throws IOException {
+    if (!zeroCopy || chunked || fileChannel == null || headIndex < head.length || remaining == 0) {
+      return -1;
+    }
+    long count = fileChannel.transferTo(position, remaining, target);
+    if (count == 0 && position >= fileChannel.size()) {
+      throw new EOFException("Request body is shorter than its declared length");
+    }
+    position += count;
+    remaining -= count;
+    return count;
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (request.getBody() instanceof StreamBody) {
+        ((StreamBody) request.getBody()).close();
+      } else if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException ignored) {
+      // There's nothing we can do at this point.
+    }
+  }
+}
@@ -4,12 +4,21 @@ import java.util.Arrays;
 
 import de.ofahrt.catfish.model.HttpHeaderName;
 import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpStatusCode;
 import de.ofahrt.catfish.model.MalformedResponseException;
 import de.ofahrt.catfish.model.SimpleHttpResponse;
+import de.ofahrt.catfish.utils.HttpConnectionHeader;
 
 final class IncrementalHttpResponseParser {
+  /** Receives the body while it is parsed, instead of collecting it in the response. */
+  interface BodyConsumer {
+    void body(byte[] data, int offset, int length);
+  }
+
   private static final int MAX_HEADER_NAME_LENGTH = 1024;
   private static final int MAX_HEADER_VALUE_LENGTH = 4096;
+  // Only applies if the parser collects the body itself.
+  private static final int MAX_CONTENT_LENGTH = 1000000;
 
   private static enum State {
     // Status-Line = HTTP-Version SP Status-Code SP Reason-Phrase CRLF
@@ -17,14 +26,15 @@ final class IncrementalHttpResponseParser {
     // message-header = field-name ":" [ field-value ]
     MESSAGE_HEADER_NAME, MESSAGE_HEADER_NAME_OR_CONTINUATION, MESSAGE_HEADER_VALUE,
     CONTENT,
+    CONTENT_UNTIL_CLOSE,
     CHUNKED_CONTENT_LENGTH,
+    CHUNKED_CONTENT_EXTENSION,
     CHUNKED_CONTENT_DATA,
     CHUNKED_CONTENT_NEXT,
-    CHUNKED_CONTENT_END;
+    CHUNKED_TRAILER,
+    CHUNKED_TRAILER_LINE;
   }
 
-  private final int maxContentLength = 1000000;
-
   private SimpleHttpResponse.Builder response;
   private StringBuilder elementBuffer;
   private State state;
@@ -34,10 +44,16 @@ final class IncrementalHttpResponseParser {
   private String messageHeaderName;
   private String messageHeaderValue;
 
+  // Null if the body is collected in content.
+  private BodyConsumer bodyConsumer;
   private byte[] content;
-  private int contentIndex;
+  private int contentLength;
+  // The remaining length of the body or the current chunk.
+  private long remaining;
 
+  private boolean headersComplete;
   private boolean done;
+  private boolean noBody;
 
   public IncrementalHttpResponseParser() {
     reset();
@@ -91,15 +107,83 @@ final class IncrementalHttpResponseParser {
     messageHeaderName = null;
     messageHeaderValue = null;
     content = null;
-    contentIndex = 0;
+    contentLength = 0;
+    remaining = 0;
+    headersComplete = false;
     done = false;
+    noBody = false;
+  }
+
+  /**
+   * Passes the body of all following responses to the given consumer instead of collecting it.
+   * In this mode, {@link #parse} also returns once the headers are complete, and after every piece
+   * of the body, so that the caller can look at the headers first, and stop in between. Not reset
+   * by {@link #reset}.
+   */
+  public void setBodyConsumer(BodyConsumer bodyConsumer) {
+    this.bodyConsumer = bodyConsumer;
+  }
+
+  /**
+   * Tells the parser that the next response has no body regardless of its headers, which is the
+   * case for responses to HEAD requests. Reset by {@link #reset}.
+   */
+  public void setNoBody() {
+    noBody = true;
   }
 
   private int setBadResponse(String errorMessage) {
     response.setBadResponse(errorMessage);
+    done = true;
     return 1;
   }
 
+  private static boolean isChunked(String transferEncoding) {
+    // Only the last transfer coding determines the message length (RFC 9112, section 6.3).
+    String lastCoding = transferEncoding.substring(transferEncoding.lastIndexOf(',') + 1).trim();
+    return "chunked".equalsIgnoreCase(lastCoding);
+  }
+
+  private static boolean isHexDigit(char c) {
+    return ((c >= '0') && (c <= '9')) || ((c >= 'A') && (c <= 'F')) || ((c >= 'a') && (c <= 'f'));
+  }
+
+  /** Returns false if the body is too large to be collected. */
+  private boolean appendContent(byte[] input, int offset, int length) {
+    if (bodyConsumer != null) {
+      bodyConsumer.body(input, offset, length);
+      return true;
+    }
+    if (length > MAX_CONTENT_LENGTH - contentLength) {
+      return false;
+    }
+    if (contentLength + length > content.length) {
+      content = Arrays.copyOf(content, Math.max(2 * content.length, contentLength + length));
+    }
+    System.arraycopy(input, offset, content, contentLength, length);
+    contentLength += length;
+    return true;
+  }
+
+  private void completeContent() {
+    if (bodyConsumer == null) {
+      response.setBody(contentLength == content.length ? content : Arrays.copyOf(content, contentLength));
+    }
+    done = true;
+  }
+
+  /** Returns false if the chunk length is missing. */
+  private boolean completeChunkLength() {
+    if (elementBuffer.length() == 0) {
+      return false;
+    }
+    remaining = Long.parseLong(elementBuffer.toString(), 16);
+    elementBuffer.setLength(0);
+    counter = 0;
+    state = remaining == 0 ? State.CHUNKED_TRAILER : State.CHUNKED_CONTENT_DATA;
+    return true;
+  }
+
   public int parse(byte[] input) {
     return parse(input, 0, input.length);
   }
@@ -287,33 +371,53 @@ final class IncrementalHttpResponseParser {
           messageHeaderValue = null;
 
           if (c == '\n') {
+            headersComplete = true;
+            if (noBody || !HttpStatusCode.mayHaveBody(response.getStatusCode())) {
+              // Any Content-Length or Transfer-Encoding describes the body that the response
+              // would otherwise have had (RFC 9112, section 6.3).
+              done = true;
+              return i + 1;
+            }
+            String transferEncoding = response.getHeader(HttpHeaderName.TRANSFER_ENCODING);
             String contentLengthValue = response.getHeader(HttpHeaderName.CONTENT_LENGTH);
-            if (contentLengthValue != null) {
+            content = new byte[0];
+            if (transferEncoding != null) {
+              // Transfer-Encoding overrides Content-Length. If the last coding is not chunked, the
+              // body ends when the server closes the connection.
+              state = isChunked(transferEncoding) ? State.CHUNKED_CONTENT_LENGTH : State.CONTENT_UNTIL_CLOSE;
+            } else if (contentLengthValue != null) {
               long contentLength;
               try {
                 contentLength = Long.parseLong(contentLengthValue);
               } catch (NumberFormatException e) {
                 return setBadResponse("Illegal content length value");
               }
-              if (contentLength > maxContentLength) {
+              if (contentLength < 0) {
+                return setBadResponse("Illegal content length value");
+              }
+              if (bodyConsumer == null && contentLength > MAX_CONTENT_LENGTH) {
                 return setBadResponse("Too large content length");
               }
               if (contentLength == 0) {
-                done = true;
+                completeContent();
                 return i + 1;
               }
-              content = new byte[(int) contentLength];
-              contentIndex = 0;
-              state = State.CONTENT;
-            } else if (response.getHeader(HttpHeaderName.TRANSFER_ENCODING) != null) {
-              String transferEncoding = response.getHeader(HttpHeaderName.TRANSFER_ENCODING);
-              if ("chunked".equals(transferEncoding)) {
-                state = State.CHUNKED_CONTENT_LENGTH;
+              if (bodyConsumer == null) {
+                content = new byte[(int) contentLength];
               }
+              remaining = contentLength;
+              state = State.CONTENT;
+            } else if (HttpConnectionHeader.CLOSE.equals(response.getHeader(HttpHeaderName.CONNECTION))) {
+              // The body ends when the server closes the connection; see endOfInput.
+              state = State.CONTENT_UNTIL_CLOSE;
             } else {
               done = true;
               return i + 1;
             }
+            if (bodyConsumer != null) {
+              // Let the caller look at the headers before the body.
+              return i + 1;
+            }
           } else if (isTokenCharacter(c)) {
             counter = 0;
             elementBuffer.setLength(0);
@@ -327,42 +431,34 @@ final class IncrementalHttpResponseParser {
           }
           break;
         case CONTENT : {
-            int maxCopy = Math.min(length - i, content.length - contentIndex);
-            System.arraycopy(input, offset + i, content, contentIndex, maxCopy);
-            i += maxCopy;
-            contentIndex += maxCopy;
-            if (contentIndex == content.length) {
-              response.setBody(content);
-              done = true;
-              return i;
+            int count = (int) Math.min(length - i, remaining);
+            if (!appendContent(input, offset + i, count)) {
+              return setBadResponse("Too large content length");
+            }
+            remaining -= count;
+            if (remaining == 0) {
+              completeContent();
             }
+            // Unless the body is complete, this is the end of the input.
+            return i + count;
           }
-          break;
+        case CONTENT_UNTIL_CLOSE :
+          if (!appendContent(input, offset + i, length - i)) {
+            return setBadResponse("Too large content length");
+          }
+          return length;
         case CHUNKED_CONTENT_LENGTH :
           if (c == '\r') {
             expectLineFeed = true;
           } else if (c == '\n') {
-            String chunkLength = elementBuffer.toString();
-            elementBuffer.setLength(0);
-            int parsedChunkLength = Integer.parseInt(chunkLength, 16);
-            if (parsedChunkLength == 0) {
-              state = State.CHUNKED_CONTENT_END;
-              break;
+            if (!completeChunkLength()) {
+              return setBadResponse("Missing chunk length");
             }
-            if (content == null) {
-              content = new byte[parsedChunkLength];
-            } else {
-              if (parsedChunkLength > maxContentLength) {
-                return setBadResponse("Too large chunk");
-              }
-              if (content.length > maxContentLength - parsedChunkLength) {
-                return setBadResponse("Too large content length");
-              }
-              content = Arrays.copyOf(content, content.length + parsedChunkLength);
-            }
-            state = State.CHUNKED_CONTENT_DATA;
-          } else if (((c >= '0') && (c <= '9')) || ((c >= 'A') && (c <= 'F')) || ((c >= 'a') && (c <= 'f'))) {
-            if (elementBuffer.length() > 8) {
+          } else if (c == ';') {
+            state = State.CHUNKED_CONTENT_EXTENSION;
+          } else if (isHexDigit(c)) {
+            // Anything longer may overflow.
+            if (elementBuffer.length() >= 15) {
               return setBadResponse("Chunk length field is too long");
             }
             elementBuffer.append(c);
@@ -370,14 +466,31 @@ final class IncrementalHttpResponseParser {
             return setBadResponse("Illegal character in chunked content length");
           }
           break;
+        case CHUNKED_CONTENT_EXTENSION :
+          // Chunk extensions are ignored.
+          if (c == '\r') {
+            expectLineFeed = true;
+          } else if (c == '\n') {
+            if (!completeChunkLength()) {
+              return setBadResponse("Missing chunk length");
+            }
+          } else if (++counter > MAX_HEADER_VALUE_LENGTH) {
+            return setBadResponse("Chunk extension is too long");
+          }
+          break;
         case CHUNKED_CONTENT_DATA : {
-            int maxCopy = Math.min(length - i, content.length - contentIndex);
-            System.arraycopy(input, offset + i, content, contentIndex, maxCopy);
-            i += maxCopy - 1;
-            contentIndex += maxCopy;
-            if (contentIndex == content.length) {
+            int count = (int) Math.min(length - i, remaining);
+            if (!appendContent(input, offset + i, count)) {
+              return setBadResponse("Too large content length");
+            }
+            remaining -= count;
+            if (remaining == 0) {
               state = State.CHUNKED_CONTENT_NEXT;
             }
+            if (bodyConsumer != null) {
+              return i + count;
+            }
+            i += count - 1; // the loop increments i
           }
           break;
         case CHUNKED_CONTENT_NEXT :
@@ -389,15 +502,24 @@ final class IncrementalHttpResponseParser {
             return setBadResponse("Expected line break");
           }
           break;
-        case CHUNKED_CONTENT_END :
+        case CHUNKED_TRAILER :
           if (c == '\r') {
             expectLineFeed = true;
           } else if (c == '\n') {
-            response.setBody(content);
-            done = true;
+            completeContent();
             return i + 1;
           } else {
-            return setBadResponse("Expected line break");
+            // Trailer fields are dropped, like for HTTP/2.
+            state = State.CHUNKED_TRAILER_LINE;
+          }
+          break;
+        case CHUNKED_TRAILER_LINE :
+          if (c == '\r') {
+            expectLineFeed = true;
+          } else if (c == '\n') {
+            state = State.CHUNKED_TRAILER;
+          } else if (++counter > MAX_HEADER_VALUE_LENGTH) {
+            return setBadResponse("Trailer section is too long");
           }
           break;
         default :
@@ -411,10 +533,37 @@ final class IncrementalHttpResponseParser {
     return done;
   }
 
+  /** Returns whether the status line and headers of the current response are complete. */
+  public boolean isHeadersComplete() {
+    return headersComplete;
+  }
+
+  /**
+   * Tells the parser that the connection was closed. Returns true if this completes the response,
+   * which is the case if the response body is delimited by closing the connection.
+   */
+  public boolean endOfInput() {
+    if (state == State.CONTENT_UNTIL_CLOSE && !done) {
+      completeContent();
+    }
+    return done;
+  }
+
   public HttpResponse getResponse() throws MalformedResponseException {
     if (!done) {
       throw new IllegalStateException("No parsed response available!");
     }
     return response.build();
   }
+
+  /**
+   * Returns the response without its body as soon as the headers are complete; this is the way to
+   * get the headers if the body is passed to a consumer.
+   */
+  public HttpResponse getResponseHeaders() throws MalformedResponseException {
+    if (!headersComplete) {
+      throw new IllegalStateException("No parsed response headers available!");
+    }
+    return response.build();
+  }
 }
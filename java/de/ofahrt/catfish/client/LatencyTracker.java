@@ -0,0 +1,52 @@
+package de.ofahrt.catfish.client;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent response times of one origin, and estimates their percentiles. The
+ * estimate is only updated every few samples, since sorting the samples for every request is not
+ * worth it.
+ */
+final class LatencyTracker {
+  // Below this many samples, the percentiles are too noisy to act on.
+  static final int MIN_SAMPLES = 20;
+  private static final int MAX_SAMPLES = 1024;
+  private static final int UPDATE_INTERVAL = 32;
+
+  private final double percentile;
+
+  // All guarded by this.
+  private final long[] samples = new long[MAX_SAMPLES];
+  private int count;
+  private int next;
+  private int samplesSinceUpdate;
+  private long estimateNanos = -1;
+
+  /** Creates a tracker that estimates the given percentile, which must be between 0 and 100. */
+  LatencyTracker(double percentile) {
+    if (!(percentile > 0 && percentile < 100)) {
+      throw new IllegalArgumentException(
+          "Percentile must be between 0 and 100, but is " + percentile);
+    }
+    this.percentile = percentile;
+  }
+
+  synchronized void record(long durationNanos) {
+    samples[next] = durationNanos;
+    next = (next + 1) % MAX_SAMPLES;
+    count = Math.min(count + 1, MAX_SAMPLES);
+    samplesSinceUpdate++;
+    if (count >= MIN_SAMPLES && (estimateNanos < 0 || samplesSinceUpdate >= UPDATE_INTERVAL)) {
+      long[] sorted = Arrays.copyOf(samples, count);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100 * count) - 1;
+      estimateNanos = sorted[Math.max(0, Math.min(index, count - 1))];
+      samplesSinceUpdate = 0;
+    }
+  }
+
+  /** Returns the estimated percentile in nanoseconds, or -1 if there are not enough samples yet. */
+  synchronized long getEstimateNanos() {
+    return estimateNanos;
+  }
+}
@@ -0,0 +1,104 @@
+package de.ofahrt.catfish.client;
+
+import java.util.function.Consumer;
+
+import de.ofahrt.catfish.client.HttpClientStage.ResponseHandler;
+import de.ofahrt.catfish.model.HttpMethodName;
+import de.ofahrt.catfish.model.HttpRequest;
+
+/** A request that is not assigned to a connection or stream yet. */
+final class PendingRequest {
+  // Requests that the server did not process are sent at most this often.
+  static final int MAX_ATTEMPTS = 3;
+
+  final HttpRequest request;
+  final StreamingResponseHandler responseHandler;
+  // The number of connections that handed the request back without processing it.
+  int attempts;
+  // Both guarded by this.
+  private Exception cancellation;
+  // Aborts the request on the connection that sends it; null until it is assigned to one.
+  private Consumer<Exception> abort;
+
+  PendingRequest(HttpRequest request, StreamingResponseHandler responseHandler) {
+    this.request = request;
+    this.responseHandler = responseHandler;
+  }
+
+  /** Creates a request whose response is collected in memory, up to the default size limit. */
+  PendingRequest(HttpRequest request, ResponseHandler responseHandler) {
+    this(request, new BufferingResponseHandler(
+        responseHandler, BufferingResponseHandler.DEFAULT_MAX_BODY_SIZE));
+  }
+
+  /** Counts another attempt for this request; returns false if it may not be sent again. */
+  boolean retry() {
+    attempts++;
+    return attempts < MAX_ATTEMPTS && !isCancelled();
+  }
+
+  /**
+   * Cancels the request; this is safe to call from any thread. If the request is assigned to a
+   * connection, that connection aborts it, and fails the response handler on its network thread;
+   * otherwise, the response handler fails right away, and connections skip the request. The
+   * response handler may still complete normally if the response is already complete.
+   */
+  void cancel(Exception exception) {
+    Consumer<Exception> currentAbort;
+    synchronized (this) {
+      if (cancellation != null) {
+        return;
+      }
+      cancellation = exception;
+      currentAbort = abort;
+    }
+    if (currentAbort != null) {
+      currentAbort.accept(exception);
+    } else {
+      responseHandler.failed(exception);
+    }
+  }
+
+  synchronized boolean isCancelled() {
+    return cancellation != null;
+  }
+
+  /**
+   * Sets how to abort the request on the connection that is about to send it. The given action may
+   * be called from any thread, so it should hand over to the network thread of the connection. If
+   * the request was cancelled in the meantime, the action is called right away.
+   */
+  void attach(Consumer<Exception> action) {
+    Exception exception;
+    synchronized (this) {
+      abort = action;
+      exception = cancellation;
+    }
+    if (exception != null) {
+      action.accept(exception);
+    }
+  }
+
+  /** Returns whether the request body can be sent more than once. */
+  boolean isRepeatable() {
+    return !(request.getBody() instanceof HttpRequest.StreamBody);
+  }
+
+  /**
+   * Returns whether the request may be sent again even if the server may already have processed
+   * it (RFC 9110, section 9.2.2).
+   */
+  boolean isIdempotent() {
+    switch (request.getMethod()) {
+      case HttpMethodName.GET:
+      case HttpMethodName.HEAD:
+      case HttpMethodName.OPTIONS:
+      case HttpMethodName.TRACE:
+      case HttpMethodName.PUT:
+      case HttpMethodName.DELETE:
+        return true;
+      default:
+        return false;
+    }
+  }
+}
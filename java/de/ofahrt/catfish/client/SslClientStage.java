@@ -15,26 +15,45 @@ import de.ofahrt.catfish.internal.network.Stage;
 import de.ofahrt.catfish.model.network.Connection;
 
 final class SslClientStage implements Stage {
+  /** Creates the next stage once the handshake is complete. */
+  public interface NextStageFactory {
+    /**
+     * Returns the stage for the given ALPN protocol, which is the empty string if the server did
+     * not select one.
+     */
+    Stage create(String applicationProtocol);
+
+    /**
+     * Called instead of {@link #create} if the connection closes during the handshake. The cause is
+     * the exception that aborted the handshake, or null if the server closed the connection.
+     */
+    void closedDuringHandshake(IOException cause);
+  }
+
   private final Pipeline parent;
-  private final Stage next;
+  private final NextStageFactory nextFactory;
   private final ByteBuffer netInputBuffer;
   private final ByteBuffer netOutputBuffer;
   private final ByteBuffer inputBuffer;
   private final ByteBuffer outputBuffer;
   private final SSLEngine sslEngine;
+  private Connection connection;
+  private Stage next;
+  // Null unless the SSL engine rejected the handshake.
+  private SSLException handshakeFailure;
   private boolean readAfterWrite;
   private boolean writeAfterRead;
 
   public SslClientStage(
       Pipeline parent,
-      Stage next,
+      NextStageFactory nextFactory,
       SSLEngine sslEngine,
       ByteBuffer netInputBuffer,
       ByteBuffer netOutputBuffer,
       ByteBuffer inputBuffer,
       ByteBuffer outputBuffer) {
     this.parent = parent;
-    this.next = next;
+    this.nextFactory = nextFactory;
     this.netInputBuffer = netInputBuffer;
     this.netOutputBuffer = netOutputBuffer;
     this.inputBuffer = inputBuffer;
@@ -54,8 +73,31 @@ final class SslClientStage implements Stage {
   }
 
   @Override
-  public InitialConnectionState connect(Connection connection) {
-    return next.connect(connection);
+  public InitialConnectionState connect(@SuppressWarnings("hiding") Connection connection) {
+    this.connection = connection;
+    // The client sends the first handshake message.
+    return InitialConnectionState.WRITE_ONLY;
+  }
+
+  /**
+   * Creates and connects the next stage once the handshake is complete; we only know the
+   * application protocol at that point. Returns false if the next stage already exists.
+   */
+  private boolean connectNext() {
+    if (next != null) {
+      return false;
+    }
+    String protocol = sslEngine.getApplicationProtocol();
+    parent.log("SSL ALPN=%s", protocol);
+    next = nextFactory.create(protocol == null ? "" : protocol);
+    InitialConnectionState state = next.connect(connection);
+    if (state != InitialConnectionState.WRITE_ONLY) {
+      parent.encourageReads();
+    }
+    if (state != InitialConnectionState.READ_ONLY) {
+      parent.encourageWrites();
+    }
+    return true;
   }
 
   private void checkStatus() {
@@ -76,7 +118,13 @@ final class SslClientStage implements Stage {
     if (netInputBuffer.hasRemaining()) {
       parent.log("Unwrapping: net_in=%d app_in=%d", Integer.valueOf(netInputBuffer.remaining()), Integer.valueOf(inputBuffer.remaining()));
       inputBuffer.compact();
-      SSLEngineResult result = sslEngine.unwrap(netInputBuffer, inputBuffer);
+      SSLEngineResult result;
+      try {
+        result = sslEngine.unwrap(netInputBuffer, inputBuffer);
+      } catch (SSLException e) {
+        handshakeFailure = e;
+        throw e;
+      }
       inputBuffer.flip();
       parent.log("After unwrapping: net_in=%d app_in=%d", Integer.valueOf(netInputBuffer.remaining()), Integer.valueOf(inputBuffer.remaining()));
       parent.log("STATUS=%s", result);
@@ -102,11 +150,22 @@ final class SslClientStage implements Stage {
       readAfterWrite = true;
       return ConnectionControl.PAUSE;
     }
-    return next.read();
+    connectNext();
+    ConnectionControl nextState = next.read();
+    if (nextState == ConnectionControl.NEED_MORE_DATA && netInputBuffer.hasRemaining()) {
+      // We only unwrap one record per call, and the network engine doesn't call us again for the
+      // remaining records if we ask for more data.
+      return ConnectionControl.CONTINUE;
+    }
+    return nextState;
   }
 
   @Override
   public void inputClosed() throws IOException {
+    if (next == null) {
+      parent.close();
+      return;
+    }
     sslEngine.closeInbound();
     next.inputClosed();
   }
@@ -117,12 +176,19 @@ final class SslClientStage implements Stage {
       parent.encourageReads();
       readAfterWrite = false;
     }
-    ConnectionControl nextState = next.write();
+    // Application data has to wait until the handshake is complete.
+    ConnectionControl nextState = next != null ? next.write() : ConnectionControl.PAUSE;
     // invariant: both netOutputBuffer and outputBuffer are readable
     if (!netOutputBuffer.hasRemaining() && (outputBuffer.hasRemaining() || sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)) {
       parent.log("Wrapping: app_out=%d net_out=%d", Integer.valueOf(outputBuffer.remaining()), Integer.valueOf(netOutputBuffer.remaining()));
       netOutputBuffer.clear(); // prepare for writing
-      SSLEngineResult result = sslEngine.wrap(outputBuffer, netOutputBuffer);
+      SSLEngineResult result;
+      try {
+        result = sslEngine.wrap(outputBuffer, netOutputBuffer);
+      } catch (SSLException e) {
+        handshakeFailure = e;
+        throw e;
+      }
       netOutputBuffer.flip(); // prepare for reading
       parent.log("After Wrapping: app_out=%d net_out=%d", Integer.valueOf(outputBuffer.remaining()), Integer.valueOf(netOutputBuffer.remaining()));
       if (result.getStatus() == Status.CLOSED) {
@@ -140,11 +206,24 @@ final class SslClientStage implements Stage {
     if (sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
       return ConnectionControl.CONTINUE;
     }
+    if (connectNext()) {
+      return outputBuffer.hasRemaining() ? ConnectionControl.CONTINUE : ConnectionControl.PAUSE;
+    }
+    if (outputBuffer.hasRemaining()
+        && (nextState == ConnectionControl.PAUSE
+            || nextState == ConnectionControl.CLOSE_CONNECTION_AFTER_FLUSH)) {
+      // We only wrap one record per call; the next stage is asked again once it's all sent.
+      return ConnectionControl.CONTINUE;
+    }
     return nextState;
   }
 
   @Override
   public void close() {
-    next.close();
+    if (next != null) {
+      next.close();
+    } else {
+      nextFactory.closedDuringHandshake(handshakeFailure);
+    }
   }
 }
\ No newline at end of file
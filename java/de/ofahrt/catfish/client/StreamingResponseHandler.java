@@ -0,0 +1,53 @@
+package de.ofahrt.catfish.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import de.ofahrt.catfish.model.HttpResponse;
+
+/**
+ * Receives a response while it arrives: first the status line and headers, then the body in
+ * pieces, and finally a call to {@link #done}, so that the body never has to be held in memory as
+ * a whole. Transfer codings such as chunked are removed; content codings such as gzip are not.
+ *
+ * <p>All methods are called on a network thread and must not block. A handler that cannot keep
+ * up returns false from {@link #isReady}; the client then stops reading from the connection (or,
+ * for HTTP/2, stops extending the stream's flow control window) until the callback passed to
+ * {@link #whenReady} runs. The handler may still receive data that was already read from the
+ * network, up to one network buffer or, for HTTP/2, the stream's flow control window.
+ */
+public interface StreamingResponseHandler {
+  /**
+   * Called once with the final response; the body of the given response is empty. Interim (1xx)
+   * responses are not passed on.
+   */
+  void headers(HttpResponse response);
+
+  /**
+   * Called for each piece of the body with the remaining bytes of the given buffer, which is only
+   * valid during the call. Throwing an exception aborts the response; the client then closes the
+   * connection (or resets the stream) and calls {@link #failed} with the exception.
+   */
+  void body(ByteBuffer data) throws IOException;
+
+  /** Called once after the last piece of the body. */
+  void done();
+
+  /**
+   * Called instead of {@link #done} if the response cannot be received completely, possibly after
+   * the headers and parts of the body.
+   */
+  void failed(Exception exception);
+
+  /** Returns whether the handler can currently accept more of the body. */
+  default boolean isReady() {
+    return true;
+  }
+
+  /**
+   * Runs the given callback once the handler may be ready to accept more of the body. The callback
+   * may be run immediately, or later on an arbitrary thread.
+   */
+  default void whenReady(Runnable callback) {
+    callback.run();
+  }
+}
@@ -107,6 +107,10 @@ public final class HttpConnection implements Closeable {
         length = in.read(buffer);
         offset = 0;
         if (length < 0) {
+          length = 0;
+          if (parser.endOfInput()) {
+            break;
+          }
           try {
             // At least try to close the socket.
             socket.close();
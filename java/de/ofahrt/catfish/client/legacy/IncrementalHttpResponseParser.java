@@ -4,8 +4,10 @@ import java.util.Arrays;
 
 import de.ofahrt.catfish.model.HttpHeaderName;
 import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpStatusCode;
 import de.ofahrt.catfish.model.MalformedResponseException;
 import de.ofahrt.catfish.model.SimpleHttpResponse;
+import de.ofahrt.catfish.utils.HttpConnectionHeader;
 
 final class IncrementalHttpResponseParser {
 
@@ -15,6 +17,7 @@ final class IncrementalHttpResponseParser {
     // message-header = field-name ":" [ field-value ]
     MESSAGE_HEADER_NAME, MESSAGE_HEADER_NAME_OR_CONTINUATION, MESSAGE_HEADER_VALUE,
     CONTENT,
+    CONTENT_UNTIL_CLOSE,
     CHUNKED_CONTENT_LENGTH,
     CHUNKED_CONTENT_DATA,
     CHUNKED_CONTENT_NEXT,
@@ -277,6 +280,11 @@ final class IncrementalHttpResponseParser {
               if ("chunked".equals(transferEncoding)) {
                 state = State.CHUNKED_CONTENT_LENGTH;
               }
+            } else if (HttpStatusCode.mayHaveBody(response.getStatusCode())
+                && HttpConnectionHeader.CLOSE.equals(response.getHeader(HttpHeaderName.CONNECTION))) {
+              // The body ends when the server closes the connection; see endOfInput.
+              content = new byte[0];
+              state = State.CONTENT_UNTIL_CLOSE;
             } else {
               done = true;
               return i + 1;
@@ -302,6 +310,15 @@ final class IncrementalHttpResponseParser {
             }
           }
           break;
+        case CONTENT_UNTIL_CLOSE : {
+            int maxCopy = length - i;
+            if (content.length > maxContentLength - maxCopy) {
+              throw new MalformedResponseException("Too large content length");
+            }
+            content = Arrays.copyOf(content, content.length + maxCopy);
+            System.arraycopy(input, offset + i, content, content.length - maxCopy, maxCopy);
+            return length;
+          }
         case CHUNKED_CONTENT_LENGTH :
           if (c == '\r') {
             expectLineFeed = true;
@@ -372,6 +389,18 @@ final class IncrementalHttpResponseParser {
     return done;
   }
 
+  /**
+   * Tells the parser that the connection was closed. Returns true if this completes the response,
+   * which is the case if the response body is delimited by closing the connection.
+   */
+  public boolean endOfInput() {
+    if (state == State.CONTENT_UNTIL_CLOSE && !done) {
+      response.setBody(content);
+      done = true;
+    }
+    return done;
+  }
+
   public HttpResponse getResponse() throws MalformedResponseException {
     if (!done) {
       throw new IllegalStateException("No parsed response available!");
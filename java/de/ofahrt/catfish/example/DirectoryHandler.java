@@ -1,11 +1,17 @@
 package de.ofahrt.catfish.example;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import de.ofahrt.catfish.model.HttpHeaderName;
 import de.ofahrt.catfish.model.HttpHeaders;
 import de.ofahrt.catfish.model.HttpMethodName;
@@ -15,18 +21,43 @@ import de.ofahrt.catfish.model.StandardResponses;
 import de.ofahrt.catfish.model.network.Connection;
 import de.ofahrt.catfish.model.server.HttpHandler;
 import de.ofahrt.catfish.model.server.HttpResponseWriter;
+import de.ofahrt.catfish.utils.HttpAcceptEncoding;
+import de.ofahrt.catfish.utils.HttpByteRange;
 import de.ofahrt.catfish.utils.HttpDate;
+import de.ofahrt.catfish.utils.HttpPreconditions;
 import de.ofahrt.catfish.utils.MimeType;
 import de.ofahrt.catfish.utils.MimeTypeRegistry;
+import de.ofahrt.catfish.utils.StaticAssetManifest;
+import de.ofahrt.catfish.utils.StaticFileCache;
 
 public final class DirectoryHandler implements HttpHandler {
+  private static final String GZIP_SUFFIX = ".gz";
+
   private final String internalPath;
+  private final StaticFileCache cache;
+  private final StaticAssetManifest manifest;
 
   public DirectoryHandler(String internalPath) {
+    this(internalPath, null);
+  }
+
+  public DirectoryHandler(String internalPath, StaticFileCache cache) {
+    this(internalPath, cache, null);
+  }
+
+  /**
+   * Serves files from the given directory. If a cache is given, file contents are served from
+   * memory, and the file system is only consulted when the cache needs to revalidate an entry. If
+   * a manifest is given, files are also served under their fingerprinted names, with a policy that
+   * allows clients to cache them forever.
+   */
+  public DirectoryHandler(String internalPath, StaticFileCache cache, StaticAssetManifest manifest) {
     if (!internalPath.endsWith("/")) {
       throw new IllegalArgumentException("Path must end with a '/'");
     }
     this.internalPath = internalPath;
+    this.cache = cache;
+    this.manifest = manifest;
   }
 
   @Override
@@ -36,49 +67,172 @@ public final class DirectoryHandler implements HttpHandler {
       return;
     }
 
-    File f;
+    String filename;
     try {
-      f = getFile(request);
+      filename = getFilename(request);
     } catch (URISyntaxException e) {
       responseWriter.commitBuffered(StandardResponses.BAD_REQUEST);
       return;
     }
-    if (!f.exists() || !f.isFile() || f.isHidden() || !f.canRead()) {
-      // Silently return 404.
-      responseWriter.commitBuffered(StandardResponses.NOT_FOUND);
-      return;
+    StaticAssetManifest.Asset asset = manifest != null ? manifest.resolve(filename) : null;
+    File f = new File(new File(internalPath), asset != null ? asset.getName() : filename);
+    StaticFileCache.Entry entry = null;
+    long lastModified;
+    if (cache != null) {
+      try {
+        entry = f.isHidden() ? null : cache.get(f.toPath());
+      } catch (AccessDeniedException e) {
+        entry = null;
+      }
+      if (entry == null) {
+        // Silently return 404.
+        responseWriter.commitBuffered(StandardResponses.NOT_FOUND);
+        return;
+      }
+      lastModified = entry.getLastModified();
+    } else {
+      if (!f.exists() || !f.isFile() || f.isHidden() || !f.canRead()) {
+        // Silently return 404.
+        responseWriter.commitBuffered(StandardResponses.NOT_FOUND);
+        return;
+      }
+      lastModified = f.lastModified();
+    }
+
+    MimeType mimeType = MimeTypeRegistry.guessFromFilename(f.getName());
+    boolean compressible = mimeType.isCompressible();
+    String etag = entry != null ? cache.getETag(entry) : null;
+
+    // Select the representation first, since the validators depend on it. Ranges always refer to
+    // the uncompressed representation.
+    String rangeText = request.getHeaders().get(HttpHeaderName.RANGE);
+    boolean gzip = compressible && rangeText == null && HttpAcceptEncoding.GZIP.equals(
+        HttpAcceptEncoding.negotiate(
+            request.getHeaders().get(HttpHeaderName.ACCEPT_ENCODING), HttpAcceptEncoding.GZIP));
+    ByteBuffer gzipContent = null;
+    File gzipFile = null;
+    if (gzip) {
+      if (entry != null && entry.hasContent()) {
+        gzipContent = cache.getGzipContent(entry);
+        gzip = gzipContent != null;
+      } else {
+        // Serve a precompressed sibling, so that we never compress static files on the fly.
+        gzipFile = new File(f.getPath() + GZIP_SUFFIX);
+        gzip = gzipFile.isFile() && gzipFile.lastModified() >= lastModified;
+      }
     }
 
-    long lastModified = f.lastModified();
-    HttpHeaders headers = HttpHeaders.of(
-        HttpHeaderName.LAST_MODIFIED, HttpDate.formatDate(lastModified),
-        HttpHeaderName.CONTENT_TYPE, guessContentType(f));
+    Map<String, String> headerMap = new HashMap<>();
+    headerMap.put(HttpHeaderName.LAST_MODIFIED, HttpDate.formatDate(lastModified));
+    headerMap.put(HttpHeaderName.CONTENT_TYPE, toContentType(mimeType));
+    if (compressible) {
+      // The representation depends on Accept-Encoding, even if this particular one is uncompressed.
+      headerMap.put(HttpHeaderName.VARY, HttpHeaderName.ACCEPT_ENCODING);
+    }
+    headerMap.put(HttpHeaderName.ACCEPT_RANGES, HttpByteRange.BYTES_UNIT);
+    if (asset != null && asset.isCurrent(entry != null ? entry.getSize() : f.length(), lastModified)) {
+      headerMap.put(HttpHeaderName.CACHE_CONTROL, StaticAssetManifest.IMMUTABLE_CACHE_CONTROL);
+    }
+    String representationETag = etag != null && gzip ? HttpPreconditions.variant(etag, HttpAcceptEncoding.GZIP) : etag;
+    if (representationETag != null) {
+      headerMap.put(HttpHeaderName.ETAG, representationETag);
+    }
+    HttpHeaders headers = HttpHeaders.of(headerMap);
 
-    String ifModifiedSinceText = request.getHeaders().get(HttpHeaderName.IF_MODIFIED_SINCE);
-    if (ifModifiedSinceText != null) {
-      long ifModifiedSince = HttpDate.parseDate(ifModifiedSinceText);
-      if (ifModifiedSince >= lastModified) {
-        HttpResponse response = StandardResponses.NOT_MODIFIED.withHeaderOverrides(headers);
-        responseWriter.commitBuffered(response);
+    switch (HttpPreconditions.evaluate(
+        request.getMethod(), request.getHeaders()::get, representationETag, lastModified)) {
+      case NOT_MODIFIED:
+        responseWriter.commitBuffered(StandardResponses.NOT_MODIFIED.withHeaderOverrides(headers));
+        return;
+      case PRECONDITION_FAILED:
+        responseWriter.commitBuffered(StandardResponses.PRECONDITION_FAILED);
+        return;
+      case PROCEED:
+        break;
+    }
+
+    if (rangeText != null
+        && HttpByteRange.ifRangeMatches(request.getHeaders().get(HttpHeaderName.IF_RANGE), etag, lastModified)) {
+      long length = entry != null ? entry.getSize() : f.length();
+      List<HttpByteRange> ranges = HttpByteRange.parse(rangeText, length);
+      if (ranges != null) {
+        sendRanges(responseWriter, headers, ranges, length, entry, f);
         return;
       }
     }
 
     HttpResponse response = StandardResponses.OK.withHeaderOverrides(headers);
-    try (OutputStream out = responseWriter.commitStreamed(response)) {
-      try (FileInputStream in = new FileInputStream(f)) {
-        byte[] buffer = new byte[1024];
-        int len;
-        while ((len = in.read(buffer)) > 0) {
-          out.write(buffer, 0, len);
-        }
+    if (gzip) {
+      response = response.withHeaderOverrides(
+          HttpHeaders.of(HttpHeaderName.CONTENT_ENCODING, HttpAcceptEncoding.GZIP));
+      if (gzipContent != null) {
+        responseWriter.commitBuffered(response, gzipContent);
+      } else {
+        sendFile(responseWriter, response, gzipFile);
+      }
+    } else if (entry != null && entry.hasContent()) {
+      responseWriter.commitBuffered(response, entry.getContent());
+    } else {
+      sendFile(responseWriter, response, f);
+    }
+  }
+
+  private static void sendRanges(
+      HttpResponseWriter responseWriter,
+      HttpHeaders headers,
+      List<HttpByteRange> ranges,
+      long length,
+      StaticFileCache.Entry entry,
+      File f) throws IOException {
+    if (ranges.isEmpty()) {
+      responseWriter.commitBuffered(StandardResponses.RANGE_NOT_SATISFIABLE.withHeaderOverrides(
+          HttpHeaders.of(HttpHeaderName.CONTENT_RANGE, HttpByteRange.unsatisfiedContentRange(length))));
+      return;
+    }
+    ByteBuffer content = entry != null ? entry.getContent() : null;
+    HttpResponse partial = StandardResponses.PARTIAL_CONTENT.withHeaderOverrides(headers);
+    if (ranges.size() == 1) {
+      HttpByteRange range = ranges.get(0);
+      HttpResponse response = partial.withHeaderOverrides(
+          HttpHeaders.of(HttpHeaderName.CONTENT_RANGE, range.toContentRange(length)));
+      if (content != null) {
+        responseWriter.commitBuffered(response, range.slice(content));
+      } else {
+        sendFile(responseWriter, response, f, range.getFirst(), range.getLength());
+      }
+      return;
+    }
+    String boundary = HttpByteRange.newBoundary();
+    HttpResponse response = partial.withHeaderOverrides(
+        HttpHeaders.of(HttpHeaderName.CONTENT_TYPE, HttpByteRange.multipartContentType(boundary)));
+    String contentType = headers.get(HttpHeaderName.CONTENT_TYPE);
+    if (content != null) {
+      try (OutputStream out = responseWriter.commitStreamed(response)) {
+        HttpByteRange.writeMultipart(out, boundary, contentType, ranges, length, content);
+      }
+    } else {
+      try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+          OutputStream out = responseWriter.commitStreamed(response)) {
+        HttpByteRange.writeMultipart(out, boundary, contentType, ranges, length, channel);
       }
     }
   }
 
-  private File getFile(HttpRequest request) throws URISyntaxException {
-    String filename = getFilename(request);
-    return new File(new File(internalPath), filename);
+  private static void sendFile(HttpResponseWriter responseWriter, HttpResponse response, File f) throws IOException {
+    sendFile(responseWriter, response, f, 0, -1);
+  }
+
+  /** Sends the given region of the file; a negative length means up to the end of the file. */
+  private static void sendFile(
+      HttpResponseWriter responseWriter, HttpResponse response, File f, long position, long length)
+      throws IOException {
+    FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+    try {
+      responseWriter.commitFile(response, channel, position, length < 0 ? channel.size() - position : length);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
   }
 
   private static String getFilename(HttpRequest request) throws URISyntaxException {
@@ -93,8 +247,7 @@ public final class DirectoryHandler implements HttpHandler {
     return filename;
   }
 
-  private static final String guessContentType(File f) {
-    MimeType mimeType = MimeTypeRegistry.guessFromFilename(f.getName());
+  private static final String toContentType(MimeType mimeType) {
     if (mimeType.isText()) {
       return mimeType.toString() + "; charset=UTF-8";
     } else {
@@ -19,6 +19,8 @@ import de.ofahrt.catfish.model.server.ResponsePolicy;
 import de.ofahrt.catfish.model.server.UploadPolicy;
 import de.ofahrt.catfish.ssl.SSLContextFactory;
 import de.ofahrt.catfish.ssl.SSLContextFactory.SSLInfo;
+import de.ofahrt.catfish.utils.FileMetadataCache;
+import de.ofahrt.catfish.utils.StaticFileCache;
 
 public class ExampleMain {
 
@@ -79,7 +81,9 @@ public class ExampleMain {
         .exact("/post", new CheckPostHandler())
         .exact("/", new TraceHandler())
         .exact("/large", new LargeResponseHandler(16536))
-        .directory("/public/", new DirectoryHandler("/tmp/public/"))
+        .directory("/public/", new DirectoryHandler("/tmp/public/", new StaticFileCache.Builder()
+            .setMetadataCache(new FileMetadataCache.Builder().build())
+            .build()))
         .build();
     handler = new BasicHttpHandler(handler);
 
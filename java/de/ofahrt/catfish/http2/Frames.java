@@ -0,0 +1,144 @@
+package de.ofahrt.catfish.http2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes HTTP/2 frame headers, and encodes the control frames, as specified in RFC 9113
+ * section 4 and 6. Every frame starts with a nine byte header: a 24 bit payload length, the frame
+ * type, the flags, and a 31 bit stream id.
+ */
+public final class Frames {
+  /** The bytes a client sends first on every HTTP/2 connection, before its SETTINGS frame. */
+  public static final byte[] CONNECTION_PREFACE =
+      "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  public static final int HEADER_LENGTH = 9;
+
+  /** The largest frame payload that every endpoint must accept. */
+  public static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+  /** The largest frame payload that an endpoint may allow. */
+  public static final int MAX_MAX_FRAME_SIZE = (1 << 24) - 1;
+  /** The largest flow-control window. */
+  public static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+  public static final int FLAG_END_STREAM = 0x1;
+  public static final int FLAG_ACK = 0x1;
+  public static final int FLAG_END_HEADERS = 0x4;
+  public static final int FLAG_PADDED = 0x8;
+  public static final int FLAG_PRIORITY = 0x20;
+
+  public static final int SETTING_LENGTH = 6;
+  public static final int PING_LENGTH = 8;
+  public static final int WINDOW_UPDATE_LENGTH = 4;
+  public static final int RST_STREAM_LENGTH = 4;
+  public static final int PRIORITY_LENGTH = 5;
+
+  public static int getLength(byte[] data, int offset) {
+    return ((data[offset] & 0xff) << 16) | ((data[offset + 1] & 0xff) << 8) | (data[offset + 2] & 0xff);
+  }
+
+  public static int getType(byte[] data, int offset) {
+    return data[offset + 3] & 0xff;
+  }
+
+  public static int getFlags(byte[] data, int offset) {
+    return data[offset + 4] & 0xff;
+  }
+
+  /** Returns the stream id, ignoring the reserved bit. */
+  public static int getStreamId(byte[] data, int offset) {
+    return getInt(data, offset + 5) & 0x7fffffff;
+  }
+
+  public static int getInt(byte[] data, int offset) {
+    return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+        | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+  }
+
+  /** Writes a frame header at the current position of the given buffer. */
+  public static void writeHeader(ByteBuffer out, int length, int type, int flags, int streamId) {
+    out.put((byte) (length >> 16));
+    out.put((byte) (length >> 8));
+    out.put((byte) length);
+    out.put((byte) type);
+    out.put((byte) flags);
+    out.putInt(streamId & 0x7fffffff);
+  }
+
+  /** Writes a frame header at the given index, leaving the buffer's position unchanged. */
+  public static void writeHeader(ByteBuffer out, int index, int length, int type, int flags, int streamId) {
+    out.put(index, (byte) (length >> 16));
+    out.put(index + 1, (byte) (length >> 8));
+    out.put(index + 2, (byte) length);
+    out.put(index + 3, (byte) type);
+    out.put(index + 4, (byte) flags);
+    out.putInt(index + 5, streamId & 0x7fffffff);
+  }
+
+  /** Returns a SETTINGS frame with the given identifier and value pairs. */
+  public static byte[] settings(int... idsAndValues) {
+    if (idsAndValues.length % 2 != 0) {
+      throw new IllegalArgumentException("Settings must be given as pairs of id and value");
+    }
+    ByteBuffer frame = allocate(idsAndValues.length / 2 * SETTING_LENGTH);
+    writeHeader(frame, frame.capacity() - HEADER_LENGTH, FrameType.SETTINGS, 0, 0);
+    for (int i = 0; i < idsAndValues.length; i += 2) {
+      frame.putShort((short) idsAndValues[i]);
+      frame.putInt(idsAndValues[i + 1]);
+    }
+    return frame.array();
+  }
+
+  public static byte[] settingsAck() {
+    ByteBuffer frame = allocate(0);
+    writeHeader(frame, 0, FrameType.SETTINGS, FLAG_ACK, 0);
+    return frame.array();
+  }
+
+  /** Returns a PING frame with the given payload, which must be eight bytes long. */
+  public static byte[] ping(byte[] data, int offset, boolean ack) {
+    ByteBuffer frame = allocate(PING_LENGTH);
+    writeHeader(frame, PING_LENGTH, FrameType.PING, ack ? FLAG_ACK : 0, 0);
+    frame.put(data, offset, PING_LENGTH);
+    return frame.array();
+  }
+
+  public static byte[] windowUpdate(int streamId, int increment) {
+    if (increment <= 0) {
+      throw new IllegalArgumentException("Window increment must be positive, but is " + increment);
+    }
+    ByteBuffer frame = allocate(WINDOW_UPDATE_LENGTH);
+    writeHeader(frame, WINDOW_UPDATE_LENGTH, FrameType.WINDOW_UPDATE, 0, streamId);
+    frame.putInt(increment);
+    return frame.array();
+  }
+
+  public static byte[] rstStream(int streamId, int errorCode) {
+    ByteBuffer frame = allocate(RST_STREAM_LENGTH);
+    writeHeader(frame, RST_STREAM_LENGTH, FrameType.RST_STREAM, 0, streamId);
+    frame.putInt(errorCode);
+    return frame.array();
+  }
+
+  /** Returns a GOAWAY frame; the debug message may be null. */
+  public static byte[] goAway(int lastStreamId, int errorCode, String debugMessage) {
+    byte[] debugData = debugMessage == null
+        ? new byte[0]
+        : debugMessage.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = allocate(8 + debugData.length);
+    writeHeader(frame, 8 + debugData.length, FrameType.GOAWAY, 0, 0);
+    frame.putInt(lastStreamId);
+    frame.putInt(errorCode);
+    frame.put(debugData);
+    return frame.array();
+  }
+
+  private static ByteBuffer allocate(int payloadLength) {
+    return ByteBuffer.allocate(HEADER_LENGTH + payloadLength);
+  }
+
+  private Frames() {
+    // Not instantiable.
+  }
+}
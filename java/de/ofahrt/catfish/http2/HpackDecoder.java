@@ -0,0 +1,159 @@
+package de.ofahrt.catfish.http2;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541). A connection uses one decoder for all header blocks it
+ * receives, in the order in which they arrive, since each block may change the dynamic table.
+ * Names and values are decoded as ISO-8859-1, matching the HTTP/1.1 parser.
+ *
+ * <p>Any error is a connection error of type COMPRESSION_ERROR: once a block could not be decoded,
+ * the dynamic table is out of sync with the peer's encoder.
+ */
+public final class HpackDecoder {
+  public interface HeaderListener {
+    void header(String name, String value);
+  }
+
+  private final HpackTable table;
+  private int maxTableSizeLimit;
+
+  /** Creates a decoder whose dynamic table may grow up to the default size of 4096 bytes. */
+  public HpackDecoder() {
+    this(HpackTable.DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Creates a decoder whose dynamic table may grow up to the given size, which must match the
+   * SETTINGS_HEADER_TABLE_SIZE that was sent to the peer.
+   */
+  public HpackDecoder(int maxTableSizeLimit) {
+    this.table = new HpackTable(maxTableSizeLimit);
+    this.maxTableSizeLimit = maxTableSizeLimit;
+  }
+
+  /** Returns the current size of the dynamic table, as defined in RFC 7541 section 4.1. */
+  public int getTableSize() {
+    return table.getSize();
+  }
+
+  /** Decodes a complete header block and passes the fields to the listener in order. */
+  public void decode(byte[] data, int offset, int length, HeaderListener listener)
+      throws Http2Exception {
+    Reader reader = new Reader(data, offset, offset + length);
+    boolean sizeUpdateAllowed = true;
+    while (reader.hasRemaining()) {
+      int b = reader.peek();
+      if ((b & 0x80) != 0) {
+        // Indexed header field.
+        int index = reader.readInt(7);
+        checkIndex(index);
+        listener.header(table.getName(index), table.getValue(index));
+      } else if ((b & 0xc0) == 0x40) {
+        // Literal header field with incremental indexing.
+        int index = reader.readInt(6);
+        String name = index == 0 ? reader.readString() : getName(index);
+        String value = reader.readString();
+        table.add(name, value);
+        listener.header(name, value);
+      } else if ((b & 0xe0) == 0x20) {
+        if (!sizeUpdateAllowed) {
+          throw new Http2Exception(
+              ErrorCode.COMPRESSION_ERROR, "Dynamic table size update after the first header field");
+        }
+        int maxSize = reader.readInt(5);
+        if (maxSize > maxTableSizeLimit) {
+          throw new Http2Exception(ErrorCode.COMPRESSION_ERROR, String.format(
+              "Dynamic table size %d exceeds the limit of %d",
+              Integer.valueOf(maxSize), Integer.valueOf(maxTableSizeLimit)));
+        }
+        table.setMaxSize(maxSize);
+        continue;
+      } else {
+        // Literal header field without indexing, or never indexed.
+        int index = reader.readInt(4);
+        String name = index == 0 ? reader.readString() : getName(index);
+        String value = reader.readString();
+        listener.header(name, value);
+      }
+      sizeUpdateAllowed = false;
+    }
+  }
+
+  private void checkIndex(int index) throws Http2Exception {
+    if (index < 1 || index > table.length()) {
+      throw new Http2Exception(ErrorCode.COMPRESSION_ERROR, "Illegal header table index " + index);
+    }
+  }
+
+  private String getName(int index) throws Http2Exception {
+    checkIndex(index);
+    return table.getName(index);
+  }
+
+  private static final class Reader {
+    private final byte[] data;
+    private final int end;
+    private int position;
+
+    Reader(byte[] data, int position, int end) {
+      this.data = data;
+      this.position = position;
+      this.end = end;
+    }
+
+    boolean hasRemaining() {
+      return position < end;
+    }
+
+    int peek() {
+      return data[position] & 0xff;
+    }
+
+    private int next() throws Http2Exception {
+      if (position >= end) {
+        throw new Http2Exception(ErrorCode.COMPRESSION_ERROR, "Truncated header block");
+      }
+      return data[position++] & 0xff;
+    }
+
+    // RFC 7541 section 5.1.
+    int readInt(int prefixBits) throws Http2Exception {
+      int mask = (1 << prefixBits) - 1;
+      int result = next() & mask;
+      if (result < mask) {
+        return result;
+      }
+      int shift = 0;
+      int b;
+      do {
+        b = next();
+        if (shift > 21 && (b & 0x7f) > 0) {
+          // Values beyond 2^28 are not useful for anything in HTTP/2.
+          throw new Http2Exception(ErrorCode.COMPRESSION_ERROR, "Integer overflow in header block");
+        }
+        result += (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return result;
+    }
+
+    // RFC 7541 section 5.2.
+    String readString() throws Http2Exception {
+      boolean huffman = hasRemaining() && (peek() & 0x80) != 0;
+      int length = readInt(7);
+      if (length > end - position) {
+        throw new Http2Exception(ErrorCode.COMPRESSION_ERROR, "Truncated string literal");
+      }
+      String result;
+      if (huffman) {
+        byte[] decoded = HpackHuffman.decode(data, position, length);
+        result = new String(decoded, StandardCharsets.ISO_8859_1);
+      } else {
+        result = new String(data, position, length, StandardCharsets.ISO_8859_1);
+      }
+      position += length;
+      return result;
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package de.ofahrt.catfish.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Encodes HPACK header blocks (RFC 7541). A connection uses one encoder for all header blocks it
+ * sends, and must send the blocks in the order in which they were encoded.
+ *
+ * <p>Fields that match a table entry are sent as an index. Other fields are added to the dynamic
+ * table, except for values that rarely repeat, such as content lengths, and for credentials,
+ * which are marked as never indexed. String literals are Huffman-encoded if that is shorter.
+ */
+public final class HpackEncoder {
+  private final HpackTable table = new HpackTable(HpackTable.DEFAULT_MAX_SIZE);
+  // The smallest size the table had since the last header block, or -1 if it did not change.
+  private int minPendingMaxSize = -1;
+
+  /**
+   * Limits the dynamic table to the given size, which the peer sent as its
+   * SETTINGS_HEADER_TABLE_SIZE. The encoder never uses more than the default of 4096 bytes.
+   */
+  public void setMaxHeaderTableSize(int maxSize) {
+    int newMaxSize = Math.min(maxSize, HpackTable.DEFAULT_MAX_SIZE);
+    if (newMaxSize == table.getMaxSize()) {
+      return;
+    }
+    minPendingMaxSize = minPendingMaxSize < 0 ? newMaxSize : Math.min(minPendingMaxSize, newMaxSize);
+    table.setMaxSize(newMaxSize);
+  }
+
+  /** Encodes the given fields, in order, as a single header block. */
+  public byte[] encode(Iterable<? extends Map.Entry<String, String>> fields) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (minPendingMaxSize >= 0) {
+      // The decoder must see the smallest size first so that it evicts the same entries.
+      if (minPendingMaxSize < table.getMaxSize()) {
+        writeInt(out, 0x20, 5, minPendingMaxSize);
+      }
+      writeInt(out, 0x20, 5, table.getMaxSize());
+      minPendingMaxSize = -1;
+    }
+    for (Map.Entry<String, String> field : fields) {
+      encode(out, field.getKey(), field.getValue());
+    }
+    return out.toByteArray();
+  }
+
+  private void encode(ByteArrayOutputStream out, String name, String value) {
+    if (isSensitive(name)) {
+      writeLiteral(out, 0x10, 4, table.find(name, null), name, value);
+      return;
+    }
+    int index = table.find(name, value);
+    if (index > 0) {
+      writeInt(out, 0x80, 7, index);
+    } else if (isRarelyRepeated(name)) {
+      writeLiteral(out, 0x00, 4, index, name, value);
+    } else {
+      writeLiteral(out, 0x40, 6, index, name, value);
+      table.add(name, value);
+    }
+  }
+
+  private static boolean isSensitive(String name) {
+    return "authorization".equals(name)
+        || "proxy-authorization".equals(name)
+        || "cookie".equals(name)
+        || "set-cookie".equals(name);
+  }
+
+  private static boolean isRarelyRepeated(String name) {
+    return "content-length".equals(name)
+        || "date".equals(name)
+        || "etag".equals(name)
+        || "last-modified".equals(name)
+        || "location".equals(name)
+        || ":path".equals(name);
+  }
+
+  // The name index is negative if only the name matched; see HpackTable.find.
+  private static void writeLiteral(
+      ByteArrayOutputStream out, int pattern, int prefixBits, int nameIndex, String name, String value) {
+    if (nameIndex < 0) {
+      writeInt(out, pattern, prefixBits, -nameIndex);
+    } else {
+      writeInt(out, pattern, prefixBits, 0);
+      writeString(out, name);
+    }
+    writeString(out, value);
+  }
+
+  // RFC 7541 section 5.1.
+  private static void writeInt(ByteArrayOutputStream out, int pattern, int prefixBits, int value) {
+    int mask = (1 << prefixBits) - 1;
+    if (value < mask) {
+      out.write(pattern | value);
+      return;
+    }
+    out.write(pattern | mask);
+    value -= mask;
+    while (value >= 0x80) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  // RFC 7541 section 5.2.
+  private static void writeString(ByteArrayOutputStream out, String s) {
+    byte[] data = s.getBytes(StandardCharsets.ISO_8859_1);
+    int huffmanLength = HpackHuffman.encodedLength(data);
+    if (huffmanLength < data.length) {
+      writeInt(out, 0x80, 7, huffmanLength);
+      HpackHuffman.encode(data, out);
+    } else {
+      writeInt(out, 0x00, 7, data.length);
+      out.write(data, 0, data.length);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package de.ofahrt.catfish.http2;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * The Huffman code for HPACK string literals (RFC 7541 Appendix B). The code is canonical, so the
+ * codes follow from the code lengths alone: codes of the same length are consecutive in symbol
+ * order, and shorter codes precede longer ones.
+ */
+final class HpackHuffman {
+  private static final int EOS = 256;
+  private static final int MAX_CODE_LENGTH = 30;
+
+  private static final int[] CODE_LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+      28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+      6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+      5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+      13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+      15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+      6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+      20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+      24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+      22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+      21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+      26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+      19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+      20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+      26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+      30,
+  };
+
+  private static final int[] CODES = new int[CODE_LENGTHS.length];
+  // Decoding tables, indexed by code length.
+  private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+  private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 1];
+  private static final int[] FIRST_INDEX = new int[MAX_CODE_LENGTH + 1];
+  // All symbols, ordered by code.
+  private static final int[] SYMBOLS = new int[CODE_LENGTHS.length];
+
+  static {
+    for (int length : CODE_LENGTHS) {
+      CODE_COUNT[length]++;
+    }
+    int code = 0;
+    int index = 0;
+    for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+      code <<= 1;
+      FIRST_CODE[length] = code;
+      FIRST_INDEX[length] = index;
+      for (int symbol = 0; symbol < CODE_LENGTHS.length; symbol++) {
+        if (CODE_LENGTHS[symbol] == length) {
+          CODES[symbol] = code++;
+          SYMBOLS[index++] = symbol;
+        }
+      }
+    }
+  }
+
+  /** Returns the number of bytes that {@link #encode} writes for the given data. */
+  static int encodedLength(byte[] data) {
+    long bits = 0;
+    for (byte b : data) {
+      bits += CODE_LENGTHS[b & 0xff];
+    }
+    return (int) ((bits + 7) / 8);
+  }
+
+  static void encode(byte[] data, ByteArrayOutputStream out) {
+    long current = 0;
+    int bits = 0;
+    for (byte b : data) {
+      int symbol = b & 0xff;
+      current = (current << CODE_LENGTHS[symbol]) | CODES[symbol];
+      bits += CODE_LENGTHS[symbol];
+      while (bits >= 8) {
+        bits -= 8;
+        out.write((int) (current >> bits));
+      }
+    }
+    if (bits > 0) {
+      // Pad with the most significant bits of the EOS code, which are all ones.
+      out.write((int) ((current << (8 - bits)) | (0xff >> bits)));
+    }
+  }
+
+  static byte[] decode(byte[] data, int offset, int length) throws Http2Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(length * 8 / 5);
+    int code = 0;
+    int codeLength = 0;
+    for (int i = offset; i < offset + length; i++) {
+      for (int bit = 7; bit >= 0; bit--) {
+        code = (code << 1) | ((data[i] >> bit) & 1);
+        codeLength++;
+        int index = code - FIRST_CODE[codeLength];
+        if (index >= 0 && index < CODE_COUNT[codeLength]) {
+          int symbol = SYMBOLS[FIRST_INDEX[codeLength] + index];
+          if (symbol == EOS) {
+            throw new Http2Exception(ErrorCode.COMPRESSION_ERROR, "Huffman-encoded string contains EOS");
+          }
+          out.write(symbol);
+          code = 0;
+          codeLength = 0;
+        } else if (codeLength == MAX_CODE_LENGTH) {
+          throw new Http2Exception(ErrorCode.COMPRESSION_ERROR, "Illegal Huffman code");
+        }
+      }
+    }
+    if (codeLength > 7 || code != (1 << codeLength) - 1) {
+      throw new Http2Exception(ErrorCode.COMPRESSION_ERROR, "Illegal Huffman padding");
+    }
+    return out.toByteArray();
+  }
+
+  private HpackHuffman() {
+    // Not instantiable.
+  }
+}
@@ -0,0 +1,187 @@
+package de.ofahrt.catfish.http2;
+
+/**
+ * The HPACK index address space (RFC 7541 section 2.3): the static table at indices 1 to 61,
+ * followed by the dynamic table, newest entry first. Each side of a connection keeps one dynamic
+ * table per direction; the encoder and decoder must apply the same insertions and evictions.
+ */
+final class HpackTable {
+  static final int DEFAULT_MAX_SIZE = 4096;
+
+  // Every entry is accounted with this overhead in addition to the length of name and value.
+  private static final int ENTRY_OVERHEAD = 32;
+
+  private static final String[][] STATIC_TABLE = {
+    { ":authority", "" },
+    { ":method", "GET" },
+    { ":method", "POST" },
+    { ":path", "/" },
+    { ":path", "/index.html" },
+    { ":scheme", "http" },
+    { ":scheme", "https" },
+    { ":status", "200" },
+    { ":status", "204" },
+    { ":status", "206" },
+    { ":status", "304" },
+    { ":status", "400" },
+    { ":status", "404" },
+    { ":status", "500" },
+    { "accept-charset", "" },
+    { "accept-encoding", "gzip, deflate" },
+    { "accept-language", "" },
+    { "accept-ranges", "" },
+    { "accept", "" },
+    { "access-control-allow-origin", "" },
+    { "age", "" },
+    { "allow", "" },
+    { "authorization", "" },
+    { "cache-control", "" },
+    { "content-disposition", "" },
+    { "content-encoding", "" },
+    { "content-language", "" },
+    { "content-length", "" },
+    { "content-location", "" },
+    { "content-range", "" },
+    { "content-type", "" },
+    { "cookie", "" },
+    { "date", "" },
+    { "etag", "" },
+    { "expect", "" },
+    { "expires", "" },
+    { "from", "" },
+    { "host", "" },
+    { "if-match", "" },
+    { "if-modified-since", "" },
+    { "if-none-match", "" },
+    { "if-range", "" },
+    { "if-unmodified-since", "" },
+    { "last-modified", "" },
+    { "link", "" },
+    { "location", "" },
+    { "max-forwards", "" },
+    { "proxy-authenticate", "" },
+    { "proxy-authorization", "" },
+    { "range", "" },
+    { "referer", "" },
+    { "refresh", "" },
+    { "retry-after", "" },
+    { "server", "" },
+    { "set-cookie", "" },
+    { "strict-transport-security", "" },
+    { "transfer-encoding", "" },
+    { "user-agent", "" },
+    { "vary", "" },
+    { "via", "" },
+    { "www-authenticate", "" },
+  };
+
+  static final int STATIC_TABLE_LENGTH = STATIC_TABLE.length;
+
+  static int entrySize(String name, String value) {
+    return name.length() + value.length() + ENTRY_OVERHEAD;
+  }
+
+  // A ring buffer of dynamic entries; the newest entry is at index first.
+  private String[][] entries = new String[16][];
+  private int first;
+  private int count;
+  private int size;
+  private int maxSize;
+
+  HpackTable(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /** Returns the number of valid indices, which start at 1. */
+  int length() {
+    return STATIC_TABLE_LENGTH + count;
+  }
+
+  int dynamicEntryCount() {
+    return count;
+  }
+
+  int getSize() {
+    return size;
+  }
+
+  int getMaxSize() {
+    return maxSize;
+  }
+
+  String getName(int index) {
+    return getEntry(index)[0];
+  }
+
+  String getValue(int index) {
+    return getEntry(index)[1];
+  }
+
+  private String[] getEntry(int index) {
+    if (index < 1 || index > length()) {
+      throw new IndexOutOfBoundsException("Index out of range: " + index);
+    }
+    if (index <= STATIC_TABLE_LENGTH) {
+      return STATIC_TABLE[index - 1];
+    }
+    return entries[(first + index - STATIC_TABLE_LENGTH - 1) % entries.length];
+  }
+
+  /**
+   * Returns the index of an entry with the given name and value if there is one. Otherwise,
+   * returns the negated index of an entry with the given name, or zero if there is none.
+   */
+  int find(String name, String value) {
+    int nameIndex = 0;
+    for (int i = 1; i <= length(); i++) {
+      String[] entry = getEntry(i);
+      if (entry[0].equals(name)) {
+        if (entry[1].equals(value)) {
+          return i;
+        }
+        if (nameIndex == 0) {
+          nameIndex = -i;
+        }
+      }
+    }
+    return nameIndex;
+  }
+
+  /**
+   * Inserts a new entry, evicting the oldest entries as needed. An entry that is larger than the
+   * maximum size empties the table and is not inserted.
+   */
+  void add(String name, String value) {
+    int entrySize = entrySize(name, value);
+    evict(maxSize - entrySize);
+    if (entrySize > maxSize) {
+      return;
+    }
+    if (count == entries.length) {
+      String[][] newEntries = new String[entries.length * 2][];
+      for (int i = 0; i < count; i++) {
+        newEntries[i] = entries[(first + i) % entries.length];
+      }
+      entries = newEntries;
+      first = 0;
+    }
+    first = (first + entries.length - 1) % entries.length;
+    entries[first] = new String[] { name, value };
+    count++;
+    size += entrySize;
+  }
+
+  void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+    evict(maxSize);
+  }
+
+  private void evict(int targetSize) {
+    while (count > 0 && size > targetSize) {
+      int last = (first + count - 1) % entries.length;
+      size -= entrySize(entries[last][0], entries[last][1]);
+      entries[last] = null;
+      count--;
+    }
+  }
+}
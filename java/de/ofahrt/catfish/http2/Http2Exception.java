@@ -0,0 +1,38 @@
+package de.ofahrt.catfish.http2;
+
+import java.io.IOException;
+
+/**
+ * Signals a violation of the HTTP/2 protocol. If the stream id is zero, this is a connection
+ * error, and the connection must be closed with a GOAWAY frame; otherwise it is a stream error,
+ * and only the given stream is reset.
+ */
+public final class Http2Exception extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final int errorCode;
+  private final int streamId;
+
+  public Http2Exception(int errorCode, String message) {
+    this(errorCode, 0, message);
+  }
+
+  public Http2Exception(int errorCode, int streamId, String message) {
+    super(message);
+    this.errorCode = errorCode;
+    this.streamId = streamId;
+  }
+
+  /** Returns one of the codes in {@link ErrorCode}. */
+  public int getErrorCode() {
+    return errorCode;
+  }
+
+  public int getStreamId() {
+    return streamId;
+  }
+
+  public boolean isConnectionError() {
+    return streamId == 0;
+  }
+}
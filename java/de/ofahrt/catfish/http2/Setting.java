@@ -15,4 +15,22 @@ public enum Setting {
     this.id = id;
     this.initialValue = initialValue;
   }
+
+  public int getId() {
+    return id;
+  }
+
+  public int getInitialValue() {
+    return initialValue;
+  }
+
+  /** Returns the setting with the given identifier, or null for unknown settings. */
+  public static Setting forId(int id) {
+    for (Setting setting : values()) {
+      if (setting.id == id) {
+        return setting;
+      }
+    }
+    return null;
+  }
 }
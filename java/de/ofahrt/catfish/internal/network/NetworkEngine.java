@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
@@ -17,6 +18,7 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.PriorityQueue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
@@ -38,6 +40,9 @@ public final class NetworkEngine {
 
   private static final boolean OUTGOING_CONNECTION = true;
   private static final boolean INCOMING_CONNECTION = false;
+  // The JDK default is 50. If more clients connect at the same time, the kernel drops their
+  // connection requests, and they only retry after a second or more.
+  private static final int LISTEN_BACKLOG = 1024;
 
   private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("uuuu-MM-dd HH:mm:ss.SSS");
 
@@ -52,6 +57,19 @@ public final class NetworkEngine {
   public interface NetworkHandler {
     boolean usesSsl();
     Stage connect(Pipeline pipeline, ByteBuffer inputBuffer, ByteBuffer outputBuffer);
+
+    /**
+     * Called instead of {@link #connect} if an outgoing connection cannot be established, for
+     * example because it is refused or times out. Called on the network thread.
+     */
+    default void connectFailed(@SuppressWarnings("unused") IOException e) {
+    }
+  }
+
+  /** A task that runs once on a network thread, unless it is cancelled first. */
+  public interface ScheduledTask {
+    /** Cancels the task; this is safe to call from any thread, even if the task already ran. */
+    void cancel();
   }
 
   private interface EventHandler {
@@ -108,7 +126,6 @@ public final class NetworkEngine {
   };
 
   private enum ConnectionState {
-    CONNECTING,
     OPEN,
     CLOSING,
     CLOSED;
@@ -161,14 +178,7 @@ public final class NetworkEngine {
           DATE_FORMATTER.format(
               ZonedDateTime.ofInstant(
                   Instant.ofEpochMilli(connection.startTimeMillis()), ZoneId.systemDefault())));
-      if (outgoing) {
-        state = ConnectionState.CONNECTING;
-        readState = FlowState.PAUSED;
-        writeState = FlowState.PAUSED;
-        key.interestOps(SelectionKey.OP_CONNECT);
-      } else {
-        connect();
-      }
+      connect();
     }
 
     private void connect() {
@@ -250,19 +260,6 @@ public final class NetworkEngine {
           // There's nothing we can do if this fails.
           networkEventListener.notifyInternalError(connection, ignored);
         }
-      } else if (state == ConnectionState.CONNECTING) {
-        if (key.isConnectable()) {
-          try {
-            if (!socketChannel.finishConnect()) {
-              throw new IllegalStateException("This should not be possible");
-            }
-            connect();
-          } catch (IOException e) {
-            first.close();
-            // TODO: This is not really an error.
-            networkEventListener.notifyInternalError(connection, e);
-          }
-        }
       } else {
         try {
           // Read data from the network if data is available.
@@ -408,6 +405,20 @@ public final class NetworkEngine {
             outputBuffer.compact(); // prepare for writing
             outputBuffer.flip(); // prepare for reading
           }
+          // Let the stage send file data straight to the socket, bypassing the output buffer.
+          if (!outputBuffer.hasRemaining() && writeState == FlowState.OPEN && key.isWritable()) {
+            long transferred;
+            try {
+              transferred = first.transferTo(socketChannel);
+            } catch (IOException e) {
+              networkEventListener.warning(connection, e);
+              close();
+              return;
+            }
+            if (transferred >= 0) {
+              log("Transferred %d bytes", Long.valueOf(transferred));
+            }
+          }
           if (!outputBuffer.hasRemaining()) {
             // There's no remaining data to be written.
             if (writeState == FlowState.CLOSE_AFTER_FLUSH) {
@@ -458,6 +469,86 @@ public final class NetworkEngine {
     }
   }
 
+  /** Waits for an outgoing connection to be established, and then hands it to a SocketHandler. */
+  private final class ConnectHandler implements EventHandler {
+    private final SelectorQueue queue;
+    private final SocketChannel socketChannel;
+    private final SelectionKey key;
+    private final InetSocketAddress remoteAddress;
+    private final NetworkHandler handler;
+    private boolean done;
+    // Null if the connection has no timeout.
+    private ScheduledTask timeoutTask;
+
+    ConnectHandler(
+        SelectorQueue queue,
+        SocketChannel socketChannel,
+        SelectionKey key,
+        InetSocketAddress remoteAddress,
+        NetworkHandler handler) {
+      this.queue = queue;
+      this.socketChannel = socketChannel;
+      this.key = key;
+      this.remoteAddress = remoteAddress;
+      this.handler = handler;
+    }
+
+    @Override
+    public void handleEvent() {
+      if (done || !key.isConnectable()) {
+        return;
+      }
+      try {
+        if (!socketChannel.finishConnect()) {
+          return;
+        }
+      } catch (IOException e) {
+        fail(e);
+        return;
+      }
+      connected();
+    }
+
+    void connected() {
+      finish();
+      openCounter.incrementAndGet();
+      Connection connection = new Connection(
+          (InetSocketAddress) socketChannel.socket().getLocalSocketAddress(),
+          remoteAddress,
+          handler.usesSsl());
+      SocketHandler socketHandler =
+          new SocketHandler(
+              queue, connection, socketChannel, key, handler, queue.logHandler, OUTGOING_CONNECTION);
+      key.attach(socketHandler);
+    }
+
+    void timeout() {
+      if (!done) {
+        fail(new SocketTimeoutException("Connect to " + remoteAddress + " timed out"));
+      }
+    }
+
+    private void fail(IOException e) {
+      finish();
+      key.cancel();
+      try {
+        socketChannel.close();
+      } catch (IOException e1) {
+        e.addSuppressed(e1);
+      }
+      handler.connectFailed(e);
+    }
+
+    private void finish() {
+      done = true;
+      if (timeoutTask != null) {
+        // Drops the reference to this handler, even though the timer stays queued.
+        timeoutTask.cancel();
+        timeoutTask = null;
+      }
+    }
+  }
+
   private final class ServerSocketHandler implements EventHandler {
     private final ServerSocketChannel serverChannel;
     private final SelectionKey key;
@@ -515,11 +606,32 @@ public final class NetworkEngine {
     }
   }
 
+  private static final class Timer implements ScheduledTask {
+    private final long deadlineNanos;
+    // Cleared on cancellation, so that cancelled tasks don't keep their state alive until their
+    // deadline passes.
+    private volatile Runnable task;
+
+    Timer(long deadlineNanos, Runnable task) {
+      this.deadlineNanos = deadlineNanos;
+      this.task = task;
+    }
+
+    @Override
+    public void cancel() {
+      task = null;
+    }
+  }
+
   private final class SelectorQueue implements Runnable {
     private final int id;
     private final Selector selector;
     private final BlockingQueue<Runnable> eventQueue = new LinkedBlockingQueue<>();
     private final BlockingQueue<Runnable> shutdownQueue = new LinkedBlockingQueue<>();
+    // Scheduled tasks, earliest deadline first. Cancelled tasks are only removed once their
+    // deadline passes.
+    private final PriorityQueue<Timer> timers =
+        new PriorityQueue<>((a, b) -> Long.compare(a.deadlineNanos - b.deadlineNanos, 0));
     private final LogHandler logHandler;
     private boolean shutdown;
     private final AtomicBoolean shutdownInitiated = new AtomicBoolean();
@@ -547,7 +659,7 @@ public final class NetworkEngine {
           ServerSocketChannel serverChannel = ServerSocketChannel.open();
           serverChannel.configureBlocking(false);
           serverChannel.socket().setReuseAddress(true);
-          serverChannel.socket().bind(new InetSocketAddress(address, port));
+          serverChannel.socket().bind(new InetSocketAddress(address, port), LISTEN_BACKLOG);
           SelectionKey key = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
           networkEventListener.portOpened(new NetworkServer() {
             @Override
@@ -586,19 +698,18 @@ public final class NetworkEngine {
       }
     }
 
-    public void connect(InetAddress address, int port, NetworkHandler handler) throws IOException, InterruptedException {
+    public void connect(InetAddress address, int port, NetworkHandler handler, long timeoutNanos) {
       if (shutdownInitiated.get()) {
         throw new IllegalStateException();
       }
-      CountDownLatch latch = new CountDownLatch(1);
-      AtomicReference<IOException> thrownException = new AtomicReference<>();
       queue(() -> {
+        if (shutdown) {
+          handler.connectFailed(new IOException("Network engine was shut down"));
+          return;
+        }
+        SocketChannel socketChannel = null;
         try {
-          if (shutdown) {
-            return;
-          }
-          @SuppressWarnings("resource")
-          SocketChannel socketChannel = SocketChannel.open();
+          socketChannel = SocketChannel.open();
           socketChannel.configureBlocking(false);
           socketChannel.socket().setTcpNoDelay(true);
           socketChannel.socket().setKeepAlive(true);
@@ -606,25 +717,70 @@ public final class NetworkEngine {
 //          socketChannel.socket().bind(new InetSocketAddress(address, port));
 //        socketChannel.socket().setSoLinger(false, 0);
           InetSocketAddress remoteAddress = new InetSocketAddress(address, port);
-          socketChannel.connect(remoteAddress);
-          Connection connection = new Connection(
-              (InetSocketAddress) socketChannel.socket().getLocalSocketAddress(),
-              remoteAddress,
-              handler.usesSsl());
-          SelectionKey key = socketChannel.register(selector, 0);
-          SocketHandler socketHandler =
-              new SocketHandler(
-                  this, connection, socketChannel, key, handler, logHandler, OUTGOING_CONNECTION);
-          key.attach(socketHandler);
+          SelectionKey key = socketChannel.register(selector, SelectionKey.OP_CONNECT);
+          ConnectHandler connectHandler =
+              new ConnectHandler(this, socketChannel, key, remoteAddress, handler);
+          key.attach(connectHandler);
+          if (socketChannel.connect(remoteAddress)) {
+            // Local connections may be established right away.
+            connectHandler.connected();
+          } else if (timeoutNanos > 0) {
+            Timer timer = new Timer(System.nanoTime() + timeoutNanos, connectHandler::timeout);
+            timers.add(timer);
+            connectHandler.timeoutTask = timer;
+          }
         } catch (IOException e) {
-          thrownException.set(e);
+          if (socketChannel != null) {
+            try {
+              socketChannel.close();
+            } catch (IOException e1) {
+              e.addSuppressed(e1);
+            }
+          }
+          handler.connectFailed(e);
         }
-        latch.countDown();
       });
-      latch.await();
-      IOException e = thrownException.get();
-      if (e != null) {
-        throw e;
+    }
+
+    private ScheduledTask schedule(Runnable task, long delayNanos) {
+      if (shutdownInitiated.get()) {
+        throw new IllegalStateException();
+      }
+      Timer timer = new Timer(System.nanoTime() + delayNanos, task);
+      queue(() -> timers.add(timer));
+      return timer;
+    }
+
+    private void runTimers() {
+      long now = System.nanoTime();
+      Timer timer;
+      while ((timer = timers.peek()) != null && timer.deadlineNanos - now <= 0) {
+        timers.poll();
+        Runnable task = timer.task;
+        if (task == null) {
+          continue;
+        }
+        timer.task = null;
+        try {
+          task.run();
+        } catch (Exception e) {
+          networkEventListener.notifyInternalError(null, e);
+        }
+      }
+    }
+
+    private void select() throws IOException {
+      Timer nextTimer = timers.peek();
+      if (nextTimer == null) {
+        selector.select();
+        return;
+      }
+      long timeoutMillis =
+          TimeUnit.NANOSECONDS.toMillis(nextTimer.deadlineNanos - System.nanoTime() + 999_999);
+      if (timeoutMillis <= 0) {
+        selector.selectNow();
+      } else {
+        selector.select(timeoutMillis);
       }
     }
 
@@ -665,7 +821,7 @@ public final class NetworkEngine {
   //            System.out.println(
   //                "PENDING: " + (openCounter.get() - closedCounter.get()) + " REJECTED " + rejectedCounter.get());
   //          }
-          selector.select();
+          select();
   //        if (DEBUG) {
   //          System.out.printf(
   //              "Queue=%d, Keys=%d\n", Integer.valueOf(id), Integer.valueOf(selector.keys().size()));
@@ -687,6 +843,7 @@ public final class NetworkEngine {
             }
           }
           selector.selectedKeys().clear();
+          runTimers();
         }
         while (!shutdownQueue.isEmpty()) {
           shutdownQueue.remove().run();
@@ -733,8 +890,22 @@ public final class NetworkEngine {
     getQueueForConnection().listenPort(address, port, handler);
   }
 
-  public void connect(InetAddress address, int port, NetworkHandler handler) throws IOException, InterruptedException {
-    getQueueForConnection().connect(address, port, handler);
+  /**
+   * Opens a connection to the given address without blocking. Once the connection is established,
+   * the handler's {@link NetworkHandler#connect} is called on the network thread; if it cannot be
+   * established within the given timeout, {@link NetworkHandler#connectFailed} is called instead.
+   * A timeout of zero waits indefinitely.
+   */
+  public void connect(InetAddress address, int port, NetworkHandler handler, long timeout, TimeUnit unit) {
+    getQueueForConnection().connect(address, port, handler, unit.toNanos(timeout));
+  }
+
+  /**
+   * Runs the given task on a network thread once the given delay has passed, unless it is
+   * cancelled first. Tasks must not block, as they hold up all connections of that thread.
+   */
+  public ScheduledTask schedule(Runnable task, long delay, TimeUnit unit) {
+    return getQueueForConnection().schedule(task, unit.toNanos(delay));
   }
 
   public void shutdown() throws InterruptedException {
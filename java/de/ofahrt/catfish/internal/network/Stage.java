@@ -1,6 +1,7 @@
 package de.ofahrt.catfish.internal.network;
 
 import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
 import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
 import de.ofahrt.catfish.model.network.Connection;
 
@@ -98,6 +99,16 @@ public interface Stage {
    */
   ConnectionControl write() throws IOException;
 
+  /**
+   * Writes data directly to the given channel, bypassing the output buffer. The network engine
+   * calls this on the first stage whenever the output buffer is empty and the channel is writable.
+   * Returns the number of bytes written, or -1 if the stage has no such data pending. Stages that
+   * transform outgoing data, such as encryption, must not forward this call.
+   */
+  default long transferTo(@SuppressWarnings("unused") WritableByteChannel channel) throws IOException {
+    return -1;
+  }
+
   /**
    * Called upon closure of the connection. In case of an outgoing connection, this may be called
    * without a previous call to {@link #connect} if the connection attempt fails outright. Most
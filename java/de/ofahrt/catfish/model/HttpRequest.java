@@ -1,19 +1,162 @@
 package de.ofahrt.catfish.model;
 
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReference;
+
 public interface HttpRequest {
   interface Body {
   }
 
-  public static final class InMemoryBody implements Body {
+  public static final class InMemoryBody implements Body, Closeable {
     private final byte[] body;
+    private final AtomicReference<Runnable> releaseCallback;
 
     public InMemoryBody(byte[] body) {
+      this(body, null);
+    }
+
+    /**
+     * Creates a body whose memory is accounted for elsewhere; the given callback is run once when
+     * the body is closed, i.e., when the server is done with the request.
+     */
+    public InMemoryBody(byte[] body, Runnable releaseCallback) {
       this.body = body;
+      this.releaseCallback = new AtomicReference<>(releaseCallback);
     }
 
     public byte[] toByteArray() {
       return body;
     }
+
+    @Override
+    public void close() {
+      Runnable callback = releaseCallback.getAndSet(null);
+      if (callback != null) {
+        callback.run();
+      }
+    }
+  }
+
+  /**
+   * A request body that was spooled to a file. The file is owned by the body and is deleted when
+   * the body is closed; the server closes the body once the response to the request is complete.
+   */
+  public static final class FileBody implements Body, Closeable {
+    private final Path path;
+    private final long size;
+    private volatile boolean closed;
+
+    public FileBody(Path path, long size) {
+      this.path = path;
+      this.size = size;
+    }
+
+    public Path getPath() {
+      return path;
+    }
+
+    public long size() {
+      return size;
+    }
+
+    public FileChannel openChannel() throws IOException {
+      if (closed) {
+        throw new IOException("Body is closed");
+      }
+      return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    public InputStream openInputStream() throws IOException {
+      return Channels.newInputStream(openChannel());
+    }
+
+    /**
+     * Returns a read-only memory mapping of the entire body. The body must not be closed yet.
+     * Whether the mapping survives closing the body depends on the platform, and on some platforms
+     * the file cannot be deleted while it is mapped, so the mapping should not be used after the
+     * response to the request is complete.
+     */
+    public MappedByteBuffer map() throws IOException {
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Body is too large to be mapped: " + size + " bytes");
+      }
+      try (FileChannel channel = openChannel()) {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+    }
+
+    public byte[] toByteArray() throws IOException {
+      if (size > Integer.MAX_VALUE - 8) {
+        throw new IOException("Body is too large for a byte array: " + size + " bytes");
+      }
+      // Read rather than map the file, so that it can be deleted right away on all platforms.
+      ByteBuffer result = ByteBuffer.allocate((int) size);
+      try (FileChannel channel = openChannel()) {
+        while (result.hasRemaining()) {
+          if (channel.read(result) < 0) {
+            throw new EOFException("Body file is shorter than " + size + " bytes");
+          }
+        }
+      }
+      return result.array();
+    }
+
+    @Override
+    public void close() throws IOException {
+      closed = true;
+      Files.deleteIfExists(path);
+    }
+  }
+
+  /**
+   * A request body that is read while the request is sent, so it never has to be in memory as a
+   * whole. The client reads it on its network thread, so reading must not block for long, as is
+   * the case for files and in-memory data. If the channel is a file channel, the body is read from
+   * its current position. A length of -1 means that the length is unknown.
+   *
+   * <p>The body can only be sent once. The client closes it once the request is sent, or the
+   * connection closes.
+   */
+  public static final class StreamBody implements Body, Closeable {
+    private final ReadableByteChannel channel;
+    private final long length;
+
+    public StreamBody(InputStream in, long length) {
+      this(Channels.newChannel(in), length);
+    }
+
+    public StreamBody(ReadableByteChannel channel, long length) {
+      if (length < -1) {
+        throw new IllegalArgumentException("Length must be -1 or at least 0, but is " + length);
+      }
+      this.channel = channel;
+      this.length = length;
+    }
+
+    public ReadableByteChannel getChannel() {
+      return channel;
+    }
+
+    /** Returns the length of the body, or -1 if it is unknown. */
+    public long getLength() {
+      return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
   }
 
   default HttpVersion getVersion() {
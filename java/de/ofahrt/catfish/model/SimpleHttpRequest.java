@@ -102,6 +102,10 @@ public final class SimpleHttpRequest implements HttpRequest {
       return new SimpleHttpRequest(this);
     }
 
+    public HttpVersion getVersion() {
+      return version;
+    }
+
     public Builder setVersion(HttpVersion version) {
       this.version = version;
       return this;
@@ -142,6 +146,15 @@ public final class SimpleHttpRequest implements HttpRequest {
       return headers.get(key);
     }
 
+    public Builder removeHeader(String key) {
+      headers.remove(HttpHeaderName.canonicalize(key));
+      return this;
+    }
+
+    public Body getBody() {
+      return body;
+    }
+
     public Builder setBody(Body body) {
       this.body = body;
       return this;
@@ -157,6 +170,11 @@ public final class SimpleHttpRequest implements HttpRequest {
       return this;
     }
 
+    public Builder setError(HttpResponse errorResponse) {
+      this.errorResponse = Preconditions.checkNotNull(errorResponse);
+      return this;
+    }
+
     public boolean hasError() {
       return errorResponse != null;
     }
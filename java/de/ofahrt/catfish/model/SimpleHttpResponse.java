@@ -112,6 +112,10 @@ public final class SimpleHttpResponse implements HttpResponse {
       return this;
     }
 
+    public int getStatusCode() {
+      return statusCode;
+    }
+
     public String getHeader(String name) {
       return headers.get(name);
     }
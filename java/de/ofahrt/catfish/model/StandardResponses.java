@@ -4,6 +4,7 @@ public interface StandardResponses {
   // 200
   public static final HttpResponse OK = new PreconstructedResponse(HttpStatusCode.OK);
   public static final HttpResponse NO_CONTENT = new PreconstructedResponse(HttpStatusCode.NO_CONTENT);
+  public static final HttpResponse PARTIAL_CONTENT = new PreconstructedResponse(HttpStatusCode.PARTIAL_CONTENT);
 
   // 300
   public static final HttpResponse NOT_MODIFIED = new PreconstructedResponse(HttpStatusCode.NOT_MODIFIED); // 304
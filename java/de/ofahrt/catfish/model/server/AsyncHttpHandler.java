@@ -0,0 +1,42 @@
+package de.ofahrt.catfish.model.server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.network.Connection;
+
+/**
+ * A handler that does not hold a thread while it waits, for example for a database or an upstream
+ * server. The server calls {@link #handleAsync} on a worker thread, which must return quickly; the
+ * handler then commits the response from whichever thread completes its work, and completes the
+ * returned stage afterwards. Large bodies should be written with
+ * {@link HttpResponseWriter#commitNonBlocking}, which never blocks.
+ *
+ * <p>If the stage completes exceptionally, or completes without a response having been committed,
+ * the server sends a 500 response instead.
+ *
+ * <p>Wrappers that only know about {@link HttpHandler} call {@link #handle}, which waits for the
+ * stage to complete; register async handlers with the server directly to avoid this.
+ */
+public interface AsyncHttpHandler extends HttpHandler {
+  CompletionStage<Void> handleAsync(
+      Connection connection,
+      HttpRequest request,
+      HttpResponseWriter responseWriter);
+
+  @Override
+  default void handle(
+      Connection connection,
+      HttpRequest request,
+      HttpResponseWriter responseWriter) throws IOException {
+    try {
+      handleAsync(connection, request, responseWriter).toCompletableFuture().join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw e;
+    }
+  }
+}
@@ -12,6 +12,7 @@ import de.ofahrt.catfish.model.network.Connection;
 
 public final class BasicHttpHandler implements HttpHandler {
   private static final String MESSAGE_HTTP_CONTENT_TYPE = "message/http";
+  private static final String EXPECT_CONTINUE = "100-continue";
   private static final HttpHeaders TRACE_HEADERS =
       HttpHeaders.of(HttpHeaderName.CONTENT_TYPE, MESSAGE_HTTP_CONTENT_TYPE);
 
@@ -26,7 +27,9 @@ public final class BasicHttpHandler implements HttpHandler {
       Connection connection,
       HttpRequest request,
       HttpResponseWriter responseWriter) throws IOException {
-    if (request.getHeaders().get(HttpHeaderName.EXPECT) != null) {
+    String expect = request.getHeaders().get(HttpHeaderName.EXPECT);
+    // The server already answered 100-continue before reading the body.
+    if (expect != null && !EXPECT_CONTINUE.equalsIgnoreCase(expect)) {
       responseWriter.commitBuffered(StandardResponses.EXPECTATION_FAILED);
     } else if (request.getHeaders().get(HttpHeaderName.CONTENT_ENCODING) != null) {
       responseWriter.commitBuffered(StandardResponses.UNSUPPORTED_MEDIA_TYPE);
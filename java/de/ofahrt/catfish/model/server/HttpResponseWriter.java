@@ -2,9 +2,108 @@ package de.ofahrt.catfish.model.server;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import de.ofahrt.catfish.model.HttpResponse;
 
 public interface HttpResponseWriter {
   void commitBuffered(HttpResponse response) throws IOException;
   OutputStream commitStreamed(HttpResponse response) throws IOException;
+
+  /** Returns whether a response has been committed through this writer. */
+  boolean isCommitted();
+
+  /**
+   * Commits a response whose body is the remaining content of the given buffer, for example a
+   * memory-mapped file. The buffer's position is not changed, and its content must not change
+   * until the response has been sent.
+   *
+   * <p>The server's implementation sets the Content-Length header and sends the buffer from the
+   * network thread without copying it first. Like {@link #commitFile}, it does not compress the
+   * body. The default implementation copies the content and calls {@link #commitBuffered}.
+   */
+  default void commitBuffered(HttpResponse response, ByteBuffer body) throws IOException {
+    byte[] data = new byte[body.remaining()];
+    body.duplicate().get(data);
+    commitBuffered(response.withBody(data));
+  }
+
+  /**
+   * Commits a response whose body is the given region of a file. The writer takes ownership of
+   * the channel and closes it once the body has been sent, or the connection is closed.
+   *
+   * <p>Unlike {@link #commitStreamed}, the server's implementation returns immediately and sets the
+   * Content-Length header from the given length. It sends the file from the network thread, on
+   * plain connections without copying the data through user space. The body is sent as is;
+   * response compression does not apply. The default implementation copies the file through
+   * {@link #commitStreamed}.
+   */
+  default void commitFile(HttpResponse response, FileChannel channel, long position, long length)
+      throws IOException {
+    try (FileChannel in = channel;
+        OutputStream out = commitStreamed(response)) {
+      ByteBuffer buffer = ByteBuffer.allocate(8192);
+      long remaining = length;
+      while (remaining > 0) {
+        buffer.clear();
+        if (buffer.remaining() > remaining) {
+          buffer.limit((int) remaining);
+        }
+        int count = in.read(buffer, position);
+        if (count < 0) {
+          throw new IOException("File is shorter than the declared response length");
+        }
+        out.write(buffer.array(), 0, count);
+        position += count;
+        remaining -= count;
+      }
+    }
+  }
+
+  /**
+   * Commits a response whose body is written through the returned {@link NonBlockingResponseBody}.
+   * This is meant for {@link AsyncHttpHandler}s, which must not block.
+   *
+   * <p>The server's implementation never blocks; like {@link #commitFile}, it does not compress
+   * the body. The default implementation writes through {@link #commitStreamed}, so its writes may
+   * block, and it is always ready.
+   */
+  default NonBlockingResponseBody commitNonBlocking(HttpResponse response) throws IOException {
+    OutputStream out = commitStreamed(response);
+    return new NonBlockingResponseBody() {
+      @Override
+      public int write(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (data.hasArray()) {
+          out.write(data.array(), data.arrayOffset() + data.position(), length);
+          data.position(data.limit());
+        } else {
+          byte[] copy = new byte[length];
+          data.get(copy);
+          out.write(copy);
+        }
+        return length;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void onReady(Runnable callback) {
+        callback.run();
+      }
+
+      @Override
+      public void flush() throws IOException {
+        out.flush();
+      }
+
+      @Override
+      public void close() throws IOException {
+        out.close();
+      }
+    };
+  }
 }
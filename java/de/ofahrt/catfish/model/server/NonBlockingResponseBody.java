@@ -0,0 +1,38 @@
+package de.ofahrt.catfish.model.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The body of a response that is written without blocking. Writes copy as much data as fits into
+ * the response buffer and return immediately; when the buffer is full, the writer registers a
+ * callback with {@link #onReady} and continues once the network has drained some of the data.
+ *
+ * <p>Implementations are thread-safe, but the writes of a response must not be interleaved.
+ */
+public interface NonBlockingResponseBody {
+  /**
+   * Copies as many bytes as possible from the given buffer and advances its position accordingly.
+   * Returns the number of bytes copied, which is zero if the response buffer is full.
+   *
+   * @throws IOException if the connection was closed
+   */
+  int write(ByteBuffer data) throws IOException;
+
+  /** Returns whether the next write can copy at least one byte. */
+  boolean isReady();
+
+  /**
+   * Runs the given callback once when the next write can copy at least one byte, or when the
+   * connection is closed, in which case the next write throws. If that is already the case, the
+   * callback runs immediately. Callbacks may run on a network thread and must not block. Only one
+   * callback can be registered at a time.
+   */
+  void onReady(Runnable callback);
+
+  /** Sends the data written so far without waiting for the buffer to fill up. */
+  void flush() throws IOException;
+
+  /** Completes the body. */
+  void close() throws IOException;
+}
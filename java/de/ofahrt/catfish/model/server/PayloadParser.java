@@ -5,7 +5,40 @@ import de.ofahrt.catfish.model.HttpRequest;
 
 // TODO: Rename to HttpRequestBodyParser.
 public interface PayloadParser {
+  /**
+   * Returns whether the parser can currently accept input. If this returns false, {@link #parse}
+   * must not be called until the parser becomes ready again; use {@link #whenReady} to get
+   * notified.
+   */
+  default boolean isReady() {
+    return true;
+  }
+
+  /**
+   * Runs the given callback once the parser may be ready to accept input again. The callback may
+   * be run immediately, or later on an arbitrary thread.
+   */
+  default void whenReady(Runnable callback) {
+    callback.run();
+  }
+
   int parse(byte[] input, int offset, int length);
   boolean isDone();
   HttpRequest.Body getParsedBody() throws IOException;
+
+  /**
+   * Called if the body ends before the length that the parser was created for, which happens for
+   * bodies whose length is only bounded in advance, such as decoded request bodies. Returns whether
+   * the parser accepts the shorter body; if so, it is done afterwards.
+   */
+  default boolean endOfInput() {
+    return false;
+  }
+
+  /**
+   * Called if the connection is closed before the body was completely parsed. Parsers that hold
+   * resources beyond the heap, such as temporary files, must release them here.
+   */
+  default void close() {
+  }
 }
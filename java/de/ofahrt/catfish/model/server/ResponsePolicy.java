@@ -29,4 +29,17 @@ public interface ResponsePolicy {
 
   boolean shouldKeepAlive(HttpRequest request);
   boolean shouldCompress(HttpRequest request, String mimeType);
+
+  /** Returns the deflate level (0-9) to use when compressing responses of the given MIME type. */
+  default int getCompressionLevel(String mimeType) {
+    return 6;
+  }
+
+  /**
+   * Returns the minimum body size for compressing buffered responses of the given MIME type.
+   * Smaller bodies are sent as is, since the gzip overhead outweighs the savings.
+   */
+  default int getMinCompressionSize(String mimeType) {
+    return 512;
+  }
 }
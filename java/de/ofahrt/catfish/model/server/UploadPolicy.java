@@ -38,4 +38,19 @@ public interface UploadPolicy {
    * an error on the given builder and return {@code null}.
    */
   PayloadParser accept(SimpleHttpRequest.Builder request);
+
+  /**
+   * Returns a {@link PayloadParser} for a body of the given request whose length is not known in
+   * advance, but at most the given maximum, such as a decoded request body. The parser should not
+   * reserve resources for the maximum up front, but grow as the body arrives; the end of the body
+   * is signalled through {@link PayloadParser#endOfInput}. If the upload is denied, then this
+   * method must set an error on the given builder and return {@code null}.
+   *
+   * <p>The default implementation denies all such uploads with 415 Unsupported Media Type, so that
+   * clients may retry without a content coding.
+   */
+  default PayloadParser acceptUnknownLength(SimpleHttpRequest.Builder request, long maxLength) {
+    request.setError(HttpStatusCode.UNSUPPORTED_MEDIA_TYPE);
+    return null;
+  }
 }
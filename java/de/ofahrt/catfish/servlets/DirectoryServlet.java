@@ -3,59 +3,137 @@ package de.ofahrt.catfish.servlets;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import de.ofahrt.catfish.bridge.ServletHelper;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.utils.HttpAcceptEncoding;
+import de.ofahrt.catfish.utils.HttpByteRange;
+import de.ofahrt.catfish.utils.HttpPreconditions;
 import de.ofahrt.catfish.utils.MimeType;
 import de.ofahrt.catfish.utils.MimeTypeRegistry;
+import de.ofahrt.catfish.utils.StaticAssetManifest;
+import de.ofahrt.catfish.utils.StaticFileCache;
 
 public final class DirectoryServlet extends HttpServlet {
   private static final long serialVersionUID = 1L;
 
+  private static final String GZIP_SUFFIX = ".gz";
+
   private final String internalPath;
+  private final transient StaticFileCache cache;
+  private final transient StaticAssetManifest manifest;
 
   public DirectoryServlet(String internalPath) {
+    this(internalPath, null);
+  }
+
+  public DirectoryServlet(String internalPath, StaticFileCache cache) {
+    this(internalPath, cache, null);
+  }
+
+  /**
+   * Serves files from the given directory, using the given cache if it is non-null. If a manifest
+   * is given, files are also served under their fingerprinted names.
+   */
+  public DirectoryServlet(String internalPath, StaticFileCache cache, StaticAssetManifest manifest) {
     if (!internalPath.endsWith("/")) {
       throw new IllegalArgumentException("Path must end with a '/'");
     }
     this.internalPath = internalPath;
+    this.cache = cache;
+    this.manifest = manifest;
+  }
+
+  private StaticAssetManifest.Asset getAsset(HttpServletRequest req) {
+    return manifest != null ? manifest.resolve(ServletHelper.getFilename(req)) : null;
   }
 
   private File getFile(HttpServletRequest req) {
-    String filename = ServletHelper.getFilename(req);
+    StaticAssetManifest.Asset asset = getAsset(req);
+    String filename = asset != null ? asset.getName() : ServletHelper.getFilename(req);
     return new File(new File(internalPath), filename);
   }
 
   @Override
-  protected long getLastModified(HttpServletRequest req) {
+  public void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
     File f = getFile(req);
-    if (!f.exists()) {
-      return -1;
-    }
-    if (f.isHidden()) {
-      return -1;
+    StaticFileCache.Entry entry = null;
+    if (cache != null) {
+      if (f.isHidden()) {
+        throw new IOException("File \"" + f.getPath() + "\" is hidden!");
+      }
+      entry = cache.get(f.toPath());
+      if (entry == null) {
+        throw new FileNotFoundException("File \"" + f.getPath() + "\" not found!");
+      }
+    } else {
+      if (!f.exists()) {
+        throw new FileNotFoundException("File \"" + f.getPath() + "\" not found!");
+      }
+      if (f.isHidden()) {
+        throw new IOException("File \"" + f.getPath() + "\" is hidden!");
+      }
+      if (!f.canRead()) {
+        throw new IOException("File \"" + f.getPath() + "\" not readable!");
+      }
     }
-    if (!f.canRead()) {
-      return -1;
+    MimeType fileType = MimeTypeRegistry.guessFromFilename(f.getPath());
+    boolean compressible = fileType.isCompressible();
+    long lastModified = entry != null ? entry.getLastModified() : f.lastModified();
+    String etag = entry != null ? cache.getETag(entry) : null;
+
+    // Select the representation first, since the validators depend on it. Ranges always refer to
+    // the uncompressed representation.
+    String rangeText = req.getHeader(HttpHeaderName.RANGE);
+    boolean gzip = compressible && rangeText == null && HttpAcceptEncoding.GZIP.equals(
+        HttpAcceptEncoding.negotiate(req.getHeader(HttpHeaderName.ACCEPT_ENCODING), HttpAcceptEncoding.GZIP));
+    ByteBuffer gzipContent = null;
+    File gzipFile = null;
+    if (gzip) {
+      if (entry != null && entry.hasContent()) {
+        gzipContent = cache.getGzipContent(entry);
+        gzip = gzipContent != null;
+      } else {
+        gzipFile = new File(f.getPath() + GZIP_SUFFIX);
+        gzip = gzipFile.isFile() && gzipFile.lastModified() >= f.lastModified();
+      }
     }
-    return f.lastModified();
-  }
 
-  @Override
-  public void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
-    File f = getFile(req);
-    if (!f.exists()) {
-      throw new FileNotFoundException("File \"" + f.getPath() + "\" not found!");
+    if (compressible) {
+      res.setHeader(HttpHeaderName.VARY, HttpHeaderName.ACCEPT_ENCODING);
     }
-    if (f.isHidden()) {
-      throw new IOException("File \"" + f.getPath() + "\" is hidden!");
+    res.setHeader(HttpHeaderName.ACCEPT_RANGES, HttpByteRange.BYTES_UNIT);
+    StaticAssetManifest.Asset asset = getAsset(req);
+    if (asset != null && asset.isCurrent(entry != null ? entry.getSize() : f.length(), lastModified)) {
+      res.setHeader(HttpHeaderName.CACHE_CONTROL, StaticAssetManifest.IMMUTABLE_CACHE_CONTROL);
     }
-    if (!f.canRead()) {
-      throw new IOException("File \"" + f.getPath() + "\" not readable!");
+    String representationETag = etag != null && gzip ? HttpPreconditions.variant(etag, HttpAcceptEncoding.GZIP) : etag;
+    if (representationETag != null) {
+      res.setHeader(HttpHeaderName.ETAG, representationETag);
     }
+    // Not through getLastModified, since HttpServlet would then answer If-Modified-Since by itself,
+    // ignoring If-None-Match, which takes precedence.
+    res.setDateHeader(HttpHeaderName.LAST_MODIFIED, lastModified);
+    switch (HttpPreconditions.evaluate(req.getMethod(), req::getHeader, representationETag, lastModified)) {
+      case NOT_MODIFIED:
+        res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      case PRECONDITION_FAILED:
+        res.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+        return;
+      case PROCEED:
+        break;
+    }
+
     res.setStatus(HttpServletResponse.SC_OK);
     MimeType mimeType = MimeTypeRegistry.guessFromFilename(ServletHelper.getFilename(req));
     if (mimeType.isText()) {
@@ -63,6 +141,65 @@ public final class DirectoryServlet extends HttpServlet {
     } else {
       res.setContentType(mimeType.toString());
     }
-    ServletHelper.setBodyFile(res, MimeTypeRegistry.guessFromFilename(f.getPath()), f.getPath());
+    if (rangeText != null
+        && HttpByteRange.ifRangeMatches(req.getHeader(HttpHeaderName.IF_RANGE), etag, lastModified)) {
+      long length = entry != null ? entry.getSize() : f.length();
+      List<HttpByteRange> ranges = HttpByteRange.parse(rangeText, length);
+      if (ranges != null) {
+        sendRanges(res, fileType, ranges, length, entry, f);
+        return;
+      }
+    }
+    if (gzip) {
+      // Setting the Content-Encoding header keeps the server from compressing the body again.
+      res.setHeader(HttpHeaderName.CONTENT_ENCODING, HttpAcceptEncoding.GZIP);
+      if (gzipContent != null) {
+        ServletHelper.setBodyByteBuffer(res, fileType, gzipContent);
+      } else {
+        ServletHelper.setBodyFile(res, fileType, gzipFile.getPath());
+      }
+    } else if (entry != null && entry.hasContent()) {
+      ServletHelper.setBodyByteBuffer(res, fileType, entry.getContent());
+    } else {
+      ServletHelper.setBodyFile(res, fileType, f.getPath());
+    }
+  }
+
+  private static void sendRanges(
+      HttpServletResponse res,
+      MimeType fileType,
+      List<HttpByteRange> ranges,
+      long length,
+      StaticFileCache.Entry entry,
+      File f) throws IOException {
+    if (ranges.isEmpty()) {
+      res.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      res.setHeader(HttpHeaderName.CONTENT_RANGE, HttpByteRange.unsatisfiedContentRange(length));
+      return;
+    }
+    res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    ByteBuffer content = entry != null ? entry.getContent() : null;
+    String boundary = null;
+    if (ranges.size() == 1) {
+      res.setHeader(HttpHeaderName.CONTENT_RANGE, ranges.get(0).toContentRange(length));
+      res.setContentType(fileType.toString());
+    } else {
+      boundary = HttpByteRange.newBoundary();
+      res.setContentType(HttpByteRange.multipartContentType(boundary));
+    }
+    try (OutputStream out = res.getOutputStream();
+        FileChannel channel = content == null ? FileChannel.open(f.toPath(), StandardOpenOption.READ) : null) {
+      if (boundary == null) {
+        if (content != null) {
+          ranges.get(0).write(out, content);
+        } else {
+          ranges.get(0).write(out, channel);
+        }
+      } else if (content != null) {
+        HttpByteRange.writeMultipart(out, boundary, fileType.toString(), ranges, length, content);
+      } else {
+        HttpByteRange.writeMultipart(out, boundary, fileType.toString(), ranges, length, channel);
+      }
+    }
   }
 }
@@ -0,0 +1,114 @@
+package de.ofahrt.catfish.upload;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.ZipException;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.MalformedRequestException;
+import de.ofahrt.catfish.model.StandardResponses;
+import de.ofahrt.catfish.model.server.PayloadParser;
+import de.ofahrt.catfish.utils.InflatingDecoder;
+
+/**
+ * A {@link PayloadParser} for request bodies with a gzip or deflate content coding. It consumes
+ * exactly the declared (compressed) content length from the connection and feeds the decoded bytes
+ * into an inner parser. The inner parser is usually created for a body of unknown length, and told
+ * about the end of the body through {@link PayloadParser#endOfInput} once decoding is complete.
+ *
+ * <p>Decoding stops as soon as the decoded size exceeds the configured limit, so that small
+ * compressed bodies cannot be used to exhaust memory. The remaining compressed input is still
+ * consumed to keep the connection in sync, and {@link #getParsedBody} reports 413 Payload Too
+ * Large. Corrupt input is reported as an {@link IOException}, which results in 400 Bad Request.
+ *
+ * <p>The inner parser must accept all input once it is ready; it is not asked to parse anything
+ * until {@link #isReady} returns true.
+ */
+public final class DecompressingPayloadParser implements PayloadParser {
+  private final InflatingDecoder decoder;
+  private final long maxDecodedLength;
+  private final PayloadParser inner;
+  private long remaining;
+  private IOException failure;
+
+  public DecompressingPayloadParser(
+      long contentLength, InflatingDecoder decoder, long maxDecodedLength, PayloadParser inner) {
+    this.remaining = contentLength;
+    this.decoder = decoder;
+    this.maxDecodedLength = maxDecodedLength;
+    this.inner = inner;
+  }
+
+  @Override
+  public boolean isReady() {
+    return failure != null || inner.isReady();
+  }
+
+  @Override
+  public void whenReady(Runnable callback) {
+    if (failure != null) {
+      callback.run();
+    } else {
+      inner.whenReady(callback);
+    }
+  }
+
+  @Override
+  public int parse(byte[] input, int offset, int length) {
+    int count = (int) Math.min(length, remaining);
+    remaining -= count;
+    if (failure == null) {
+      try {
+        int consumed = decoder.decode(input, offset, count, this::emit);
+        if (consumed < count) {
+          throw new ZipException("Unexpected data after the end of the compressed body");
+        }
+        if (remaining == 0 && !decoder.isFinished()) {
+          throw new EOFException("Compressed body is truncated");
+        }
+        if (decoder.isFinished() && !inner.isDone() && !inner.endOfInput()) {
+          throw new EOFException("Decoded body is incomplete");
+        }
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+    return count;
+  }
+
+  private void emit(byte[] buffer, int offset, int length) throws IOException {
+    if (decoder.getDecodedLength() > maxDecodedLength) {
+      throw new MalformedRequestException(StandardResponses.PAYLOAD_TOO_LARGE);
+    }
+    if (inner.parse(buffer, offset, length) < length) {
+      throw new ZipException("Decoded body is longer than expected");
+    }
+  }
+
+  private void fail(IOException e) {
+    failure = e;
+    decoder.close();
+    inner.close();
+  }
+
+  @Override
+  public boolean isDone() {
+    return remaining == 0;
+  }
+
+  @Override
+  public HttpRequest.Body getParsedBody() throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+    if (!inner.isDone()) {
+      throw new EOFException("Decoded body is incomplete");
+    }
+    return inner.getParsedBody();
+  }
+
+  @Override
+  public void close() {
+    decoder.close();
+    inner.close();
+  }
+}
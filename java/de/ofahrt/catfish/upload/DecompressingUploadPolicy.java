@@ -0,0 +1,90 @@
+package de.ofahrt.catfish.upload;
+
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpStatusCode;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
+import de.ofahrt.catfish.model.server.PayloadParser;
+import de.ofahrt.catfish.model.server.UploadPolicy;
+import de.ofahrt.catfish.utils.InflaterPool;
+import de.ofahrt.catfish.utils.InflatingDecoder;
+
+/**
+ * An upload policy that accepts request bodies with a gzip or deflate content coding and decodes
+ * them while they are being received. Requests without a content coding are passed to the given
+ * delegate policy. Since upload policies are configured per virtual host, decoding can be enabled
+ * for some hosts only.
+ *
+ * <p>The decoded body is stored by a parser of the delegate policy, so that its memory budget and
+ * disk spooling apply to decoded bodies as well. As the decoded length is not known in advance, the
+ * parser is obtained through {@link UploadPolicy#acceptUnknownLength}, and grows with the decoded
+ * body rather than reserving memory for the maximum decoded length up front.
+ *
+ * <p>The Content-Encoding header is removed from accepted requests, so that handlers see the
+ * decoded body. The Content-Length header still refers to the compressed size.
+ */
+public final class DecompressingUploadPolicy implements UploadPolicy {
+  private final UploadPolicy delegate;
+  private final int maxContentLength;
+  private final int maxDecodedLength;
+  private final InflaterPool inflaterPool;
+
+  public DecompressingUploadPolicy(UploadPolicy delegate, int maxContentLength, int maxDecodedLength) {
+    this(delegate, maxContentLength, maxDecodedLength, InflaterPool.DEFAULT);
+  }
+
+  public DecompressingUploadPolicy(
+      UploadPolicy delegate, int maxContentLength, int maxDecodedLength, InflaterPool inflaterPool) {
+    this.delegate = delegate;
+    this.maxContentLength = maxContentLength;
+    this.maxDecodedLength = maxDecodedLength;
+    this.inflaterPool = inflaterPool;
+  }
+
+  @Override
+  public PayloadParser accept(SimpleHttpRequest.Builder request) {
+    String contentEncoding = request.getHeader(HttpHeaderName.CONTENT_ENCODING);
+    if (contentEncoding == null) {
+      return delegate.accept(request);
+    }
+    if (!InflatingDecoder.isSupported(contentEncoding.trim())) {
+      request.setError(HttpStatusCode.UNSUPPORTED_MEDIA_TYPE);
+      return null;
+    }
+    String contentLengthValue = request.getHeader(HttpHeaderName.CONTENT_LENGTH);
+    String transferEncodingValue = request.getHeader(HttpHeaderName.TRANSFER_ENCODING);
+    if (transferEncodingValue != null && contentLengthValue != null) {
+      request.setError(HttpStatusCode.BAD_REQUEST, "Must not set both Content-Length and Transfer-Encoding");
+      return null;
+    }
+    if (transferEncodingValue != null) {
+      // TODO: Implement chunked transfer encoding.
+      request.setError(HttpStatusCode.NOT_IMPLEMENTED, "Not implemented");
+      return null;
+    }
+    long contentLength;
+    try {
+      contentLength = Long.parseLong(contentLengthValue);
+    } catch (NumberFormatException e) {
+      request.setError(HttpStatusCode.BAD_REQUEST, "Illegal content length value");
+      return null;
+    }
+    if (contentLength < 0) {
+      request.setError(HttpStatusCode.BAD_REQUEST, "Illegal content length value");
+      return null;
+    }
+    if (contentLength > maxContentLength) {
+      request.setError(HttpStatusCode.PAYLOAD_TOO_LARGE);
+      return null;
+    }
+    request.removeHeader(HttpHeaderName.CONTENT_ENCODING);
+    PayloadParser inner = delegate.acceptUnknownLength(request, maxDecodedLength);
+    if (inner == null) {
+      return null;
+    }
+    return new DecompressingPayloadParser(
+        contentLength,
+        InflatingDecoder.forContentEncoding(contentEncoding.trim(), inflaterPool),
+        maxDecodedLength,
+        inner);
+  }
+}
@@ -0,0 +1,101 @@
+package de.ofahrt.catfish.upload;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.server.PayloadParser;
+
+/**
+ * Writes a request body of known length to a temporary file instead of holding it in memory. The
+ * resulting {@link HttpRequest.FileBody} takes ownership of the file.
+ */
+public final class FileSpoolingEntityParser implements PayloadParser {
+  private long expectedContentLength;
+  private final Path path;
+  private FileChannel channel;
+  private long contentIndex;
+  private IOException failure;
+
+  public FileSpoolingEntityParser(long expectedContentLength, Path directory) throws IOException {
+    this.expectedContentLength = expectedContentLength;
+    this.path = Files.createTempFile(directory, "catfish-upload-", ".tmp");
+    try {
+      this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+    } catch (IOException e) {
+      Files.deleteIfExists(path);
+      throw e;
+    }
+  }
+
+  @Override
+  public int parse(byte[] input, int offset, int length) {
+    int maxCopy = (int) Math.min(length, expectedContentLength - contentIndex);
+    if (failure == null) {
+      ByteBuffer buffer = ByteBuffer.wrap(input, offset, maxCopy);
+      try {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      } catch (IOException e) {
+        // We still consume the remaining body so that the connection stays in a consistent state,
+        // and report the error once the body is complete.
+        failure = e;
+      }
+    }
+    contentIndex += maxCopy;
+    if (isDone()) {
+      closeChannel();
+    }
+    return maxCopy;
+  }
+
+  @Override
+  public boolean endOfInput() {
+    expectedContentLength = contentIndex;
+    closeChannel();
+    return true;
+  }
+
+  @Override
+  public boolean isDone() {
+    return contentIndex >= expectedContentLength;
+  }
+
+  @Override
+  public HttpRequest.Body getParsedBody() throws IOException {
+    closeChannel();
+    if (failure != null) {
+      Files.deleteIfExists(path);
+      throw failure;
+    }
+    return new HttpRequest.FileBody(path, expectedContentLength);
+  }
+
+  @Override
+  public void close() {
+    closeChannel();
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException ignored) {
+      // There's nothing we can do if this fails.
+    }
+  }
+
+  private void closeChannel() {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      if (failure == null) {
+        failure = e;
+      }
+    }
+    channel = null;
+  }
+}
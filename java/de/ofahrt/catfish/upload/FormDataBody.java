@@ -18,7 +18,12 @@ public final class FormDataBody implements HttpRequest.Body, Iterable<FormEntry>
     if (request.getBody() == null) {
       return EMPTY;
     }
-    byte[] body = ((HttpRequest.InMemoryBody) request.getBody()).toByteArray();
+    byte[] body;
+    if (request.getBody() instanceof HttpRequest.FileBody) {
+      body = ((HttpRequest.FileBody) request.getBody()).toByteArray();
+    } else {
+      body = ((HttpRequest.InMemoryBody) request.getBody()).toByteArray();
+    }
     String ctHeader = request.getHeaders().get(HttpHeaderName.CONTENT_TYPE);
     if (body != null && ctHeader != null) {
       String mimeType = HttpContentType.getMimeTypeFromContentType(ctHeader);
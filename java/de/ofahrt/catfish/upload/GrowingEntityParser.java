@@ -0,0 +1,184 @@
+package de.ofahrt.catfish.upload;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.MalformedRequestException;
+import de.ofahrt.catfish.model.StandardResponses;
+import de.ofahrt.catfish.model.server.PayloadParser;
+
+/**
+ * Collects a request body whose length is not known in advance, such as a decoded request body,
+ * and which ends with {@link #endOfInput}. The body is buffered in memory, in a buffer that grows
+ * as the body arrives, and each growth step is charged to the budget, if any. If a directory is
+ * given, the body is spooled to a temporary file once it exceeds the in-memory threshold or the
+ * budget cannot cover the next growth step; otherwise, the request fails with 503 Service
+ * Unavailable in the latter case. Bodies longer than the maximum fail with 413 Payload Too Large.
+ *
+ * <p>The parser accepts all input it is given, even after it failed, and never waits for the
+ * budget, since its input may be produced by a decoder that cannot stop in the middle.
+ */
+public final class GrowingEntityParser implements PayloadParser {
+  private static final byte[] EMPTY = new byte[0];
+  private static final int INITIAL_CAPACITY = 4096;
+
+  private final long maxContentLength;
+  private final int inMemoryThreshold;
+  // Null if bodies are never spooled to disk.
+  private final Path directory;
+  // Null if memory is not accounted.
+  private final UploadMemoryBudget budget;
+  private byte[] content = EMPTY;
+  private long contentLength;
+  // The number of bytes reserved from the budget.
+  private long reserved;
+  private FileSpoolingEntityParser spool;
+  private IOException failure;
+  private boolean ended;
+
+  /** Creates a parser that keeps bodies of up to the given length in memory. */
+  public GrowingEntityParser(long maxContentLength, UploadMemoryBudget budget) {
+    this(maxContentLength, Integer.MAX_VALUE, null, budget);
+  }
+
+  /**
+   * Creates a parser that keeps bodies of up to the given threshold in memory, and spools longer
+   * ones to a temporary file in the given directory.
+   */
+  public GrowingEntityParser(
+      long maxContentLength, int inMemoryThreshold, Path directory, UploadMemoryBudget budget) {
+    if (maxContentLength < 0) {
+      throw new IllegalArgumentException(
+          "Maximum content length must not be negative, but is " + maxContentLength);
+    }
+    this.maxContentLength = maxContentLength;
+    this.inMemoryThreshold = inMemoryThreshold;
+    this.directory = directory;
+    this.budget = budget;
+  }
+
+  @Override
+  public int parse(byte[] input, int offset, int length) {
+    if (ended) {
+      throw new IllegalStateException("Input has already ended");
+    }
+    if (failure == null && length > maxContentLength - contentLength) {
+      fail(new MalformedRequestException(StandardResponses.PAYLOAD_TOO_LARGE));
+    }
+    if (failure == null && spool == null) {
+      ensureCapacity((int) contentLength + length);
+    }
+    if (failure == null) {
+      if (spool != null) {
+        spool.parse(input, offset, length);
+      } else {
+        System.arraycopy(input, offset, content, (int) contentLength, length);
+      }
+      contentLength += length;
+    }
+    return length;
+  }
+
+  private void ensureCapacity(int needed) {
+    if (needed <= content.length) {
+      return;
+    }
+    if (directory != null && needed > inMemoryThreshold) {
+      spool();
+      return;
+    }
+    long capacity = Math.max(needed, Math.max(INITIAL_CAPACITY, 2L * content.length));
+    capacity = Math.min(capacity, Math.min(maxContentLength, inMemoryThreshold));
+    if (budget != null) {
+      if (!budget.tryReserve(capacity - content.length)) {
+        if (directory != null) {
+          spool();
+        } else {
+          fail(new MalformedRequestException(StandardResponses.SERVICE_UNAVAILABLE));
+        }
+        return;
+      }
+      reserved += capacity - content.length;
+    }
+    content = Arrays.copyOf(content, (int) capacity);
+  }
+
+  private void spool() {
+    try {
+      spool = new FileSpoolingEntityParser(maxContentLength, directory);
+    } catch (IOException e) {
+      fail(e);
+      return;
+    }
+    spool.parse(content, 0, (int) contentLength);
+    releaseMemory();
+  }
+
+  private void fail(IOException e) {
+    failure = e;
+    close();
+  }
+
+  @Override
+  public boolean endOfInput() {
+    ended = true;
+    if (failure != null) {
+      return true;
+    }
+    if (spool != null) {
+      return spool.endOfInput();
+    }
+    if (contentLength < content.length) {
+      trim();
+    }
+    return true;
+  }
+
+  private synchronized void trim() {
+    long unused = content.length - contentLength;
+    content = Arrays.copyOf(content, (int) contentLength);
+    if (budget != null) {
+      reserved -= unused;
+      budget.release(unused);
+    }
+  }
+
+  @Override
+  public boolean isDone() {
+    return ended;
+  }
+
+  @Override
+  public HttpRequest.Body getParsedBody() throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+    if (!ended) {
+      throw new IllegalStateException("Input has not ended yet");
+    }
+    if (spool != null) {
+      return spool.getParsedBody();
+    }
+    if (budget == null) {
+      return new HttpRequest.InMemoryBody(content);
+    }
+    return new HttpRequest.InMemoryBody(content, this::releaseMemory);
+  }
+
+  @Override
+  public void close() {
+    releaseMemory();
+    if (spool != null) {
+      spool.close();
+    }
+  }
+
+  private synchronized void releaseMemory() {
+    content = EMPTY;
+    if (budget != null && reserved > 0) {
+      budget.release(reserved);
+      reserved = 0;
+    }
+  }
+}
@@ -5,15 +5,52 @@ import de.ofahrt.catfish.model.HttpRequest.Body;
 import de.ofahrt.catfish.model.server.PayloadParser;
 
 public final class InMemoryEntityParser implements PayloadParser {
-  private final byte[] content;
+  private final int expectedContentLength;
+  private final UploadMemoryBudget budget;
+  private byte[] content;
   private int contentIndex;
+  private boolean released;
+  // The callback that waits for the budget, if any; removed when the parser is closed.
+  private Runnable waiter;
 
   public InMemoryEntityParser(int expectedContentLength) {
+    this.expectedContentLength = expectedContentLength;
+    this.budget = null;
     this.content = new byte[expectedContentLength];
   }
 
+  /**
+   * Creates a parser that reserves the expected content length from the given budget before
+   * allocating a buffer. Until the reservation succeeds, {@link #isReady} returns false.
+   */
+  public InMemoryEntityParser(int expectedContentLength, UploadMemoryBudget budget) {
+    this.expectedContentLength = expectedContentLength;
+    this.budget = budget;
+  }
+
+  @Override
+  public boolean isReady() {
+    if (content == null && budget.tryReserve(expectedContentLength)) {
+      content = new byte[expectedContentLength];
+    }
+    return content != null;
+  }
+
+  @Override
+  public void whenReady(Runnable callback) {
+    if (content != null) {
+      callback.run();
+    } else {
+      waiter = callback;
+      budget.whenAvailable(expectedContentLength, callback);
+    }
+  }
+
   @Override
   public int parse(byte[] input, int offset, int length) {
+    if (content == null && !isReady()) {
+      throw new IllegalStateException("Parser is not ready");
+    }
     int maxCopy = Math.min(length, content.length - contentIndex);
     System.arraycopy(input, offset, content, contentIndex, maxCopy);
     contentIndex += maxCopy;
@@ -22,11 +59,34 @@ public final class InMemoryEntityParser implements PayloadParser {
 
   @Override
   public boolean isDone() {
-    return contentIndex >= content.length;
+    return contentIndex >= expectedContentLength;
   }
 
   @Override
   public Body getParsedBody() {
-    return new HttpRequest.InMemoryBody(content);
+    if (content == null && !isReady()) {
+      throw new IllegalStateException("Parser is not ready");
+    }
+    if (budget == null) {
+      return new HttpRequest.InMemoryBody(content);
+    }
+    return new HttpRequest.InMemoryBody(content, this::release);
+  }
+
+  @Override
+  public void close() {
+    if (waiter != null) {
+      budget.cancelWaiting(waiter);
+      waiter = null;
+    }
+    release();
+  }
+
+  private synchronized void release() {
+    if (budget != null && content != null && !released) {
+      released = true;
+      content = null;
+      budget.release(expectedContentLength);
+    }
   }
 }
@@ -8,9 +8,19 @@ import de.ofahrt.catfish.model.server.UploadPolicy;
 
 public final class SimpleUploadPolicy implements UploadPolicy {
   private final int maxContentLength;
+  private final UploadMemoryBudget budget;
 
   public SimpleUploadPolicy(int maxContentLength) {
+    this(maxContentLength, null);
+  }
+
+  /**
+   * Creates a policy whose buffered bodies are accounted against the given budget, which is
+   * usually shared between all virtual hosts of a server.
+   */
+  public SimpleUploadPolicy(int maxContentLength, UploadMemoryBudget budget) {
     this.maxContentLength = maxContentLength;
+    this.budget = budget;
   }
 
   @Override
@@ -33,10 +43,31 @@ public final class SimpleUploadPolicy implements UploadPolicy {
       request.setError(HttpStatusCode.BAD_REQUEST, "Illegal content length value");
       return null;
     }
+    if (contentLength < 0) {
+      request.setError(HttpStatusCode.BAD_REQUEST, "Illegal content length value");
+      return null;
+    }
     if (contentLength > maxContentLength) {
       request.setError(HttpStatusCode.PAYLOAD_TOO_LARGE);
       return null;
     }
-    return new InMemoryEntityParser((int) contentLength);
+    if (budget == null) {
+      return new InMemoryEntityParser((int) contentLength);
+    }
+    if (!budget.fits(contentLength)) {
+      request.setError(HttpStatusCode.PAYLOAD_TOO_LARGE);
+      return null;
+    }
+    InMemoryEntityParser parser = new InMemoryEntityParser((int) contentLength, budget);
+    if (budget.getMode() == UploadMemoryBudget.Mode.REJECT && !parser.isReady()) {
+      request.setError(HttpStatusCode.SERVICE_UNAVAILABLE);
+      return null;
+    }
+    return parser;
+  }
+
+  @Override
+  public PayloadParser acceptUnknownLength(SimpleHttpRequest.Builder request, long maxLength) {
+    return new GrowingEntityParser(Math.min(maxLength, maxContentLength), budget);
   }
 }
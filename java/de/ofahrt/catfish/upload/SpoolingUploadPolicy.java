@@ -0,0 +1,91 @@
+package de.ofahrt.catfish.upload;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpStatusCode;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
+import de.ofahrt.catfish.model.server.PayloadParser;
+import de.ofahrt.catfish.model.server.UploadPolicy;
+
+/**
+ * An upload policy that keeps small bodies in memory and spools larger bodies to a temporary file
+ * in the given directory. Spooled bodies are exposed as {@link
+ * de.ofahrt.catfish.model.HttpRequest.FileBody}.
+ */
+public final class SpoolingUploadPolicy implements UploadPolicy {
+  private final int inMemoryThreshold;
+  private final long maxContentLength;
+  private final Path directory;
+  private final UploadMemoryBudget budget;
+
+  public SpoolingUploadPolicy(int inMemoryThreshold, long maxContentLength, Path directory) {
+    this(inMemoryThreshold, maxContentLength, directory, null);
+  }
+
+  /**
+   * Creates a policy whose in-memory bodies are accounted against the given budget. Bodies below
+   * the threshold are spooled to disk as well if the budget is exhausted.
+   */
+  public SpoolingUploadPolicy(
+      int inMemoryThreshold, long maxContentLength, Path directory, UploadMemoryBudget budget) {
+    if (inMemoryThreshold < 0) {
+      throw new IllegalArgumentException("Threshold must not be negative, but is " + inMemoryThreshold);
+    }
+    this.inMemoryThreshold = inMemoryThreshold;
+    this.maxContentLength = maxContentLength;
+    this.directory = directory;
+    this.budget = budget;
+  }
+
+  @Override
+  public PayloadParser accept(SimpleHttpRequest.Builder request) {
+    String contentLengthValue = request.getHeader(HttpHeaderName.CONTENT_LENGTH);
+    String transferEncodingValue = request.getHeader(HttpHeaderName.TRANSFER_ENCODING);
+    if (transferEncodingValue != null && contentLengthValue != null) {
+      request.setError(HttpStatusCode.BAD_REQUEST, "Must not set both Content-Length and Transfer-Encoding");
+      return null;
+    }
+    if (transferEncodingValue != null) {
+      // TODO: Implement chunked transfer encoding.
+      request.setError(HttpStatusCode.NOT_IMPLEMENTED, "Not implemented");
+      return null;
+    }
+    long contentLength;
+    try {
+      contentLength = Long.parseLong(contentLengthValue);
+    } catch (NumberFormatException e) {
+      request.setError(HttpStatusCode.BAD_REQUEST, "Illegal content length value");
+      return null;
+    }
+    if (contentLength < 0) {
+      request.setError(HttpStatusCode.BAD_REQUEST, "Illegal content length value");
+      return null;
+    }
+    if (contentLength > maxContentLength) {
+      request.setError(HttpStatusCode.PAYLOAD_TOO_LARGE);
+      return null;
+    }
+    if (contentLength <= inMemoryThreshold) {
+      if (budget == null) {
+        return new InMemoryEntityParser((int) contentLength);
+      }
+      InMemoryEntityParser parser = new InMemoryEntityParser((int) contentLength, budget);
+      if (parser.isReady()) {
+        return parser;
+      }
+    }
+    try {
+      return new FileSpoolingEntityParser(contentLength, directory);
+    } catch (IOException e) {
+      request.setError(HttpStatusCode.INSUFFICIENT_STORAGE);
+      return null;
+    }
+  }
+
+  @Override
+  public PayloadParser acceptUnknownLength(SimpleHttpRequest.Builder request, long maxLength) {
+    return new GrowingEntityParser(
+        Math.min(maxLength, maxContentLength), inMemoryThreshold, directory, budget);
+  }
+}
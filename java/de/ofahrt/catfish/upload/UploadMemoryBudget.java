@@ -0,0 +1,109 @@
+package de.ofahrt.catfish.upload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A server-wide accountant for memory used by request bodies that are buffered on the heap. A
+ * single instance is meant to be shared by the upload policies of all virtual hosts, so that the
+ * total amount of buffered upload data stays below a fixed limit regardless of the number of
+ * connections.
+ *
+ * <p>Memory is reserved for the full declared content length before a body is buffered, and
+ * released once the server is done with the request. Bodies whose length is not known in advance,
+ * such as decoded request bodies, reserve memory as they grow.
+ */
+public final class UploadMemoryBudget {
+  /** Controls what happens to a request whose body does not fit into the remaining budget. */
+  public enum Mode {
+    /** Stop reading from the connection until enough memory becomes available. */
+    PAUSE,
+    /** Reject the request with 503 Service Unavailable. */
+    REJECT;
+  }
+
+  private final long capacity;
+  private final Mode mode;
+  private long reserved;
+  private List<Runnable> waiting = new ArrayList<>();
+
+  public UploadMemoryBudget(long capacity, Mode mode) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Capacity must not be negative, but is " + capacity);
+    }
+    this.capacity = capacity;
+    this.mode = mode;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public synchronized long getReserved() {
+    return reserved;
+  }
+
+  /**
+   * Returns whether a request of the given size can ever be satisfied by this budget. Requests
+   * that are larger than the total capacity are never admitted.
+   */
+  public boolean fits(long bytes) {
+    return bytes <= capacity;
+  }
+
+  public synchronized boolean tryReserve(long bytes) {
+    if (bytes < 0) {
+      throw new IllegalArgumentException();
+    }
+    if (bytes > capacity - reserved) {
+      return false;
+    }
+    reserved += bytes;
+    return true;
+  }
+
+  public void release(long bytes) {
+    List<Runnable> toRun;
+    synchronized (this) {
+      if (bytes < 0 || bytes > reserved) {
+        throw new IllegalArgumentException("Cannot release " + bytes + " of " + reserved + " bytes");
+      }
+      reserved -= bytes;
+      if (waiting.isEmpty()) {
+        return;
+      }
+      toRun = waiting;
+      waiting = new ArrayList<>();
+    }
+    // Waiters retry their reservation, and re-register if it fails again.
+    for (Runnable r : toRun) {
+      r.run();
+    }
+  }
+
+  /**
+   * Runs the given callback once at least the given number of bytes may be available. If that is
+   * already the case, the callback is run immediately on the calling thread.
+   */
+  public void whenAvailable(long bytes, Runnable callback) {
+    synchronized (this) {
+      if (bytes > capacity - reserved) {
+        waiting.add(callback);
+        return;
+      }
+    }
+    callback.run();
+  }
+
+  /**
+   * Removes a callback that was registered with {@link #whenAvailable} and did not run yet, for
+   * example because the connection that was waiting for memory has closed.
+   */
+  public synchronized void cancelWaiting(Runnable callback) {
+    waiting.removeIf(r -> r == callback);
+  }
+}
@@ -0,0 +1,109 @@
+package de.ofahrt.catfish.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * An output stream that applies the gzip or deflate content coding using a pooled {@link
+ * Deflater}. The deflater is returned to the pool when the stream is closed.
+ *
+ * <p>If {@code syncFlush} is set, {@link #flush} emits all data written so far, at a small cost in
+ * compression ratio. This allows handlers of streamed responses to push partial output to the
+ * client.
+ */
+public final class CompressingOutputStream extends DeflaterOutputStream {
+  private static final int BUFFER_SIZE = 8192;
+  private static final byte[] GZIP_HEADER = new byte[] {
+    0x1f, (byte) 0x8b, // magic number
+    Deflater.DEFLATED, // compression method
+    0, // flags
+    0, 0, 0, 0, // modification time
+    0, // extra flags
+    (byte) 0xff, // operating system: unknown
+  };
+
+  private final DeflaterPool pool;
+  private final int level;
+  private final boolean gzip;
+  private final CRC32 crc;
+  private boolean finished;
+  private boolean closed;
+
+  public CompressingOutputStream(
+      OutputStream out, String contentEncoding, int level, DeflaterPool pool, boolean syncFlush)
+      throws IOException {
+    this(out, isGzip(contentEncoding), level, pool, syncFlush);
+  }
+
+  private CompressingOutputStream(
+      OutputStream out, boolean gzip, int level, DeflaterPool pool, boolean syncFlush)
+      throws IOException {
+    super(out, pool.acquire(level, gzip), BUFFER_SIZE, syncFlush);
+    this.pool = pool;
+    this.level = level;
+    this.gzip = gzip;
+    this.crc = gzip ? new CRC32() : null;
+    if (gzip) {
+      try {
+        out.write(GZIP_HEADER);
+      } catch (IOException | RuntimeException e) {
+        pool.release(def, level, gzip);
+        throw e;
+      }
+    }
+  }
+
+  private static boolean isGzip(String contentEncoding) {
+    if (HttpAcceptEncoding.GZIP.equals(contentEncoding)) {
+      return true;
+    } else if (HttpAcceptEncoding.DEFLATE.equals(contentEncoding)) {
+      return false;
+    }
+    throw new IllegalArgumentException("Unsupported content encoding: " + contentEncoding);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    super.write(b, off, len);
+    if (gzip) {
+      crc.update(b, off, len);
+    }
+  }
+
+  @Override
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    super.finish();
+    if (gzip) {
+      writeInt32LittleEndian((int) crc.getValue());
+      writeInt32LittleEndian((int) def.getBytesRead());
+    }
+  }
+
+  private void writeInt32LittleEndian(int value) throws IOException {
+    out.write(value & 0xff);
+    out.write((value >>> 8) & 0xff);
+    out.write((value >>> 16) & 0xff);
+    out.write((value >>> 24) & 0xff);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      finish();
+      out.close();
+    } finally {
+      pool.release(def, level, gzip);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package de.ofahrt.catfish.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * A bounded pool of {@link Deflater} instances, kept separately per compression level and format.
+ * Every deflater holds a sizable chunk of native memory, so allocating a new one per response is
+ * expensive. The pool is shared between all threads and holds at most a fixed number of idle
+ * deflaters, so that a large number of handler threads does not pin an unbounded amount of native
+ * memory.
+ */
+public final class DeflaterPool {
+  public static final DeflaterPool DEFAULT = new DeflaterPool(64);
+
+  private static final int LEVELS = Deflater.BEST_COMPRESSION + 1;
+
+  private final int maxPooled;
+  // Guarded by this.
+  private final List<ArrayDeque<Deflater>> pools = new ArrayList<>();
+  // Guarded by this.
+  private int pooled;
+
+  public DeflaterPool(int maxPooled) {
+    if (maxPooled < 0) {
+      throw new IllegalArgumentException("Pool size must not be negative, but is " + maxPooled);
+    }
+    this.maxPooled = maxPooled;
+    for (int i = 0; i < 2 * LEVELS; i++) {
+      pools.add(new ArrayDeque<>());
+    }
+  }
+
+  private ArrayDeque<Deflater> pool(int level, boolean nowrap) {
+    return pools.get(index(level, nowrap));
+  }
+
+  /**
+   * Returns a deflater with the given level, producing raw deflate data if {@code nowrap} is true,
+   * and zlib data otherwise. Callers must return it with {@link #release}.
+   */
+  public Deflater acquire(int level, boolean nowrap) {
+    ArrayDeque<Deflater> pool = pool(level, nowrap);
+    Deflater result;
+    synchronized (this) {
+      result = pool.pollFirst();
+      if (result != null) {
+        pooled--;
+      }
+    }
+    return result != null ? result : new Deflater(level, nowrap);
+  }
+
+  /**
+   * Resets the given deflater and returns it to the pool, or frees it if the pool is full. The level
+   * and format must match the values it was acquired with.
+   */
+  public void release(Deflater deflater, int level, boolean nowrap) {
+    ArrayDeque<Deflater> pool = pool(level, nowrap);
+    deflater.reset();
+    synchronized (this) {
+      if (pooled < maxPooled) {
+        pool.addFirst(deflater);
+        pooled++;
+        return;
+      }
+    }
+    deflater.end();
+  }
+
+  synchronized int size() {
+    return pooled;
+  }
+
+  private static int index(int level, boolean nowrap) {
+    if (level == Deflater.DEFAULT_COMPRESSION) {
+      level = 6;
+    }
+    if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Illegal compression level: " + level);
+    }
+    return 2 * level + (nowrap ? 1 : 0);
+  }
+}
@@ -0,0 +1,406 @@
+package de.ofahrt.catfish.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A cache for file attributes, including negative entries for files that do not exist. Static file
+ * handlers receive many requests for files that do not exist, for example from vulnerability
+ * scanners; with this cache, both frequently requested and known-missing files are answered
+ * without a system call.
+ *
+ * <p>If watching is enabled, the parent directory of each looked-up file is registered with a
+ * {@link WatchService}, and entries are invalidated as soon as the file system reports a change.
+ * Every entry also expires after a bounded time-to-live. This covers changes the watch service
+ * does not report, such as changes on network file systems, and bounds the staleness on
+ * platforms where the watch service polls.
+ *
+ * <p>The number of entries is limited; if the limit is exceeded, the least recently used entries
+ * are dropped. The number of watched directories is limited as well; if a directory is no longer
+ * watched, the entries for files in it are dropped. A cache that watches for changes owns a
+ * background thread and must be closed.
+ */
+public final class FileMetadataCache implements Closeable {
+  /** The attributes of an existing file. */
+  public static final class Metadata {
+    private final boolean regularFile;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+    private final Object fileKey;
+
+    Metadata(boolean regularFile, boolean directory, long size, long lastModified, Object fileKey) {
+      this.regularFile = regularFile;
+      this.directory = directory;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.fileKey = fileKey;
+    }
+
+    public boolean isRegularFile() {
+      return regularFile;
+    }
+
+    public boolean isDirectory() {
+      return directory;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /** Returns the modification time of the file in milliseconds since the epoch. */
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    /** Returns the file key (the inode on Unix), or null if the file system does not have one. */
+    public Object getFileKey() {
+      return fileKey;
+    }
+  }
+
+  public static final class Builder {
+    private long ttlNanos = TimeUnit.SECONDS.toNanos(10);
+    private int maxEntries = 16384;
+    private int maxWatchedDirectories = 1024;
+    private boolean watch = true;
+    private LongSupplier clock = System::nanoTime;
+
+    /**
+     * Sets how long an entry is used without checking the file system, even if no change was
+     * reported. A value of zero disables caching.
+     */
+    public Builder setTimeToLive(long duration, TimeUnit unit) {
+      if (duration < 0) {
+        throw new IllegalArgumentException("Duration must not be negative, but is " + duration);
+      }
+      this.ttlNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    /** Sets the number of entries, positive and negative, that are kept. */
+    public Builder setMaxEntries(int maxEntries) {
+      if (maxEntries < 0) {
+        throw new IllegalArgumentException("Maximum count must not be negative, but is " + maxEntries);
+      }
+      this.maxEntries = maxEntries;
+      return this;
+    }
+
+    /**
+     * Sets the number of directories that are watched for changes. If the limit is exceeded, the
+     * least recently used directory is no longer watched.
+     */
+    public Builder setMaxWatchedDirectories(int maxWatchedDirectories) {
+      if (maxWatchedDirectories < 0) {
+        throw new IllegalArgumentException(
+            "Maximum count must not be negative, but is " + maxWatchedDirectories);
+      }
+      this.maxWatchedDirectories = maxWatchedDirectories;
+      return this;
+    }
+
+    /** Sets whether to watch directories for changes; if disabled, only the time-to-live applies. */
+    public Builder setWatch(boolean watch) {
+      this.watch = watch;
+      return this;
+    }
+
+    Builder setClock(LongSupplier clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    public FileMetadataCache build() {
+      return new FileMetadataCache(this);
+    }
+  }
+
+  private static final class CacheEntry {
+    private final Metadata metadata;
+    private final long loadedAt;
+
+    CacheEntry(Metadata metadata, long loadedAt) {
+      this.metadata = metadata;
+      this.loadedAt = loadedAt;
+    }
+  }
+
+  private final long ttlNanos;
+  private final int maxEntries;
+  private final int maxWatchedDirectories;
+  private final boolean watch;
+  private final LongSupplier clock;
+
+  // Guarded by this. Iteration order is least recently used first.
+  private final LinkedHashMap<Path, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  // Guarded by this. The watch services, one per file system, and the watched directories. Iteration
+  // order of the directories is least recently used first.
+  private final Map<FileSystem, WatchService> watchServices = new HashMap<>();
+  private final LinkedHashMap<Path, WatchKey> watchedDirectories = new LinkedHashMap<>(16, 0.75f, true);
+  private final Set<Path> unwatchableDirectories =
+      Collections.newSetFromMap(new LinkedHashMap<Path, Boolean>(16, 0.75f, true));
+  // Guarded by this. Incremented on every invalidation, so that a lookup that raced with a change
+  // does not store an outdated result.
+  private long generation;
+  private boolean closed;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong invalidationCount = new AtomicLong();
+
+  private FileMetadataCache(Builder builder) {
+    this.ttlNanos = builder.ttlNanos;
+    this.maxEntries = builder.maxEntries;
+    this.maxWatchedDirectories = builder.maxWatchedDirectories;
+    this.watch = builder.watch;
+    this.clock = builder.clock;
+  }
+
+  /**
+   * Returns the attributes of the given file, or null if it does not exist. Symbolic links are
+   * followed. Paths should be absolute and normalized; different spellings of the same path are
+   * cached separately.
+   */
+  public Metadata get(Path path) throws IOException {
+    long now = clock.getAsLong();
+    long startGeneration;
+    synchronized (this) {
+      CacheEntry entry = entries.get(path);
+      if (entry != null && now - entry.loadedAt < ttlNanos) {
+        hitCount.incrementAndGet();
+        return entry.metadata;
+      }
+      startGeneration = generation;
+    }
+    missCount.incrementAndGet();
+    // Register the directory before looking at the file, so that we don't miss a change in
+    // between.
+    boolean watched = watch && ttlNanos > 0 && register(path.toAbsolutePath().getParent());
+    Metadata metadata = read(path);
+    if (ttlNanos > 0 && (watched || !watch)) {
+      put(path, new CacheEntry(metadata, now), startGeneration);
+    }
+    return metadata;
+  }
+
+  /** Reads the attributes of the given file from the file system; returns null if it does not exist. */
+  static Metadata read(Path path) throws IOException {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      return new Metadata(
+          attributes.isRegularFile(),
+          attributes.isDirectory(),
+          attributes.size(),
+          attributes.lastModifiedTime().toMillis(),
+          attributes.fileKey());
+    } catch (NoSuchFileException | NotDirectoryException e) {
+      return null;
+    }
+  }
+
+  private synchronized void put(Path path, CacheEntry entry, long startGeneration) {
+    if (closed || generation != startGeneration) {
+      return;
+    }
+    // The directory may have stopped being watched in the meantime.
+    if (watch && !watchedDirectories.containsKey(path.toAbsolutePath().getParent())) {
+      return;
+    }
+    entries.put(path, entry);
+    Iterator<CacheEntry> it = entries.values().iterator();
+    while (entries.size() > maxEntries && it.hasNext()) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  /** Drops the entry for the given path, if there is one. */
+  public synchronized void invalidate(Path path) {
+    generation++;
+    if (entries.remove(path) != null) {
+      invalidationCount.incrementAndGet();
+    }
+  }
+
+  private synchronized void invalidateDirectory(Path directory) {
+    generation++;
+    removeDirectory(directory);
+  }
+
+  private synchronized void removeDirectory(Path directory) {
+    Iterator<Path> it = entries.keySet().iterator();
+    while (it.hasNext()) {
+      Path parent = it.next().toAbsolutePath().getParent();
+      if (directory.equals(parent)) {
+        it.remove();
+        invalidationCount.incrementAndGet();
+      }
+    }
+  }
+
+  /** Removes all entries. */
+  public synchronized void clear() {
+    generation++;
+    entries.clear();
+  }
+
+  /**
+   * Makes sure that the given directory is watched. Returns false if it cannot be watched, for
+   * example because it does not exist; lookups in such a directory are not cached, since we would
+   * not notice if it were created later.
+   */
+  private boolean register(Path directory) {
+    if (directory == null) {
+      return false;
+    }
+    synchronized (this) {
+      if (closed) {
+        return false;
+      }
+      if (watchedDirectories.get(directory) != null) {
+        return true;
+      }
+      if (unwatchableDirectories.contains(directory)) {
+        return false;
+      }
+    }
+    // Registering a directory that is already registered returns the same key, so it's fine if
+    // two threads race here.
+    try {
+      WatchService watchService = getWatchService(directory.getFileSystem());
+      WatchKey key = directory.register(
+          watchService,
+          StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE,
+          StandardWatchEventKinds.ENTRY_MODIFY);
+      synchronized (this) {
+        watchedDirectories.put(directory, key);
+        Iterator<Map.Entry<Path, WatchKey>> it = watchedDirectories.entrySet().iterator();
+        while (watchedDirectories.size() > maxWatchedDirectories && it.hasNext()) {
+          Map.Entry<Path, WatchKey> eldest = it.next();
+          it.remove();
+          eldest.getValue().cancel();
+          // We would no longer notice changes to the files in this directory.
+          removeDirectory(eldest.getKey());
+        }
+        return watchedDirectories.containsKey(directory);
+      }
+    } catch (NoSuchFileException | NotDirectoryException e) {
+      return false;
+    } catch (IOException | UnsupportedOperationException e) {
+      // The file system does not support watching; fall back to the time-to-live.
+      synchronized (this) {
+        unwatchableDirectories.add(directory);
+        Iterator<Path> it = unwatchableDirectories.iterator();
+        while (unwatchableDirectories.size() > maxWatchedDirectories && it.hasNext()) {
+          it.next();
+          it.remove();
+        }
+      }
+      return false;
+    }
+  }
+
+  private WatchService getWatchService(FileSystem fileSystem) throws IOException {
+    synchronized (this) {
+      WatchService result = watchServices.get(fileSystem);
+      if (result != null) {
+        return result;
+      }
+      result = fileSystem.newWatchService();
+      watchServices.put(fileSystem, result);
+      WatchService watchService = result;
+      Thread t = new Thread(() -> watch(watchService), "catfish-file-watcher");
+      t.setDaemon(true);
+      t.start();
+      return result;
+    }
+  }
+
+  private void watch(WatchService watchService) {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watchService.take();
+      } catch (ClosedWatchServiceException | InterruptedException e) {
+        return;
+      }
+      Path directory = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          invalidateDirectory(directory);
+        } else {
+          invalidate(directory.resolve((Path) event.context()));
+        }
+      }
+      if (!key.reset()) {
+        // The directory is gone or no longer accessible.
+        synchronized (this) {
+          watchedDirectories.remove(directory, key);
+        }
+        invalidateDirectory(directory);
+      }
+    }
+  }
+
+  /** Stops watching for changes and removes all entries. */
+  @Override
+  public void close() throws IOException {
+    Map<FileSystem, WatchService> services;
+    synchronized (this) {
+      closed = true;
+      entries.clear();
+      watchedDirectories.clear();
+      unwatchableDirectories.clear();
+      services = new HashMap<>(watchServices);
+      watchServices.clear();
+    }
+    for (WatchService watchService : services.values()) {
+      watchService.close();
+    }
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /** Returns the number of entries that were dropped because of a change or an explicit request. */
+  public long getInvalidationCount() {
+    return invalidationCount.get();
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /** Returns the number of directories that are watched for changes. */
+  public synchronized int getWatchedDirectoryCount() {
+    return watchedDirectories.size();
+  }
+}
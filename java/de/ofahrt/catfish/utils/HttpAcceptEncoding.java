@@ -0,0 +1,86 @@
+package de.ofahrt.catfish.utils;
+
+import java.util.Locale;
+
+/**
+ * Content coding negotiation based on the Accept-Encoding request header (RFC 7231, section
+ * 5.3.4), including quality values and the {@code *} wildcard.
+ */
+public final class HttpAcceptEncoding {
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+  public static final String IDENTITY = "identity";
+
+  private static final String X_GZIP = "x-gzip";
+  private static final String WILDCARD = "*";
+
+  /**
+   * Returns the supported content coding with the highest quality value in the given
+   * Accept-Encoding header value, or {@code null} if none of them is acceptable. The supported
+   * codings must be given in order of server preference, which is used to break ties. A missing
+   * header yields {@code null}, since some proxies strip the header from requests whose responses
+   * they cannot decompress.
+   */
+  public static String negotiate(String acceptEncoding, String... supported) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    String[] tokens = acceptEncoding.split(",");
+    String best = null;
+    float bestQuality = 0;
+    for (String candidate : supported) {
+      float quality = qualityOf(tokens, candidate);
+      if (quality > bestQuality) {
+        best = candidate;
+        bestQuality = quality;
+      }
+    }
+    return best;
+  }
+
+  /** Returns the quality value for the given coding, or 0 if it is not acceptable. */
+  static float qualityOf(String[] tokens, String coding) {
+    float explicit = -1;
+    float wildcard = -1;
+    for (String token : tokens) {
+      int semicolon = token.indexOf(';');
+      String name = (semicolon < 0 ? token : token.substring(0, semicolon)).trim().toLowerCase(Locale.US);
+      if (X_GZIP.equals(name)) {
+        name = GZIP;
+      }
+      if (name.isEmpty()) {
+        continue;
+      }
+      float quality = semicolon < 0 ? 1 : parseQuality(token.substring(semicolon + 1));
+      if (name.equals(coding)) {
+        explicit = Math.max(explicit, quality);
+      } else if (WILDCARD.equals(name)) {
+        wildcard = Math.max(wildcard, quality);
+      }
+    }
+    if (explicit >= 0) {
+      return explicit;
+    }
+    return wildcard >= 0 ? wildcard : 0;
+  }
+
+  private static float parseQuality(String parameters) {
+    for (String parameter : parameters.split(";")) {
+      parameter = parameter.trim();
+      if (parameter.length() > 2 && (parameter.charAt(0) == 'q' || parameter.charAt(0) == 'Q')
+          && parameter.charAt(1) == '=') {
+        try {
+          float result = Float.parseFloat(parameter.substring(2).trim());
+          return (result >= 0 && result <= 1) ? result : 0;
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  private HttpAcceptEncoding() {
+    // Not instantiable.
+  }
+}
@@ -0,0 +1,286 @@
+package de.ofahrt.catfish.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A byte range of a representation as requested by the Range header (RFC 7233), with helpers to
+ * send one or several ranges of a file or buffer. Ranges are always read from their position, so
+ * the whole file is never loaded.
+ */
+public final class HttpByteRange {
+  public static final String BYTES_UNIT = "bytes";
+  public static final String MULTIPART_BYTERANGES = "multipart/byteranges";
+
+  /** Requests with more ranges are served in full, to limit the cost of a single request. */
+  private static final int MAX_RANGES = 16;
+
+  private static final String CRLF = "\r\n";
+
+  /**
+   * Parses the given Range header value for a representation of the given length. Returns null if
+   * the header should be ignored, in which case the complete representation should be sent. This
+   * is the case for syntactically invalid headers, unknown range units, and requests for too many
+   * ranges. Returns an empty list if none of the ranges is satisfiable, which calls for 416 Range
+   * Not Satisfiable.
+   */
+  public static List<HttpByteRange> parse(String value, long length) {
+    if (value == null) {
+      return null;
+    }
+    int equals = value.indexOf('=');
+    if (equals < 0 || !BYTES_UNIT.equals(value.substring(0, equals).trim().toLowerCase(Locale.US))) {
+      return null;
+    }
+    String[] specs = value.substring(equals + 1).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    List<HttpByteRange> result = new ArrayList<>();
+    boolean empty = true;
+    for (String spec : specs) {
+      spec = spec.trim();
+      if (spec.isEmpty()) {
+        // Empty list elements are allowed by the list syntax.
+        continue;
+      }
+      empty = false;
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      String firstText = spec.substring(0, dash).trim();
+      String lastText = spec.substring(dash + 1).trim();
+      long first;
+      long last;
+      if (firstText.isEmpty()) {
+        // A suffix range: the last n bytes.
+        long suffixLength = parseNumber(lastText);
+        if (suffixLength < 0) {
+          return null;
+        }
+        if (suffixLength == 0 || length == 0) {
+          continue;
+        }
+        first = Math.max(0, length - suffixLength);
+        last = length - 1;
+      } else {
+        first = parseNumber(firstText);
+        last = lastText.isEmpty() ? Long.MAX_VALUE : parseNumber(lastText);
+        if (first < 0 || last < 0 || last < first) {
+          return null;
+        }
+        if (first >= length) {
+          continue;
+        }
+        last = Math.min(last, length - 1);
+      }
+      result.add(new HttpByteRange(first, last));
+    }
+    if (empty) {
+      return null;
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  private static long parseNumber(String text) {
+    if (text.isEmpty() || text.length() > 18) {
+      return -1;
+    }
+    long result = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  /**
+   * Returns whether the Range header should be honored given the If-Range header value, which may
+   * be null. An entity tag must match the given one using the strong comparison; a date must match
+   * the modification time exactly. Otherwise the complete representation should be sent.
+   */
+  public static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return etag != null && !HttpPreconditions.isWeak(ifRange) && !HttpPreconditions.isWeak(etag)
+          && ifRange.equals(etag);
+    }
+    // HTTP dates have a resolution of one second.
+    return HttpDate.parseDate(ifRange) == (lastModified / 1000) * 1000;
+  }
+
+  /** Returns the Content-Range value for a 416 response. */
+  public static String unsatisfiedContentRange(long length) {
+    return BYTES_UNIT + " */" + length;
+  }
+
+  /** Returns a random boundary for a multipart/byteranges response. */
+  public static String newBoundary() {
+    return Long.toHexString(ThreadLocalRandom.current().nextLong())
+        + Long.toHexString(ThreadLocalRandom.current().nextLong());
+  }
+
+  /** Returns the Content-Type value for a multipart/byteranges response. */
+  public static String multipartContentType(String boundary) {
+    return MULTIPART_BYTERANGES + "; boundary=" + boundary;
+  }
+
+  /**
+   * Writes a multipart/byteranges body with the given ranges of a file. Each range is read with
+   * positioned reads, so the channel's position is not used.
+   */
+  public static void writeMultipart(
+      OutputStream out,
+      String boundary,
+      String contentType,
+      List<HttpByteRange> ranges,
+      long length,
+      FileChannel channel) throws IOException {
+    for (HttpByteRange range : ranges) {
+      writePartHeader(out, boundary, contentType, range, length);
+      range.write(out, channel);
+    }
+    writeEnd(out, boundary);
+  }
+
+  /** Writes a multipart/byteranges body with the given ranges of the content of a buffer. */
+  public static void writeMultipart(
+      OutputStream out,
+      String boundary,
+      String contentType,
+      List<HttpByteRange> ranges,
+      long length,
+      ByteBuffer content) throws IOException {
+    for (HttpByteRange range : ranges) {
+      writePartHeader(out, boundary, contentType, range, length);
+      range.write(out, content);
+    }
+    writeEnd(out, boundary);
+  }
+
+  private static void writePartHeader(
+      OutputStream out, String boundary, String contentType, HttpByteRange range, long length)
+      throws IOException {
+    StringBuilder header = new StringBuilder();
+    header.append(CRLF).append("--").append(boundary).append(CRLF);
+    if (contentType != null) {
+      header.append("Content-Type: ").append(contentType).append(CRLF);
+    }
+    header.append("Content-Range: ").append(range.toContentRange(length)).append(CRLF);
+    header.append(CRLF);
+    out.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private static void writeEnd(OutputStream out, String boundary) throws IOException {
+    out.write((CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private final long first;
+  private final long last;
+
+  public HttpByteRange(long first, long last) {
+    if (first < 0 || last < first) {
+      throw new IllegalArgumentException(
+          String.format("Illegal range: %d-%d", Long.valueOf(first), Long.valueOf(last)));
+    }
+    this.first = first;
+    this.last = last;
+  }
+
+  public long getFirst() {
+    return first;
+  }
+
+  /** Returns the position of the last byte of the range; it is inclusive. */
+  public long getLast() {
+    return last;
+  }
+
+  public long getLength() {
+    return last - first + 1;
+  }
+
+  /** Returns the Content-Range value for this range of a representation of the given length. */
+  public String toContentRange(long length) {
+    return BYTES_UNIT + " " + first + "-" + last + "/" + length;
+  }
+
+  /**
+   * Returns a view of this range of the given buffer's content. The buffer's position and limit
+   * are not changed.
+   */
+  public ByteBuffer slice(ByteBuffer content) {
+    ByteBuffer result = content.duplicate();
+    result.position(result.position() + (int) first);
+    result.limit(result.position() + (int) getLength());
+    return result.slice();
+  }
+
+  /** Writes this range of the file to the given stream, using positioned reads. */
+  public void write(OutputStream out, FileChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(getLength(), 8192));
+    long position = first;
+    long remaining = getLength();
+    while (remaining > 0) {
+      buffer.clear();
+      if (buffer.remaining() > remaining) {
+        buffer.limit((int) remaining);
+      }
+      int count = channel.read(buffer, position);
+      if (count < 0) {
+        throw new IOException("File is shorter than expected");
+      }
+      out.write(buffer.array(), 0, count);
+      position += count;
+      remaining -= count;
+    }
+  }
+
+  /** Writes this range of the buffer's content to the given stream. */
+  public void write(OutputStream out, ByteBuffer content) throws IOException {
+    ByteBuffer slice = slice(content);
+    byte[] buffer = new byte[(int) Math.min(getLength(), 8192)];
+    while (slice.hasRemaining()) {
+      int count = Math.min(slice.remaining(), buffer.length);
+      slice.get(buffer, 0, count);
+      out.write(buffer, 0, count);
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof HttpByteRange)) {
+      return false;
+    }
+    HttpByteRange other = (HttpByteRange) o;
+    return first == other.first && last == other.last;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(first) * 31 + Long.hashCode(last);
+  }
+
+  @Override
+  public String toString() {
+    return first + "-" + last;
+  }
+}
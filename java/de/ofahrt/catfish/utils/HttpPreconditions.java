@@ -0,0 +1,157 @@
+package de.ofahrt.catfish.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpMethodName;
+
+/**
+ * Evaluates the conditional request headers If-Match, If-Unmodified-Since, If-None-Match and
+ * If-Modified-Since in the order given by RFC 7232, section 6. Handlers call this with the current
+ * validators of the selected representation before producing a body, so that 304 and 412
+ * responses are sent without reading any content.
+ */
+public final class HttpPreconditions {
+  public enum Result {
+    /** All preconditions hold; the request should be processed normally. */
+    PROCEED,
+    /** The client's copy is current; answer with 304 Not Modified. */
+    NOT_MODIFIED,
+    /** A precondition does not hold; answer with 412 Precondition Failed. */
+    PRECONDITION_FAILED;
+  }
+
+  private static final String WEAK_PREFIX = "W/";
+  private static final String ANY = "*";
+
+  /**
+   * Evaluates the preconditions of a request. The entity tag of the selected representation must
+   * include the quotes; it may be null if there is none. The modification time is in milliseconds
+   * since the epoch, or negative if it is unknown.
+   */
+  public static Result evaluate(
+      String method, Function<String, String> requestHeaders, String etag, long lastModified) {
+    boolean getOrHead = HttpMethodName.GET.equals(method) || HttpMethodName.HEAD.equals(method);
+    // HTTP dates have a resolution of one second.
+    long lastModifiedSeconds = lastModified < 0 ? -1 : (lastModified / 1000) * 1000;
+
+    String ifMatch = requestHeaders.apply(HttpHeaderName.IF_MATCH);
+    if (ifMatch != null) {
+      if (!matches(ifMatch, etag, true)) {
+        return Result.PRECONDITION_FAILED;
+      }
+    } else {
+      long ifUnmodifiedSince = parseDate(requestHeaders.apply(HttpHeaderName.IF_UNMODIFIED_SINCE));
+      if (ifUnmodifiedSince >= 0 && lastModifiedSeconds >= 0 && lastModifiedSeconds > ifUnmodifiedSince) {
+        return Result.PRECONDITION_FAILED;
+      }
+    }
+
+    String ifNoneMatch = requestHeaders.apply(HttpHeaderName.IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      if (matches(ifNoneMatch, etag, false)) {
+        return getOrHead ? Result.NOT_MODIFIED : Result.PRECONDITION_FAILED;
+      }
+    } else if (getOrHead) {
+      long ifModifiedSince = parseDate(requestHeaders.apply(HttpHeaderName.IF_MODIFIED_SINCE));
+      if (ifModifiedSince >= 0 && lastModifiedSeconds >= 0 && lastModifiedSeconds <= ifModifiedSince) {
+        return Result.NOT_MODIFIED;
+      }
+    }
+    return Result.PROCEED;
+  }
+
+  /**
+   * Returns whether the given If-Match or If-None-Match header value matches the entity tag, using
+   * the strong or weak comparison function. The wildcard matches if there is a current
+   * representation, which is assumed here.
+   */
+  public static boolean matches(String headerValue, String etag, boolean strong) {
+    if (ANY.equals(headerValue.trim())) {
+      return true;
+    }
+    if (etag == null || (strong && isWeak(etag))) {
+      return false;
+    }
+    String opaque = opaqueTag(etag);
+    for (String candidate : parseEntityTags(headerValue)) {
+      if (strong && isWeak(candidate)) {
+        continue;
+      }
+      if (opaqueTag(candidate).equals(opaque)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether the given entity tag is weak. */
+  public static boolean isWeak(String etag) {
+    return etag.startsWith(WEAK_PREFIX);
+  }
+
+  /**
+   * Returns an entity tag for a variant of the representation with the given tag, for example a
+   * compressed one. Strong entity tags must differ between representations with different content.
+   */
+  public static String variant(String etag, String suffix) {
+    int end = etag.lastIndexOf('"');
+    if (end <= 0) {
+      throw new IllegalArgumentException("Not a quoted entity tag: " + etag);
+    }
+    return etag.substring(0, end) + "-" + suffix + "\"";
+  }
+
+  private static String opaqueTag(String etag) {
+    return isWeak(etag) ? etag.substring(WEAK_PREFIX.length()) : etag;
+  }
+
+  /**
+   * Splits a comma-separated list of entity tags. Commas are allowed within the quotes, so the
+   * list cannot simply be split at commas. Malformed elements are dropped.
+   */
+  static List<String> parseEntityTags(String value) {
+    List<String> result = new ArrayList<>();
+    int i = 0;
+    int length = value.length();
+    while (i < length) {
+      char c = value.charAt(i);
+      if (c == ' ' || c == '\t' || c == ',') {
+        i++;
+        continue;
+      }
+      int start = i;
+      if (value.startsWith(WEAK_PREFIX, i)) {
+        i += WEAK_PREFIX.length();
+      }
+      if (i < length && value.charAt(i) == '"') {
+        int end = value.indexOf('"', i + 1);
+        if (end < 0) {
+          break;
+        }
+        result.add(value.substring(start, end + 1));
+        i = end + 1;
+      } else {
+        // Skip the malformed element.
+        while (i < length && value.charAt(i) != ',') {
+          i++;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static long parseDate(String value) {
+    if (value == null) {
+      return -1;
+    }
+    // HttpDate returns zero if the date cannot be parsed; we ignore such headers, as required.
+    long result = HttpDate.parseDate(value);
+    return result == 0 ? -1 : result;
+  }
+
+  private HttpPreconditions() {
+    // Not instantiable.
+  }
+}
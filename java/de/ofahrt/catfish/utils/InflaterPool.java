@@ -0,0 +1,47 @@
+package de.ofahrt.catfish.utils;
+
+import java.util.ArrayDeque;
+import java.util.zip.Inflater;
+
+/**
+ * A bounded pool of raw (nowrap) {@link Inflater} instances. Creating an inflater allocates native
+ * memory and a fair amount of heap, so it pays off to reuse them across requests.
+ */
+public final class InflaterPool {
+  public static final InflaterPool DEFAULT = new InflaterPool(64);
+
+  private final int maxPooled;
+  private final ArrayDeque<Inflater> pool = new ArrayDeque<>();
+
+  public InflaterPool(int maxPooled) {
+    if (maxPooled < 0) {
+      throw new IllegalArgumentException("Pool size must not be negative, but is " + maxPooled);
+    }
+    this.maxPooled = maxPooled;
+  }
+
+  /** Returns an inflater for raw deflate data; callers must return it with {@link #release}. */
+  public Inflater acquire() {
+    Inflater result;
+    synchronized (this) {
+      result = pool.pollFirst();
+    }
+    return result != null ? result : new Inflater(true);
+  }
+
+  /** Resets the given inflater and returns it to the pool, or frees it if the pool is full. */
+  public void release(Inflater inflater) {
+    inflater.reset();
+    synchronized (this) {
+      if (pool.size() < maxPooled) {
+        pool.addFirst(inflater);
+        return;
+      }
+    }
+    inflater.end();
+  }
+
+  synchronized int size() {
+    return pool.size();
+  }
+}
@@ -0,0 +1,289 @@
+package de.ofahrt.catfish.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A push-style decoder for the gzip and deflate content codings. Unlike {@link
+ * java.util.zip.GZIPInputStream}, it does not block on its input, so it can be fed directly from a
+ * network buffer. The gzip and zlib wrappers are parsed here; only the raw deflate data is passed
+ * to a pooled {@link Inflater}.
+ */
+public final class InflatingDecoder implements Closeable {
+  public static final String GZIP = "gzip";
+  public static final String X_GZIP = "x-gzip";
+  public static final String DEFLATE = "deflate";
+
+  /** Receives decoded data. */
+  public interface Output {
+    void write(byte[] buffer, int offset, int length) throws IOException;
+  }
+
+  private enum State {
+    HEADER,
+    EXTRA_LENGTH,
+    EXTRA,
+    NAME,
+    COMMENT,
+    HEADER_CRC,
+    BODY,
+    TRAILER,
+    DONE;
+  }
+
+  private static final int GZIP_HEADER_LENGTH = 10;
+  private static final int GZIP_TRAILER_LENGTH = 8;
+  private static final int ZLIB_HEADER_LENGTH = 2;
+  private static final int ZLIB_TRAILER_LENGTH = 4;
+
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+  private static final int FRESERVED = 0xe0;
+
+  public static boolean isSupported(String contentEncoding) {
+    return GZIP.equalsIgnoreCase(contentEncoding)
+        || X_GZIP.equalsIgnoreCase(contentEncoding)
+        || DEFLATE.equalsIgnoreCase(contentEncoding);
+  }
+
+  /**
+   * Returns a decoder for the given content coding, which must be one for which {@link
+   * #isSupported} returns true.
+   */
+  public static InflatingDecoder forContentEncoding(String contentEncoding, InflaterPool pool) {
+    if (GZIP.equalsIgnoreCase(contentEncoding) || X_GZIP.equalsIgnoreCase(contentEncoding)) {
+      return new InflatingDecoder(true, pool);
+    } else if (DEFLATE.equalsIgnoreCase(contentEncoding)) {
+      return new InflatingDecoder(false, pool);
+    }
+    throw new IllegalArgumentException("Unsupported content encoding: " + contentEncoding);
+  }
+
+  private final boolean gzip;
+  private final InflaterPool pool;
+  private final Checksum checksum;
+  private final byte[] buffer = new byte[4096];
+  private final byte[] field = new byte[GZIP_HEADER_LENGTH];
+
+  private Inflater inflater;
+  private State state;
+  private int fieldLength;
+  private int fieldNeeded;
+  private int flags;
+  private int extraRemaining;
+  private long decodedLength;
+
+  private InflatingDecoder(boolean gzip, InflaterPool pool) {
+    this.gzip = gzip;
+    this.pool = pool;
+    this.checksum = gzip ? new CRC32() : new Adler32();
+    startField(State.HEADER, gzip ? GZIP_HEADER_LENGTH : ZLIB_HEADER_LENGTH);
+  }
+
+  /**
+   * Decodes as much of the given input as possible, passing all decoded data to the given output.
+   * Returns the number of bytes consumed, which is less than {@code length} only if the end of the
+   * compressed stream was reached.
+   */
+  public int decode(byte[] input, int offset, int length, Output output) throws IOException {
+    int pos = offset;
+    int end = offset + length;
+    while (pos < end && state != State.DONE) {
+      switch (state) {
+        case HEADER:
+        case EXTRA_LENGTH:
+        case HEADER_CRC:
+        case TRAILER:
+          pos = readField(input, pos, end);
+          if (fieldLength == fieldNeeded) {
+            fieldComplete();
+          }
+          break;
+        case EXTRA:
+          if (end - pos < extraRemaining) {
+            extraRemaining -= end - pos;
+            pos = end;
+          } else {
+            pos += extraRemaining;
+            extraRemaining = 0;
+            nextGzipField();
+          }
+          break;
+        case NAME:
+        case COMMENT:
+          // Both are zero-terminated strings, which we skip.
+          if (input[pos++] == 0) {
+            nextGzipField();
+          }
+          break;
+        case BODY:
+          pos = inflate(input, pos, end, output);
+          break;
+        default:
+          throw new IllegalStateException(state.toString());
+      }
+    }
+    return pos - offset;
+  }
+
+  /** Returns whether the end of the compressed stream has been reached and verified. */
+  public boolean isFinished() {
+    return state == State.DONE;
+  }
+
+  /** Returns the number of decoded bytes produced so far. */
+  public long getDecodedLength() {
+    return decodedLength;
+  }
+
+  /** Returns the inflater to the pool. Safe to call multiple times. */
+  @Override
+  public void close() {
+    if (inflater != null) {
+      pool.release(inflater);
+      inflater = null;
+    }
+  }
+
+  private void startField(State newState, int needed) {
+    state = newState;
+    fieldLength = 0;
+    fieldNeeded = needed;
+  }
+
+  private int readField(byte[] input, int pos, int end) {
+    int count = Math.min(fieldNeeded - fieldLength, end - pos);
+    System.arraycopy(input, pos, field, fieldLength, count);
+    fieldLength += count;
+    return pos + count;
+  }
+
+  private void fieldComplete() throws IOException {
+    switch (state) {
+      case HEADER:
+        if (gzip) {
+          if ((field[0] != (byte) 0x1f) || (field[1] != (byte) 0x8b)) {
+            throw new ZipException("Not in gzip format");
+          }
+          if (field[2] != 8) {
+            throw new ZipException("Unsupported compression method");
+          }
+          flags = field[3] & 0xff;
+          if ((flags & FRESERVED) != 0) {
+            throw new ZipException("Reserved gzip flags set");
+          }
+          nextGzipField();
+        } else {
+          int cmf = field[0] & 0xff;
+          int flg = field[1] & 0xff;
+          if (((cmf & 0x0f) != 8) || ((((cmf << 8) | flg) % 31) != 0)) {
+            throw new ZipException("Not in zlib format");
+          }
+          if ((flg & 0x20) != 0) {
+            throw new ZipException("Preset dictionaries are not supported");
+          }
+          startBody();
+        }
+        break;
+      case EXTRA_LENGTH:
+        extraRemaining = (field[0] & 0xff) | ((field[1] & 0xff) << 8);
+        state = State.EXTRA;
+        if (extraRemaining == 0) {
+          nextGzipField();
+        }
+        break;
+      case HEADER_CRC:
+        // The header checksum is optional and rarely used; the trailer covers the data.
+        nextGzipField();
+        break;
+      case TRAILER:
+        if (gzip) {
+          if ((readInt32LittleEndian(0) != checksum.getValue())
+              || (readInt32LittleEndian(4) != (decodedLength & 0xffffffffL))) {
+            throw new ZipException("Corrupt gzip trailer");
+          }
+        } else {
+          if (readInt32BigEndian(0) != checksum.getValue()) {
+            throw new ZipException("Corrupt zlib trailer");
+          }
+        }
+        state = State.DONE;
+        close();
+        break;
+      default:
+        throw new IllegalStateException(state.toString());
+    }
+  }
+
+  private void nextGzipField() {
+    if ((flags & FEXTRA) != 0) {
+      flags &= ~FEXTRA;
+      startField(State.EXTRA_LENGTH, 2);
+    } else if ((flags & FNAME) != 0) {
+      flags &= ~FNAME;
+      state = State.NAME;
+    } else if ((flags & FCOMMENT) != 0) {
+      flags &= ~FCOMMENT;
+      state = State.COMMENT;
+    } else if ((flags & FHCRC) != 0) {
+      flags &= ~FHCRC;
+      startField(State.HEADER_CRC, 2);
+    } else {
+      startBody();
+    }
+  }
+
+  private void startBody() {
+    inflater = pool.acquire();
+    state = State.BODY;
+  }
+
+  private int inflate(byte[] input, int pos, int end, Output output) throws IOException {
+    inflater.setInput(input, pos, end - pos);
+    try {
+      while (true) {
+        int count = inflater.inflate(buffer);
+        if (count > 0) {
+          checksum.update(buffer, 0, count);
+          decodedLength += count;
+          output.write(buffer, 0, count);
+        }
+        if (inflater.finished()) {
+          int remaining = inflater.getRemaining();
+          startField(State.TRAILER, gzip ? GZIP_TRAILER_LENGTH : ZLIB_TRAILER_LENGTH);
+          return end - remaining;
+        }
+        if (inflater.needsDictionary()) {
+          throw new ZipException("Preset dictionaries are not supported");
+        }
+        if ((count == 0) && inflater.needsInput()) {
+          return end;
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new ZipException(e.getMessage());
+    }
+  }
+
+  private long readInt32LittleEndian(int index) {
+    return (field[index] & 0xffL)
+        | ((field[index + 1] & 0xffL) << 8)
+        | ((field[index + 2] & 0xffL) << 16)
+        | ((field[index + 3] & 0xffL) << 24);
+  }
+
+  private long readInt32BigEndian(int index) {
+    return ((field[index] & 0xffL) << 24)
+        | ((field[index + 1] & 0xffL) << 16)
+        | ((field[index + 2] & 0xffL) << 8)
+        | (field[index + 3] & 0xffL);
+  }
+}
@@ -94,6 +94,17 @@ public final class MimeType implements Serializable {
     return "text".equals(primary);
   }
 
+  /** Returns whether content of this type usually benefits from gzip or deflate compression. */
+  public boolean isCompressible() {
+    return isText()
+        || equals(APPLICATION_JAVASCRIPT)
+        || equals(APPLICATION_JSON)
+        || equals(APPLICATION_XHTML_AND_XML)
+        || equals(APPLICATION_XML)
+        || equals(APPLICATION_XML_DTD)
+        || equals(IMAGE_SVG);
+  }
+
   @Override
   public int hashCode() {
     if (cachedHashCode == 0) {
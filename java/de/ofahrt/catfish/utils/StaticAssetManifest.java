@@ -0,0 +1,157 @@
+package de.ofahrt.catfish.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Maps the files of a static directory to fingerprinted names that contain a hash of the file
+ * content, for example {@code app.js} to {@code app.3f9a1c0b2e.js}. Since the name changes
+ * whenever the content does, responses for fingerprinted names can be cached forever; see
+ * {@link #IMMUTABLE_CACHE_CONTROL}. Pages refer to assets through
+ * {@link #getFingerprintedName}, and the static handlers map requests for fingerprinted names back
+ * to the files through {@link #resolve}.
+ *
+ * <p>The directory is scanned once. Files that are changed later are still served under their old
+ * fingerprinted name, but without the immutable cache policy, since the content no longer matches
+ * the fingerprint; scan the directory again to pick up the new content.
+ */
+public final class StaticAssetManifest {
+  /** The Cache-Control header value for responses to fingerprinted names. */
+  public static final String IMMUTABLE_CACHE_CONTROL = HttpCacheControl.combine(
+      HttpCacheControl.PUBLIC, HttpCacheControl.maxAgeInSeconds(31536000), HttpCacheControl.IMMUTABLE);
+
+  private static final String HASH_ALGORITHM = "SHA-256";
+  private static final int FINGERPRINT_LENGTH = 10;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /** A file in the manifest, together with the size and modification time it was hashed at. */
+  public static final class Asset {
+    private final String name;
+    private final String fingerprintedName;
+    private final String fingerprint;
+    private final long size;
+    private final long lastModified;
+
+    Asset(String name, String fingerprint, long size, long lastModified) {
+      this.name = name;
+      this.fingerprintedName = fingerprint(name, fingerprint);
+      this.fingerprint = fingerprint;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getFingerprintedName() {
+      return fingerprintedName;
+    }
+
+    public String getFingerprint() {
+      return fingerprint;
+    }
+
+    /**
+     * Returns whether a file with the given size and modification time still has the content that
+     * was hashed.
+     */
+    public boolean isCurrent(long currentSize, long currentLastModified) {
+      return size == currentSize && lastModified == currentLastModified;
+    }
+  }
+
+  /**
+   * Scans the given directory and hashes all regular files in it. Hidden files and subdirectories
+   * are skipped, matching the static handlers, which only serve plain files from a single
+   * directory.
+   */
+  public static StaticAssetManifest scan(Path directory) throws IOException {
+    Map<String, Asset> byName = new HashMap<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path path : (Iterable<Path>) files::iterator) {
+        String name = path.getFileName().toString();
+        if (name.startsWith(".")) {
+          continue;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!attributes.isRegularFile()) {
+          continue;
+        }
+        byName.put(name, new Asset(
+            name, hash(path), attributes.size(), attributes.lastModifiedTime().toMillis()));
+      }
+    }
+    return new StaticAssetManifest(byName);
+  }
+
+  private static String hash(Path path) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+    try (InputStream in = Files.newInputStream(path)) {
+      byte[] buffer = new byte[65536];
+      int length;
+      while ((length = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, length);
+      }
+    }
+    byte[] hash = digest.digest();
+    char[] result = new char[FINGERPRINT_LENGTH];
+    for (int i = 0; i < result.length; i++) {
+      int b = hash[i / 2] & 0xff;
+      result[i] = HEX_DIGITS[(i % 2 == 0) ? (b >> 4) : (b & 0xf)];
+    }
+    return new String(result);
+  }
+
+  /**
+   * Inserts the fingerprint before the last extension of the given name, or appends it if there
+   * is no extension.
+   */
+  static String fingerprint(String name, String fingerprint) {
+    int dot = name.lastIndexOf('.');
+    if (dot <= 0) {
+      return name + "." + fingerprint;
+    }
+    return name.substring(0, dot) + "." + fingerprint + name.substring(dot);
+  }
+
+  private final Map<String, Asset> byName;
+  private final Map<String, Asset> byFingerprintedName;
+
+  private StaticAssetManifest(Map<String, Asset> byName) {
+    this.byName = byName;
+    this.byFingerprintedName = new HashMap<>();
+    for (Asset asset : byName.values()) {
+      byFingerprintedName.put(asset.getFingerprintedName(), asset);
+    }
+  }
+
+  /** Returns the fingerprinted name for the given file name, or null if the file is unknown. */
+  public String getFingerprintedName(String name) {
+    Asset asset = byName.get(name);
+    return asset == null ? null : asset.getFingerprintedName();
+  }
+
+  /** Returns the asset with the given fingerprinted name, or null if there is none. */
+  public Asset resolve(String fingerprintedName) {
+    return byFingerprintedName.get(fingerprintedName);
+  }
+
+  public int size() {
+    return byName.size();
+  }
+}
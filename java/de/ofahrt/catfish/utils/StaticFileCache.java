@@ -0,0 +1,503 @@
+package de.ofahrt.catfish.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.zip.Deflater;
+
+/**
+ * A cache for the contents of static files, keyed by path. Small files are copied to the heap,
+ * larger ones are memory-mapped. Entries are invalidated when the size or modification time of the
+ * file changes. The total size of all cached files is limited; if the limit is exceeded, the least
+ * recently used entries are evicted.
+ *
+ * <p>For compressible files, {@link #getGzipContent} returns a gzip-compressed variant. A sibling
+ * file with the suffix {@code .gz} is used if there is one, otherwise the content is compressed
+ * once and the result is kept with the entry.
+ *
+ * <p>{@link #getETag} returns a strong entity tag derived from a hash of the content. Entity tags
+ * are computed once per version of a file, identified by its file key (the inode on Unix), size
+ * and modification time, and are kept independently of the content, so they survive eviction.
+ * Hashing files that are too large to cache would stall the request for a long time, so their
+ * entity tags are derived from the file key, size and modification time instead.
+ *
+ * <p>Files are checked for changes at most once per revalidation interval; in between, cached
+ * files are served without touching the file system. Alternatively, a {@link FileMetadataCache}
+ * can be configured, which is then consulted on every access instead; it also remembers files
+ * that do not exist, and picks up changes as soon as the file system reports them. Note that
+ * truncating a mapped file in place makes accesses to the mapping fail; files should be replaced
+ * by renaming a new version over them instead.
+ */
+public final class StaticFileCache {
+  /** A file in the cache. The content is immutable and may be shared between threads. */
+  public static final class Entry {
+    private final Path path;
+    private final ValidatorKey validatorKey;
+    private final long size;
+    private final long lastModified;
+    private final ByteBuffer content;
+    private final boolean mapped;
+    private volatile long validatedAt;
+
+    // Guarded by the cache. Set once the gzip variant has been looked up.
+    private boolean gzipResolved;
+    private Path gzipSibling;
+    private ByteBuffer gzipContent;
+    private volatile String etag;
+
+    Entry(
+        Path path,
+        ValidatorKey validatorKey,
+        long size,
+        long lastModified,
+        ByteBuffer content,
+        boolean mapped,
+        long validatedAt) {
+      this.path = path;
+      this.validatorKey = validatorKey;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.content = content;
+      this.mapped = mapped;
+      this.validatedAt = validatedAt;
+    }
+
+    public Path getPath() {
+      return path;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /** Returns the modification time of the file in milliseconds since the epoch. */
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    /** Returns whether the content is available; this is false for files that are too large. */
+    public boolean hasContent() {
+      return content != null;
+    }
+
+    /** Returns a new read-only view of the content, or null if the file was too large to cache. */
+    public ByteBuffer getContent() {
+      return content == null ? null : content.duplicate();
+    }
+
+    public boolean isMapped() {
+      return mapped;
+    }
+
+    private long weight() {
+      return size + (gzipContent != null ? gzipContent.capacity() : 0);
+    }
+  }
+
+  /** Identifies a version of a file. */
+  private static final class ValidatorKey {
+    private final Object fileKey;
+    private final long size;
+    private final long lastModified;
+
+    ValidatorKey(Object fileKey, long size, long lastModified) {
+      this.fileKey = fileKey;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (!(o instanceof ValidatorKey)) {
+        return false;
+      }
+      ValidatorKey other = (ValidatorKey) o;
+      return fileKey.equals(other.fileKey) && size == other.size && lastModified == other.lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+      return (fileKey.hashCode() * 31 + Long.hashCode(size)) * 31 + Long.hashCode(lastModified);
+    }
+  }
+
+  public static final class Builder {
+    private long maxBytes = 64L * 1024 * 1024;
+    private long maxEntrySize = 8L * 1024 * 1024;
+    private int mapThreshold = 16 * 1024;
+    private long revalidateNanos = TimeUnit.SECONDS.toNanos(1);
+    private int maxValidators = 4096;
+    private FileMetadataCache metadataCache;
+    private LongSupplier clock = System::nanoTime;
+
+    /** Sets the total number of bytes of file content that may be cached. */
+    public Builder setMaxBytes(long maxBytes) {
+      if (maxBytes < 0) {
+        throw new IllegalArgumentException("Maximum size must not be negative, but is " + maxBytes);
+      }
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    /** Sets the size above which files are not cached. */
+    public Builder setMaxEntrySize(long maxEntrySize) {
+      if (maxEntrySize < 0) {
+        throw new IllegalArgumentException("Maximum size must not be negative, but is " + maxEntrySize);
+      }
+      this.maxEntrySize = maxEntrySize;
+      return this;
+    }
+
+    /** Sets the size from which files are memory-mapped instead of copied to the heap. */
+    public Builder setMapThreshold(int mapThreshold) {
+      this.mapThreshold = mapThreshold;
+      return this;
+    }
+
+    /**
+     * Sets how long a cached file is served before its size and modification time are checked
+     * again. A value of zero checks the file on every access.
+     */
+    public Builder setRevalidateAfter(long duration, TimeUnit unit) {
+      if (duration < 0) {
+        throw new IllegalArgumentException("Duration must not be negative, but is " + duration);
+      }
+      this.revalidateNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    /** Sets the number of entity tags that are remembered. */
+    public Builder setMaxValidators(int maxValidators) {
+      if (maxValidators < 0) {
+        throw new IllegalArgumentException("Maximum count must not be negative, but is " + maxValidators);
+      }
+      this.maxValidators = maxValidators;
+      return this;
+    }
+
+    /**
+     * Sets a cache for file attributes. If set, it replaces the revalidation interval: every access
+     * checks the cached attributes, so the freshness of the content is that of the attributes.
+     */
+    public Builder setMetadataCache(FileMetadataCache metadataCache) {
+      this.metadataCache = metadataCache;
+      return this;
+    }
+
+    Builder setClock(LongSupplier clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    public StaticFileCache build() {
+      return new StaticFileCache(this);
+    }
+  }
+
+  private static final String GZIP_SUFFIX = ".gz";
+  private static final String ETAG_HASH_ALGORITHM = "SHA-256";
+  private static final int ETAG_HASH_BYTES = 16;
+
+  private final long maxBytes;
+  private final long maxEntrySize;
+  private final int mapThreshold;
+  private final long revalidateNanos;
+  private final int maxValidators;
+  private final FileMetadataCache metadataCache;
+  private final LongSupplier clock;
+
+  // Guarded by this. Iteration order is least recently used first.
+  private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long cachedBytes;
+  // Guarded by this.
+  private final LinkedHashMap<ValidatorKey, String> etags = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  private StaticFileCache(Builder builder) {
+    this.maxBytes = builder.maxBytes;
+    this.maxEntrySize = Math.min(builder.maxEntrySize, builder.maxBytes);
+    this.mapThreshold = builder.mapThreshold;
+    this.revalidateNanos = builder.revalidateNanos;
+    this.maxValidators = builder.maxValidators;
+    this.metadataCache = builder.metadataCache;
+    this.clock = builder.clock;
+  }
+
+  /**
+   * Returns the entry for the given file, or null if the file does not exist or is not a regular
+   * file. Files that are larger than the maximum entry size are not cached; the returned entry
+   * has no content in that case.
+   */
+  public Entry get(Path path) throws IOException {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(path);
+    }
+    long now = clock.getAsLong();
+    if (entry != null && metadataCache == null && now - entry.validatedAt < revalidateNanos) {
+      hitCount.incrementAndGet();
+      return entry;
+    }
+
+    FileMetadataCache.Metadata attributes = readMetadata(path);
+    if (attributes == null || !attributes.isRegularFile()) {
+      if (entry != null) {
+        remove(path, entry);
+      }
+      missCount.incrementAndGet();
+      return null;
+    }
+    long size = attributes.getSize();
+    long lastModified = attributes.getLastModified();
+    Object fileKey = attributes.getFileKey();
+    ValidatorKey validatorKey = new ValidatorKey(fileKey != null ? fileKey : path, size, lastModified);
+    if (entry != null && entry.validatorKey.equals(validatorKey)) {
+      entry.validatedAt = now;
+      hitCount.incrementAndGet();
+      return entry;
+    }
+
+    missCount.incrementAndGet();
+    if (size > maxEntrySize) {
+      if (entry != null) {
+        remove(path, entry);
+      }
+      return new Entry(path, validatorKey, size, lastModified, null, false, now);
+    }
+    // Concurrent misses for the same file may load it more than once; the last one wins.
+    Entry loaded = load(path, validatorKey, now);
+    put(path, loaded);
+    return loaded;
+  }
+
+  private FileMetadataCache.Metadata readMetadata(Path path) throws IOException {
+    if (metadataCache != null) {
+      return metadataCache.get(path);
+    }
+    return FileMetadataCache.read(path);
+  }
+
+  private Entry load(Path path, ValidatorKey validatorKey, long now) throws IOException {
+    long size = validatorKey.size;
+    long lastModified = validatorKey.lastModified;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (size < mapThreshold) {
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, buffer.position()) < 0) {
+            // The file was truncated after we looked at it; cache what we got. The modification
+            // time will not match on the next validation.
+            break;
+          }
+        }
+        buffer.flip();
+        return new Entry(
+            path, validatorKey, buffer.remaining(), lastModified, buffer.asReadOnlyBuffer(), false, now);
+      }
+      // The mapping stays valid after the channel is closed.
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      return new Entry(path, validatorKey, size, lastModified, buffer.asReadOnlyBuffer(), true, now);
+    }
+  }
+
+  private synchronized void put(Path path, Entry entry) {
+    Entry previous = entries.put(path, entry);
+    if (previous != null) {
+      cachedBytes -= previous.weight();
+    }
+    cachedBytes += entry.weight();
+    evict(entry);
+  }
+
+  private void evict(Entry keep) {
+    Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+    while (cachedBytes > maxBytes && it.hasNext()) {
+      Entry eldest = it.next().getValue();
+      if (eldest == keep) {
+        continue;
+      }
+      it.remove();
+      cachedBytes -= eldest.weight();
+      evictionCount.incrementAndGet();
+    }
+  }
+
+  private synchronized void remove(Path path, Entry entry) {
+    if (entries.remove(path, entry)) {
+      cachedBytes -= entry.weight();
+    }
+  }
+
+  /**
+   * Returns the gzip-compressed content of the given entry, or null if there is none. The caller
+   * is responsible for checking that the client accepts gzip, and that the file type is worth
+   * compressing.
+   *
+   * <p>A sibling file with the suffix {@code .gz} is used if it is not older than the file itself.
+   * Otherwise the content is compressed with the best compression level on first access, and the
+   * result is kept with the entry and counts towards the cache size. Null is returned if the entry
+   * has no content, or if compression does not make it smaller.
+   */
+  public ByteBuffer getGzipContent(Entry entry) throws IOException {
+    Path sibling;
+    ByteBuffer compressed;
+    synchronized (this) {
+      sibling = entry.gzipSibling;
+      compressed = entry.gzipContent;
+      if (entry.gzipResolved && sibling == null) {
+        return compressed == null ? null : compressed.duplicate();
+      }
+    }
+    if (sibling == null) {
+      sibling = entry.path.resolveSibling(entry.path.getFileName() + GZIP_SUFFIX);
+    }
+    Entry precompressed = get(sibling);
+    if (precompressed != null && precompressed.hasContent() && precompressed.lastModified >= entry.lastModified) {
+      synchronized (this) {
+        entry.gzipResolved = true;
+        entry.gzipSibling = sibling;
+      }
+      return precompressed.getContent();
+    }
+    synchronized (this) {
+      if (entry.gzipResolved) {
+        // The sibling disappeared or is out of date; serve the uncompressed content until the
+        // entry is reloaded.
+        return null;
+      }
+    }
+    if (!entry.hasContent()) {
+      return null;
+    }
+    compressed = compress(entry.getContent());
+    synchronized (this) {
+      if (!entry.gzipResolved) {
+        entry.gzipResolved = true;
+        if (compressed != null) {
+          entry.gzipContent = compressed;
+          if (entries.get(entry.path) == entry) {
+            cachedBytes += compressed.capacity();
+            evict(entry);
+          }
+        }
+      }
+    }
+    return compressed == null ? null : compressed.duplicate();
+  }
+
+  /**
+   * Returns a strong entity tag for the given entry, including the quotes. The first call for a
+   * version of a cached file hashes its content; for files that are too large to cache, the tag is
+   * derived from the file's metadata without reading it.
+   */
+  public String getETag(Entry entry) throws IOException {
+    String result = entry.etag;
+    if (result != null) {
+      return result;
+    }
+    if (!entry.hasContent()) {
+      result = metadataETag(entry.validatorKey);
+      entry.etag = result;
+      return result;
+    }
+    synchronized (this) {
+      result = etags.get(entry.validatorKey);
+    }
+    if (result == null) {
+      result = computeETag(entry);
+      synchronized (this) {
+        etags.put(entry.validatorKey, result);
+        Iterator<String> it = etags.values().iterator();
+        while (etags.size() > maxValidators && it.hasNext()) {
+          it.next();
+          it.remove();
+        }
+      }
+    }
+    entry.etag = result;
+    return result;
+  }
+
+  private static String metadataETag(ValidatorKey key) {
+    return "\"" + Long.toHexString(key.lastModified) + "-" + Long.toHexString(key.size)
+        + "-" + Integer.toHexString(key.fileKey.hashCode()) + "\"";
+  }
+
+  private static String computeETag(Entry entry) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(ETAG_HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+    digest.update(entry.getContent());
+    byte[] hash = Arrays.copyOf(digest.digest(), ETAG_HASH_BYTES);
+    return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(hash) + "\"";
+  }
+
+  private static ByteBuffer compress(ByteBuffer content) throws IOException {
+    int length = content.remaining();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(length / 2 + 32);
+    try (OutputStream out = new CompressingOutputStream(
+        buffer, HttpAcceptEncoding.GZIP, Deflater.BEST_COMPRESSION, DeflaterPool.DEFAULT, false)) {
+      byte[] chunk = new byte[Math.min(content.remaining(), 8192)];
+      while (content.hasRemaining()) {
+        int count = Math.min(content.remaining(), chunk.length);
+        content.get(chunk, 0, count);
+        out.write(chunk, 0, count);
+      }
+    }
+    if (buffer.size() >= length) {
+      return null;
+    }
+    return ByteBuffer.wrap(buffer.toByteArray()).asReadOnlyBuffer();
+  }
+
+  /** Removes all entries. This does not count as eviction. */
+  public synchronized void clear() {
+    entries.clear();
+    cachedBytes = 0;
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /** Returns the total size of the cached file contents in bytes. */
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+}
@@ -2,11 +2,15 @@ package de.ofahrt.catfish;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicReference;
 import org.junit.Test;
 import de.ofahrt.catfish.bridge.ServletHttpHandler;
@@ -15,7 +19,10 @@ import de.ofahrt.catfish.model.HttpHeaderName;
 import de.ofahrt.catfish.model.HttpRequest;
 import de.ofahrt.catfish.model.HttpResponse;
 import de.ofahrt.catfish.model.HttpStatusCode;
+import de.ofahrt.catfish.model.StandardResponses;
 import de.ofahrt.catfish.model.network.Connection;
+import de.ofahrt.catfish.model.network.NetworkEventListener;
+import de.ofahrt.catfish.model.server.AsyncHttpHandler;
 import de.ofahrt.catfish.model.server.BasicHttpHandler;
 import de.ofahrt.catfish.model.server.HttpHandler;
 import de.ofahrt.catfish.model.server.HttpResponseWriter;
@@ -43,6 +50,11 @@ public class CatfishHttpServerTest {
     final AtomicReference<HttpResponse> writtenResponse = new AtomicReference<>();
     final AtomicReference<ByteArrayOutputStream> writtenOutput = new AtomicReference<>();
     HttpResponseWriter writer = new HttpResponseWriter() {
+      @Override
+      public boolean isCommitted() {
+        return writtenResponse.get() != null;
+      }
+
       @Override
       public void commitBuffered(HttpResponse response) {
         if (!writtenResponse.compareAndSet(null, response)) {
@@ -118,10 +130,16 @@ public class CatfishHttpServerTest {
 
   @Test
   public void expect() throws Exception {
-    HttpResponse response = createResponse("GET / HTTP/1.1\nHost: localhost\nExpect: 100-continue\n\n");
+    HttpResponse response = createResponse("GET / HTTP/1.1\nHost: localhost\nExpect: unknown-expectation\n\n");
     assertEquals(HttpStatusCode.EXPECTATION_FAILED.getStatusCode(), response.getStatusCode());
   }
 
+  @Test
+  public void expectContinueIsHandledByServer() throws Exception {
+    HttpResponse response = createResponse("GET /index HTTP/1.1\nHost: localhost\nExpect: 100-continue\n\n");
+    assertEquals(HttpStatusCode.OK.getStatusCode(), response.getStatusCode());
+  }
+
   @Test
   public void contentEncoding() throws Exception {
     HttpResponse response = createResponse("GET / HTTP/1.1\nHost: localhost\nContent-Encoding: gzip\n\n");
@@ -151,4 +169,86 @@ public class CatfishHttpServerTest {
     assertNull(response.getHeaders().get(HttpHeaderName.CONTENT_LENGTH));
     assertNull(response.getHeaders().get(HttpHeaderName.TRANSFER_ENCODING));
   }
+
+  private static final class RecordingWriter implements HttpResponseWriter {
+    private final List<HttpResponse> responses = new CopyOnWriteArrayList<>();
+
+    @Override
+    public boolean isCommitted() {
+      return !responses.isEmpty();
+    }
+
+    @Override
+    public void commitBuffered(HttpResponse response) {
+      if (isCommitted()) {
+        throw new IllegalStateException("Already set!");
+      }
+      responses.add(response);
+    }
+
+    @Override
+    public OutputStream commitStreamed(HttpResponse response) {
+      commitBuffered(response);
+      return new ByteArrayOutputStream();
+    }
+  }
+
+  private static List<Throwable> handleAsync(AsyncHttpHandler handler, HttpResponseWriter writer)
+      throws Exception {
+    List<Throwable> errors = new CopyOnWriteArrayList<>();
+    CatfishHttpServer server = new CatfishHttpServer(new NetworkEventListener() {
+      @Override
+      public void shutdown() {
+      }
+
+      @Override
+      public void portOpened(int port, boolean ssl) {
+      }
+
+      @Override
+      public void notifyInternalError(Connection connection, Throwable throwable) {
+        errors.add(throwable);
+      }
+    }, Runnable::run);
+    try {
+      Connection connection = new Connection(
+          new InetSocketAddress("127.0.0.1", 80), new InetSocketAddress("127.0.0.1", 1234), false);
+      server.queueRequest(handler, connection, parse("GET / HTTP/1.1\nHost: localhost\n\n"), writer);
+    } finally {
+      server.stop();
+    }
+    return errors;
+  }
+
+  @Test
+  public void failedAsyncHandlerIsReportedToListener() throws Exception {
+    RuntimeException failure = new RuntimeException("failed");
+    RecordingWriter writer = new RecordingWriter();
+    List<Throwable> errors = handleAsync((connection, request, responseWriter) -> {
+      CompletableFuture<Void> result = new CompletableFuture<>();
+      result.completeExceptionally(failure);
+      return result;
+    }, writer);
+    assertEquals(1, errors.size());
+    assertSame(failure, errors.get(0));
+    assertEquals(1, writer.responses.size());
+    assertEquals(
+        HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), writer.responses.get(0).getStatusCode());
+  }
+
+  @Test
+  public void committedAsyncResponseIsKept() throws Exception {
+    RecordingWriter writer = new RecordingWriter();
+    List<Throwable> errors = handleAsync((connection, request, responseWriter) -> {
+      try {
+        responseWriter.commitBuffered(StandardResponses.OK);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      return CompletableFuture.completedFuture(null);
+    }, writer);
+    assertTrue(errors.isEmpty());
+    assertEquals(1, writer.responses.size());
+    assertEquals(HttpStatusCode.OK.getStatusCode(), writer.responses.get(0).getStatusCode());
+  }
 }
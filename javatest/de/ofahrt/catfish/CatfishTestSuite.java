@@ -6,6 +6,7 @@ import org.junit.runners.Suite.SuiteClasses;
 import de.ofahrt.catfish.api.CatfishApiTestSuite;
 import de.ofahrt.catfish.bridge.CatfishBridgeTestSuite;
 import de.ofahrt.catfish.client.ClientTestSuite;
+import de.ofahrt.catfish.http2.CatfishHttp2TestSuite;
 import de.ofahrt.catfish.integration.IntegrationTestSuite;
 import de.ofahrt.catfish.model.layout.ModelLayoutTestSuite;
 import de.ofahrt.catfish.model.server.ModelServerTestSuite;
@@ -18,14 +19,20 @@ import de.ofahrt.catfish.utils.CatfishUtilsTestSuite;
   CatfishHttpServerTest.class,
   CoreHelperTest.class,
   HashConflictGeneratorTest.class,
+  HandlerExecutorsTest.class,
+  Http2ServerStageTest.class,
+  HttpServerHandlerTest.class,
+  HttpServerStageTest.class,
   IncrementalHttpParserIncrementalTest.class,
   IncrementalHttpParserTest.class,
   HttpResponseGeneratorBufferedTest.class,
+  HttpResponseGeneratorFileTest.class,
   HttpResponseGeneratorStreamedTest.class,
   SNIParserTest.class,
 
   CatfishApiTestSuite.class,
   CatfishBridgeTestSuite.class,
+  CatfishHttp2TestSuite.class,
   CatfishUploadTestSuite.class,
   CatfishUtilsTestSuite.class,
   ModelLayoutTestSuite.class,
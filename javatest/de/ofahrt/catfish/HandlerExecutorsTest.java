@@ -0,0 +1,84 @@
+package de.ofahrt.catfish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class HandlerExecutorsTest {
+  @Test
+  public void threadPerRequestLimitsConcurrency() throws Exception {
+    Executor executor = HandlerExecutors.threadPerRequest(Thread::new, 2);
+    CountDownLatch release = new CountDownLatch(1);
+    Semaphore finished = new Semaphore(0);
+    Runnable task = () -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      finished.release();
+    };
+    executor.execute(task);
+    executor.execute(task);
+    try {
+      executor.execute(task);
+      fail();
+    } catch (RejectedExecutionException expected) {
+      // Expected
+    }
+    release.countDown();
+    finished.acquire(2);
+    // The permits are released just after the tasks signal completion, so allow for some delay.
+    for (int i = 0; i < 100; i++) {
+      try {
+        executor.execute(finished::release);
+        break;
+      } catch (RejectedExecutionException e) {
+        Thread.sleep(10);
+      }
+    }
+    assertTrue(finished.tryAcquire(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void threadPerRequestReleasesPermitIfThreadCannotBeCreated() throws Exception {
+    Executor executor = HandlerExecutors.threadPerRequest(r -> null, 1);
+    for (int i = 0; i < 2; i++) {
+      try {
+        executor.execute(() -> {});
+        fail();
+      } catch (RejectedExecutionException expected) {
+        assertEquals("Thread factory did not create a thread", expected.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void fixedThreadPoolRejectsWhenQueueIsFull() throws Exception {
+    Executor executor = HandlerExecutors.fixedThreadPool(1, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    Runnable task = () -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    };
+    executor.execute(task);
+    executor.execute(task);
+    try {
+      executor.execute(task);
+      fail();
+    } catch (RejectedExecutionException expected) {
+      // Expected
+    } finally {
+      release.countDown();
+    }
+  }
+}
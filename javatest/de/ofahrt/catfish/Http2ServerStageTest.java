@@ -0,0 +1,652 @@
+package de.ofahrt.catfish;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import de.ofahrt.catfish.http2.ErrorCode;
+import de.ofahrt.catfish.http2.FrameType;
+import de.ofahrt.catfish.http2.Frames;
+import de.ofahrt.catfish.http2.HpackDecoder;
+import de.ofahrt.catfish.http2.HpackEncoder;
+import de.ofahrt.catfish.http2.Setting;
+import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
+import de.ofahrt.catfish.internal.network.Stage.ConnectionControl;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.StandardResponses;
+import de.ofahrt.catfish.model.network.Connection;
+import de.ofahrt.catfish.model.server.HttpHandler;
+import de.ofahrt.catfish.model.server.HttpResponseWriter;
+import de.ofahrt.catfish.model.server.ResponsePolicy;
+import de.ofahrt.catfish.model.server.UploadPolicy;
+import de.ofahrt.catfish.upload.SimpleUploadPolicy;
+import de.ofahrt.catfish.upload.UploadMemoryBudget;
+
+public class Http2ServerStageTest {
+  private static final class Frame {
+    private final int type;
+    private final int flags;
+    private final int streamId;
+    private final byte[] payload;
+
+    Frame(int type, int flags, int streamId, byte[] payload) {
+      this.type = type;
+      this.flags = flags;
+      this.streamId = streamId;
+      this.payload = payload;
+    }
+
+    boolean hasFlag(int flag) {
+      return (flags & flag) != 0;
+    }
+
+    int getInt(int offset) {
+      return Frames.getInt(payload, offset);
+    }
+  }
+
+  private static final class FakePipeline implements Pipeline {
+    private final List<Runnable> queued = new ArrayList<>();
+    private boolean closed;
+
+    @Override
+    public void encourageWrites() {
+    }
+
+    @Override
+    public void encourageReads() {
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    @Override
+    public synchronized void queue(Runnable runnable) {
+      queued.add(runnable);
+    }
+
+    @Override
+    public void log(String text, Object... params) {
+    }
+
+    void runQueued() {
+      while (true) {
+        List<Runnable> tasks;
+        synchronized (this) {
+          if (queued.isEmpty()) {
+            return;
+          }
+          tasks = new ArrayList<>(queued);
+          queued.clear();
+        }
+        for (Runnable task : tasks) {
+          task.run();
+        }
+      }
+    }
+  }
+
+  private final FakePipeline pipeline = new FakePipeline();
+  private final ByteBuffer inputBuffer = ByteBuffer.allocate(32768);
+  private final ByteBuffer outputBuffer = ByteBuffer.allocate(32768);
+  private final HpackEncoder encoder = new HpackEncoder();
+  private final HpackDecoder decoder = new HpackDecoder();
+  private final List<HttpRequest> requests = new ArrayList<>();
+  private final List<HttpResponseWriter> writers = new ArrayList<>();
+  private HttpHandler handler = (connection, request, writer) -> {
+    writer.commitBuffered(StandardResponses.OK.withBody(
+        ("Hello " + request.getUri()).getBytes(StandardCharsets.UTF_8)));
+  };
+  private UploadPolicy uploadPolicy = UploadPolicy.DENY;
+  private Http2ServerStage stage;
+  private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+  private ConnectionControl lastReadResult;
+
+  private Http2ServerStage start() throws Exception {
+    inputBuffer.flip();
+    outputBuffer.flip();
+    HttpVirtualHost host = new HttpVirtualHost(
+        (connection, request, writer) -> handler.handle(connection, request, writer),
+        ResponsePolicy.KEEP_ALIVE, uploadPolicy, null);
+    stage = new Http2ServerStage(
+        pipeline,
+        (httpHandler, connection, request, writer) -> {
+          requests.add(request);
+          writers.add(writer);
+          try {
+            httpHandler.handle(connection, request, writer);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        },
+        (connection, request, response) -> {},
+        (name) -> "localhost".equals(name) ? host : null,
+        inputBuffer,
+        outputBuffer);
+    stage.connect(new Connection(
+        new InetSocketAddress("127.0.0.1", 80), new InetSocketAddress("127.0.0.1", 1234), false));
+    return stage;
+  }
+
+  private void send(byte[] data) throws Exception {
+    int offset = 0;
+    while (offset < data.length) {
+      inputBuffer.compact();
+      int length = Math.min(inputBuffer.remaining(), data.length - offset);
+      inputBuffer.put(data, offset, length);
+      inputBuffer.flip();
+      offset += length;
+      while (inputBuffer.hasRemaining()) {
+        lastReadResult = stage.read();
+        if (lastReadResult != ConnectionControl.CONTINUE) {
+          break;
+        }
+      }
+      pipeline.runQueued();
+    }
+  }
+
+  private void sendPrefaceAndSettings(int... settings) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(Frames.CONNECTION_PREFACE);
+    out.write(Frames.settings(settings));
+    send(out.toByteArray());
+  }
+
+  private static byte[] frame(int type, int flags, int streamId, byte[] payload) {
+    ByteBuffer result = ByteBuffer.allocate(Frames.HEADER_LENGTH + payload.length);
+    Frames.writeHeader(result, payload.length, type, flags, streamId);
+    result.put(payload);
+    return result.array();
+  }
+
+  private static Map.Entry<String, String> field(String name, String value) {
+    return new AbstractMap.SimpleImmutableEntry<>(name, value);
+  }
+
+  private byte[] headers(int streamId, boolean endStream, String method, String path, String... extra) {
+    List<Map.Entry<String, String>> fields = new ArrayList<>();
+    fields.add(field(":method", method));
+    fields.add(field(":scheme", "https"));
+    fields.add(field(":path", path));
+    fields.add(field(":authority", "localhost"));
+    for (int i = 0; i < extra.length; i += 2) {
+      fields.add(field(extra[i], extra[i + 1]));
+    }
+    return frame(FrameType.HEADERS, Frames.FLAG_END_HEADERS | (endStream ? Frames.FLAG_END_STREAM : 0),
+        streamId, encoder.encode(fields));
+  }
+
+  private static byte[] data(int streamId, boolean endStream, byte[] payload) {
+    return frame(FrameType.DATA, endStream ? Frames.FLAG_END_STREAM : 0, streamId, payload);
+  }
+
+  /** Calls write until the stage pauses, and returns the frames it wrote. */
+  private List<Frame> receive() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      pipeline.runQueued();
+      ConnectionControl control = stage.write();
+      byte[] data = new byte[outputBuffer.remaining()];
+      outputBuffer.get(data);
+      received.write(data);
+      if (control != ConnectionControl.CONTINUE && data.length == 0) {
+        break;
+      }
+    }
+    List<Frame> frames = new ArrayList<>();
+    byte[] data = received.toByteArray();
+    int offset = 0;
+    while (data.length - offset >= Frames.HEADER_LENGTH
+        && data.length - offset >= Frames.HEADER_LENGTH + Frames.getLength(data, offset)) {
+      int length = Frames.getLength(data, offset);
+      frames.add(new Frame(
+          Frames.getType(data, offset),
+          Frames.getFlags(data, offset),
+          Frames.getStreamId(data, offset),
+          Arrays.copyOfRange(data, offset + Frames.HEADER_LENGTH, offset + Frames.HEADER_LENGTH + length)));
+      offset += Frames.HEADER_LENGTH + length;
+    }
+    received.reset();
+    received.write(data, offset, data.length - offset);
+    return frames;
+  }
+
+  /** Skips the server preface and the acknowledgement of the client settings. */
+  private List<Frame> receiveAfterPreface() throws Exception {
+    List<Frame> frames = receive();
+    assertEquals(FrameType.SETTINGS, frames.get(0).type);
+    assertFalse(frames.get(0).hasFlag(Frames.FLAG_ACK));
+    assertEquals(FrameType.WINDOW_UPDATE, frames.get(1).type);
+    assertEquals(FrameType.SETTINGS, frames.get(2).type);
+    assertTrue(frames.get(2).hasFlag(Frames.FLAG_ACK));
+    return frames.subList(3, frames.size());
+  }
+
+  private Map<String, String> decodeHeaders(Frame frame) throws Exception {
+    assertEquals(FrameType.HEADERS, frame.type);
+    Map<String, String> result = new HashMap<>();
+    decoder.decode(frame.payload, 0, frame.payload.length, result::put);
+    return result;
+  }
+
+  private static Frame findFrame(List<Frame> frames, int type) {
+    for (Frame frame : frames) {
+      if (frame.type == type) {
+        return frame;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void serverPreface() throws Exception {
+    start();
+    List<Frame> frames = receive();
+    assertEquals(2, frames.size());
+    Frame settings = frames.get(0);
+    assertEquals(FrameType.SETTINGS, settings.type);
+    assertEquals(0, settings.streamId);
+    assertEquals(2 * Frames.SETTING_LENGTH, settings.payload.length);
+    assertEquals(FrameType.WINDOW_UPDATE, frames.get(1).type);
+  }
+
+  @Test
+  public void simpleGet() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, true, "GET", "/foo"));
+    List<Frame> frames = receiveAfterPreface();
+    assertEquals(1, requests.size());
+    assertEquals(HttpVersion.HTTP_2_0, requests.get(0).getVersion());
+    assertEquals("/foo", requests.get(0).getUri());
+    assertEquals("localhost", requests.get(0).getHeaders().get("Host"));
+    assertEquals(2, frames.size());
+    Map<String, String> headers = decodeHeaders(frames.get(0));
+    assertEquals("200", headers.get(":status"));
+    assertEquals("10", headers.get("content-length"));
+    assertFalse(frames.get(0).hasFlag(Frames.FLAG_END_STREAM));
+    assertEquals(FrameType.DATA, frames.get(1).type);
+    assertEquals(1, frames.get(1).streamId);
+    assertTrue(frames.get(1).hasFlag(Frames.FLAG_END_STREAM));
+    assertArrayEquals("Hello /foo".getBytes(StandardCharsets.UTF_8), frames.get(1).payload);
+  }
+
+  @Test
+  public void headRequestEndsStreamWithHeaders() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, true, "HEAD", "/foo"));
+    List<Frame> frames = receiveAfterPreface();
+    assertEquals(1, frames.size());
+    assertTrue(frames.get(0).hasFlag(Frames.FLAG_END_STREAM));
+    assertEquals("10", decodeHeaders(frames.get(0)).get("content-length"));
+  }
+
+  @Test
+  public void inputSplitIntoSingleBytes() throws Exception {
+    start();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(Frames.CONNECTION_PREFACE);
+    out.write(Frames.settings());
+    out.write(headers(1, true, "GET", "/foo"));
+    for (byte b : out.toByteArray()) {
+      send(new byte[] { b });
+    }
+    List<Frame> frames = receiveAfterPreface();
+    assertEquals(2, frames.size());
+    assertArrayEquals("Hello /foo".getBytes(StandardCharsets.UTF_8), frames.get(1).payload);
+  }
+
+  @Test
+  public void invalidPrefaceIsConnectionError() throws Exception {
+    start();
+    send("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+    assertEquals(ConnectionControl.CLOSE_INPUT, lastReadResult);
+    Frame goAway = findFrame(receive(), FrameType.GOAWAY);
+    assertNotNull(goAway);
+    assertEquals(ErrorCode.PROTOCOL_ERROR, goAway.getInt(4));
+    assertEquals(ConnectionControl.CLOSE_CONNECTION_AFTER_FLUSH, stage.write());
+  }
+
+  @Test
+  public void firstFrameMustBeSettings() throws Exception {
+    start();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(Frames.CONNECTION_PREFACE);
+    out.write(Frames.ping(new byte[8], 0, false));
+    send(out.toByteArray());
+    Frame goAway = findFrame(receive(), FrameType.GOAWAY);
+    assertNotNull(goAway);
+    assertEquals(ErrorCode.PROTOCOL_ERROR, goAway.getInt(4));
+  }
+
+  @Test
+  public void pingIsAcknowledged() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    send(Frames.ping(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, 0, false));
+    List<Frame> frames = receiveAfterPreface();
+    assertEquals(1, frames.size());
+    assertEquals(FrameType.PING, frames.get(0).type);
+    assertTrue(frames.get(0).hasFlag(Frames.FLAG_ACK));
+    assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, frames.get(0).payload);
+  }
+
+  @Test
+  public void frameLargerThanMaxFrameSizeIsConnectionError() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    send(data(1, false, new byte[Frames.DEFAULT_MAX_FRAME_SIZE + 1]));
+    Frame goAway = findFrame(receiveAfterPreface(), FrameType.GOAWAY);
+    assertNotNull(goAway);
+    assertEquals(ErrorCode.FRAME_SIZE_ERROR, goAway.getInt(4));
+  }
+
+  @Test
+  public void zeroWindowIncrementIsConnectionError() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    send(frame(FrameType.WINDOW_UPDATE, 0, 0, new byte[4]));
+    Frame goAway = findFrame(receiveAfterPreface(), FrameType.GOAWAY);
+    assertNotNull(goAway);
+    assertEquals(ErrorCode.PROTOCOL_ERROR, goAway.getInt(4));
+  }
+
+  @Test
+  public void unknownFrameTypeIsIgnored() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    send(frame(0x42, 0, 0, new byte[] { 1, 2, 3 }));
+    send(headers(1, true, "GET", "/foo"));
+    assertEquals(2, receiveAfterPreface().size());
+  }
+
+  @Test
+  public void evenStreamIdIsConnectionError() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    send(headers(2, true, "GET", "/foo"));
+    Frame goAway = findFrame(receiveAfterPreface(), FrameType.GOAWAY);
+    assertNotNull(goAway);
+    assertEquals(ErrorCode.PROTOCOL_ERROR, goAway.getInt(4));
+  }
+
+  @Test
+  public void upperCaseHeaderNameResetsStream() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, true, "GET", "/foo", "X-Foo", "bar"));
+    List<Frame> frames = receiveAfterPreface();
+    assertEquals(1, frames.size());
+    assertEquals(FrameType.RST_STREAM, frames.get(0).type);
+    assertEquals(1, frames.get(0).streamId);
+    assertEquals(ErrorCode.PROTOCOL_ERROR, frames.get(0).getInt(0));
+    assertTrue(requests.isEmpty());
+  }
+
+  @Test
+  public void connectionSpecificHeaderResetsStream() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, true, "GET", "/foo", "connection", "close"));
+    Frame reset = findFrame(receiveAfterPreface(), FrameType.RST_STREAM);
+    assertNotNull(reset);
+    assertEquals(ErrorCode.PROTOCOL_ERROR, reset.getInt(0));
+  }
+
+  @Test
+  public void missingPathResetsStream() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    List<Map.Entry<String, String>> fields = Arrays.asList(
+        field(":method", "GET"), field(":scheme", "https"), field(":authority", "localhost"));
+    send(frame(FrameType.HEADERS, Frames.FLAG_END_HEADERS | Frames.FLAG_END_STREAM, 1,
+        encoder.encode(fields)));
+    Frame reset = findFrame(receiveAfterPreface(), FrameType.RST_STREAM);
+    assertNotNull(reset);
+    assertEquals(ErrorCode.PROTOCOL_ERROR, reset.getInt(0));
+  }
+
+  @Test
+  public void streamErrorKeepsHpackInSync() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, true, "GET", "/foo", "x-custom", "value", "X-Bad", "bar"));
+    // This block refers to the dynamic table entries added by the rejected block.
+    send(headers(3, true, "GET", "/foo", "x-custom", "value"));
+    List<Frame> frames = receiveAfterPreface();
+    assertEquals(FrameType.RST_STREAM, frames.get(0).type);
+    assertEquals(1, requests.size());
+    assertEquals("value", requests.get(0).getHeaders().get("x-custom"));
+  }
+
+  @Test
+  public void cookiesAreJoined() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, true, "GET", "/foo", "cookie", "a=b", "cookie", "c=d"));
+    assertEquals("a=b; c=d", requests.get(0).getHeaders().get("Cookie"));
+  }
+
+  @Test
+  public void unknownHostIsNotFound() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    List<Map.Entry<String, String>> fields = Arrays.asList(
+        field(":method", "GET"), field(":scheme", "https"), field(":path", "/"),
+        field(":authority", "example.com"));
+    send(frame(FrameType.HEADERS, Frames.FLAG_END_HEADERS | Frames.FLAG_END_STREAM, 1,
+        encoder.encode(fields)));
+    List<Frame> frames = receiveAfterPreface();
+    assertEquals("404", decodeHeaders(frames.get(0)).get(":status"));
+    assertTrue(requests.isEmpty());
+  }
+
+  @Test
+  public void postWithContentLength() throws Exception {
+    uploadPolicy = new SimpleUploadPolicy(1000);
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, false, "POST", "/upload", "content-length", "6"));
+    send(data(1, false, "abc".getBytes(StandardCharsets.UTF_8)));
+    assertTrue(requests.isEmpty());
+    send(data(1, true, "def".getBytes(StandardCharsets.UTF_8)));
+    assertEquals(1, requests.size());
+    assertArrayEquals("abcdef".getBytes(StandardCharsets.UTF_8),
+        ((HttpRequest.InMemoryBody) requests.get(0).getBody()).toByteArray());
+    List<Frame> frames = receiveAfterPreface();
+    assertEquals("200", decodeHeaders(frames.get(0)).get(":status"));
+  }
+
+  @Test
+  public void postWithoutContentLengthIsLengthRequired() throws Exception {
+    uploadPolicy = new SimpleUploadPolicy(1000);
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, false, "POST", "/upload"));
+    send(data(1, true, "abc".getBytes(StandardCharsets.UTF_8)));
+    List<Frame> frames = receiveAfterPreface();
+    assertEquals("411", decodeHeaders(frames.get(0)).get(":status"));
+    assertTrue(requests.isEmpty());
+  }
+
+  @Test
+  public void bodyLongerThanContentLengthResetsStream() throws Exception {
+    uploadPolicy = new SimpleUploadPolicy(1000);
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, false, "POST", "/upload", "content-length", "2"));
+    send(data(1, true, "abc".getBytes(StandardCharsets.UTF_8)));
+    Frame reset = findFrame(receiveAfterPreface(), FrameType.RST_STREAM);
+    assertNotNull(reset);
+    assertEquals(ErrorCode.PROTOCOL_ERROR, reset.getInt(0));
+    assertTrue(requests.isEmpty());
+  }
+
+  @Test
+  public void expectContinueSendsInterimResponse() throws Exception {
+    uploadPolicy = new SimpleUploadPolicy(1000);
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, false, "POST", "/upload", "content-length", "3", "expect", "100-continue"));
+    List<Frame> frames = receiveAfterPreface();
+    assertEquals(1, frames.size());
+    assertEquals("100", decodeHeaders(frames.get(0)).get(":status"));
+    assertFalse(frames.get(0).hasFlag(Frames.FLAG_END_STREAM));
+    send(data(1, true, "abc".getBytes(StandardCharsets.UTF_8)));
+    frames = receive();
+    assertEquals("200", decodeHeaders(frames.get(0)).get(":status"));
+  }
+
+  @Test
+  public void expectContinueWaitsForUploadBudget() throws Exception {
+    UploadMemoryBudget budget = new UploadMemoryBudget(10, UploadMemoryBudget.Mode.PAUSE);
+    assertTrue(budget.tryReserve(10));
+    uploadPolicy = new SimpleUploadPolicy(1000, budget);
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, false, "POST", "/upload", "content-length", "3", "expect", "100-continue"));
+    assertNull(findFrame(receiveAfterPreface(), FrameType.HEADERS));
+    budget.release(10);
+    List<Frame> frames = receive();
+    assertEquals(1, frames.size());
+    assertEquals("100", decodeHeaders(frames.get(0)).get(":status"));
+    send(data(1, true, "abc".getBytes(StandardCharsets.UTF_8)));
+    frames = receive();
+    assertEquals("200", decodeHeaders(frames.get(0)).get(":status"));
+  }
+
+  @Test
+  public void responseRespectsInitialWindowSize() throws Exception {
+    start();
+    sendPrefaceAndSettings(Setting.SETTINGS_INITIAL_WINDOW_SIZE.getId(), 4);
+    send(headers(1, true, "GET", "/foo"));
+    List<Frame> frames = receiveAfterPreface();
+    assertEquals(2, frames.size());
+    assertArrayEquals("Hell".getBytes(StandardCharsets.UTF_8), frames.get(1).payload);
+    assertFalse(frames.get(1).hasFlag(Frames.FLAG_END_STREAM));
+    send(Frames.windowUpdate(1, 100));
+    frames = receive();
+    assertEquals(1, frames.size());
+    assertArrayEquals("o /foo".getBytes(StandardCharsets.UTF_8), frames.get(0).payload);
+    assertTrue(frames.get(0).hasFlag(Frames.FLAG_END_STREAM));
+  }
+
+  @Test
+  public void responseRespectsConnectionWindow() throws Exception {
+    byte[] body = new byte[70000];
+    handler = (connection, request, writer) -> writer.commitBuffered(StandardResponses.OK.withBody(body));
+    start();
+    sendPrefaceAndSettings(Setting.SETTINGS_INITIAL_WINDOW_SIZE.getId(), 1 << 20);
+    send(headers(1, true, "GET", "/foo"));
+    int total = 0;
+    for (Frame frame : receiveAfterPreface()) {
+      if (frame.type == FrameType.DATA) {
+        total += frame.payload.length;
+        assertTrue(frame.payload.length <= Frames.DEFAULT_MAX_FRAME_SIZE);
+      }
+    }
+    assertEquals(65535, total);
+    send(Frames.windowUpdate(0, 10000));
+    Frame last = receive().get(0);
+    assertEquals(70000 - 65535, last.payload.length);
+    assertTrue(last.hasFlag(Frames.FLAG_END_STREAM));
+  }
+
+  @Test
+  public void concurrentResponsesAreInterleaved() throws Exception {
+    // Both bodies fit into the connection window, but need two frames each.
+    byte[] body = new byte[20000];
+    handler = (connection, request, writer) -> writer.commitBuffered(StandardResponses.OK.withBody(body));
+    start();
+    sendPrefaceAndSettings();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(headers(1, true, "GET", "/a"));
+    out.write(headers(3, true, "GET", "/b"));
+    send(out.toByteArray());
+    List<Integer> dataStreams = new ArrayList<>();
+    for (Frame frame : receiveAfterPreface()) {
+      if (frame.type == FrameType.DATA) {
+        dataStreams.add(Integer.valueOf(frame.streamId));
+      }
+    }
+    assertEquals(Arrays.asList(1, 3, 1, 3), dataStreams);
+  }
+
+  @Test
+  public void streamedResponse() throws Exception {
+    handler = (connection, request, writer) -> {
+      try (OutputStream out = writer.commitStreamed(StandardResponses.OK)) {
+        out.write("streamed".getBytes(StandardCharsets.UTF_8));
+      }
+    };
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, true, "GET", "/foo"));
+    List<Frame> frames = receiveAfterPreface();
+    Map<String, String> headers = decodeHeaders(frames.get(0));
+    assertNull(headers.get("content-length"));
+    assertNull(headers.get("transfer-encoding"));
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    for (Frame frame : frames.subList(1, frames.size())) {
+      body.write(frame.payload);
+    }
+    assertEquals("streamed", new String(body.toByteArray(), StandardCharsets.UTF_8));
+    assertTrue(frames.get(frames.size() - 1).hasFlag(Frames.FLAG_END_STREAM));
+  }
+
+  @Test
+  public void clientResetDiscardsResponse() throws Exception {
+    handler = (connection, request, writer) -> {};
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, true, "GET", "/foo"));
+    send(Frames.rstStream(1, ErrorCode.CANCEL));
+    receiveAfterPreface();
+    writers.get(0).commitBuffered(StandardResponses.OK);
+    assertTrue(receive().isEmpty());
+  }
+
+  @Test
+  public void closesAfterGoAwayWhenStreamsAreDone() throws Exception {
+    handler = (connection, request, writer) -> {};
+    start();
+    sendPrefaceAndSettings();
+    send(headers(1, true, "GET", "/foo"));
+    send(Frames.goAway(1, ErrorCode.NO_ERROR, null));
+    receiveAfterPreface();
+    assertEquals(ConnectionControl.PAUSE, stage.write());
+    writers.get(0).commitBuffered(StandardResponses.OK);
+    List<Frame> frames = receive();
+    assertEquals(1, frames.size());
+    assertTrue(frames.get(0).hasFlag(Frames.FLAG_END_STREAM));
+    assertEquals(ConnectionControl.CLOSE_CONNECTION_AFTER_FLUSH, stage.write());
+  }
+
+  @Test
+  public void inputClosedWithoutStreamsClosesConnection() throws Exception {
+    start();
+    sendPrefaceAndSettings();
+    receive();
+    stage.inputClosed();
+    assertTrue(pipeline.closed);
+  }
+}
@@ -0,0 +1,104 @@
+package de.ofahrt.catfish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.ofahrt.catfish.HttpResponseGenerator.ContinuationToken;
+import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.StandardResponses;
+
+public class HttpResponseGeneratorFileTest {
+  private Path file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = Files.createTempFile("catfish-test-", ".txt");
+    Files.write(file, "0123456789".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.delete(file);
+  }
+
+  private HttpResponseGeneratorFile create(long position, long length, boolean includeBody, boolean zeroCopy)
+      throws Exception {
+    HttpResponse response = StandardResponses.OK.withVersion(HttpVersion.HTTP_1_0);
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    return HttpResponseGeneratorFile.create(null, response, channel, position, length, includeBody, zeroCopy);
+  }
+
+  private String readFully(HttpResponseGeneratorFile generator) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteBuffer buffer = ByteBuffer.allocate(3);
+    ContinuationToken token;
+    do {
+      buffer.clear();
+      token = generator.generate(buffer);
+      if (token == ContinuationToken.PAUSE) {
+        throw new IllegalStateException();
+      }
+      buffer.flip();
+      out.write(buffer.array(), buffer.position(), buffer.remaining());
+    } while (token != ContinuationToken.STOP);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void buffered() throws Exception {
+    assertEquals("HTTP/1.0 200 OK\r\n\r\n0123456789", readFully(create(0, 10, true, false)));
+  }
+
+  @Test
+  public void bufferedRegion() throws Exception {
+    assertEquals("HTTP/1.0 200 OK\r\n\r\n2345", readFully(create(2, 4, true, false)));
+  }
+
+  @Test
+  public void skipBody() throws Exception {
+    assertEquals("HTTP/1.0 200 OK\r\n\r\n", readFully(create(0, 10, false, true)));
+  }
+
+  @Test
+  public void zeroCopy() throws Exception {
+    HttpResponseGeneratorFile generator = create(3, 5, true, true);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    WritableByteChannel target = Channels.newChannel(out);
+    ByteBuffer buffer = ByteBuffer.allocate(100);
+    assertEquals(-1, generator.transferTo(target));
+    assertEquals(ContinuationToken.CONTINUE, generator.generate(buffer));
+    assertEquals(ContinuationToken.CONTINUE, generator.generate(buffer));
+    // The body is not copied into the output buffer.
+    assertEquals("HTTP/1.0 200 OK\r\n\r\n".length(), buffer.position());
+    assertEquals(5, generator.transferTo(target));
+    assertEquals(-1, generator.transferTo(target));
+    assertEquals(ContinuationToken.STOP, generator.generate(buffer));
+    assertEquals("34567", new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void closesChannelWhenDone() throws Exception {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    HttpResponseGeneratorFile generator =
+        HttpResponseGeneratorFile.create(null, StandardResponses.OK, channel, 0, 10, true, false);
+    assertTrue(channel.isOpen());
+    readFully(generator);
+    assertFalse(channel.isOpen());
+  }
+}
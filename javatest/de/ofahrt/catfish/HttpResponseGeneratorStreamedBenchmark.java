@@ -0,0 +1,72 @@
+package de.ofahrt.catfish;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import de.ofahrt.catfish.HttpResponseGenerator.ContinuationToken;
+import de.ofahrt.catfish.model.StandardResponses;
+
+/**
+ * Measures the throughput of streamed responses, with a handler thread writing the body and a
+ * second thread standing in for the network engine. The handler writes in the pattern of
+ * {@code LargeResponseHandler}, which goes through an 8 KiB {@code OutputStreamWriter} buffer, and
+ * also with tiny writes. Run with:
+ *
+ * <pre>java -cp ... de.ofahrt.catfish.HttpResponseGeneratorStreamedBenchmark</pre>
+ */
+public final class HttpResponseGeneratorStreamedBenchmark {
+  private static final long BODY_SIZE = 256L * 1024 * 1024;
+  private static final int OUTPUT_BUFFER_SIZE = 65536;
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) throws Exception {
+    for (int writeSize : new int[] { 8192, 16 }) {
+      for (int i = 0; i < WARMUP_ROUNDS; i++) {
+        run(writeSize);
+      }
+      double total = 0;
+      for (int i = 0; i < ROUNDS; i++) {
+        total += run(writeSize);
+      }
+      System.out.printf("write size %5d: %8.1f MiB/s%n", Integer.valueOf(writeSize), Double.valueOf(total / ROUNDS));
+    }
+  }
+
+  private static double run(int writeSize) throws Exception {
+    Semaphore dataAvailable = new Semaphore(0);
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        dataAvailable::release, null, StandardResponses.OK, true);
+    Thread handler = new Thread(() -> {
+      byte[] data = new byte[writeSize];
+      try (OutputStream out = gen.getOutputStream()) {
+        for (long written = 0; written < BODY_SIZE; written += writeSize) {
+          out.write(data);
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    long start = System.nanoTime();
+    handler.start();
+    ByteBuffer outputBuffer = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+    long received = 0;
+    while (true) {
+      outputBuffer.clear();
+      ContinuationToken token = gen.generate(outputBuffer);
+      received += outputBuffer.position();
+      if (token == ContinuationToken.STOP) {
+        break;
+      } else if (token == ContinuationToken.PAUSE) {
+        dataAvailable.acquire();
+      }
+    }
+    long nanos = System.nanoTime() - start;
+    handler.join();
+    return (received / (1024.0 * 1024.0)) / (nanos / 1e9);
+  }
+
+  private HttpResponseGeneratorStreamedBenchmark() {
+    // Not instantiable.
+  }
+}
@@ -5,15 +5,26 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.Phaser;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import org.junit.Test;
 import de.ofahrt.catfish.HttpResponseGenerator.ContinuationToken;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpHeaders;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
 import de.ofahrt.catfish.model.StandardResponses;
+import de.ofahrt.catfish.model.server.NonBlockingResponseBody;
 import de.ofahrt.catfish.utils.ConnectionClosedException;
 
 public class HttpResponseGeneratorStreamedTest {
@@ -254,4 +265,345 @@ public class HttpResponseGeneratorStreamedTest {
     t.join(100);
     assertFalse(t.isAlive());
   }
+
+  private static HttpResponse okWithContentLength(int contentLength) {
+    return StandardResponses.OK.withHeaderOverrides(
+        HttpHeaders.of(HttpHeaderName.CONTENT_LENGTH, Integer.toString(contentLength)));
+  }
+
+  @Test
+  public void handlerContentLengthIsNotChunked() throws Exception {
+    AtomicInteger called = new AtomicInteger();
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        called::incrementAndGet, null, okWithContentLength(4), true);
+    OutputStream out = gen.getOutputStream();
+    out.write(new byte[] { 'x', 'y' });
+    out.flush();
+    String response = new String(readUntilPause(gen), StandardCharsets.UTF_8);
+    assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nxy", response);
+    out.write(new byte[] { 'z', 'w' });
+    out.close();
+    response = new String(readUntilStop(gen), StandardCharsets.UTF_8);
+    assertEquals("zw", response);
+    assertTrue(gen.keepAlive());
+  }
+
+  @Test
+  public void writingMoreThanContentLengthFails() throws Exception {
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        () -> {}, null, okWithContentLength(2), true);
+    OutputStream out = gen.getOutputStream();
+    out.write(new byte[] { 'x' });
+    try {
+      out.write(new byte[] { 'y', 'z' });
+      fail();
+    } catch (IOException expected) {
+      // Expected
+    }
+    out.write(new byte[] { 'y' });
+    out.close();
+    String response = new String(readUntilStop(gen), StandardCharsets.UTF_8);
+    assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nxy", response);
+  }
+
+  @Test
+  public void closingBeforeContentLengthFailsAndClosesConnection() throws Exception {
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        () -> {}, null, okWithContentLength(3), true);
+    OutputStream out = gen.getOutputStream();
+    out.write(new byte[] { 'x' });
+    try {
+      out.close();
+      fail();
+    } catch (IOException expected) {
+      // Expected
+    }
+    String response = new String(readUntilStop(gen), StandardCharsets.UTF_8);
+    assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 3\r\n\r\nx", response);
+    assertFalse(gen.keepAlive());
+  }
+
+  @Test
+  public void headResponseKeepsHandlerContentLength() throws Exception {
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        () -> {}, null, okWithContentLength(100), /*includeBody=*/false);
+    gen.getOutputStream().close();
+    String response = new String(readUntilStop(gen), StandardCharsets.UTF_8);
+    assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n", response);
+    assertTrue(gen.keepAlive());
+  }
+
+  @Test
+  public void http10ClientGetsCloseDelimitedBody() throws Exception {
+    HttpRequest request = new SimpleHttpRequest.Builder()
+        .setVersion(HttpVersion.HTTP_1_0)
+        .setMethod("GET")
+        .setUri("/")
+        .build();
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        () -> {}, request, StandardResponses.OK, true);
+    OutputStream out = gen.getOutputStream();
+    out.write(new byte[] { 'x', 'y' });
+    out.flush();
+    String response = new String(readUntilPause(gen), StandardCharsets.UTF_8);
+    assertEquals("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\nxy", response);
+    out.write(new byte[] { 'z' });
+    out.close();
+    response = new String(readUntilStop(gen), StandardCharsets.UTF_8);
+    assertEquals("z", response);
+    assertFalse(gen.keepAlive());
+  }
+
+  @Test
+  public void illegalContentLengthIsRejected() throws Exception {
+    try {
+      HttpResponseGeneratorStreamed.create(
+          () -> {}, null, StandardResponses.OK.withHeaderOverrides(
+              HttpHeaders.of(HttpHeaderName.CONTENT_LENGTH, "abc")), true);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void nonBlockingSmoke() throws Exception {
+    AtomicInteger called = new AtomicInteger();
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        called::incrementAndGet, null, StandardResponses.OK, true);
+    NonBlockingResponseBody body = gen.getNonBlockingBody();
+    assertTrue(body.isReady());
+    assertEquals(2, body.write(ByteBuffer.wrap(new byte[] { 'x', 'y' })));
+    body.close();
+    assertEquals(1, called.get());
+    String response = new String(readUntilStop(gen), StandardCharsets.UTF_8);
+    assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nxy", response);
+  }
+
+  @Test
+  public void nonBlockingWriteStopsWhenFull() throws Exception {
+    AtomicInteger called = new AtomicInteger();
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        called::incrementAndGet, null, StandardResponses.OK, true, 4);
+    NonBlockingResponseBody body = gen.getNonBlockingBody();
+    ByteBuffer data = ByteBuffer.wrap(new byte[] { '1', '2', '3', '4', '5', '6' });
+    assertEquals(4, body.write(data));
+    assertEquals(4, data.position());
+    assertFalse(body.isReady());
+    assertEquals(0, body.write(data));
+    // A full buffer is flushed automatically.
+    assertEquals(1, called.get());
+
+    AtomicInteger ready = new AtomicInteger();
+    body.onReady(ready::incrementAndGet);
+    assertEquals(0, ready.get());
+    String response = new String(readUntilPause(gen), StandardCharsets.UTF_8);
+    assertEquals("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n2\r\n12\r\n2\r\n34\r\n", response);
+    assertEquals(1, ready.get());
+    assertTrue(body.isReady());
+    assertEquals(2, body.write(data));
+    body.close();
+    response = new String(readUntilStop(gen), StandardCharsets.UTF_8);
+    assertEquals("2\r\n56\r\n0\r\n\r\n", response);
+  }
+
+  @Test
+  public void onReadyRunsImmediatelyIfThereIsSpace() throws Exception {
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        () -> {}, null, StandardResponses.OK, true, 4);
+    AtomicInteger ready = new AtomicInteger();
+    gen.getNonBlockingBody().onReady(ready::incrementAndGet);
+    assertEquals(1, ready.get());
+  }
+
+  @Test
+  public void closeRunsOnReadyCallback() throws Exception {
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        () -> {}, null, StandardResponses.OK, true, 4);
+    NonBlockingResponseBody body = gen.getNonBlockingBody();
+    body.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }));
+    AtomicInteger ready = new AtomicInteger();
+    body.onReady(ready::incrementAndGet);
+    gen.close();
+    assertEquals(1, ready.get());
+    try {
+      body.write(ByteBuffer.wrap(new byte[] { 5 }));
+      fail();
+    } catch (IllegalStateException | ConnectionClosedException expected) {
+      // Expected
+    }
+  }
+
+  // The following tests force the interleavings of the producer and the consumer that the ring
+  // buffer has to get right: the producer runs from the consumer's pause hook, or the consumer runs
+  // while the producer is known to be parked.
+
+  /** Calls generate once with a large output buffer. */
+  private static String generateOnce(HttpResponseGeneratorStreamed gen, ContinuationToken expected) {
+    ByteBuffer buffer = ByteBuffer.allocate(1024);
+    assertEquals(expected, gen.generate(buffer));
+    buffer.flip();
+    return new String(buffer.array(), 0, buffer.limit(), StandardCharsets.UTF_8);
+  }
+
+  private static void awaitParked(Thread thread, Object blocker) throws InterruptedException {
+    while (LockSupport.getBlocker(thread) != blocker) {
+      assertTrue("Thread terminated without parking", thread.isAlive());
+      Thread.sleep(1);
+    }
+  }
+
+  /** Returns a generator whose consumer is paused after sending the headers and "a". */
+  private HttpResponseGeneratorStreamed pausedAfterFirstChunk(AtomicInteger called, OutputStream[] out)
+      throws IOException {
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        called::incrementAndGet, null, StandardResponses.OK, true);
+    out[0] = gen.getOutputStream();
+    out[0].write('a');
+    out[0].flush();
+    assertEquals(
+        "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n1\r\na\r\n",
+        new String(readUntilPause(gen), StandardCharsets.UTF_8));
+    assertEquals(1, called.get());
+    return gen;
+  }
+
+  @Test
+  public void writeBeforeConsumerPausesIsPickedUpWithoutCallback() throws Exception {
+    AtomicInteger called = new AtomicInteger();
+    OutputStream[] out = new OutputStream[1];
+    HttpResponseGeneratorStreamed gen = pausedAfterFirstChunk(called, out);
+    AtomicBoolean written = new AtomicBoolean();
+    gen.pauseHook = (phase) -> {
+      if (phase == 0 && written.compareAndSet(false, true)) {
+        try {
+          out[0].write('b');
+          out[0].flush();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    // The producer saw a running consumer, so it did not call back; the consumer must notice.
+    assertEquals("1\r\nb\r\n", generateOnce(gen, ContinuationToken.PAUSE));
+    assertTrue(written.get());
+    assertEquals(1, called.get());
+  }
+
+  @Test
+  public void writeAfterConsumerPausesRunsCallbackOnce() throws Exception {
+    AtomicInteger called = new AtomicInteger();
+    OutputStream[] out = new OutputStream[1];
+    HttpResponseGeneratorStreamed gen = pausedAfterFirstChunk(called, out);
+    AtomicBoolean written = new AtomicBoolean();
+    gen.pauseHook = (phase) -> {
+      if (phase == 1 && written.compareAndSet(false, true)) {
+        try {
+          out[0].write('b');
+          out[0].flush();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    // Both sides saw the flag; the producer won and called back, so the consumer must stop.
+    assertEquals("", generateOnce(gen, ContinuationToken.PAUSE));
+    assertEquals(2, called.get());
+    gen.pauseHook = null;
+    assertEquals("1\r\nb\r\n", generateOnce(gen, ContinuationToken.PAUSE));
+    assertEquals(2, called.get());
+  }
+
+  @Test
+  public void closeBeforeConsumerPausesFinishesBody() throws Exception {
+    AtomicInteger called = new AtomicInteger();
+    OutputStream[] out = new OutputStream[1];
+    HttpResponseGeneratorStreamed gen = pausedAfterFirstChunk(called, out);
+    gen.pauseHook = (phase) -> {
+      if (phase == 0) {
+        try {
+          out[0].close();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    assertEquals("0\r\n\r\n", generateOnce(gen, ContinuationToken.STOP));
+    assertEquals(1, called.get());
+    assertTrue(gen.keepAlive());
+  }
+
+  @Test
+  public void truncatedBodyIsSeenByConsumerThatIsAboutToPause() throws Exception {
+    AtomicInteger called = new AtomicInteger();
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        called::incrementAndGet, null, okWithContentLength(3), true);
+    OutputStream out = gen.getOutputStream();
+    out.write('x');
+    out.flush();
+    assertEquals(
+        "HTTP/1.1 200 OK\r\nContent-Length: 3\r\n\r\nx",
+        new String(readUntilPause(gen), StandardCharsets.UTF_8));
+    AtomicReference<IOException> failure = new AtomicReference<>();
+    gen.pauseHook = (phase) -> {
+      if (phase == 0 && failure.get() == null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          failure.set(e);
+        }
+      }
+    };
+    assertEquals("", generateOnce(gen, ContinuationToken.STOP));
+    assertTrue(failure.get() != null);
+    assertFalse(gen.keepAlive());
+  }
+
+  @Test(timeout = 10000)
+  public void parkedWriterIsWokenByConsumer() throws Exception {
+    Semaphore called = new Semaphore(0);
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        called::release, null, okWithContentLength(10), true, 4);
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    Thread writer = new Thread(() -> {
+      try (OutputStream out = gen.getOutputStream()) {
+        out.write("0123456789".getBytes(StandardCharsets.UTF_8));
+      } catch (Exception e) {
+        failure.set(e);
+      }
+    });
+    writer.start();
+    awaitParked(writer, gen);
+    String response = new String(readUntilStop(gen, 16, called), StandardCharsets.UTF_8);
+    writer.join();
+    assertEquals(null, failure.get());
+    assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n0123456789", response);
+    assertTrue(gen.keepAlive());
+  }
+
+  @Test(timeout = 10000)
+  public void closeWakesParkedWriter() throws Exception {
+    HttpResponseGeneratorStreamed gen = HttpResponseGeneratorStreamed.create(
+        () -> {}, null, okWithContentLength(10), true, 4);
+    OutputStream out = gen.getOutputStream();
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    Thread writer = new Thread(() -> {
+      try {
+        out.write("0123456789".getBytes(StandardCharsets.UTF_8));
+      } catch (Exception e) {
+        failure.set(e);
+      }
+    });
+    writer.start();
+    awaitParked(writer, gen);
+    gen.close();
+    writer.join();
+    assertTrue(failure.get() instanceof ConnectionClosedException);
+    try {
+      out.write('x');
+      fail();
+    } catch (ConnectionClosedException expected) {
+      // Expected
+    }
+  }
 }
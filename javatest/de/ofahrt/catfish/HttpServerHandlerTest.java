@@ -0,0 +1,68 @@
+package de.ofahrt.catfish;
+
+import static org.junit.Assert.assertTrue;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Test;
+import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
+import de.ofahrt.catfish.internal.network.Stage;
+import de.ofahrt.catfish.model.network.NetworkEventListener;
+
+public class HttpServerHandlerTest {
+  private static final Pipeline PIPELINE = new Pipeline() {
+    @Override
+    public void encourageWrites() {
+    }
+
+    @Override
+    public void encourageReads() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void queue(Runnable runnable) {
+    }
+
+    @Override
+    public void log(String text, Object... params) {
+    }
+  };
+
+  private final CatfishHttpServer server;
+
+  public HttpServerHandlerTest() throws Exception {
+    server = new CatfishHttpServer(new NetworkEventListener() {
+      @Override
+      public void shutdown() {
+      }
+
+      @Override
+      public void portOpened(int port, boolean ssl) {
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop();
+  }
+
+  private Stage connect(boolean http2) {
+    ByteBuffer inputBuffer = ByteBuffer.allocate(1024);
+    ByteBuffer outputBuffer = ByteBuffer.allocate(1024);
+    return new HttpServerHandler(server, /*ssl=*/false, http2).connect(PIPELINE, inputBuffer, outputBuffer);
+  }
+
+  @Test
+  public void plainConnectionsOnlySpeakHttp1ByDefault() {
+    assertTrue(connect(false) instanceof HttpServerStage);
+  }
+
+  @Test
+  public void plainConnectionsAcceptPriorKnowledgeIfEnabled() {
+    assertTrue(connect(true) instanceof Http2PriorKnowledgeStage);
+  }
+}
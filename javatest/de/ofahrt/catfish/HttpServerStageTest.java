@@ -0,0 +1,229 @@
+package de.ofahrt.catfish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
+import de.ofahrt.catfish.internal.network.Stage.ConnectionControl;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpHeaders;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpStatusCode;
+import de.ofahrt.catfish.model.StandardResponses;
+import de.ofahrt.catfish.model.network.Connection;
+import de.ofahrt.catfish.model.server.HttpHandler;
+import de.ofahrt.catfish.model.server.ResponsePolicy;
+import de.ofahrt.catfish.model.server.UploadPolicy;
+import de.ofahrt.catfish.upload.SimpleUploadPolicy;
+import de.ofahrt.catfish.upload.UploadMemoryBudget;
+
+public class HttpServerStageTest {
+  private static final class FakePipeline implements Pipeline {
+    private final List<Runnable> queued = new ArrayList<>();
+    private boolean writesEncouraged;
+
+    @Override
+    public void encourageWrites() {
+      writesEncouraged = true;
+    }
+
+    @Override
+    public void encourageReads() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public synchronized void queue(Runnable runnable) {
+      queued.add(runnable);
+    }
+
+    @Override
+    public void log(String text, Object... params) {
+    }
+
+    void runQueued() {
+      while (true) {
+        List<Runnable> tasks;
+        synchronized (this) {
+          if (queued.isEmpty()) {
+            return;
+          }
+          tasks = new ArrayList<>(queued);
+          queued.clear();
+        }
+        for (Runnable task : tasks) {
+          task.run();
+        }
+      }
+    }
+  }
+
+  private final FakePipeline pipeline = new FakePipeline();
+  private final ByteBuffer inputBuffer = ByteBuffer.allocate(32768);
+  private final ByteBuffer outputBuffer = ByteBuffer.allocate(32768);
+  private final List<HttpRequest> requests = new ArrayList<>();
+  private HttpHandler handler = (connection, request, writer) -> {
+    writer.commitBuffered(StandardResponses.OK);
+  };
+  private ResponsePolicy responsePolicy = ResponsePolicy.KEEP_ALIVE;
+  private UploadPolicy uploadPolicy = UploadPolicy.DENY;
+  private HttpServerStage stage;
+
+  private HttpServerStage start() {
+    inputBuffer.flip();
+    outputBuffer.flip();
+    HttpVirtualHost host = new HttpVirtualHost(
+        (connection, request, writer) -> handler.handle(connection, request, writer),
+        responsePolicy, uploadPolicy, null);
+    stage = new HttpServerStage(
+        pipeline,
+        /*zeroCopy=*/false,
+        (httpHandler, connection, request, writer) -> {
+          requests.add(request);
+          try {
+            httpHandler.handle(connection, request, writer);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        },
+        (connection, request, response) -> {},
+        (name) -> "localhost".equals(name) ? host : null,
+        inputBuffer,
+        outputBuffer);
+    stage.connect(new Connection(
+        new InetSocketAddress("127.0.0.1", 80), new InetSocketAddress("127.0.0.1", 1234), false));
+    return stage;
+  }
+
+  private ConnectionControl send(String data) {
+    inputBuffer.compact();
+    inputBuffer.put(data.replace("\n", "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    inputBuffer.flip();
+    ConnectionControl control = stage.read();
+    pipeline.runQueued();
+    return control;
+  }
+
+  /** Calls write until the stage pauses, and returns everything it wrote. */
+  private String receive() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < 1000; i++) {
+      ConnectionControl control = stage.write();
+      byte[] data = new byte[outputBuffer.remaining()];
+      outputBuffer.get(data);
+      out.write(data);
+      if (control != ConnectionControl.CONTINUE && data.length == 0) {
+        break;
+      }
+    }
+    return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+  }
+
+  @Test
+  public void continueIsSentOnceUploadBudgetIsAvailable() throws Exception {
+    UploadMemoryBudget budget = new UploadMemoryBudget(10, UploadMemoryBudget.Mode.PAUSE);
+    uploadPolicy = new SimpleUploadPolicy(100, budget);
+    assertTrue(budget.tryReserve(8));
+    start();
+    ConnectionControl control = send(
+        "POST / HTTP/1.1\nHost: localhost\nContent-Length: 5\nExpect: 100-continue\n\n");
+    assertEquals(ConnectionControl.PAUSE, control);
+    assertEquals("", receive());
+
+    pipeline.writesEncouraged = false;
+    budget.release(8);
+    pipeline.runQueued();
+    assertTrue(pipeline.writesEncouraged);
+    assertEquals("HTTP/1.1 100 Continue\r\n\r\n", receive());
+
+    send("hello");
+    assertEquals(1, requests.size());
+    assertTrue(receive().startsWith("HTTP/1.1 200 OK\r\n"));
+  }
+
+  private static final ResponsePolicy COMPRESS = new ResponsePolicy() {
+    @Override
+    public boolean shouldKeepAlive(HttpRequest request) {
+      return true;
+    }
+
+    @Override
+    public boolean shouldCompress(HttpRequest request, String mimeType) {
+      return true;
+    }
+
+    @Override
+    public int getMinCompressionSize(String mimeType) {
+      return 0;
+    }
+  };
+
+  private static final byte[] RANGE_CONTENT = new byte[1000];
+  static {
+    Arrays.fill(RANGE_CONTENT, (byte) 'a');
+  }
+
+  private static HttpResponse partialContent() {
+    HttpResponse response = () -> HttpStatusCode.PARTIAL_CONTENT.getStatusCode();
+    return response.withHeaderOverrides(HttpHeaders.of(
+        HttpHeaderName.CONTENT_TYPE, "text/plain",
+        HttpHeaderName.CONTENT_RANGE, "bytes 0-999/5000"));
+  }
+
+  @Test
+  public void bufferedPartialContentIsNotCompressed() throws Exception {
+    responsePolicy = COMPRESS;
+    handler = (connection, request, writer) -> {
+      writer.commitBuffered(partialContent().withBody(RANGE_CONTENT));
+    };
+    start();
+    send("GET / HTTP/1.1\nHost: localhost\nRange: bytes=0-999\nAccept-Encoding: gzip\n\n");
+    String response = receive();
+    assertTrue(response.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+    assertFalse(response.contains(HttpHeaderName.CONTENT_ENCODING));
+    assertTrue(response.endsWith("\r\n\r\n" + new String(RANGE_CONTENT, StandardCharsets.ISO_8859_1)));
+  }
+
+  @Test
+  public void streamedPartialContentIsNotCompressed() throws Exception {
+    responsePolicy = COMPRESS;
+    handler = (connection, request, writer) -> {
+      try (OutputStream out = writer.commitStreamed(partialContent())) {
+        out.write(RANGE_CONTENT);
+      }
+    };
+    start();
+    send("GET / HTTP/1.1\nHost: localhost\nRange: bytes=0-999\nAccept-Encoding: gzip\n\n");
+    String response = receive();
+    assertTrue(response.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+    assertFalse(response.contains(HttpHeaderName.CONTENT_ENCODING));
+    assertTrue(response.contains("aaaaaaaaaa"));
+  }
+
+  @Test
+  public void fullContentIsCompressed() throws Exception {
+    responsePolicy = COMPRESS;
+    handler = (connection, request, writer) -> {
+      writer.commitBuffered(StandardResponses.OK
+          .withHeaderOverrides(HttpHeaders.of(HttpHeaderName.CONTENT_TYPE, "text/plain"))
+          .withBody(RANGE_CONTENT));
+    };
+    start();
+    send("GET / HTTP/1.1\nHost: localhost\nAccept-Encoding: gzip\n\n");
+    assertTrue(receive().contains(HttpHeaderName.CONTENT_ENCODING + ": gzip\r\n"));
+  }
+}
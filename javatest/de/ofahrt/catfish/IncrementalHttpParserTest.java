@@ -1,6 +1,7 @@
 package de.ofahrt.catfish;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -8,6 +9,7 @@ import org.junit.Test;
 import de.ofahrt.catfish.model.HttpStatusCode;
 import de.ofahrt.catfish.model.MalformedRequestException;
 import de.ofahrt.catfish.upload.SimpleUploadPolicy;
+import de.ofahrt.catfish.upload.UploadMemoryBudget;
 
 public class IncrementalHttpParserTest {
 
@@ -54,6 +56,43 @@ public class IncrementalHttpParserTest {
     assertTrue(parser.isDone());
   }
 
+  @Test
+  public void pauseWhileUploadBudgetIsExhausted() {
+    UploadMemoryBudget budget = new UploadMemoryBudget(4, UploadMemoryBudget.Mode.PAUSE);
+    assertTrue(budget.tryReserve(4));
+    IncrementalHttpRequestParser parser =
+        new IncrementalHttpRequestParser(new SimpleUploadPolicy(100, budget));
+    byte[] data = "POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 4\r\n\r\n0123".getBytes();
+    assertEquals(data.length - 4, parser.parse(data));
+    assertFalse(parser.isDone());
+    assertFalse(parser.isReady());
+    budget.release(4);
+    assertTrue(parser.isReady());
+    assertEquals(4, parser.parse(data, data.length - 4, 4));
+    assertTrue(parser.isDone());
+  }
+
+  @Test
+  public void expectContinueIsReportedOnceAfterHeaders() {
+    IncrementalHttpRequestParser parser = new IncrementalHttpRequestParser(new SimpleUploadPolicy(100));
+    byte[] data =
+        "POST / HTTP/1.1\r\nHost: localhost\r\nExpect: 100-continue\r\nContent-Length: 4\r\n\r\n0123".getBytes();
+    assertEquals(data.length - 4, parser.parse(data, 0, data.length - 4));
+    assertTrue(parser.pollContinueExpected());
+    assertFalse(parser.pollContinueExpected());
+    assertEquals(4, parser.parse(data, data.length - 4, 4));
+    assertTrue(parser.isDone());
+  }
+
+  @Test
+  public void expectContinueIsNotReportedWhenBodyAlreadyArrived() {
+    IncrementalHttpRequestParser parser = new IncrementalHttpRequestParser(new SimpleUploadPolicy(100));
+    byte[] data =
+        "POST / HTTP/1.1\r\nHost: localhost\r\nExpect: 100-continue\r\nContent-Length: 4\r\n\r\n01".getBytes();
+    assertEquals(data.length, parser.parse(data));
+    assertFalse(parser.pollContinueExpected());
+  }
+
   @Test
   public void disallowTooLongRequestUri() {
     IncrementalHttpRequestParser parser = new IncrementalHttpRequestParser();
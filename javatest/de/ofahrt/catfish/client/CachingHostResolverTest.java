@@ -0,0 +1,135 @@
+package de.ofahrt.catfish.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class CachingHostResolverTest {
+  private static final InetAddress ADDRESS = InetAddress.getLoopbackAddress();
+
+  private final List<String> lookups = new ArrayList<>();
+  private final List<Runnable> pending = new ArrayList<>();
+  private long now;
+
+  private CachingHostResolver.Builder builder() {
+    return new CachingHostResolver.Builder()
+        .setTimeToLive(30, TimeUnit.SECONDS)
+        .setNegativeTimeToLive(5, TimeUnit.SECONDS)
+        .setExecutor(Runnable::run)
+        .setLookup(host -> {
+          lookups.add(host);
+          if (host.endsWith(".invalid")) {
+            throw new UnknownHostException(host);
+          }
+          return ADDRESS;
+        })
+        .setClock(() -> now);
+  }
+
+  @Test
+  public void resolve() throws Exception {
+    CachingHostResolver resolver = builder().build();
+    assertSame(ADDRESS, resolver.resolve("example.com").get());
+    assertEquals(1, resolver.getMissCount());
+  }
+
+  @Test
+  public void secondLookupIsCached() throws Exception {
+    CachingHostResolver resolver = builder().build();
+    resolver.resolve("example.com").get();
+    now += TimeUnit.SECONDS.toNanos(29);
+    assertSame(ADDRESS, resolver.resolve("example.com").get());
+    assertEquals(1, lookups.size());
+    assertEquals(1, resolver.getHitCount());
+  }
+
+  @Test
+  public void entryExpires() throws Exception {
+    CachingHostResolver resolver = builder().build();
+    resolver.resolve("example.com").get();
+    now += TimeUnit.SECONDS.toNanos(30);
+    resolver.resolve("example.com").get();
+    assertEquals(2, lookups.size());
+  }
+
+  @Test
+  public void failureIsCachedForNegativeTimeToLive() throws Exception {
+    CachingHostResolver resolver = builder().build();
+    assertFailed(resolver.resolve("nowhere.invalid"));
+    now += TimeUnit.SECONDS.toNanos(4);
+    assertFailed(resolver.resolve("nowhere.invalid"));
+    assertEquals(1, lookups.size());
+    now += TimeUnit.SECONDS.toNanos(1);
+    assertFailed(resolver.resolve("nowhere.invalid"));
+    assertEquals(2, lookups.size());
+  }
+
+  @Test
+  public void concurrentLookupsAreShared() throws Exception {
+    CachingHostResolver resolver = builder().setExecutor(pending::add).build();
+    CompletableFuture<InetAddress> first = resolver.resolve("example.com");
+    CompletableFuture<InetAddress> second = resolver.resolve("example.com");
+    assertSame(first, second);
+    assertFalse(first.isDone());
+    assertEquals(1, pending.size());
+    // The lookup takes longer than the time-to-live, but is still not started twice.
+    now += TimeUnit.SECONDS.toNanos(60);
+    assertSame(first, resolver.resolve("example.com"));
+    pending.get(0).run();
+    assertSame(ADDRESS, second.get());
+  }
+
+  @Test
+  public void zeroTimeToLiveDisablesCaching() throws Exception {
+    CachingHostResolver resolver = builder().setTimeToLive(0, TimeUnit.SECONDS).build();
+    resolver.resolve("example.com").get();
+    resolver.resolve("example.com").get();
+    assertEquals(2, lookups.size());
+  }
+
+  @Test
+  public void leastRecentlyUsedEntryIsDropped() throws Exception {
+    CachingHostResolver resolver = builder().setMaxEntries(2).build();
+    resolver.resolve("a.example").get();
+    resolver.resolve("b.example").get();
+    resolver.resolve("a.example").get();
+    resolver.resolve("c.example").get();
+    resolver.resolve("a.example").get();
+    assertEquals(3, lookups.size());
+    resolver.resolve("b.example").get();
+    assertEquals(4, lookups.size());
+  }
+
+  @Test
+  public void clearDropsEntries() throws Exception {
+    CachingHostResolver resolver = builder().build();
+    resolver.resolve("example.com").get();
+    resolver.clear();
+    resolver.resolve("example.com").get();
+    assertEquals(2, lookups.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeTimeToLiveIsRejected() {
+    new CachingHostResolver.Builder().setTimeToLive(-1, TimeUnit.SECONDS);
+  }
+
+  private static void assertFailed(CompletableFuture<InetAddress> future) throws Exception {
+    try {
+      future.get();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof UnknownHostException);
+      return;
+    }
+    throw new AssertionError("Lookup succeeded");
+  }
+}
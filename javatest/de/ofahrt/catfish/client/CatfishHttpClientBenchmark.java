@@ -0,0 +1,137 @@
+package de.ofahrt.catfish.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import de.ofahrt.catfish.CatfishHttpServer;
+import de.ofahrt.catfish.bridge.TestHelper;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpMethodName;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
+import de.ofahrt.catfish.model.StandardResponses;
+import de.ofahrt.catfish.model.network.Connection;
+import de.ofahrt.catfish.model.network.NetworkEventListener;
+import de.ofahrt.catfish.model.server.ResponsePolicy;
+import de.ofahrt.catfish.model.server.UploadPolicy;
+
+/**
+ * Measures the throughput of small requests with {@link CatfishHttpClient}, with a new connection
+ * for every request, and with keep-alive connections, over plain and TLS connections to a local
+ * server. Up to {@link #CONCURRENCY} requests are in flight at any time. Run with:
+ *
+ * <pre>java -cp ... de.ofahrt.catfish.client.CatfishHttpClientBenchmark</pre>
+ */
+public final class CatfishHttpClientBenchmark {
+  private static final int HTTP_PORT = 8090;
+  private static final int HTTPS_PORT = 8091;
+  private static final int REQUESTS = 2000;
+  private static final int CONCURRENCY = 16;
+  private static final int WARMUP_ROUNDS = 2;
+  private static final int ROUNDS = 3;
+
+  private static final NetworkEventListener EVENT_LISTENER = new NetworkEventListener() {
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public void portOpened(int port, boolean ssl) {
+    }
+
+    @Override
+    public void notifyInternalError(Connection id, Throwable throwable) {
+      throwable.printStackTrace();
+    }
+  };
+
+  public static void main(String[] args) throws Exception {
+    CatfishHttpServer server = new CatfishHttpServer(EVENT_LISTENER);
+    server.addHttpHost(
+        "localhost",
+        UploadPolicy.DENY,
+        ResponsePolicy.KEEP_ALIVE,
+        (connection, request, writer) -> writer.commitBuffered(
+            StandardResponses.OK.withBody("Hello\n".getBytes(StandardCharsets.UTF_8))),
+        TestHelper.getSSLContext());
+    server.listenHttpLocal(HTTP_PORT);
+    server.listenHttpsLocal(HTTPS_PORT);
+    try {
+      for (boolean ssl : new boolean[] { false, true }) {
+        for (boolean keepAlive : new boolean[] { false, true }) {
+          for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            run(ssl, keepAlive);
+          }
+          double total = 0;
+          for (int i = 0; i < ROUNDS; i++) {
+            total += run(ssl, keepAlive);
+          }
+          System.out.printf("%-5s %-10s: %8.1f requests/s%n",
+              ssl ? "https" : "http", keepAlive ? "keep-alive" : "close", Double.valueOf(total / ROUNDS));
+        }
+      }
+    } finally {
+      server.stop();
+    }
+    // The server's handler threads keep running after stop.
+    System.exit(0);
+  }
+
+  private static double run(boolean ssl, boolean keepAlive) throws Exception {
+    SSLContext sslContext = ssl ? TestHelper.getSSLContext() : null;
+    SSLParameters sslParameters = null;
+    if (ssl) {
+      sslParameters = new SSLParameters();
+      sslParameters.setServerNames(Arrays.asList(new SNIHostName("localhost")));
+    }
+    int port = ssl ? HTTPS_PORT : HTTP_PORT;
+    CatfishHttpClient client = new CatfishHttpClient.Builder(EVENT_LISTENER)
+        .setKeepAlive(keepAlive)
+        .setMaxConnectionsPerHost(CONCURRENCY)
+        .build();
+    HttpRequest request = new SimpleHttpRequest.Builder()
+        .setVersion(HttpVersion.HTTP_1_1)
+        .setMethod(HttpMethodName.GET)
+        .setUri("/")
+        .addHeader(HttpHeaderName.HOST, "localhost")
+        .build();
+    Semaphore inFlight = new Semaphore(CONCURRENCY);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    long start = System.nanoTime();
+    try {
+      for (int i = 0; i < REQUESTS; i++) {
+        inFlight.acquire();
+        CompletableFuture<HttpResponse> future = (CompletableFuture<HttpResponse>)
+            client.send("localhost", port, sslContext, sslParameters, request);
+        future.whenComplete((response, e) -> {
+          if (e != null) {
+            failure.compareAndSet(null, e);
+          }
+          inFlight.release();
+        });
+      }
+      if (!inFlight.tryAcquire(CONCURRENCY, 60, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Requests did not complete");
+      }
+    } finally {
+      client.shutdown();
+    }
+    long nanos = System.nanoTime() - start;
+    if (failure.get() != null) {
+      throw new IllegalStateException(failure.get());
+    }
+    return REQUESTS / (nanos / 1e9);
+  }
+
+  private CatfishHttpClientBenchmark() {
+    // Not instantiable.
+  }
+}
@@ -0,0 +1,129 @@
+package de.ofahrt.catfish.client;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpMethodName;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
+import de.ofahrt.catfish.model.network.NetworkEventListener;
+
+public class CatfishHttpClientTest {
+  private static final NetworkEventListener EVENT_LISTENER = new NetworkEventListener() {
+    @Override
+    public void portOpened(int port, boolean ssl) {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  };
+
+  private CatfishHttpClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    client = new CatfishHttpClient.Builder(EVENT_LISTENER).setHttp2(true).build();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.shutdown();
+  }
+
+  @Test
+  public void sameOriginSharesPool() throws Exception {
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    SSLParameters sslParameters = new SSLParameters();
+    assertSame(
+        client.getHttp1Origin("localhost", 443, sslContext, sslParameters),
+        client.getHttp1Origin("localhost", 443, sslContext, sslParameters));
+    assertSame(
+        client.getHttp2Origin("localhost", 443, sslContext, sslParameters),
+        client.getHttp2Origin("localhost", 443, sslContext, sslParameters));
+  }
+
+  @Test
+  public void plainAndTlsOriginsDontSharePool() throws Exception {
+    assertNotSame(
+        client.getHttp1Origin("localhost", 443, null, null),
+        client.getHttp1Origin("localhost", 443, SSLContext.getInstance("TLS"), new SSLParameters()));
+  }
+
+  @Test
+  public void differentSslContextsDontSharePool() throws Exception {
+    SSLParameters sslParameters = new SSLParameters();
+    assertNotSame(
+        client.getHttp1Origin("localhost", 443, SSLContext.getInstance("TLS"), sslParameters),
+        client.getHttp1Origin("localhost", 443, SSLContext.getInstance("TLS"), sslParameters));
+    assertNotSame(
+        client.getHttp2Origin("localhost", 443, SSLContext.getInstance("TLS"), sslParameters),
+        client.getHttp2Origin("localhost", 443, SSLContext.getInstance("TLS"), sslParameters));
+  }
+
+  @Test
+  public void differentSslParametersDontSharePool() throws Exception {
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    assertNotSame(
+        client.getHttp1Origin("localhost", 443, sslContext, new SSLParameters()),
+        client.getHttp1Origin("localhost", 443, sslContext, new SSLParameters()));
+    assertNotSame(
+        client.getHttp2Origin("localhost", 443, sslContext, new SSLParameters()),
+        client.getHttp2Origin("localhost", 443, sslContext, new SSLParameters()));
+  }
+
+  @Test
+  public void plainAndTlsOriginsDontShareLatencyTrackerOrHedgeBudget() throws Exception {
+    CatfishHttpClient hedgingClient =
+        new CatfishHttpClient.Builder(EVENT_LISTENER).setHedgePercentile(95).build();
+    try {
+      SSLContext sslContext = SSLContext.getInstance("TLS");
+      SSLParameters sslParameters = new SSLParameters();
+      assertSame(
+          hedgingClient.getLatencyTracker("localhost", 443, sslContext, sslParameters),
+          hedgingClient.getLatencyTracker("localhost", 443, sslContext, sslParameters));
+      assertNotSame(
+          hedgingClient.getLatencyTracker("localhost", 443, null, null),
+          hedgingClient.getLatencyTracker("localhost", 443, sslContext, sslParameters));
+      assertNotSame(
+          hedgingClient.getHedgeBudget("localhost", 443, null, null),
+          hedgingClient.getHedgeBudget("localhost", 443, sslContext, sslParameters));
+    } finally {
+      hedgingClient.shutdown();
+    }
+  }
+
+  @Test
+  public void noLatencyTrackerWithoutHedging() throws Exception {
+    assertNull(client.getLatencyTracker("localhost", 443, null, null));
+    assertNull(client.getHedgeBudget("localhost", 443, null, null));
+  }
+
+  @Test
+  public void streamedRequestWithNegativeContentLengthIsRejected() throws Exception {
+    HttpRequest request = new SimpleHttpRequest.Builder()
+        .setVersion(HttpVersion.HTTP_1_1)
+        .setMethod(HttpMethodName.POST)
+        .setUri("/upload")
+        .addHeader(HttpHeaderName.HOST, "localhost")
+        .addHeader(HttpHeaderName.CONTENT_LENGTH, "-1")
+        .setBody(new HttpRequest.StreamBody(new ByteArrayInputStream(new byte[10]), -1))
+        .build();
+    try {
+      client.send("localhost", 80, null, null, request);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+}
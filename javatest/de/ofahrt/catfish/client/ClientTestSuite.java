@@ -6,9 +6,18 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({
+  CachingHostResolverTest.class,
+  CatfishHttpClientTest.class,
+  DecompressingResponseHandlerTest.class,
+  ExchangeTest.class,
+  HedgeBudgetTest.class,
+  Http1OriginTest.class,
+  Http2ClientStageTest.class,
   HttpConnectionTest.class,
+  HttpRequestGeneratorStreamedTest.class,
   IncrementalHttpResponseParserTest.class,
   IncrementalHttpResponseParserIncrementalTest.class,
+  SslClientStageTest.class,
 })
 public class ClientTestSuite {
 // Ok
@@ -0,0 +1,170 @@
+package de.ofahrt.catfish.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.SimpleHttpResponse;
+import de.ofahrt.catfish.utils.InflaterPool;
+
+public class DecompressingResponseHandlerTest {
+  private static final byte[] CONTENT =
+      "Hello, compressed world! Hello, compressed world!".getBytes(StandardCharsets.UTF_8);
+
+  private static final class RecordingHandler implements StreamingResponseHandler {
+    private HttpResponse response;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private boolean done;
+    private Exception failure;
+
+    @Override
+    public void headers(HttpResponse response) {
+      this.response = response;
+    }
+
+    @Override
+    public void body(ByteBuffer data) {
+      while (data.hasRemaining()) {
+        body.write(data.get());
+      }
+    }
+
+    @Override
+    public void done() {
+      done = true;
+    }
+
+    @Override
+    public void failed(Exception exception) {
+      failure = exception;
+    }
+  }
+
+  private static HttpResponse response(String contentEncoding) throws Exception {
+    SimpleHttpResponse.Builder builder = new SimpleHttpResponse.Builder()
+        .setMajorVersion(1)
+        .setMinorVersion(1)
+        .setStatusCode(200)
+        .setReasonPhrase("OK")
+        .addHeader(HttpHeaderName.CONTENT_LENGTH, "10");
+    if (contentEncoding != null) {
+      builder.addHeader(HttpHeaderName.CONTENT_ENCODING, contentEncoding);
+    }
+    return builder.build();
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] deflate(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DeflaterOutputStream deflate = new DeflaterOutputStream(out)) {
+      deflate.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  private static DecompressingResponseHandler handler(RecordingHandler delegate, long maxLength) {
+    return new DecompressingResponseHandler(delegate, new InflaterPool(1), maxLength);
+  }
+
+  @Test
+  public void gzipIsDecoded() throws Exception {
+    RecordingHandler delegate = new RecordingHandler();
+    DecompressingResponseHandler handler = handler(delegate, 1000);
+    handler.headers(response("gzip"));
+    byte[] compressed = gzip(CONTENT);
+    // Feed the body in small pieces to exercise the incremental decoding.
+    for (int i = 0; i < compressed.length; i += 7) {
+      handler.body(ByteBuffer.wrap(compressed, i, Math.min(7, compressed.length - i)));
+    }
+    handler.done();
+    assertTrue(delegate.done);
+    assertNull(delegate.failure);
+    assertArrayEquals(CONTENT, delegate.body.toByteArray());
+    assertNull(delegate.response.getHeaders().get(HttpHeaderName.CONTENT_ENCODING));
+    assertNull(delegate.response.getHeaders().get(HttpHeaderName.CONTENT_LENGTH));
+  }
+
+  @Test
+  public void deflateIsDecoded() throws Exception {
+    RecordingHandler delegate = new RecordingHandler();
+    DecompressingResponseHandler handler = handler(delegate, 1000);
+    handler.headers(response("deflate"));
+    handler.body(ByteBuffer.wrap(deflate(CONTENT)));
+    handler.done();
+    assertTrue(delegate.done);
+    assertArrayEquals(CONTENT, delegate.body.toByteArray());
+  }
+
+  @Test
+  public void unknownContentCodingIsPassedOn() throws Exception {
+    RecordingHandler delegate = new RecordingHandler();
+    DecompressingResponseHandler handler = handler(delegate, 1000);
+    HttpResponse response = response("br");
+    handler.headers(response);
+    handler.body(ByteBuffer.wrap(CONTENT));
+    handler.done();
+    assertTrue(delegate.done);
+    assertEquals("br", delegate.response.getHeaders().get(HttpHeaderName.CONTENT_ENCODING));
+    assertArrayEquals(CONTENT, delegate.body.toByteArray());
+  }
+
+  @Test
+  public void decodedBodyLargerThanLimitFails() throws Exception {
+    RecordingHandler delegate = new RecordingHandler();
+    DecompressingResponseHandler handler = handler(delegate, 100);
+    handler.headers(response("gzip"));
+    byte[] large = new byte[10000];
+    Arrays.fill(large, (byte) 'a');
+    try {
+      handler.body(ByteBuffer.wrap(gzip(large)));
+      fail();
+    } catch (IOException expected) {
+    }
+    assertTrue(delegate.body.size() <= 100);
+  }
+
+  @Test
+  public void truncatedBodyFails() throws Exception {
+    RecordingHandler delegate = new RecordingHandler();
+    DecompressingResponseHandler handler = handler(delegate, 1000);
+    handler.headers(response("gzip"));
+    byte[] compressed = gzip(CONTENT);
+    handler.body(ByteBuffer.wrap(compressed, 0, compressed.length - 4));
+    handler.done();
+    assertFalse(delegate.done);
+    assertTrue(delegate.failure instanceof EOFException);
+  }
+
+  @Test
+  public void responseWithoutBodyIsDone() throws Exception {
+    RecordingHandler delegate = new RecordingHandler();
+    DecompressingResponseHandler handler = handler(delegate, 1000);
+    handler.headers(response("gzip"));
+    handler.done();
+    assertTrue(delegate.done);
+    assertNull(delegate.failure);
+  }
+}
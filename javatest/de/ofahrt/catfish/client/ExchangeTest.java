@@ -0,0 +1,295 @@
+package de.ofahrt.catfish.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import de.ofahrt.catfish.internal.network.NetworkEngine.ScheduledTask;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpMethodName;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
+import de.ofahrt.catfish.model.SimpleHttpResponse;
+
+public class ExchangeTest {
+  private static final class Result implements StreamingResponseHandler {
+    private final StringBuilder body = new StringBuilder();
+    private int headersCalls;
+    private boolean done;
+    private Exception exception;
+
+    @Override
+    public void headers(HttpResponse response) {
+      headersCalls++;
+    }
+
+    @Override
+    public void body(ByteBuffer data) {
+      body.append(StandardCharsets.UTF_8.decode(data));
+    }
+
+    @Override
+    public void done() {
+      assertFalse(done);
+      assertNull(exception);
+      done = true;
+    }
+
+    @Override
+    public void failed(Exception e) {
+      assertFalse(done);
+      assertNull(exception);
+      exception = e;
+    }
+  }
+
+  private static final class Timer implements ScheduledTask {
+    private final Runnable task;
+    private final long delayNanos;
+    private boolean cancelled;
+
+    Timer(Runnable task, long delayNanos) {
+      this.task = task;
+      this.delayNanos = delayNanos;
+    }
+
+    void fire() {
+      if (!cancelled) {
+        task.run();
+      }
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+    }
+  }
+
+  private static final long TIMEOUT = 1000;
+  private static final long HEDGE_DELAY = 10;
+
+  // All attempts, including hedges.
+  private final List<PendingRequest> sent = new ArrayList<>();
+  private final List<PendingRequest> hedgesSent = new ArrayList<>();
+  private final List<Timer> timers = new ArrayList<>();
+  private final Result result = new Result();
+  private final LatencyTracker latencyTracker = new LatencyTracker(50);
+  private HedgeBudget hedgeBudget;
+
+  private Exchange start(String method, long timeoutNanos, long hedgeDelayNanos) throws Exception {
+    return start(method, timeoutNanos, hedgeDelayNanos, result);
+  }
+
+  private Exchange start(
+      String method, long timeoutNanos, long hedgeDelayNanos, StreamingResponseHandler handler)
+      throws Exception {
+    sent.clear();
+    hedgesSent.clear();
+    timers.clear();
+    HttpRequest request = new SimpleHttpRequest.Builder()
+        .setVersion(HttpVersion.HTTP_1_1)
+        .setMethod(method)
+        .setUri("/")
+        .addHeader(HttpHeaderName.HOST, "localhost")
+        .build();
+    Exchange exchange = new Exchange(
+        request, handler, sent::add, this::sendHedge, latencyTracker, hedgeBudget);
+    exchange.start((task, delayNanos) -> {
+      Timer timer = new Timer(task, delayNanos);
+      timers.add(timer);
+      return timer;
+    }, timeoutNanos, hedgeDelayNanos);
+    return exchange;
+  }
+
+  private void sendHedge(PendingRequest request) {
+    sent.add(request);
+    hedgesSent.add(request);
+  }
+
+  private Timer timer(long delayNanos) {
+    for (Timer timer : timers) {
+      if (timer.delayNanos == delayNanos) {
+        return timer;
+      }
+    }
+    throw new AssertionError("No timer with delay " + delayNanos);
+  }
+
+  private static void respond(PendingRequest request, String body) throws Exception {
+    request.responseHandler.headers(new SimpleHttpResponse.Builder()
+        .setMajorVersion(1)
+        .setMinorVersion(1)
+        .setStatusCode(200)
+        .setReasonPhrase("OK")
+        .build());
+    request.responseHandler.body(ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)));
+    request.responseHandler.done();
+  }
+
+  @Test
+  public void responseIsPassedOn() throws Exception {
+    start(HttpMethodName.GET, TIMEOUT, -1);
+    assertEquals(1, sent.size());
+    respond(sent.get(0), "ok");
+    assertTrue(result.done);
+    assertEquals("ok", result.body.toString());
+    assertTrue(timer(TIMEOUT).cancelled);
+  }
+
+  @Test
+  public void deadlineCancelsRequest() throws Exception {
+    start(HttpMethodName.GET, TIMEOUT, -1);
+    timer(TIMEOUT).fire();
+    assertTrue(result.exception instanceof TimeoutException);
+    assertTrue(sent.get(0).isCancelled());
+  }
+
+  @Test
+  public void cancelFailsRequest() throws Exception {
+    Exchange exchange = start(HttpMethodName.GET, 0, -1);
+    IOException cancellation = new IOException("Cancelled");
+    exchange.cancel(cancellation);
+    assertEquals(cancellation, result.exception);
+    assertTrue(timers.isEmpty());
+  }
+
+  @Test
+  public void hedgeIsSentAfterDelay() throws Exception {
+    start(HttpMethodName.GET, 0, HEDGE_DELAY);
+    assertEquals(1, sent.size());
+    timer(HEDGE_DELAY).fire();
+    assertEquals(2, sent.size());
+  }
+
+  @Test
+  public void hedgeIsSentThroughHedgeTransport() throws Exception {
+    start(HttpMethodName.GET, 0, HEDGE_DELAY);
+    assertTrue(hedgesSent.isEmpty());
+    timer(HEDGE_DELAY).fire();
+    assertEquals(1, hedgesSent.size());
+    assertEquals(sent.get(1), hedgesSent.get(0));
+  }
+
+  @Test
+  public void noHedgeAfterResponse() throws Exception {
+    start(HttpMethodName.GET, 0, HEDGE_DELAY);
+    respond(sent.get(0), "ok");
+    assertTrue(timer(HEDGE_DELAY).cancelled);
+    timer(HEDGE_DELAY).fire();
+    assertEquals(1, sent.size());
+  }
+
+  @Test
+  public void postIsNotHedged() throws Exception {
+    start(HttpMethodName.POST, 0, HEDGE_DELAY);
+    assertTrue(timers.isEmpty());
+  }
+
+  @Test
+  public void hedgeWinsAndCancelsFirstAttempt() throws Exception {
+    start(HttpMethodName.GET, 0, HEDGE_DELAY);
+    timer(HEDGE_DELAY).fire();
+    respond(sent.get(1), "second");
+    assertTrue(sent.get(0).isCancelled());
+    // The cancelled attempt may still get parts of its response.
+    respond(sent.get(0), "first");
+    assertTrue(result.done);
+    assertEquals(1, result.headersCalls);
+    assertEquals("second", result.body.toString());
+  }
+
+  @Test
+  public void firstAttemptWinsAndCancelsHedge() throws Exception {
+    start(HttpMethodName.GET, 0, HEDGE_DELAY);
+    timer(HEDGE_DELAY).fire();
+    respond(sent.get(0), "first");
+    assertTrue(sent.get(1).isCancelled());
+    assertTrue(result.done);
+    assertEquals("first", result.body.toString());
+  }
+
+  @Test
+  public void failureWaitsForOtherAttempt() throws Exception {
+    start(HttpMethodName.GET, 0, HEDGE_DELAY);
+    timer(HEDGE_DELAY).fire();
+    sent.get(0).responseHandler.failed(new IOException("Connection reset"));
+    assertNull(result.exception);
+    respond(sent.get(1), "second");
+    assertTrue(result.done);
+  }
+
+  @Test
+  public void lastFailureIsPassedOn() throws Exception {
+    start(HttpMethodName.GET, 0, HEDGE_DELAY);
+    timer(HEDGE_DELAY).fire();
+    sent.get(0).responseHandler.failed(new IOException("first"));
+    IOException last = new IOException("second");
+    sent.get(1).responseHandler.failed(last);
+    assertEquals(last, result.exception);
+  }
+
+  @Test
+  public void failureBeforeHedgeIsPassedOn() throws Exception {
+    start(HttpMethodName.GET, 0, HEDGE_DELAY);
+    IOException failure = new IOException("Connection refused");
+    sent.get(0).responseHandler.failed(failure);
+    assertEquals(failure, result.exception);
+    assertTrue(timer(HEDGE_DELAY).cancelled);
+  }
+
+  @Test
+  public void winningHedgeIsTimedFromStartOfExchange() throws Exception {
+    long delayNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    for (int i = 0; i < LatencyTracker.MIN_SAMPLES; i++) {
+      Result current = new Result();
+      start(HttpMethodName.GET, 0, HEDGE_DELAY, current);
+      Thread.sleep(TimeUnit.NANOSECONDS.toMillis(delayNanos));
+      timer(HEDGE_DELAY).fire();
+      respond(sent.get(1), "second");
+      assertTrue(current.done);
+    }
+    assertTrue(latencyTracker.getEstimateNanos() >= delayNanos);
+  }
+
+  @Test
+  public void hedgeBudgetLimitsHedgesToSlowServer() throws Exception {
+    hedgeBudget = new HedgeBudget(0.1);
+    int requests = 1000;
+    int hedges = 0;
+    for (int i = 0; i < requests; i++) {
+      Result current = new Result();
+      start(HttpMethodName.GET, 0, HEDGE_DELAY, current);
+      // Every response takes longer than the hedge delay.
+      timer(HEDGE_DELAY).fire();
+      hedges += sent.size() - 1;
+      respond(sent.get(0), "first");
+      assertTrue(current.done);
+    }
+    assertTrue("Hedged " + hedges + " requests", hedges <= requests / 10);
+    assertTrue("Hedged " + hedges + " requests", hedges >= requests / 10 - 1);
+  }
+
+  @Test
+  public void hedgeIsSkippedWithoutBudget() throws Exception {
+    hedgeBudget = new HedgeBudget(0);
+    start(HttpMethodName.GET, 0, HEDGE_DELAY);
+    timer(HEDGE_DELAY).fire();
+    assertEquals(1, sent.size());
+    respond(sent.get(0), "first");
+    assertTrue(result.done);
+  }
+}
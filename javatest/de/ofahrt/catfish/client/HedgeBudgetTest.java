@@ -0,0 +1,46 @@
+package de.ofahrt.catfish.client;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class HedgeBudgetTest {
+  @Test
+  public void noHedgeWithoutRequests() {
+    assertFalse(new HedgeBudget(0.5).tryHedge());
+  }
+
+  @Test
+  public void requestsEarnHedges() {
+    HedgeBudget budget = new HedgeBudget(0.5);
+    budget.requestSent();
+    assertFalse(budget.tryHedge());
+    budget.requestSent();
+    assertTrue(budget.tryHedge());
+    assertFalse(budget.tryHedge());
+  }
+
+  @Test
+  public void unusedHedgesAreCapped() {
+    HedgeBudget budget = new HedgeBudget(1);
+    for (int i = 0; i < 1000; i++) {
+      budget.requestSent();
+    }
+    for (int i = 0; i < HedgeBudget.MAX_BALANCE; i++) {
+      assertTrue(budget.tryHedge());
+    }
+    assertFalse(budget.tryHedge());
+  }
+
+  @Test
+  public void rateAboveOneIsRejected() {
+    try {
+      new HedgeBudget(1.5);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+}
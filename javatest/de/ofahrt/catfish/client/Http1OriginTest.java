@@ -0,0 +1,550 @@
+package de.ofahrt.catfish.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import de.ofahrt.catfish.client.HttpClientStage.ResponseHandler;
+import de.ofahrt.catfish.internal.network.NetworkEngine.NetworkHandler;
+import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
+import de.ofahrt.catfish.internal.network.Stage;
+import de.ofahrt.catfish.internal.network.Stage.ConnectionControl;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpMethodName;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
+import de.ofahrt.catfish.model.network.Connection;
+
+public class Http1OriginTest {
+  private static final class Result implements ResponseHandler {
+    private HttpResponse response;
+    private Exception exception;
+
+    @Override
+    public void received(HttpResponse httpResponse) {
+      assertNull(response);
+      assertNull(exception);
+      this.response = httpResponse;
+    }
+
+    @Override
+    public void failed(Exception e) {
+      assertNull(response);
+      assertNull(exception);
+      this.exception = e;
+    }
+  }
+
+  private static final class StreamingResult implements StreamingResponseHandler {
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private HttpResponse headers;
+    private boolean done;
+    private Exception exception;
+    private boolean ready = true;
+    private Runnable readyCallback;
+    // If set, body throws this exception.
+    private IOException bodyException;
+
+    @Override
+    public void headers(HttpResponse response) {
+      assertNull(headers);
+      this.headers = response;
+    }
+
+    @Override
+    public void body(ByteBuffer data) throws IOException {
+      if (bodyException != null) {
+        throw bodyException;
+      }
+      body.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+
+    @Override
+    public void done() {
+      assertFalse(done);
+      done = true;
+    }
+
+    @Override
+    public void failed(Exception e) {
+      assertNull(exception);
+      this.exception = e;
+    }
+
+    @Override
+    public boolean isReady() {
+      return ready;
+    }
+
+    @Override
+    public void whenReady(Runnable callback) {
+      this.readyCallback = callback;
+    }
+
+    void setReady() {
+      ready = true;
+      readyCallback.run();
+    }
+
+    String bodyAsString() {
+      return new String(body.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  /** A connection that runs everything on the calling thread. */
+  private static final class FakeConnection implements Pipeline {
+    private final ByteBuffer inputBuffer = ByteBuffer.allocate(4096);
+    private final ByteBuffer outputBuffer = ByteBuffer.allocate(4096);
+    private final Stage stage;
+    private boolean closed;
+    private boolean paused;
+
+    FakeConnection(NetworkHandler handler) {
+      inputBuffer.flip();
+      outputBuffer.flip();
+      this.stage = handler.connect(this, inputBuffer, outputBuffer);
+    }
+
+    void establish() {
+      stage.connect(new Connection(
+          new InetSocketAddress("127.0.0.1", 1234), new InetSocketAddress("127.0.0.1", 80), false));
+    }
+
+    String written() throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      for (int i = 0; i < 100; i++) {
+        ConnectionControl control = stage.write();
+        byte[] data = new byte[outputBuffer.remaining()];
+        outputBuffer.get(data);
+        out.write(data);
+        if (control != ConnectionControl.CONTINUE) {
+          break;
+        }
+      }
+      return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    void respond(String response) throws Exception {
+      inputBuffer.compact();
+      inputBuffer.put(response.replace("\n", "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      inputBuffer.flip();
+      while (!closed && inputBuffer.hasRemaining()) {
+        ConnectionControl control = stage.read();
+        if (control == ConnectionControl.CLOSE_CONNECTION_IMMEDIATELY) {
+          close();
+        } else if (control == ConnectionControl.PAUSE) {
+          paused = true;
+          break;
+        }
+      }
+    }
+
+    void serverClosed() throws Exception {
+      stage.inputClosed();
+    }
+
+    @Override
+    public void encourageWrites() {
+    }
+
+    @Override
+    public void encourageReads() {
+      paused = false;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        stage.close();
+      }
+    }
+
+    @Override
+    public void queue(Runnable runnable) {
+      runnable.run();
+    }
+
+    @Override
+    public void log(String text, Object... params) {
+    }
+  }
+
+  private static final String OK = "HTTP/1.1 200 OK\nContent-Length: 2\n\nok";
+
+  private final List<FakeConnection> connections = new ArrayList<>();
+  private int maxConnections = 2;
+  private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+  // If set, connecting fails with this exception.
+  private IOException connectException;
+  private Http1Origin origin;
+
+  private Http1Origin origin() {
+    origin = new Http1Origin(
+        handler -> {
+          if (connectException != null) {
+            handler.connectFailed(connectException);
+          } else {
+            connections.add(new FakeConnection(handler));
+          }
+        },
+        null,
+        null,
+        maxConnections,
+        idleTimeoutNanos);
+    return origin;
+  }
+
+  private static HttpRequest request(String method, String path) throws Exception {
+    return new SimpleHttpRequest.Builder()
+        .setVersion(HttpVersion.HTTP_1_1)
+        .setMethod(method)
+        .setUri(path)
+        .addHeader(HttpHeaderName.HOST, "localhost")
+        .build();
+  }
+
+  private Result send(String method, String path) throws Exception {
+    Result result = new Result();
+    origin.send(new PendingRequest(request(method, path), result));
+    return result;
+  }
+
+  private Result get(String path) throws Exception {
+    return send(HttpMethodName.GET, path);
+  }
+
+  @Test
+  public void connectionIsReused() throws Exception {
+    origin();
+    Result first = get("/1");
+    assertEquals(1, connections.size());
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    assertTrue(connection.written().startsWith("GET /1 HTTP/1.1\r\n"));
+    connection.respond(OK);
+    assertEquals(200, first.response.getStatusCode());
+    assertEquals(1, origin.getIdleConnections());
+
+    Result second = get("/2");
+    assertEquals(1, connections.size());
+    assertEquals(0, origin.getIdleConnections());
+    assertTrue(connection.written().startsWith("GET /2 HTTP/1.1\r\n"));
+    connection.respond(OK);
+    assertNotNull(second.response);
+    assertFalse(connection.closed);
+  }
+
+  @Test
+  public void requestsWaitForFreeConnection() throws Exception {
+    origin();
+    get("/1");
+    get("/2");
+    Result third = get("/3");
+    assertEquals(2, connections.size());
+    connections.get(0).establish();
+    connections.get(1).establish();
+    assertTrue(connections.get(0).written().startsWith("GET /1 "));
+    assertTrue(connections.get(1).written().startsWith("GET /2 "));
+
+    connections.get(1).respond(OK);
+    assertTrue(connections.get(1).written().startsWith("GET /3 "));
+    connections.get(1).respond(OK);
+    assertNotNull(third.response);
+    assertEquals(2, connections.size());
+  }
+
+  @Test
+  public void connectionCloseIsHonored() throws Exception {
+    origin();
+    Result first = get("/1");
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond("HTTP/1.1 200 OK\nConnection: close\nContent-Length: 2\n\nok");
+    assertNotNull(first.response);
+    assertTrue(connection.closed);
+    assertEquals(0, origin.getOpenConnections());
+
+    get("/2");
+    assertEquals(2, connections.size());
+  }
+
+  @Test
+  public void headResponseHasNoBody() throws Exception {
+    origin();
+    Result head = send(HttpMethodName.HEAD, "/1");
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond("HTTP/1.1 200 OK\nContent-Length: 100\n\n");
+    assertEquals(200, head.response.getStatusCode());
+    assertEquals(1, origin.getIdleConnections());
+  }
+
+  @Test
+  public void interimResponseIsSkipped() throws Exception {
+    origin();
+    Result result = get("/1");
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond("HTTP/1.1 100 Continue\n\n");
+    assertNull(result.response);
+    connection.respond(OK);
+    assertEquals(200, result.response.getStatusCode());
+  }
+
+  @Test
+  public void idleConnectionsAreEvicted() throws Exception {
+    origin();
+    get("/1");
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond(OK);
+    origin.evictIdle(System.nanoTime());
+    assertFalse(connection.closed);
+    origin.evictIdle(System.nanoTime() + idleTimeoutNanos);
+    assertTrue(connection.closed);
+    assertEquals(0, origin.getIdleConnections());
+    assertEquals(0, origin.getOpenConnections());
+  }
+
+  @Test
+  public void expiredConnectionIsNotReused() throws Exception {
+    idleTimeoutNanos = 1;
+    origin();
+    get("/1");
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond(OK);
+    Thread.sleep(1);
+    get("/2");
+    assertTrue(connection.closed);
+    assertEquals(2, connections.size());
+  }
+
+  @Test
+  public void closedIdleConnectionIsRemoved() throws Exception {
+    origin();
+    get("/1");
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond(OK);
+    connection.serverClosed();
+    assertTrue(connection.closed);
+    assertEquals(0, origin.getIdleConnections());
+    get("/2");
+    assertEquals(2, connections.size());
+  }
+
+  @Test
+  public void requestOnStaleConnectionIsRetried() throws Exception {
+    origin();
+    get("/1");
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond(OK);
+    Result second = get("/2");
+    connection.written();
+    // The server closed the connection before the request arrived.
+    connection.serverClosed();
+    assertNull(second.exception);
+    assertEquals(2, connections.size());
+    connections.get(1).establish();
+    assertTrue(connections.get(1).written().startsWith("GET /2 "));
+    connections.get(1).respond(OK);
+    assertNotNull(second.response);
+  }
+
+  @Test
+  public void postOnStaleConnectionIsNotRetried() throws Exception {
+    origin();
+    get("/1");
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond(OK);
+    Result post = send(HttpMethodName.POST, "/2");
+    connection.written();
+    connection.serverClosed();
+    assertNotNull(post.exception);
+    assertEquals(1, connections.size());
+  }
+
+  @Test
+  public void partialResponseIsNotRetried() throws Exception {
+    origin();
+    get("/1");
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond(OK);
+    Result second = get("/2");
+    connection.written();
+    connection.respond("HTTP/1.1 200 OK\nContent-Length: 2\n\n");
+    connection.serverClosed();
+    assertNotNull(second.exception);
+  }
+
+  @Test
+  public void prewarmOpensConnections() throws Exception {
+    origin();
+    origin.prewarm(3);
+    assertEquals(2, connections.size());
+    connections.get(0).establish();
+    connections.get(1).establish();
+    assertEquals(2, origin.getIdleConnections());
+    get("/1");
+    assertEquals(2, connections.size());
+    assertEquals(1, origin.getIdleConnections());
+  }
+
+  @Test
+  public void failedConnectionFailsWaitingRequests() throws Exception {
+    maxConnections = 1;
+    origin();
+    Result first = get("/1");
+    Result second = get("/2");
+    connections.get(0).close();
+    assertNotNull(first.exception);
+    assertNotNull(second.exception);
+    assertEquals(0, origin.getOpenConnections());
+  }
+
+  @Test
+  public void refusedConnectionFailsRequest() throws Exception {
+    connectException = new IOException("Connection refused");
+    origin();
+    Result result = get("/1");
+    assertEquals(connectException, result.exception);
+    assertEquals(0, origin.getOpenConnections());
+
+    connectException = null;
+    get("/2");
+    assertEquals(1, connections.size());
+  }
+
+  @Test
+  public void streamedResponseWaitsForHandler() throws Exception {
+    origin();
+    StreamingResult result = new StreamingResult();
+    origin.send(new PendingRequest(request(HttpMethodName.GET, "/1"), result));
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond("HTTP/1.1 200 OK\nContent-Length: 10\n\n01234");
+    assertEquals(200, result.headers.getStatusCode());
+    assertEquals("01234", result.bodyAsString());
+
+    result.ready = false;
+    connection.respond("56789");
+    assertTrue(connection.paused);
+    assertEquals("01234", result.bodyAsString());
+
+    result.setReady();
+    assertFalse(connection.paused);
+    assertEquals("0123456789", result.bodyAsString());
+    assertTrue(result.done);
+    assertEquals(1, origin.getIdleConnections());
+  }
+
+  @Test
+  public void chunkedResponseIsStreamed() throws Exception {
+    origin();
+    StreamingResult result = new StreamingResult();
+    origin.send(new PendingRequest(request(HttpMethodName.GET, "/1"), result));
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond("HTTP/1.1 200 OK\nTransfer-Encoding: chunked\n\n5\nhello\n");
+    assertEquals("hello", result.bodyAsString());
+    assertFalse(result.done);
+    connection.respond("6\n world\n0\n\n");
+    assertEquals("hello world", result.bodyAsString());
+    assertTrue(result.done);
+    assertEquals(1, origin.getIdleConnections());
+  }
+
+  @Test
+  public void bodyExceptionClosesConnection() throws Exception {
+    origin();
+    StreamingResult result = new StreamingResult();
+    result.bodyException = new IOException("Out of space");
+    origin.send(new PendingRequest(request(HttpMethodName.GET, "/1"), result));
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond("HTTP/1.1 200 OK\nContent-Length: 10\n\n0123456789");
+    assertEquals(result.bodyException, result.exception);
+    assertFalse(result.done);
+    assertTrue(connection.closed);
+    assertEquals(0, origin.getOpenConnections());
+  }
+
+  @Test
+  public void bufferedResponseIsLimited() throws Exception {
+    origin();
+    Result result = new Result();
+    origin.send(new PendingRequest(
+        request(HttpMethodName.GET, "/1"), new BufferingResponseHandler(result, 5)));
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond("HTTP/1.1 200 OK\nContent-Length: 10\n\n0123456789");
+    assertNotNull(result.exception);
+    assertTrue(connection.closed);
+  }
+
+  @Test
+  public void cancelClosesConnection() throws Exception {
+    origin();
+    Result result = new Result();
+    PendingRequest request = new PendingRequest(request(HttpMethodName.GET, "/1"), result);
+    origin.send(request);
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    IOException cancellation = new IOException("Cancelled");
+    request.cancel(cancellation);
+    assertEquals(cancellation, result.exception);
+    assertTrue(connection.closed);
+    assertEquals(0, origin.getOpenConnections());
+  }
+
+  @Test
+  public void cancelledWaitingRequestIsSkipped() throws Exception {
+    maxConnections = 1;
+    origin();
+    Result first = get("/1");
+    Result second = new Result();
+    PendingRequest request = new PendingRequest(request(HttpMethodName.GET, "/2"), second);
+    origin.send(request);
+    request.cancel(new IOException("Cancelled"));
+    assertNotNull(second.exception);
+    FakeConnection connection = connections.get(0);
+    connection.establish();
+    connection.written();
+    connection.respond(OK);
+    assertNotNull(first.response);
+    assertEquals("", connection.written());
+    assertEquals(1, origin.getIdleConnections());
+  }
+}
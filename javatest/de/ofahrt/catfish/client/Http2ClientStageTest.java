@@ -0,0 +1,678 @@
+package de.ofahrt.catfish.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import de.ofahrt.catfish.client.HttpClientStage.ResponseHandler;
+import de.ofahrt.catfish.http2.ErrorCode;
+import de.ofahrt.catfish.http2.FrameType;
+import de.ofahrt.catfish.http2.Frames;
+import de.ofahrt.catfish.http2.HpackDecoder;
+import de.ofahrt.catfish.http2.HpackEncoder;
+import de.ofahrt.catfish.http2.Http2Exception;
+import de.ofahrt.catfish.http2.Setting;
+import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
+import de.ofahrt.catfish.internal.network.Stage.ConnectionControl;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
+import de.ofahrt.catfish.model.network.Connection;
+
+public class Http2ClientStageTest {
+  private static final class Frame {
+    private final int type;
+    private final int flags;
+    private final int streamId;
+    private final byte[] payload;
+
+    Frame(int type, int flags, int streamId, byte[] payload) {
+      this.type = type;
+      this.flags = flags;
+      this.streamId = streamId;
+      this.payload = payload;
+    }
+
+    boolean hasFlag(int flag) {
+      return (flags & flag) != 0;
+    }
+
+    int getInt(int offset) {
+      return Frames.getInt(payload, offset);
+    }
+  }
+
+  private static final class FakePipeline implements Pipeline {
+    private boolean closed;
+
+    @Override
+    public void encourageWrites() {
+    }
+
+    @Override
+    public void encourageReads() {
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    @Override
+    public void queue(Runnable runnable) {
+      runnable.run();
+    }
+
+    @Override
+    public void log(String text, Object... params) {
+    }
+  }
+
+  private static final class Result implements ResponseHandler {
+    private HttpResponse response;
+    private Exception exception;
+
+    @Override
+    public void received(HttpResponse httpResponse) {
+      assertNull(response);
+      assertNull(exception);
+      this.response = httpResponse;
+    }
+
+    @Override
+    public void failed(Exception e) {
+      assertNull(response);
+      assertNull(exception);
+      this.exception = e;
+    }
+  }
+
+  private final FakePipeline pipeline = new FakePipeline();
+  private final ByteBuffer inputBuffer = ByteBuffer.allocate(32768);
+  private final ByteBuffer outputBuffer = ByteBuffer.allocate(32768);
+  private final HpackEncoder encoder = new HpackEncoder();
+  private final HpackDecoder decoder = new HpackDecoder();
+  private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+  private List<PendingRequest> unprocessed;
+  private Http2ClientStage stage;
+
+  private Http2ClientStage start() throws Exception {
+    inputBuffer.flip();
+    outputBuffer.flip();
+    stage = new Http2ClientStage(
+        pipeline,
+        "https",
+        (closedStage, requests) -> {
+          assertNull(unprocessed);
+          unprocessed = requests;
+        },
+        inputBuffer,
+        outputBuffer);
+    stage.connect(new Connection(
+        new InetSocketAddress("127.0.0.1", 1234), new InetSocketAddress("127.0.0.1", 443), true));
+    return stage;
+  }
+
+  /** Starts the stage, and skips the client preface. */
+  private Http2ClientStage startAndSendSettings(int... settings) throws Exception {
+    start();
+    receive();
+    send(Frames.settings(settings));
+    return stage;
+  }
+
+  private static HttpRequest get(String path) throws Exception {
+    return new SimpleHttpRequest.Builder()
+        .setVersion(HttpVersion.HTTP_1_1)
+        .setMethod("GET")
+        .setUri(path)
+        .addHeader("Host", "localhost")
+        .build();
+  }
+
+  private static HttpRequest post(String path, byte[] body) throws Exception {
+    return new SimpleHttpRequest.Builder()
+        .setVersion(HttpVersion.HTTP_1_1)
+        .setMethod("POST")
+        .setUri(path)
+        .addHeader("Host", "localhost")
+        .addHeader("Content-Length", Integer.toString(body.length))
+        .setBody(new HttpRequest.InMemoryBody(body))
+        .build();
+  }
+
+  private Result submit(HttpRequest request) {
+    Result result = new Result();
+    assertTrue(stage.submit(new PendingRequest(request, result)));
+    return result;
+  }
+
+  private void send(byte[] data) throws Exception {
+    int offset = 0;
+    while (offset < data.length) {
+      inputBuffer.compact();
+      int length = Math.min(inputBuffer.remaining(), data.length - offset);
+      inputBuffer.put(data, offset, length);
+      inputBuffer.flip();
+      offset += length;
+      stage.read();
+    }
+  }
+
+  private static byte[] frame(int type, int flags, int streamId, byte[] payload) {
+    ByteBuffer result = ByteBuffer.allocate(Frames.HEADER_LENGTH + payload.length);
+    Frames.writeHeader(result, payload.length, type, flags, streamId);
+    result.put(payload);
+    return result.array();
+  }
+
+  private static Map.Entry<String, String> field(String name, String value) {
+    return new AbstractMap.SimpleImmutableEntry<>(name, value);
+  }
+
+  private byte[] headers(int streamId, boolean endStream, String status, String... extra) {
+    List<Map.Entry<String, String>> fields = new ArrayList<>();
+    fields.add(field(":status", status));
+    for (int i = 0; i < extra.length; i += 2) {
+      fields.add(field(extra[i], extra[i + 1]));
+    }
+    return frame(FrameType.HEADERS, Frames.FLAG_END_HEADERS | (endStream ? Frames.FLAG_END_STREAM : 0),
+        streamId, encoder.encode(fields));
+  }
+
+  private static byte[] data(int streamId, boolean endStream, byte[] payload) {
+    return frame(FrameType.DATA, endStream ? Frames.FLAG_END_STREAM : 0, streamId, payload);
+  }
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** Calls write until the stage pauses, and returns the frames it wrote. */
+  private List<Frame> receive() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      ConnectionControl control = stage.write();
+      byte[] data = new byte[outputBuffer.remaining()];
+      outputBuffer.get(data);
+      received.write(data);
+      if (control != ConnectionControl.CONTINUE && data.length == 0) {
+        break;
+      }
+    }
+    byte[] data = received.toByteArray();
+    int offset = 0;
+    if (data.length >= Frames.CONNECTION_PREFACE.length && data[0] == Frames.CONNECTION_PREFACE[0]) {
+      assertArrayEquals(Frames.CONNECTION_PREFACE, Arrays.copyOf(data, Frames.CONNECTION_PREFACE.length));
+      offset = Frames.CONNECTION_PREFACE.length;
+    }
+    List<Frame> frames = new ArrayList<>();
+    while (data.length - offset >= Frames.HEADER_LENGTH
+        && data.length - offset >= Frames.HEADER_LENGTH + Frames.getLength(data, offset)) {
+      int length = Frames.getLength(data, offset);
+      frames.add(new Frame(
+          Frames.getType(data, offset),
+          Frames.getFlags(data, offset),
+          Frames.getStreamId(data, offset),
+          Arrays.copyOfRange(data, offset + Frames.HEADER_LENGTH, offset + Frames.HEADER_LENGTH + length)));
+      offset += Frames.HEADER_LENGTH + length;
+    }
+    received.reset();
+    received.write(data, offset, data.length - offset);
+    return frames;
+  }
+
+  private Map<String, String> decodeHeaders(Frame frame) throws Exception {
+    assertEquals(FrameType.HEADERS, frame.type);
+    Map<String, String> result = new HashMap<>();
+    decoder.decode(frame.payload, 0, frame.payload.length, result::put);
+    return result;
+  }
+
+  private static List<Frame> framesOfType(List<Frame> frames, int type) {
+    List<Frame> result = new ArrayList<>();
+    for (Frame frame : frames) {
+      if (frame.type == type) {
+        result.add(frame);
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void clientPreface() throws Exception {
+    start();
+    List<Frame> frames = receive();
+    assertEquals(2, frames.size());
+    Frame settings = frames.get(0);
+    assertEquals(FrameType.SETTINGS, settings.type);
+    assertEquals(Setting.SETTINGS_ENABLE_PUSH.getId(), settings.payload[1]);
+    assertEquals(0, settings.getInt(2));
+    assertEquals(FrameType.WINDOW_UPDATE, frames.get(1).type);
+    assertEquals(0, frames.get(1).streamId);
+  }
+
+  @Test
+  public void settingsAreAcknowledged() throws Exception {
+    startAndSendSettings();
+    List<Frame> frames = receive();
+    assertEquals(1, frames.size());
+    assertEquals(FrameType.SETTINGS, frames.get(0).type);
+    assertTrue(frames.get(0).hasFlag(Frames.FLAG_ACK));
+  }
+
+  @Test
+  public void simpleGet() throws Exception {
+    startAndSendSettings();
+    Result result = submit(get("/foo"));
+    List<Frame> frames = framesOfType(receive(), FrameType.HEADERS);
+    assertEquals(1, frames.size());
+    assertEquals(1, frames.get(0).streamId);
+    assertTrue(frames.get(0).hasFlag(Frames.FLAG_END_STREAM));
+    Map<String, String> headers = decodeHeaders(frames.get(0));
+    assertEquals("GET", headers.get(":method"));
+    assertEquals("https", headers.get(":scheme"));
+    assertEquals("localhost", headers.get(":authority"));
+    assertEquals("/foo", headers.get(":path"));
+    assertNull(headers.get("host"));
+
+    send(headers(1, false, "200", "content-type", "text/plain"));
+    assertNull(result.response);
+    send(data(1, true, bytes("Hello")));
+    assertNotNull(result.response);
+    assertEquals(HttpVersion.HTTP_2_0, result.response.getProtocolVersion());
+    assertEquals(200, result.response.getStatusCode());
+    assertEquals("OK", result.response.getStatusMessage());
+    assertEquals("text/plain", result.response.getHeaders().get("Content-Type"));
+    assertArrayEquals(bytes("Hello"), result.response.getBody());
+  }
+
+  @Test
+  public void concurrentStreams() throws Exception {
+    startAndSendSettings();
+    Result first = submit(get("/1"));
+    Result second = submit(get("/2"));
+    Result third = submit(get("/3"));
+    List<Frame> frames = framesOfType(receive(), FrameType.HEADERS);
+    assertEquals(3, frames.size());
+    assertEquals(1, frames.get(0).streamId);
+    assertEquals(3, frames.get(1).streamId);
+    assertEquals(5, frames.get(2).streamId);
+
+    send(headers(5, false, "200"));
+    send(headers(1, false, "404"));
+    send(data(5, false, bytes("thr")));
+    send(headers(3, true, "204"));
+    send(data(1, true, bytes("first")));
+    send(data(5, true, bytes("ee")));
+    assertEquals(404, first.response.getStatusCode());
+    assertArrayEquals(bytes("first"), first.response.getBody());
+    assertEquals(204, second.response.getStatusCode());
+    assertEquals(0, second.response.getBody().length);
+    assertArrayEquals(bytes("three"), third.response.getBody());
+  }
+
+  @Test
+  public void maxConcurrentStreamsQueuesRequests() throws Exception {
+    startAndSendSettings(Setting.SETTINGS_MAX_CONCURRENT_STREAMS.getId(), 1);
+    Result first = submit(get("/1"));
+    Result second = submit(get("/2"));
+    List<Frame> frames = framesOfType(receive(), FrameType.HEADERS);
+    assertEquals(1, frames.size());
+    assertEquals(1, frames.get(0).streamId);
+    assertEquals("/1", decodeHeaders(frames.get(0)).get(":path"));
+
+    send(headers(1, true, "200"));
+    assertNotNull(first.response);
+    frames = framesOfType(receive(), FrameType.HEADERS);
+    assertEquals(1, frames.size());
+    assertEquals(3, frames.get(0).streamId);
+    assertEquals("/2", decodeHeaders(frames.get(0)).get(":path"));
+    send(headers(3, true, "200"));
+    assertNotNull(second.response);
+  }
+
+  @Test
+  public void requestBodyRespectsFlowControl() throws Exception {
+    startAndSendSettings(Setting.SETTINGS_INITIAL_WINDOW_SIZE.getId(), 10);
+    submit(post("/upload", bytes("0123456789abcdefghijklmno")));
+    List<Frame> frames = receive();
+    Frame headers = framesOfType(frames, FrameType.HEADERS).get(0);
+    assertFalse(headers.hasFlag(Frames.FLAG_END_STREAM));
+    assertEquals("25", decodeHeaders(headers).get("content-length"));
+    List<Frame> data = framesOfType(frames, FrameType.DATA);
+    assertEquals(1, data.size());
+    assertArrayEquals(bytes("0123456789"), data.get(0).payload);
+    assertFalse(data.get(0).hasFlag(Frames.FLAG_END_STREAM));
+
+    send(Frames.windowUpdate(1, 20));
+    data = framesOfType(receive(), FrameType.DATA);
+    assertEquals(1, data.size());
+    assertArrayEquals(bytes("abcdefghijklmno"), data.get(0).payload);
+    assertTrue(data.get(0).hasFlag(Frames.FLAG_END_STREAM));
+  }
+
+  @Test
+  public void largeResponseUpdatesWindows() throws Exception {
+    startAndSendSettings();
+    Result result = submit(get("/big"));
+    receive();
+    send(headers(1, false, "200"));
+    byte[] chunk = new byte[Frames.DEFAULT_MAX_FRAME_SIZE];
+    int count = 40;
+    for (int i = 0; i < count; i++) {
+      send(data(1, false, chunk));
+    }
+    List<Frame> updates = framesOfType(receive(), FrameType.WINDOW_UPDATE);
+    assertEquals(1, updates.size());
+    assertEquals(1, updates.get(0).streamId);
+    send(data(1, true, chunk));
+    assertEquals((count + 1) * chunk.length, result.response.getBody().length);
+  }
+
+  @Test
+  public void slowHandlerDefersStreamWindowUpdate() throws Exception {
+    startAndSendSettings();
+    long[] bodyLength = new long[1];
+    boolean[] ready = new boolean[1];
+    Runnable[] readyCallback = new Runnable[1];
+    assertTrue(stage.submit(new PendingRequest(get("/big"), new StreamingResponseHandler() {
+      @Override
+      public void headers(HttpResponse response) {
+      }
+
+      @Override
+      public void body(ByteBuffer data) {
+        bodyLength[0] += data.remaining();
+      }
+
+      @Override
+      public void done() {
+      }
+
+      @Override
+      public void failed(Exception exception) {
+      }
+
+      @Override
+      public boolean isReady() {
+        return ready[0];
+      }
+
+      @Override
+      public void whenReady(Runnable callback) {
+        readyCallback[0] = callback;
+      }
+    })));
+    receive();
+    send(headers(1, false, "200"));
+    byte[] chunk = new byte[Frames.DEFAULT_MAX_FRAME_SIZE];
+    int count = 40;
+    for (int i = 0; i < count; i++) {
+      send(data(1, false, chunk));
+    }
+    assertEquals(count * chunk.length, bodyLength[0]);
+    assertTrue(framesOfType(receive(), FrameType.WINDOW_UPDATE).isEmpty());
+
+    ready[0] = true;
+    readyCallback[0].run();
+    List<Frame> updates = framesOfType(receive(), FrameType.WINDOW_UPDATE);
+    assertEquals(1, updates.size());
+    assertEquals(1, updates.get(0).streamId);
+  }
+
+  @Test
+  public void bodyExceptionResetsStream() throws Exception {
+    startAndSendSettings();
+    IOException failure = new IOException("Out of space");
+    Exception[] failed = new Exception[1];
+    assertTrue(stage.submit(new PendingRequest(get("/"), new StreamingResponseHandler() {
+      @Override
+      public void headers(HttpResponse response) {
+      }
+
+      @Override
+      public void body(ByteBuffer data) throws IOException {
+        throw failure;
+      }
+
+      @Override
+      public void done() {
+      }
+
+      @Override
+      public void failed(Exception exception) {
+        failed[0] = exception;
+      }
+    })));
+    receive();
+    send(headers(1, false, "200"));
+    send(data(1, false, bytes("hello")));
+    assertEquals(failure, failed[0]);
+    List<Frame> resets = framesOfType(receive(), FrameType.RST_STREAM);
+    assertEquals(1, resets.size());
+    assertEquals(1, resets.get(0).streamId);
+    assertFalse(pipeline.closed);
+  }
+
+  @Test
+  public void cancelResetsOnlyThatStream() throws Exception {
+    startAndSendSettings();
+    Result first = new Result();
+    PendingRequest request = new PendingRequest(get("/1"), first);
+    assertTrue(stage.submit(request));
+    Result second = submit(get("/2"));
+    receive();
+    IOException cancellation = new IOException("Cancelled");
+    request.cancel(cancellation);
+    assertEquals(cancellation, first.exception);
+    List<Frame> resets = framesOfType(receive(), FrameType.RST_STREAM);
+    assertEquals(1, resets.size());
+    assertEquals(1, resets.get(0).streamId);
+    assertEquals(ErrorCode.CANCEL, resets.get(0).getInt(0));
+    // Frames the server sent before it saw the reset are ignored.
+    send(headers(1, true, "200"));
+    send(headers(3, true, "200"));
+    assertEquals(200, second.response.getStatusCode());
+    assertFalse(pipeline.closed);
+  }
+
+  @Test
+  public void cancelledQueuedRequestIsNotSent() throws Exception {
+    startAndSendSettings();
+    Result result = new Result();
+    PendingRequest request = new PendingRequest(get("/1"), result);
+    assertTrue(stage.submit(request));
+    request.cancel(new IOException("Cancelled"));
+    assertNotNull(result.exception);
+    assertTrue(framesOfType(receive(), FrameType.HEADERS).isEmpty());
+  }
+
+  @Test
+  public void informationalResponseIsSkipped() throws Exception {
+    startAndSendSettings();
+    Result result = submit(get("/foo"));
+    receive();
+    send(headers(1, false, "103", "link", "</style.css>"));
+    assertNull(result.response);
+    send(headers(1, true, "200"));
+    assertEquals(200, result.response.getStatusCode());
+    assertNull(result.response.getHeaders().get("Link"));
+  }
+
+  @Test
+  public void trailersAreDropped() throws Exception {
+    startAndSendSettings();
+    Result result = submit(get("/foo"));
+    receive();
+    send(headers(1, false, "200"));
+    send(data(1, false, bytes("body")));
+    assertNull(result.response);
+    List<Map.Entry<String, String>> trailers = Arrays.asList(field("checksum", "abc"));
+    send(frame(FrameType.HEADERS, Frames.FLAG_END_HEADERS | Frames.FLAG_END_STREAM, 1,
+        encoder.encode(trailers)));
+    assertArrayEquals(bytes("body"), result.response.getBody());
+    assertNull(result.response.getHeaders().get("Checksum"));
+  }
+
+  @Test
+  public void missingStatusIsStreamError() throws Exception {
+    startAndSendSettings();
+    Result result = submit(get("/foo"));
+    receive();
+    send(frame(FrameType.HEADERS, Frames.FLAG_END_HEADERS | Frames.FLAG_END_STREAM, 1,
+        encoder.encode(Arrays.asList(field("content-type", "text/plain")))));
+    assertTrue(result.exception instanceof Http2Exception);
+    Frame reset = framesOfType(receive(), FrameType.RST_STREAM).get(0);
+    assertEquals(1, reset.streamId);
+    assertEquals(ErrorCode.PROTOCOL_ERROR, reset.getInt(0));
+  }
+
+  @Test
+  public void resetStreamFailsRequest() throws Exception {
+    startAndSendSettings();
+    Result result = submit(get("/foo"));
+    receive();
+    send(Frames.rstStream(1, ErrorCode.CANCEL));
+    assertEquals(ErrorCode.CANCEL, ((Http2Exception) result.exception).getErrorCode());
+  }
+
+  @Test
+  public void refusedStreamIsRetried() throws Exception {
+    startAndSendSettings();
+    Result result = submit(get("/foo"));
+    receive();
+    send(Frames.rstStream(1, ErrorCode.REFUSED_STREAM));
+    assertNull(result.exception);
+    List<Frame> frames = framesOfType(receive(), FrameType.HEADERS);
+    assertEquals(1, frames.size());
+    assertEquals(3, frames.get(0).streamId);
+    send(headers(3, true, "200"));
+    assertEquals(200, result.response.getStatusCode());
+  }
+
+  @Test
+  public void goAwayReturnsUnprocessedRequests() throws Exception {
+    startAndSendSettings();
+    Result first = submit(get("/1"));
+    Result second = submit(get("/2"));
+    receive();
+    send(Frames.goAway(1, ErrorCode.NO_ERROR, null));
+    assertNotNull(unprocessed);
+    assertEquals(1, unprocessed.size());
+    assertEquals("/2", unprocessed.get(0).request.getUri());
+    assertNull(second.exception);
+    assertFalse(stage.submit(new PendingRequest(get("/3"), new Result())));
+
+    // The remaining stream completes normally.
+    send(headers(1, true, "200"));
+    assertNotNull(first.response);
+    receive();
+    assertEquals(ConnectionControl.CLOSE_CONNECTION_AFTER_FLUSH, stage.write());
+  }
+
+  @Test
+  public void pingIsAcknowledged() throws Exception {
+    startAndSendSettings();
+    receive();
+    byte[] payload = bytes("12345678");
+    send(frame(FrameType.PING, 0, 0, payload));
+    List<Frame> frames = receive();
+    assertEquals(1, frames.size());
+    assertEquals(FrameType.PING, frames.get(0).type);
+    assertTrue(frames.get(0).hasFlag(Frames.FLAG_ACK));
+    assertArrayEquals(payload, frames.get(0).payload);
+  }
+
+  @Test
+  public void pushPromiseIsConnectionError() throws Exception {
+    startAndSendSettings();
+    Result result = submit(get("/foo"));
+    receive();
+    send(frame(FrameType.PUSH_PROMISE, Frames.FLAG_END_HEADERS, 1, new byte[4]));
+    assertTrue(result.exception instanceof Http2Exception);
+    Frame goAway = framesOfType(receive(), FrameType.GOAWAY).get(0);
+    assertEquals(ErrorCode.PROTOCOL_ERROR, goAway.getInt(4));
+    assertEquals(ConnectionControl.CLOSE_CONNECTION_AFTER_FLUSH, stage.write());
+    assertEquals(0, unprocessed.size());
+  }
+
+  @Test
+  public void firstFrameMustBeSettings() throws Exception {
+    start();
+    receive();
+    send(frame(FrameType.PING, 0, 0, new byte[8]));
+    Frame goAway = framesOfType(receive(), FrameType.GOAWAY).get(0);
+    assertEquals(ErrorCode.PROTOCOL_ERROR, goAway.getInt(4));
+  }
+
+  @Test
+  public void dataOnIdleStreamIsConnectionError() throws Exception {
+    startAndSendSettings();
+    send(data(1, true, bytes("x")));
+    Frame goAway = framesOfType(receive(), FrameType.GOAWAY).get(0);
+    assertEquals(ErrorCode.PROTOCOL_ERROR, goAway.getInt(4));
+  }
+
+  @Test
+  public void transferEncodingIsRejected() throws Exception {
+    startAndSendSettings();
+    Result result = submit(new SimpleHttpRequest.Builder()
+        .setVersion(HttpVersion.HTTP_1_1)
+        .setMethod("POST")
+        .setUri("/foo")
+        .addHeader("Host", "localhost")
+        .addHeader("Transfer-Encoding", "chunked")
+        .setBody(new HttpRequest.InMemoryBody(bytes("0\r\n\r\n")))
+        .build());
+    assertNotNull(result.exception);
+    assertTrue(framesOfType(receive(), FrameType.HEADERS).isEmpty());
+  }
+
+  @Test
+  public void closeFailsOpenStreamsAndReturnsQueuedRequests() throws Exception {
+    startAndSendSettings(Setting.SETTINGS_MAX_CONCURRENT_STREAMS.getId(), 1);
+    Result first = submit(get("/1"));
+    Result second = submit(get("/2"));
+    receive();
+    stage.close();
+    assertNotNull(first.exception);
+    assertNull(second.exception);
+    assertEquals(1, unprocessed.size());
+    assertEquals("/2", unprocessed.get(0).request.getUri());
+  }
+
+  @Test
+  public void closeBeforeSettingsFailsRequests() throws Exception {
+    start();
+    Result result = submit(get("/1"));
+    stage.close();
+    assertNotNull(result.exception);
+    assertEquals(0, unprocessed.size());
+  }
+
+  @Test
+  public void inputClosedClosesConnection() throws Exception {
+    startAndSendSettings();
+    Result result = submit(get("/1"));
+    receive();
+    stage.inputClosed();
+    assertNotNull(result.exception);
+    assertTrue(pipeline.closed);
+  }
+}
@@ -0,0 +1,193 @@
+package de.ofahrt.catfish.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.ofahrt.catfish.client.HttpRequestGenerator.ContinuationToken;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpMethodName;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
+
+public class HttpRequestGeneratorStreamedTest {
+
+  private Path file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = Files.createTempFile("catfish-test-", ".txt");
+    Files.write(file, "0123456789".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.delete(file);
+  }
+
+  private static HttpRequest post(HttpRequest.Body body, long length) throws Exception {
+    SimpleHttpRequest.Builder builder = new SimpleHttpRequest.Builder()
+        .setVersion(HttpVersion.HTTP_1_1)
+        .setMethod(HttpMethodName.POST)
+        .setUri("/upload")
+        .addHeader(HttpHeaderName.HOST, "localhost")
+        .setBody(body);
+    if (length >= 0) {
+      builder.addHeader(HttpHeaderName.CONTENT_LENGTH, Long.toString(length));
+    } else {
+      builder.addHeader(HttpHeaderName.TRANSFER_ENCODING, "chunked");
+    }
+    return builder.build();
+  }
+
+  private static HttpRequest postWithContentLength(String contentLength) throws Exception {
+    return new SimpleHttpRequest.Builder()
+        .setVersion(HttpVersion.HTTP_1_1)
+        .setMethod(HttpMethodName.POST)
+        .setUri("/upload")
+        .addHeader(HttpHeaderName.HOST, "localhost")
+        .addHeader(HttpHeaderName.CONTENT_LENGTH, contentLength)
+        .setBody(streamBody("0123456789", -1))
+        .build();
+  }
+
+  private static HttpRequest.StreamBody streamBody(String data, long length) {
+    return new HttpRequest.StreamBody(
+        new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)), length);
+  }
+
+  private static String readFully(HttpRequestGenerator generator) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    ContinuationToken token;
+    do {
+      buffer.clear();
+      token = generator.generate(buffer);
+      if (token == ContinuationToken.PAUSE) {
+        throw new IllegalStateException();
+      }
+      buffer.flip();
+      out.write(buffer.array(), buffer.position(), buffer.remaining());
+    } while (token != ContinuationToken.STOP);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static String bodyOf(String request) {
+    assertTrue(request.startsWith("POST /upload HTTP/1.1\r\n"));
+    return request.substring(request.indexOf("\r\n\r\n") + 4);
+  }
+
+  @Test
+  public void knownLength() throws Exception {
+    HttpRequestGenerator generator =
+        HttpRequestGeneratorStreamed.create(post(streamBody("0123456789", 10), 10), false);
+    assertEquals("0123456789", bodyOf(readFully(generator)));
+  }
+
+  @Test
+  public void unknownLengthIsChunked() throws Exception {
+    HttpRequestGenerator generator =
+        HttpRequestGeneratorStreamed.create(post(streamBody("0123456789", -1), -1), false);
+    assertEquals("0000000a\r\n0123456789\r\n0\r\n\r\n", bodyOf(readFully(generator)));
+  }
+
+  @Test
+  public void largeBodyIsSplitIntoChunks() throws Exception {
+    StringBuilder data = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      data.append((char) ('a' + (i % 26)));
+    }
+    String body = bodyOf(readFully(
+        HttpRequestGeneratorStreamed.create(post(streamBody(data.toString(), -1), -1), false)));
+    IncrementalHttpResponseParser parser = new IncrementalHttpResponseParser();
+    byte[] response = ("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" + body)
+        .getBytes(StandardCharsets.UTF_8);
+    assertEquals(response.length, parser.parse(response));
+    assertTrue(parser.isDone());
+    assertEquals(data.toString(), new String(parser.getResponse().getBody(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void shortBodyFails() throws Exception {
+    HttpRequestGenerator generator =
+        HttpRequestGeneratorStreamed.create(post(streamBody("01234", 10), 10), false);
+    try {
+      readFully(generator);
+      fail();
+    } catch (UncheckedIOException expected) {
+    }
+  }
+
+  @Test
+  public void malformedContentLengthIsRejected() throws Exception {
+    try {
+      HttpRequestGeneratorStreamed.create(postWithContentLength("ten"), false);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertEquals("Illegal content length value: ten", expected.getMessage());
+    }
+  }
+
+  @Test
+  public void negativeContentLengthIsRejected() throws Exception {
+    try {
+      HttpRequestGeneratorStreamed.create(postWithContentLength("-1"), false);
+      fail();
+    } catch (IllegalArgumentException expected) {
+      assertEquals("Content length must not be negative, but is -1", expected.getMessage());
+    }
+  }
+
+  @Test
+  public void closesStreamBodyWhenDone() throws Exception {
+    ReadableByteChannel channel =
+        Channels.newChannel(new ByteArrayInputStream("0123456789".getBytes(StandardCharsets.UTF_8)));
+    readFully(HttpRequestGeneratorStreamed.create(
+        post(new HttpRequest.StreamBody(channel, 10), 10), false));
+    assertFalse(channel.isOpen());
+  }
+
+  @Test
+  public void fileBody() throws Exception {
+    HttpRequestGenerator generator =
+        HttpRequestGeneratorStreamed.create(post(new HttpRequest.FileBody(file, 10), 10), false);
+    assertEquals("0123456789", bodyOf(readFully(generator)));
+    // The file belongs to the caller.
+    assertTrue(Files.exists(file));
+  }
+
+  @Test
+  public void fileBodyZeroCopy() throws Exception {
+    HttpRequestGenerator generator =
+        HttpRequestGeneratorStreamed.create(post(new HttpRequest.FileBody(file, 10), 10), true);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    WritableByteChannel target = Channels.newChannel(out);
+    ByteBuffer buffer = ByteBuffer.allocate(100);
+    assertEquals(-1, generator.transferTo(target));
+    assertEquals(ContinuationToken.CONTINUE, generator.generate(buffer));
+    assertEquals(ContinuationToken.CONTINUE, generator.generate(buffer));
+    // The body is not copied into the output buffer.
+    assertTrue(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).endsWith("\r\n\r\n"));
+    assertEquals(10, generator.transferTo(target));
+    assertEquals(-1, generator.transferTo(target));
+    assertEquals(ContinuationToken.STOP, generator.generate(buffer));
+    assertEquals("0123456789", new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+}
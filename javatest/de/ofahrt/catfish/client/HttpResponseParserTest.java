@@ -38,6 +38,12 @@ public abstract class HttpResponseParserTest {
     assertEquals("close", response.getHeaders().get("Connection"));
   }
 
+  @Test
+  public void bodyDelimitedByClose() throws Exception {
+    HttpResponse response = parse("HTTP/1.1 200 OK\nConnection: close\n\n0123");
+    assertEquals("0123", bodyAsString(response));
+  }
+
   @Test
   public void simpleWithBody() throws Exception {
     HttpResponse response = parse("HTTP/1.1 200 OK\nContent-Length: 4\n\n0123");
@@ -64,4 +70,31 @@ public abstract class HttpResponseParserTest {
         + "0\n\n");
     assertEquals("123456789a", bodyAsString(response));
   }
+
+  @Test
+  public void chunkExtensionsAreIgnored() throws Exception {
+    HttpResponse response = parse(
+        "HTTP/1.1 200 OK\nTransfer-Encoding: chunked\n\n"
+        + "5;name=value\nhello\n"
+        + "0;last\n\n");
+    assertEquals("hello", bodyAsString(response));
+  }
+
+  @Test
+  public void chunkedTrailersAreSkipped() throws Exception {
+    HttpResponse response = parse(
+        "HTTP/1.1 200 OK\nTransfer-Encoding: chunked\n\n"
+        + "5\nhello\n"
+        + "0\nExpires: never\nX-Checksum: 1234\n\n");
+    assertEquals("hello", bodyAsString(response));
+  }
+
+  @Test
+  public void transferEncodingOverridesContentLength() throws Exception {
+    HttpResponse response = parse(
+        "HTTP/1.1 200 OK\nContent-Length: 3\nTransfer-Encoding: chunked\n\n"
+        + "5\nhello\n"
+        + "0\n\n");
+    assertEquals("hello", bodyAsString(response));
+  }
 }
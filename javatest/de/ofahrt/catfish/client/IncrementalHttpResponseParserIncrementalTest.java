@@ -66,6 +66,8 @@ public class IncrementalHttpResponseParserIncrementalTest extends HttpResponsePa
       }
       assertFalse(parser.isDone());
     }
+    // The input ends here, which completes bodies that are delimited by closing the connection.
+    parser.endOfInput();
     assertTrue(parser.isDone());
     return parser.getResponse();
   }
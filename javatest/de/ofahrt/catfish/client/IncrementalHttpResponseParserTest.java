@@ -1,11 +1,18 @@
 package de.ofahrt.catfish.client;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 import org.junit.Test;
 
+import de.ofahrt.catfish.model.MalformedResponseException;
+
 public class IncrementalHttpResponseParserTest {
 
   private byte[] toBytes(String data) {
@@ -25,4 +32,63 @@ public class IncrementalHttpResponseParserTest {
     byte[] data = toBytes("HTTP/1.1 200 OK\nContent-Length: 4\n\n0123TRAILING_DATA");
     assertEquals(data.length - 13, parser.parse(data));
   }
+
+  @Test
+  public void bodyConsumerReceivesBodyAfterHeaders() throws Exception {
+    IncrementalHttpResponseParser parser = new IncrementalHttpResponseParser();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    parser.setBodyConsumer(body::write);
+    byte[] headers = toBytes("HTTP/1.1 200 OK\nTransfer-Encoding: chunked\n\n");
+    byte[] data = toBytes("HTTP/1.1 200 OK\nTransfer-Encoding: chunked\n\n3\nabc\n2\nde\n0\n\n");
+    int pos = parser.parse(data);
+    assertEquals(headers.length, pos);
+    assertTrue(parser.isHeadersComplete());
+    assertEquals(200, parser.getResponseHeaders().getStatusCode());
+    assertEquals(0, body.size());
+    while (!parser.isDone()) {
+      pos += parser.parse(data, pos, data.length - pos);
+    }
+    assertEquals(data.length, pos);
+    assertEquals("abcde", new String(body.toByteArray(), StandardCharsets.ISO_8859_1));
+    assertEquals(0, parser.getResponse().getBody().length);
+  }
+
+  @Test
+  public void bodyConsumerAllowsLargeContentLength() throws Exception {
+    IncrementalHttpResponseParser parser = new IncrementalHttpResponseParser();
+    long[] received = new long[1];
+    parser.setBodyConsumer((data, offset, length) -> received[0] += length);
+    parser.parse(toBytes("HTTP/1.1 200 OK\nContent-Length: 10000000000\n\n"));
+    assertTrue(parser.isHeadersComplete());
+    byte[] data = new byte[65536];
+    for (int i = 0; i < 100; i++) {
+      assertEquals(data.length, parser.parse(data));
+    }
+    assertFalse(parser.isDone());
+    assertEquals(100L * data.length, received[0]);
+  }
+
+  @Test
+  public void tooLargeContentLengthWithoutBodyConsumer() throws Exception {
+    IncrementalHttpResponseParser parser = new IncrementalHttpResponseParser();
+    parser.parse(toBytes("HTTP/1.1 200 OK\nContent-Length: 10000000000\n\n"));
+    assertTrue(parser.isDone());
+    try {
+      parser.getResponse();
+      fail();
+    } catch (MalformedResponseException expected) {
+    }
+  }
+
+  @Test
+  public void badChunkLengthEndsParsing() throws Exception {
+    IncrementalHttpResponseParser parser = new IncrementalHttpResponseParser();
+    parser.parse(toBytes("HTTP/1.1 200 OK\nTransfer-Encoding: chunked\n\n1234567890abcdef0\n"));
+    assertTrue(parser.isDone());
+    try {
+      parser.getResponse();
+      fail();
+    } catch (MalformedResponseException expected) {
+    }
+  }
 }
@@ -0,0 +1,123 @@
+package de.ofahrt.catfish.client;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import org.junit.Test;
+import de.ofahrt.catfish.internal.network.NetworkEngine.Pipeline;
+import de.ofahrt.catfish.internal.network.Stage;
+import de.ofahrt.catfish.model.network.Connection;
+
+public class SslClientStageTest {
+  private static final class FakePipeline implements Pipeline {
+    private Stage stage;
+    private boolean closed;
+
+    @Override
+    public void encourageWrites() {
+    }
+
+    @Override
+    public void encourageReads() {
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        stage.close();
+      }
+    }
+
+    @Override
+    public void queue(Runnable runnable) {
+      runnable.run();
+    }
+
+    @Override
+    public void log(String text, Object... params) {
+    }
+  }
+
+  private static final class Factory implements SslClientStage.NextStageFactory {
+    private boolean closedDuringHandshake;
+    private IOException cause;
+
+    @Override
+    public Stage create(String applicationProtocol) {
+      throw new AssertionError();
+    }
+
+    @Override
+    public void closedDuringHandshake(@SuppressWarnings("hiding") IOException cause) {
+      this.closedDuringHandshake = true;
+      this.cause = cause;
+    }
+  }
+
+  private final FakePipeline pipeline = new FakePipeline();
+  private final Factory factory = new Factory();
+  private ByteBuffer netInputBuffer;
+
+  private SslClientStage startHandshake() throws Exception {
+    SSLEngine sslEngine = SSLContext.getDefault().createSSLEngine("localhost", 443);
+    int packetSize = sslEngine.getSession().getPacketBufferSize();
+    int applicationSize = sslEngine.getSession().getApplicationBufferSize();
+    netInputBuffer = ByteBuffer.allocate(packetSize);
+    ByteBuffer netOutputBuffer = ByteBuffer.allocate(packetSize);
+    ByteBuffer inputBuffer = ByteBuffer.allocate(applicationSize);
+    ByteBuffer outputBuffer = ByteBuffer.allocate(applicationSize);
+    netInputBuffer.flip();
+    netOutputBuffer.flip();
+    inputBuffer.flip();
+    outputBuffer.flip();
+    SslClientStage stage = new SslClientStage(
+        pipeline, factory, sslEngine, netInputBuffer, netOutputBuffer, inputBuffer, outputBuffer);
+    pipeline.stage = stage;
+    stage.connect(new Connection(
+        new InetSocketAddress("127.0.0.1", 1234), new InetSocketAddress("127.0.0.1", 443), true));
+    // Sends the ClientHello.
+    stage.write();
+    assertTrue(netOutputBuffer.hasRemaining());
+    return stage;
+  }
+
+  @Test
+  public void rejectedHandshakeReportsCause() throws Exception {
+    SslClientStage stage = startHandshake();
+    netInputBuffer.compact();
+    netInputBuffer.put(
+        "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+    netInputBuffer.flip();
+    SSLException thrown = null;
+    try {
+      stage.read();
+      fail();
+    } catch (SSLException expected) {
+      thrown = expected;
+    }
+    assertFalse(factory.closedDuringHandshake);
+    stage.close();
+    assertTrue(factory.closedDuringHandshake);
+    assertSame(thrown, factory.cause);
+  }
+
+  @Test
+  public void serverClosingDuringHandshakeHasNoCause() throws Exception {
+    SslClientStage stage = startHandshake();
+    stage.inputClosed();
+    assertTrue(pipeline.closed);
+    assertTrue(factory.closedDuringHandshake);
+    assertNull(factory.cause);
+  }
+}
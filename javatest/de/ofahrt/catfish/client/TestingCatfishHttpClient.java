@@ -68,6 +68,11 @@ public abstract class TestingCatfishHttpClient {
         return buffer != null ? response.withBody(buffer.toByteArray()) : response;
       }
 
+      @Override
+      public boolean isCommitted() {
+        return response != null;
+      }
+
       @Override
       public void commitBuffered(@SuppressWarnings("hiding") HttpResponse response) {
         if (this.response != null) {
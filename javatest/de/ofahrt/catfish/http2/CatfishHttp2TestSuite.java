@@ -0,0 +1,12 @@
+package de.ofahrt.catfish.http2;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+import org.junit.runners.Suite.SuiteClasses;
+
+@RunWith(Suite.class)
+@SuiteClasses({
+  HpackTest.class,
+})
+public class CatfishHttp2TestSuite {
+}
@@ -0,0 +1,299 @@
+package de.ofahrt.catfish.http2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/** Tests the HPACK codec against the examples from RFC 7541 appendix C. */
+public class HpackTest {
+  private static byte[] hex(String s) {
+    s = s.replace(" ", "");
+    byte[] result = new byte[s.length() / 2];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+    }
+    return result;
+  }
+
+  private static Map.Entry<String, String> field(String name, String value) {
+    return new AbstractMap.SimpleImmutableEntry<>(name, value);
+  }
+
+  private static List<Map.Entry<String, String>> decode(HpackDecoder decoder, byte[] block)
+      throws Http2Exception {
+    List<Map.Entry<String, String>> result = new ArrayList<>();
+    decoder.decode(block, 0, block.length, (name, value) -> result.add(field(name, value)));
+    return result;
+  }
+
+  private static void assertDecodes(
+      HpackDecoder decoder, String block, int expectedTableSize, List<Map.Entry<String, String>> expected)
+      throws Http2Exception {
+    assertEquals(expected, decode(decoder, hex(block)));
+    assertEquals(expectedTableSize, decoder.getTableSize());
+  }
+
+  private static void assertDecodeFails(String block) {
+    byte[] data = hex(block);
+    try {
+      new HpackDecoder().decode(data, 0, data.length, (name, value) -> {});
+      fail();
+    } catch (Http2Exception e) {
+      assertEquals(ErrorCode.COMPRESSION_ERROR, e.getErrorCode());
+      assertEquals(true, e.isConnectionError());
+    }
+  }
+
+  private static final List<Map.Entry<String, String>> REQUEST1 = Arrays.asList(
+      field(":method", "GET"),
+      field(":scheme", "http"),
+      field(":path", "/"),
+      field(":authority", "www.example.com"));
+
+  private static final List<Map.Entry<String, String>> REQUEST2 = Arrays.asList(
+      field(":method", "GET"),
+      field(":scheme", "http"),
+      field(":path", "/"),
+      field(":authority", "www.example.com"),
+      field("cache-control", "no-cache"));
+
+  private static final List<Map.Entry<String, String>> REQUEST3 = Arrays.asList(
+      field(":method", "GET"),
+      field(":scheme", "https"),
+      field(":path", "/index.html"),
+      field(":authority", "www.example.com"),
+      field("custom-key", "custom-value"));
+
+  private static final List<Map.Entry<String, String>> RESPONSE1 = Arrays.asList(
+      field(":status", "302"),
+      field("cache-control", "private"),
+      field("date", "Mon, 21 Oct 2013 20:13:21 GMT"),
+      field("location", "https://www.example.com"));
+
+  private static final List<Map.Entry<String, String>> RESPONSE2 = Arrays.asList(
+      field(":status", "307"),
+      field("cache-control", "private"),
+      field("date", "Mon, 21 Oct 2013 20:13:21 GMT"),
+      field("location", "https://www.example.com"));
+
+  private static final List<Map.Entry<String, String>> RESPONSE3 = Arrays.asList(
+      field(":status", "200"),
+      field("cache-control", "private"),
+      field("date", "Mon, 21 Oct 2013 20:13:22 GMT"),
+      field("location", "https://www.example.com"),
+      field("content-encoding", "gzip"),
+      field("set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"));
+
+  @Test
+  public void literalWithIndexing() throws Exception {
+    // C.2.1
+    HpackDecoder decoder = new HpackDecoder();
+    assertDecodes(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572", 55,
+        Arrays.asList(field("custom-key", "custom-header")));
+  }
+
+  @Test
+  public void literalWithoutIndexing() throws Exception {
+    // C.2.2
+    HpackDecoder decoder = new HpackDecoder();
+    assertDecodes(decoder, "040c 2f73 616d 706c 652f 7061 7468", 0,
+        Arrays.asList(field(":path", "/sample/path")));
+  }
+
+  @Test
+  public void literalNeverIndexed() throws Exception {
+    // C.2.3
+    HpackDecoder decoder = new HpackDecoder();
+    assertDecodes(decoder, "1008 7061 7373 776f 7264 0673 6563 7265 74", 0,
+        Arrays.asList(field("password", "secret")));
+  }
+
+  @Test
+  public void indexed() throws Exception {
+    // C.2.4
+    HpackDecoder decoder = new HpackDecoder();
+    assertDecodes(decoder, "82", 0, Arrays.asList(field(":method", "GET")));
+  }
+
+  @Test
+  public void requestsWithoutHuffman() throws Exception {
+    // C.3
+    HpackDecoder decoder = new HpackDecoder();
+    assertDecodes(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d", 57, REQUEST1);
+    assertDecodes(decoder, "8286 84be 5808 6e6f 2d63 6163 6865", 110, REQUEST2);
+    assertDecodes(decoder,
+        "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65", 164, REQUEST3);
+  }
+
+  @Test
+  public void requestsWithHuffman() throws Exception {
+    // C.4
+    HpackDecoder decoder = new HpackDecoder();
+    assertDecodes(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff", 57, REQUEST1);
+    assertDecodes(decoder, "8286 84be 5886 a8eb 1064 9cbf", 110, REQUEST2);
+    assertDecodes(decoder,
+        "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf", 164, REQUEST3);
+  }
+
+  @Test
+  public void responsesWithoutHuffman() throws Exception {
+    // C.5; the dynamic table is limited to 256 bytes, so entries get evicted.
+    HpackDecoder decoder = new HpackDecoder(256);
+    assertDecodes(decoder,
+        "4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a"
+        + "3133 3a32 3120 474d 546e 1768 7474 7073 3a2f 2f77 7777 2e65 7861 6d70 6c65 2e63 6f6d",
+        222, RESPONSE1);
+    assertDecodes(decoder, "4803 3330 37c1 c0bf", 222, RESPONSE2);
+    assertDecodes(decoder,
+        "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 3220 474d 54c0 5a04"
+        + "677a 6970 7738 666f 6f3d 4153 444a 4b48 514b 425a 584f 5157 454f 5049 5541 5851 5745 4f49"
+        + "553b 206d 6178 2d61 6765 3d33 3630 303b 2076 6572 7369 6f6e 3d31",
+        215, RESPONSE3);
+  }
+
+  @Test
+  public void responsesWithHuffman() throws Exception {
+    // C.6
+    HpackDecoder decoder = new HpackDecoder(256);
+    assertDecodes(decoder,
+        "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6 2d1b ff6e"
+        + "919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3",
+        222, RESPONSE1);
+    assertDecodes(decoder, "4883 640e ffc1 c0bf", 222, RESPONSE2);
+    assertDecodes(decoder,
+        "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a 839b d9ab 77ad 94e7"
+        + "821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5 291f 9587 3160 65c0 03ed"
+        + "4ee5 b106 3d50 07",
+        215, RESPONSE3);
+  }
+
+  @Test
+  public void huffmanEncode() {
+    byte[] data = "www.example.com".getBytes(StandardCharsets.ISO_8859_1);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HpackHuffman.encode(data, out);
+    assertArrayEquals(hex("f1e3 c2e5 f23a 6ba0 ab90 f4ff"), out.toByteArray());
+    assertEquals(12, HpackHuffman.encodedLength(data));
+  }
+
+  @Test
+  public void huffmanRoundTripAllBytes() throws Exception {
+    byte[] data = new byte[256];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HpackHuffman.encode(data, out);
+    byte[] encoded = out.toByteArray();
+    assertEquals(HpackHuffman.encodedLength(data), encoded.length);
+    assertArrayEquals(data, HpackHuffman.decode(encoded, 0, encoded.length));
+  }
+
+  @Test
+  public void huffmanPaddingMustBeOnes() {
+    // "0" is 00000 in five bits; the padding must be the most significant bits of EOS.
+    try {
+      HpackHuffman.decode(new byte[] { 0x00 }, 0, 1);
+      fail();
+    } catch (Http2Exception e) {
+      assertEquals(ErrorCode.COMPRESSION_ERROR, e.getErrorCode());
+    }
+  }
+
+  @Test
+  public void huffmanPaddingLongerThanSevenBits() {
+    try {
+      HpackHuffman.decode(new byte[] { 0x07, (byte) 0xff }, 0, 2);
+      fail();
+    } catch (Http2Exception e) {
+      assertEquals(ErrorCode.COMPRESSION_ERROR, e.getErrorCode());
+    }
+  }
+
+  @Test
+  public void indexOutOfRange() {
+    assertDecodeFails("80");
+    assertDecodeFails("be");
+  }
+
+  @Test
+  public void truncatedString() {
+    assertDecodeFails("400a 6375 7374");
+  }
+
+  @Test
+  public void integerOverflow() {
+    assertDecodeFails("ff ff ff ff ff ff 0f");
+  }
+
+  @Test
+  public void sizeUpdateAboveLimit() {
+    // 4097 > 4096
+    assertDecodeFails("3fe2 1f");
+  }
+
+  @Test
+  public void sizeUpdateAfterField() {
+    assertDecodeFails("82 20");
+  }
+
+  @Test
+  public void sizeUpdateEvicts() throws Exception {
+    HpackDecoder decoder = new HpackDecoder();
+    assertDecodes(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d", 57, REQUEST1);
+    assertDecodes(decoder, "20", 0, Arrays.asList());
+  }
+
+  @Test
+  public void encoderRoundTrip() throws Exception {
+    HpackEncoder encoder = new HpackEncoder();
+    HpackDecoder decoder = new HpackDecoder();
+    for (List<Map.Entry<String, String>> fields : Arrays.asList(REQUEST1, REQUEST2, REQUEST3, RESPONSE3)) {
+      assertEquals(fields, decode(decoder, encoder.encode(fields)));
+    }
+  }
+
+  @Test
+  public void encoderUsesDynamicTable() {
+    HpackEncoder encoder = new HpackEncoder();
+    List<Map.Entry<String, String>> fields = Arrays.asList(field("custom-key", "custom-value"));
+    assertArrayEquals(hex("4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"), encoder.encode(fields));
+    assertArrayEquals(hex("be"), encoder.encode(fields));
+  }
+
+  @Test
+  public void encoderDoesNotIndexSensitiveHeaders() throws Exception {
+    HpackEncoder encoder = new HpackEncoder();
+    HpackDecoder decoder = new HpackDecoder();
+    List<Map.Entry<String, String>> fields = Arrays.asList(field("cookie", "a=b"));
+    byte[] block = encoder.encode(fields);
+    // Never indexed, with the name from static table entry 32.
+    assertEquals(0x1f, block[0] & 0xff);
+    assertEquals(fields, decode(decoder, block));
+    assertEquals(0, decoder.getTableSize());
+  }
+
+  @Test
+  public void encoderEmitsTableSizeUpdate() throws Exception {
+    HpackEncoder encoder = new HpackEncoder();
+    HpackDecoder decoder = new HpackDecoder();
+    assertEquals(REQUEST3, decode(decoder, encoder.encode(REQUEST3)));
+    encoder.setMaxHeaderTableSize(0);
+    encoder.setMaxHeaderTableSize(100);
+    byte[] block = encoder.encode(REQUEST2);
+    // First the smallest size, then the final size.
+    assertEquals(0x20, block[0] & 0xff);
+    assertEquals(0x3f, block[1] & 0xff);
+    assertEquals(REQUEST2, decode(decoder, block));
+    assertEquals(REQUEST3, decode(decoder, encoder.encode(REQUEST3)));
+  }
+}
@@ -95,7 +95,8 @@ public class ConnectionHandlingTest {
       }
       responseWriter.commitBuffered(StandardResponses.OK);
     });
-    CatfishHttpClient client = new CatfishHttpClient(new NetworkEventListener() {
+    // Every request needs its own connection to overload the server.
+    CatfishHttpClient client = new CatfishHttpClient.Builder(new NetworkEventListener() {
       @Override
       public void portOpened(int port, boolean ssl) {
       }
@@ -108,7 +109,7 @@ public class ConnectionHandlingTest {
       public void notifyInternalError(Connection id, Throwable throwable) {
         throwable.printStackTrace();
       }
-    });
+    }).setKeepAlive(false).build();
     HttpRequest request = new SimpleHttpRequest.Builder()
         .setVersion(HttpVersion.HTTP_1_1)
         .setMethod("GET")
@@ -121,6 +122,11 @@ public class ConnectionHandlingTest {
       Future<HttpResponse> future = client.send(HTTP_SERVER_NAME, HTTP_PORT, null, null, request);
       futures.add(future);
     }
+    // Sending doesn't block, so wait until the server accepted all connections; the rejected ones
+    // are already closed.
+    while (server.getOpenConnections() + countDone(futures) < futures.size()) {
+      Thread.sleep(10);
+    }
     // Tricky: we don't know when the last request arrives at the server, so we can't reliably
     // unblock the server threads. :-/
     Thread.sleep(100);
@@ -135,6 +141,16 @@ public class ConnectionHandlingTest {
     assertEquals(64, statusCounts[5]);  // 64 Internal Server Error
   }
 
+  private static int countDone(List<Future<HttpResponse>> futures) {
+    int result = 0;
+    for (Future<HttpResponse> future : futures) {
+      if (future.isDone()) {
+        result++;
+      }
+    }
+    return result;
+  }
+
   public static int getStatusGroup(int code) {
     if ((code < 100) || (code >= 600)) {
       return -1;
@@ -0,0 +1,100 @@
+package de.ofahrt.catfish.servlets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import de.ofahrt.catfish.client.TestingCatfishHttpClient;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpMethodName;
+import de.ofahrt.catfish.model.HttpResponse;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
+import de.ofahrt.catfish.utils.HttpDate;
+import de.ofahrt.catfish.utils.StaticFileCache;
+
+public class DirectoryServletTest {
+  private static final byte[] CONTENT = "hello".getBytes(StandardCharsets.UTF_8);
+
+  private Path directory;
+  private Path file;
+  private TestingCatfishHttpClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("catfish-test-");
+    file = Files.write(directory.resolve("test.bin"), CONTENT);
+    client = TestingCatfishHttpClient.createClientForServlet(
+        new DirectoryServlet(directory + "/", new StaticFileCache.Builder().build()));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.delete(file);
+    Files.delete(directory);
+  }
+
+  private HttpResponse get(String headerName, String headerValue) throws Exception {
+    SimpleHttpRequest.Builder request = new SimpleHttpRequest.Builder()
+        .setVersion(HttpVersion.HTTP_1_1)
+        .setMethod(HttpMethodName.GET)
+        .setUri("/test.bin")
+        .addHeader(HttpHeaderName.HOST, "localhost");
+    if (headerName != null) {
+      request.addHeader(headerName, headerValue);
+    }
+    return client.send("http://localhost:80", request.build());
+  }
+
+  private HttpResponse getConditional(String ifNoneMatch, long ifModifiedSince) throws Exception {
+    return client.send("http://localhost:80", new SimpleHttpRequest.Builder()
+        .setVersion(HttpVersion.HTTP_1_1)
+        .setMethod(HttpMethodName.GET)
+        .setUri("/test.bin")
+        .addHeader(HttpHeaderName.HOST, "localhost")
+        .addHeader(HttpHeaderName.IF_NONE_MATCH, ifNoneMatch)
+        .addHeader(HttpHeaderName.IF_MODIFIED_SINCE, HttpDate.formatDate(ifModifiedSince))
+        .build());
+  }
+
+  @Test
+  public void responseHasValidators() throws Exception {
+    HttpResponse response = get(null, null);
+    assertEquals(200, response.getStatusCode());
+    assertArrayEquals(CONTENT, response.getBody());
+    assertNotNull(response.getHeaders().get(HttpHeaderName.ETAG));
+    assertEquals(
+        HttpDate.formatDate(Files.getLastModifiedTime(file).toMillis()),
+        response.getHeaders().get(HttpHeaderName.LAST_MODIFIED));
+  }
+
+  @Test
+  public void matchingIfModifiedSinceIsIgnoredIfIfNoneMatchDoesNotMatch() throws Exception {
+    HttpResponse response =
+        getConditional("\"does-not-match\"", Files.getLastModifiedTime(file).toMillis() + 1000);
+    assertEquals(200, response.getStatusCode());
+    assertArrayEquals(CONTENT, response.getBody());
+  }
+
+  @Test
+  public void matchingIfNoneMatchIsNotModified() throws Exception {
+    String etag = get(null, null).getHeaders().get(HttpHeaderName.ETAG);
+    HttpResponse response = get(HttpHeaderName.IF_NONE_MATCH, etag);
+    assertEquals(304, response.getStatusCode());
+    assertEquals(etag, response.getHeaders().get(HttpHeaderName.ETAG));
+  }
+
+  @Test
+  public void matchingIfModifiedSinceIsNotModified() throws Exception {
+    HttpResponse response = get(
+        HttpHeaderName.IF_MODIFIED_SINCE,
+        HttpDate.formatDate(Files.getLastModifiedTime(file).toMillis() + 1000));
+    assertEquals(304, response.getStatusCode());
+    assertNotNull(response.getHeaders().get(HttpHeaderName.ETAG));
+  }
+}
@@ -9,6 +9,7 @@ import de.ofahrt.catfish.servlets.CheckCompressionTest;
 @RunWith(Suite.class)
 @SuiteClasses({
   CheckCompressionTest.class,
+  DirectoryServletTest.class,
 })
 public class ServletsTestSuite {
 // Ok
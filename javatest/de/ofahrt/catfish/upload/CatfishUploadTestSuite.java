@@ -6,7 +6,11 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({
+  DecompressingUploadPolicyTest.class,
+  GrowingEntityParserTest.class,
   IncrementalMultipartParserTest.class,
+  SpoolingUploadPolicyTest.class,
+  UploadMemoryBudgetTest.class,
 })
 public class CatfishUploadTestSuite {
 }
@@ -0,0 +1,195 @@
+package de.ofahrt.catfish.upload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpMethodName;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpStatusCode;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.MalformedRequestException;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
+import de.ofahrt.catfish.model.server.PayloadParser;
+
+public class DecompressingUploadPolicyTest {
+  private static SimpleHttpRequest.Builder post(int contentLength, String contentEncoding) {
+    SimpleHttpRequest.Builder result = new SimpleHttpRequest.Builder()
+        .setMethod(HttpMethodName.POST)
+        .setUri("/")
+        .setVersion(HttpVersion.HTTP_1_1)
+        .addHeader(HttpHeaderName.HOST, "localhost")
+        .addHeader(HttpHeaderName.CONTENT_LENGTH, Integer.toString(contentLength));
+    if (contentEncoding != null) {
+      result.addHeader(HttpHeaderName.CONTENT_ENCODING, contentEncoding);
+    }
+    return result;
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  private static HttpRequest.Body parse(PayloadParser parser, byte[] data) throws Exception {
+    int consumed = 0;
+    while (!parser.isDone()) {
+      consumed += parser.parse(data, consumed, Math.min(5, data.length - consumed));
+    }
+    assertEquals(data.length, consumed);
+    return parser.getParsedBody();
+  }
+
+  @Test
+  public void decodesGzipBody() throws Exception {
+    DecompressingUploadPolicy policy =
+        new DecompressingUploadPolicy(new SimpleUploadPolicy(100), 100, 100);
+    byte[] content = "hello, hello, hello, hello".getBytes(StandardCharsets.UTF_8);
+    byte[] data = gzip(content);
+    SimpleHttpRequest.Builder request = post(data.length, "gzip");
+    PayloadParser parser = policy.accept(request);
+    assertNull(request.getHeader(HttpHeaderName.CONTENT_ENCODING));
+    HttpRequest.Body body = parse(parser, data);
+    assertArrayEquals(content, ((HttpRequest.InMemoryBody) body).toByteArray());
+  }
+
+  @Test
+  public void uncompressedBodyGoesToDelegate() throws Exception {
+    DecompressingUploadPolicy policy =
+        new DecompressingUploadPolicy(new SimpleUploadPolicy(100), 100, 100);
+    byte[] data = "hello".getBytes(StandardCharsets.UTF_8);
+    PayloadParser parser = policy.accept(post(data.length, null));
+    assertTrue(parser instanceof InMemoryEntityParser);
+  }
+
+  @Test
+  public void unknownEncodingIsRejected() {
+    DecompressingUploadPolicy policy =
+        new DecompressingUploadPolicy(new SimpleUploadPolicy(100), 100, 100);
+    SimpleHttpRequest.Builder request = post(10, "br");
+    assertNull(policy.accept(request));
+    assertEquals(
+        HttpStatusCode.UNSUPPORTED_MEDIA_TYPE.getStatusCode(),
+        request.getErrorResponse().getStatusCode());
+  }
+
+  @Test
+  public void decodedSizeIsLimited() throws Exception {
+    DecompressingUploadPolicy policy =
+        new DecompressingUploadPolicy(new SimpleUploadPolicy(1000), 1000, 1000);
+    byte[] data = gzip(new byte[100000]);
+    assertTrue(data.length < 1000);
+    PayloadParser parser = policy.accept(post(data.length, "gzip"));
+    try {
+      parse(parser, data);
+      fail();
+    } catch (MalformedRequestException e) {
+      assertEquals(
+          HttpStatusCode.PAYLOAD_TOO_LARGE.getStatusCode(), e.getErrorResponse().getStatusCode());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void truncatedBodyIsRejected() throws Exception {
+    DecompressingUploadPolicy policy =
+        new DecompressingUploadPolicy(new SimpleUploadPolicy(100), 100, 100);
+    byte[] data = gzip("hello".getBytes(StandardCharsets.UTF_8));
+    PayloadParser parser = policy.accept(post(data.length - 1, "gzip"));
+    byte[] truncated = new byte[data.length - 1];
+    System.arraycopy(data, 0, truncated, 0, truncated.length);
+    parse(parser, truncated);
+  }
+
+  @Test
+  public void delegateLimitAppliesToDecodedBody() throws Exception {
+    DecompressingUploadPolicy policy =
+        new DecompressingUploadPolicy(new SimpleUploadPolicy(100), 1000, 1000);
+    byte[] data = gzip(new byte[500]);
+    PayloadParser parser = policy.accept(post(data.length, "gzip"));
+    try {
+      parse(parser, data);
+      fail();
+    } catch (MalformedRequestException e) {
+      assertEquals(
+          HttpStatusCode.PAYLOAD_TOO_LARGE.getStatusCode(), e.getErrorResponse().getStatusCode());
+    }
+  }
+
+  @Test
+  public void budgetIsOnlyChargedForDecodedBody() throws Exception {
+    UploadMemoryBudget budget = new UploadMemoryBudget(100000, UploadMemoryBudget.Mode.PAUSE);
+    DecompressingUploadPolicy policy =
+        new DecompressingUploadPolicy(new SimpleUploadPolicy(100000, budget), 1000, 100000);
+    byte[] content = "hello, hello, hello, hello".getBytes(StandardCharsets.UTF_8);
+    byte[] data = gzip(content);
+    SimpleHttpRequest.Builder request = post(data.length, "gzip");
+    PayloadParser parser = policy.accept(request);
+    assertEquals(Integer.toString(data.length), request.getHeader(HttpHeaderName.CONTENT_LENGTH));
+    assertTrue(parser.isReady());
+    assertEquals(0, budget.getReserved());
+    HttpRequest.Body body = parse(parser, data);
+    assertEquals(content.length, budget.getReserved());
+    assertArrayEquals(content, ((HttpRequest.InMemoryBody) body).toByteArray());
+    ((HttpRequest.InMemoryBody) body).close();
+    assertEquals(0, budget.getReserved());
+  }
+
+  @Test
+  public void exhaustedBudgetFailsDecodedBody() throws Exception {
+    UploadMemoryBudget budget = new UploadMemoryBudget(1000, UploadMemoryBudget.Mode.PAUSE);
+    DecompressingUploadPolicy policy =
+        new DecompressingUploadPolicy(new SimpleUploadPolicy(100000, budget), 1000, 100000);
+    byte[] data = gzip(new byte[5000]);
+    PayloadParser parser = policy.accept(post(data.length, "gzip"));
+    try {
+      parse(parser, data);
+      fail();
+    } catch (MalformedRequestException e) {
+      assertEquals(
+          HttpStatusCode.SERVICE_UNAVAILABLE.getStatusCode(), e.getErrorResponse().getStatusCode());
+    }
+    assertEquals(0, budget.getReserved());
+  }
+
+  @Test
+  public void policyWithoutUnknownLengthSupportRejectsCompressedBody() {
+    DecompressingUploadPolicy policy = new DecompressingUploadPolicy(
+        request -> new InMemoryEntityParser(100), 1000, 1000);
+    SimpleHttpRequest.Builder request = post(10, "gzip");
+    assertNull(policy.accept(request));
+    assertEquals(
+        HttpStatusCode.UNSUPPORTED_MEDIA_TYPE.getStatusCode(),
+        request.getErrorResponse().getStatusCode());
+  }
+
+  @Test
+  public void largeDecodedBodyIsSpooled() throws Exception {
+    Path directory = Files.createTempDirectory("catfish-test-");
+    try {
+      DecompressingUploadPolicy policy = new DecompressingUploadPolicy(
+          new SpoolingUploadPolicy(100, 100000, directory), 1000, 100000);
+      byte[] content = new byte[5000];
+      byte[] data = gzip(content);
+      HttpRequest.Body body = parse(policy.accept(post(data.length, "gzip")), data);
+      assertTrue(body instanceof HttpRequest.FileBody);
+      HttpRequest.FileBody fileBody = (HttpRequest.FileBody) body;
+      assertEquals(content.length, fileBody.size());
+      assertArrayEquals(content, fileBody.toByteArray());
+      fileBody.close();
+    } finally {
+      Files.delete(directory);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package de.ofahrt.catfish.upload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpStatusCode;
+import de.ofahrt.catfish.model.MalformedRequestException;
+
+public class GrowingEntityParserTest {
+  private Path directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("catfish-test-");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      files.forEach(p -> p.toFile().delete());
+    }
+    Files.delete(directory);
+  }
+
+  private static byte[] data(int length) {
+    byte[] result = new byte[length];
+    for (int i = 0; i < length; i++) {
+      result[i] = (byte) i;
+    }
+    return result;
+  }
+
+  private static HttpRequest.Body parse(GrowingEntityParser parser, byte[] data) throws Exception {
+    for (int i = 0; i < data.length; i += 1000) {
+      int length = Math.min(1000, data.length - i);
+      assertEquals(length, parser.parse(data, i, length));
+    }
+    assertTrue(parser.endOfInput());
+    assertTrue(parser.isDone());
+    return parser.getParsedBody();
+  }
+
+  private static void assertFailsWith(
+      HttpStatusCode statusCode, GrowingEntityParser parser, byte[] data) throws Exception {
+    try {
+      parse(parser, data);
+      fail();
+    } catch (MalformedRequestException e) {
+      assertEquals(statusCode.getStatusCode(), e.getErrorResponse().getStatusCode());
+    }
+  }
+
+  @Test
+  public void bodyIsCollectedInMemory() throws Exception {
+    byte[] content = data(10000);
+    HttpRequest.Body body = parse(new GrowingEntityParser(100000, null), content);
+    assertArrayEquals(content, ((HttpRequest.InMemoryBody) body).toByteArray());
+  }
+
+  @Test
+  public void emptyBody() throws Exception {
+    HttpRequest.Body body = parse(new GrowingEntityParser(100000, null), new byte[0]);
+    assertEquals(0, ((HttpRequest.InMemoryBody) body).toByteArray().length);
+  }
+
+  @Test
+  public void budgetIsChargedAsBodyGrows() throws Exception {
+    UploadMemoryBudget budget = new UploadMemoryBudget(100000, UploadMemoryBudget.Mode.PAUSE);
+    GrowingEntityParser parser = new GrowingEntityParser(100000, budget);
+    assertEquals(0, budget.getReserved());
+    parser.parse(new byte[10], 0, 10);
+    assertTrue(budget.getReserved() >= 10);
+    assertTrue(budget.getReserved() < 10000);
+    parser.parse(new byte[10000], 0, 10000);
+    assertTrue(budget.getReserved() >= 10010);
+    assertTrue(parser.endOfInput());
+    assertEquals(10010, budget.getReserved());
+    ((HttpRequest.InMemoryBody) parser.getParsedBody()).close();
+    assertEquals(0, budget.getReserved());
+  }
+
+  @Test
+  public void bodyLongerThanMaximumIsRejected() throws Exception {
+    assertFailsWith(
+        HttpStatusCode.PAYLOAD_TOO_LARGE, new GrowingEntityParser(5000, null), data(5001));
+  }
+
+  @Test
+  public void exhaustedBudgetFailsBodyWithoutDirectory() throws Exception {
+    UploadMemoryBudget budget = new UploadMemoryBudget(5000, UploadMemoryBudget.Mode.PAUSE);
+    assertFailsWith(
+        HttpStatusCode.SERVICE_UNAVAILABLE, new GrowingEntityParser(100000, budget), data(10000));
+    assertEquals(0, budget.getReserved());
+  }
+
+  @Test
+  public void bodyAboveThresholdIsSpooled() throws Exception {
+    byte[] content = data(10000);
+    HttpRequest.Body body = parse(new GrowingEntityParser(100000, 5000, directory, null), content);
+    HttpRequest.FileBody fileBody = (HttpRequest.FileBody) body;
+    assertEquals(content.length, fileBody.size());
+    assertArrayEquals(content, fileBody.toByteArray());
+    fileBody.close();
+  }
+
+  @Test
+  public void exhaustedBudgetSpoolsBody() throws Exception {
+    UploadMemoryBudget budget = new UploadMemoryBudget(5000, UploadMemoryBudget.Mode.PAUSE);
+    byte[] content = data(10000);
+    HttpRequest.Body body =
+        parse(new GrowingEntityParser(100000, 50000, directory, budget), content);
+    assertEquals(0, budget.getReserved());
+    HttpRequest.FileBody fileBody = (HttpRequest.FileBody) body;
+    assertArrayEquals(content, fileBody.toByteArray());
+    fileBody.close();
+  }
+
+  @Test
+  public void closeReleasesBudget() throws Exception {
+    UploadMemoryBudget budget = new UploadMemoryBudget(100000, UploadMemoryBudget.Mode.PAUSE);
+    GrowingEntityParser parser = new GrowingEntityParser(100000, budget);
+    parser.parse(new byte[100], 0, 100);
+    parser.close();
+    assertEquals(0, budget.getReserved());
+  }
+}
@@ -0,0 +1,116 @@
+package de.ofahrt.catfish.upload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpMethodName;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpStatusCode;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
+import de.ofahrt.catfish.model.server.PayloadParser;
+
+public class SpoolingUploadPolicyTest {
+  private Path directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("catfish-test-");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      files.forEach(p -> p.toFile().delete());
+    }
+    Files.delete(directory);
+  }
+
+  private static SimpleHttpRequest.Builder post(int contentLength) {
+    return new SimpleHttpRequest.Builder()
+        .setMethod(HttpMethodName.POST)
+        .setUri("/")
+        .setVersion(HttpVersion.HTTP_1_1)
+        .addHeader(HttpHeaderName.HOST, "localhost")
+        .addHeader(HttpHeaderName.CONTENT_LENGTH, Integer.toString(contentLength));
+  }
+
+  private static HttpRequest.Body parse(PayloadParser parser, byte[] data) throws Exception {
+    int consumed = 0;
+    while (!parser.isDone()) {
+      consumed += parser.parse(data, consumed, Math.min(3, data.length - consumed));
+    }
+    assertEquals(data.length, consumed);
+    return parser.getParsedBody();
+  }
+
+  @Test
+  public void smallBodyStaysInMemory() throws Exception {
+    SpoolingUploadPolicy policy = new SpoolingUploadPolicy(10, 100, directory);
+    byte[] data = "hello".getBytes(StandardCharsets.UTF_8);
+    PayloadParser parser = policy.accept(post(data.length));
+    HttpRequest.Body body = parse(parser, data);
+    assertTrue(body instanceof HttpRequest.InMemoryBody);
+    assertArrayEquals(data, ((HttpRequest.InMemoryBody) body).toByteArray());
+  }
+
+  @Test
+  public void largeBodyIsSpooledToFile() throws Exception {
+    SpoolingUploadPolicy policy = new SpoolingUploadPolicy(4, 100, directory);
+    byte[] data = "hello, world".getBytes(StandardCharsets.UTF_8);
+    PayloadParser parser = policy.accept(post(data.length));
+    HttpRequest.Body body = parse(parser, data);
+    assertTrue(body instanceof HttpRequest.FileBody);
+    HttpRequest.FileBody fileBody = (HttpRequest.FileBody) body;
+    assertEquals(data.length, fileBody.size());
+    assertArrayEquals(data, fileBody.toByteArray());
+    assertTrue(Files.exists(fileBody.getPath()));
+    fileBody.close();
+    assertFalse(Files.exists(fileBody.getPath()));
+  }
+
+  @Test
+  public void closedFileBodyCannotBeMapped() throws Exception {
+    SpoolingUploadPolicy policy = new SpoolingUploadPolicy(4, 100, directory);
+    byte[] data = "hello, world".getBytes(StandardCharsets.UTF_8);
+    HttpRequest.FileBody fileBody = (HttpRequest.FileBody) parse(policy.accept(post(data.length)), data);
+    fileBody.close();
+    try {
+      fileBody.map();
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void abortedUploadDeletesFile() throws Exception {
+    SpoolingUploadPolicy policy = new SpoolingUploadPolicy(4, 100, directory);
+    PayloadParser parser = policy.accept(post(20));
+    parser.parse(new byte[10], 0, 10);
+    assertFalse(parser.isDone());
+    parser.close();
+    try (Stream<Path> files = Files.list(directory)) {
+      assertEquals(0, files.count());
+    }
+  }
+
+  @Test
+  public void rejectTooLarge() {
+    SpoolingUploadPolicy policy = new SpoolingUploadPolicy(4, 100, directory);
+    SimpleHttpRequest.Builder builder = post(101);
+    assertNull(policy.accept(builder));
+    assertEquals(HttpStatusCode.PAYLOAD_TOO_LARGE.getStatusCode(), builder.getErrorResponse().getStatusCode());
+  }
+}
@@ -0,0 +1,150 @@
+package de.ofahrt.catfish.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpMethodName;
+import de.ofahrt.catfish.model.HttpRequest;
+import de.ofahrt.catfish.model.HttpStatusCode;
+import de.ofahrt.catfish.model.HttpVersion;
+import de.ofahrt.catfish.model.SimpleHttpRequest;
+import de.ofahrt.catfish.model.server.PayloadParser;
+
+public class UploadMemoryBudgetTest {
+  private static SimpleHttpRequest.Builder post(int contentLength) {
+    return new SimpleHttpRequest.Builder()
+        .setMethod(HttpMethodName.POST)
+        .setUri("/")
+        .setVersion(HttpVersion.HTTP_1_1)
+        .addHeader(HttpHeaderName.HOST, "localhost")
+        .addHeader(HttpHeaderName.CONTENT_LENGTH, Integer.toString(contentLength));
+  }
+
+  @Test
+  public void reserveAndRelease() {
+    UploadMemoryBudget budget = new UploadMemoryBudget(10, UploadMemoryBudget.Mode.PAUSE);
+    assertTrue(budget.tryReserve(6));
+    assertFalse(budget.tryReserve(5));
+    assertTrue(budget.tryReserve(4));
+    assertEquals(10, budget.getReserved());
+    budget.release(10);
+    assertEquals(0, budget.getReserved());
+  }
+
+  @Test
+  public void waiterIsNotifiedOnRelease() {
+    UploadMemoryBudget budget = new UploadMemoryBudget(10, UploadMemoryBudget.Mode.PAUSE);
+    assertTrue(budget.tryReserve(8));
+    AtomicInteger called = new AtomicInteger();
+    budget.whenAvailable(5, called::incrementAndGet);
+    assertEquals(0, called.get());
+    budget.release(8);
+    assertEquals(1, called.get());
+    budget.whenAvailable(5, called::incrementAndGet);
+    assertEquals(2, called.get());
+  }
+
+  @Test
+  public void closedParserStopsWaiting() {
+    UploadMemoryBudget budget = new UploadMemoryBudget(10, UploadMemoryBudget.Mode.PAUSE);
+    assertTrue(budget.tryReserve(8));
+    InMemoryEntityParser parser = new InMemoryEntityParser(5, budget);
+    assertFalse(parser.isReady());
+    AtomicInteger called = new AtomicInteger();
+    parser.whenReady(called::incrementAndGet);
+    parser.close();
+    budget.release(8);
+    assertEquals(0, called.get());
+    assertEquals(0, budget.getReserved());
+  }
+
+  @Test
+  public void rejectModeReturnsServiceUnavailable() {
+    UploadMemoryBudget budget = new UploadMemoryBudget(10, UploadMemoryBudget.Mode.REJECT);
+    SimpleUploadPolicy policy = new SimpleUploadPolicy(100, budget);
+    assertNotNull(policy.accept(post(8)));
+    SimpleHttpRequest.Builder builder = post(8);
+    assertNull(policy.accept(builder));
+    assertEquals(HttpStatusCode.SERVICE_UNAVAILABLE.getStatusCode(), builder.getErrorResponse().getStatusCode());
+  }
+
+  @Test
+  public void bodyLargerThanBudgetIsRejected() {
+    UploadMemoryBudget budget = new UploadMemoryBudget(10, UploadMemoryBudget.Mode.PAUSE);
+    SimpleUploadPolicy policy = new SimpleUploadPolicy(100, budget);
+    SimpleHttpRequest.Builder builder = post(11);
+    assertNull(policy.accept(builder));
+    assertEquals(HttpStatusCode.PAYLOAD_TOO_LARGE.getStatusCode(), builder.getErrorResponse().getStatusCode());
+  }
+
+  @Test
+  public void negativeContentLengthIsRejected() {
+    UploadMemoryBudget budget = new UploadMemoryBudget(10, UploadMemoryBudget.Mode.PAUSE);
+    SimpleUploadPolicy policy = new SimpleUploadPolicy(100, budget);
+    SimpleHttpRequest.Builder builder = post(-5);
+    assertNull(policy.accept(builder));
+    assertEquals(HttpStatusCode.BAD_REQUEST.getStatusCode(), builder.getErrorResponse().getStatusCode());
+    assertEquals(0, budget.getReserved());
+  }
+
+  @Test
+  public void negativeContentLengthIsRejectedWithoutBudget() {
+    SimpleHttpRequest.Builder builder = post(-5);
+    assertNull(new SimpleUploadPolicy(100).accept(builder));
+    assertEquals(HttpStatusCode.BAD_REQUEST.getStatusCode(), builder.getErrorResponse().getStatusCode());
+  }
+
+  @Test
+  public void pauseModeWaitsUntilBodyIsReleased() throws Exception {
+    UploadMemoryBudget budget = new UploadMemoryBudget(10, UploadMemoryBudget.Mode.PAUSE);
+    SimpleUploadPolicy policy = new SimpleUploadPolicy(100, budget);
+    PayloadParser first = policy.accept(post(8));
+    assertTrue(first.isReady());
+    PayloadParser second = policy.accept(post(8));
+    assertFalse(second.isReady());
+    AtomicInteger called = new AtomicInteger();
+    second.whenReady(called::incrementAndGet);
+
+    first.parse(new byte[8], 0, 8);
+    assertTrue(first.isDone());
+    HttpRequest.InMemoryBody body = (HttpRequest.InMemoryBody) first.getParsedBody();
+    assertEquals(0, called.get());
+    body.close();
+    assertEquals(1, called.get());
+    assertTrue(second.isReady());
+    assertEquals(8, budget.getReserved());
+  }
+
+  @Test
+  public void abortedUploadReleasesReservation() {
+    UploadMemoryBudget budget = new UploadMemoryBudget(10, UploadMemoryBudget.Mode.PAUSE);
+    SimpleUploadPolicy policy = new SimpleUploadPolicy(100, budget);
+    PayloadParser parser = policy.accept(post(8));
+    assertTrue(parser.isReady());
+    parser.parse(new byte[4], 0, 4);
+    parser.close();
+    assertEquals(0, budget.getReserved());
+  }
+
+  @Test
+  public void spoolingPolicyFallsBackToDiskWhenBudgetIsExhausted() throws Exception {
+    UploadMemoryBudget budget = new UploadMemoryBudget(10, UploadMemoryBudget.Mode.PAUSE);
+    assertTrue(budget.tryReserve(10));
+    Path directory = Files.createTempDirectory("catfish-test-");
+    try {
+      SpoolingUploadPolicy policy = new SpoolingUploadPolicy(8, 100, directory, budget);
+      PayloadParser parser = policy.accept(post(4));
+      assertTrue(parser instanceof FileSpoolingEntityParser);
+      parser.close();
+    } finally {
+      Files.delete(directory);
+    }
+  }
+}
@@ -6,8 +6,16 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({
+  CompressingOutputStreamTest.class,
+  FileMetadataCacheTest.class,
+  HttpAcceptEncodingTest.class,
+  HttpByteRangeTest.class,
   HttpContentTypeTest.class,
   HttpDateTest.class,
+  HttpPreconditionsTest.class,
+  InflatingDecoderTest.class,
+  StaticAssetManifestTest.class,
+  StaticFileCacheTest.class,
 })
 public class CatfishUtilsTestSuite {
 }
@@ -0,0 +1,145 @@
+package de.ofahrt.catfish.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.Test;
+
+public class CompressingOutputStreamTest {
+  private static final byte[] CONTENT = repeat("Hello, compressed world! ", 200);
+
+  private static byte[] repeat(String s, int count) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      result.append(s);
+    }
+    return result.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int length;
+    while ((length = in.read(buffer)) > 0) {
+      out.write(buffer, 0, length);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] compress(String contentEncoding, byte[] data, DeflaterPool pool) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (CompressingOutputStream out =
+        new CompressingOutputStream(buffer, contentEncoding, 6, pool, false)) {
+      out.write(data);
+    }
+    return buffer.toByteArray();
+  }
+
+  @Test
+  public void gzipRoundTrip() throws Exception {
+    byte[] compressed = compress("gzip", CONTENT, new DeflaterPool(4));
+    assertArrayEquals(CONTENT, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+  }
+
+  @Test
+  public void deflateRoundTrip() throws Exception {
+    byte[] compressed = compress("deflate", CONTENT, new DeflaterPool(4));
+    assertArrayEquals(CONTENT, readAll(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+  }
+
+  @Test
+  public void singleByteWrites() throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (CompressingOutputStream out =
+        new CompressingOutputStream(buffer, "gzip", 1, new DeflaterPool(4), false)) {
+      for (byte b : CONTENT) {
+        out.write(b);
+      }
+    }
+    byte[] result = readAll(new GZIPInputStream(new ByteArrayInputStream(buffer.toByteArray())));
+    assertArrayEquals(CONTENT, result);
+  }
+
+  @Test
+  public void syncFlushEmitsPendingData() throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    CompressingOutputStream out =
+        new CompressingOutputStream(buffer, "deflate", 6, new DeflaterPool(4), true);
+    out.write(CONTENT);
+    out.flush();
+    byte[] partial = buffer.toByteArray();
+    InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(partial));
+    byte[] decoded = new byte[CONTENT.length];
+    int total = 0;
+    while (total < decoded.length) {
+      int length = in.read(decoded, total, decoded.length - total);
+      assertNotEquals(-1, length);
+      total += length;
+    }
+    assertArrayEquals(CONTENT, decoded);
+    out.close();
+  }
+
+  @Test
+  public void deflaterIsReused() throws Exception {
+    DeflaterPool pool = new DeflaterPool(4);
+    compress("gzip", CONTENT, pool);
+    Deflater first = pool.acquire(6, true);
+    pool.release(first, 6, true);
+    byte[] compressed = compress("gzip", CONTENT, pool);
+    assertSame(first, pool.acquire(6, true));
+    assertArrayEquals(CONTENT, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+  }
+
+  @Test
+  public void closeIsIdempotent() throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    CompressingOutputStream out =
+        new CompressingOutputStream(buffer, "gzip", 6, new DeflaterPool(4), false);
+    out.write(CONTENT);
+    out.close();
+    int length = buffer.size();
+    out.close();
+    assertEquals(length, buffer.size());
+  }
+
+  @Test
+  public void poolIsBounded() {
+    DeflaterPool pool = new DeflaterPool(1);
+    Deflater first = pool.acquire(6, true);
+    Deflater second = pool.acquire(1, false);
+    pool.release(first, 6, true);
+    pool.release(second, 1, false);
+    assertEquals(1, pool.size());
+    assertSame(first, pool.acquire(6, true));
+    assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void deflaterIsReleasedIfHeaderCannotBeWritten() throws Exception {
+    DeflaterPool pool = new DeflaterPool(4);
+    OutputStream broken = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("Connection closed");
+      }
+    };
+    try {
+      new CompressingOutputStream(broken, "gzip", 6, pool, false);
+      fail();
+    } catch (IOException expected) {
+    }
+    assertEquals(1, pool.size());
+  }
+}
@@ -0,0 +1,100 @@
+package de.ofahrt.catfish.utils;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the CPU time that response compression costs per MiB of uncompressed content, for the
+ * compression levels that a {@link de.ofahrt.catfish.model.server.ResponsePolicy} may choose, and
+ * the resulting compression ratio. Each level is measured with deflaters from a {@link
+ * DeflaterPool} and with a fresh deflater per response, which shows the cost of allocating the
+ * native deflater state. Run with:
+ *
+ * <pre>java -cp ... de.ofahrt.catfish.utils.CompressionBenchmark</pre>
+ */
+public final class CompressionBenchmark {
+  private static final int RESPONSE_SIZE = 16 * 1024;
+  private static final int RESPONSES = 4096;
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 5;
+  private static final int[] LEVELS = { 1, 6, 9 };
+
+  public static void main(String[] args) throws Exception {
+    byte[] content = sampleContent();
+    for (boolean pooled : new boolean[] { true, false }) {
+      for (int level : LEVELS) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+          run(content, level, pooled);
+        }
+        Result total = new Result();
+        for (int i = 0; i < ROUNDS; i++) {
+          Result result = run(content, level, pooled);
+          total.cpuNanos += result.cpuNanos;
+          total.compressedBytes += result.compressedBytes;
+        }
+        double mib = ROUNDS * (double) RESPONSES * RESPONSE_SIZE / (1024.0 * 1024.0);
+        System.out.printf("%-6s level %d: %6.2f ms CPU/MiB, ratio %5.3f%n",
+            pooled ? "pooled" : "fresh",
+            Integer.valueOf(level),
+            Double.valueOf(total.cpuNanos / 1e6 / mib),
+            Double.valueOf(total.compressedBytes / (ROUNDS * (double) RESPONSES * RESPONSE_SIZE)));
+      }
+    }
+  }
+
+  /** Returns HTML-like text, which compresses roughly like typical responses. */
+  private static byte[] sampleContent() {
+    StringBuilder result = new StringBuilder();
+    int row = 0;
+    while (result.length() < RESPONSE_SIZE) {
+      result.append("<tr><td class=\"name\">Item ").append(row)
+          .append("</td><td class=\"value\">").append(Integer.toHexString(row * 0x9e3779b1))
+          .append("</td></tr>\n");
+      row++;
+    }
+    return result.substring(0, RESPONSE_SIZE).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static final class Result {
+    long cpuNanos;
+    long compressedBytes;
+  }
+
+  /** Counts the bytes written, without keeping them. */
+  private static final class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+
+  private static Result run(byte[] content, int level, boolean pooled) throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    DeflaterPool pool = new DeflaterPool(pooled ? 1 : 0);
+    CountingOutputStream sink = new CountingOutputStream();
+    long start = threads.getCurrentThreadCpuTime();
+    for (int i = 0; i < RESPONSES; i++) {
+      try (CompressingOutputStream out =
+          new CompressingOutputStream(sink, HttpAcceptEncoding.GZIP, level, pool, false)) {
+        out.write(content);
+      }
+    }
+    Result result = new Result();
+    result.cpuNanos = threads.getCurrentThreadCpuTime() - start;
+    result.compressedBytes = sink.count;
+    return result;
+  }
+
+  private CompressionBenchmark() {
+    // Not instantiable.
+  }
+}
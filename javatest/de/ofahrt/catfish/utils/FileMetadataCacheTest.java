@@ -0,0 +1,165 @@
+package de.ofahrt.catfish.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileMetadataCacheTest {
+  private Path directory;
+  private long now;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("catfish-test-");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      files.forEach(p -> p.toFile().delete());
+    }
+    Files.delete(directory);
+  }
+
+  private FileMetadataCache.Builder builder() {
+    return new FileMetadataCache.Builder()
+        .setTimeToLive(1, TimeUnit.SECONDS)
+        .setWatch(false)
+        .setClock(() -> now);
+  }
+
+  private Path write(String name, String content) throws Exception {
+    Path path = directory.resolve(name);
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    return path;
+  }
+
+  @Test
+  public void existingFile() throws Exception {
+    Path path = write("a.txt", "hello");
+    FileMetadataCache.Metadata metadata = builder().build().get(path);
+    assertTrue(metadata.isRegularFile());
+    assertEquals(5, metadata.getSize());
+    assertEquals(Files.getLastModifiedTime(path).toMillis(), metadata.getLastModified());
+  }
+
+  @Test
+  public void hitWithinTimeToLiveDoesNotTouchFileSystem() throws Exception {
+    Path path = write("a.txt", "hello");
+    FileMetadataCache cache = builder().build();
+    cache.get(path);
+    Files.delete(path);
+    now += TimeUnit.MILLISECONDS.toNanos(999);
+    assertNotNull(cache.get(path));
+    assertEquals(1, cache.getHitCount());
+    now += TimeUnit.MILLISECONDS.toNanos(1);
+    assertNull(cache.get(path));
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void missingFileIsCached() throws Exception {
+    Path path = directory.resolve("missing.php");
+    FileMetadataCache cache = builder().build();
+    assertNull(cache.get(path));
+    write("missing.php", "");
+    assertNull(cache.get(path));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void fileInMissingDirectoryIsNotFound() throws Exception {
+    assertNull(builder().build().get(directory.resolve("a.txt").resolve("b.txt")));
+  }
+
+  @Test
+  public void invalidate() throws Exception {
+    Path path = directory.resolve("a.txt");
+    FileMetadataCache cache = builder().build();
+    assertNull(cache.get(path));
+    write("a.txt", "hello");
+    cache.invalidate(path);
+    assertNotNull(cache.get(path));
+    assertEquals(1, cache.getInvalidationCount());
+  }
+
+  @Test
+  public void leastRecentlyUsedEntryIsDropped() throws Exception {
+    FileMetadataCache cache = builder().setMaxEntries(2).build();
+    cache.get(directory.resolve("a"));
+    cache.get(directory.resolve("b"));
+    cache.get(directory.resolve("a"));
+    cache.get(directory.resolve("c"));
+    assertEquals(2, cache.getEntryCount());
+    long misses = cache.getMissCount();
+    cache.get(directory.resolve("a"));
+    assertEquals(misses, cache.getMissCount());
+    cache.get(directory.resolve("b"));
+    assertEquals(misses + 1, cache.getMissCount());
+  }
+
+  @Test
+  public void zeroTimeToLiveDisablesCaching() throws Exception {
+    FileMetadataCache cache = builder().setTimeToLive(0, TimeUnit.SECONDS).build();
+    cache.get(directory.resolve("a"));
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test(timeout = 30000)
+  public void createdFileIsNoticed() throws Exception {
+    Path path = directory.resolve("a.txt");
+    try (FileMetadataCache cache = builder().setWatch(true).build()) {
+      assertNull(cache.get(path));
+      assertEquals(1, cache.getWatchedDirectoryCount());
+      write("a.txt", "hello");
+      // The clock does not advance, so only the watch service can invalidate the entry.
+      while (cache.get(path) == null) {
+        Thread.sleep(10);
+      }
+      assertTrue(cache.getInvalidationCount() > 0);
+    }
+  }
+
+  @Test
+  public void watchedDirectoriesAreBounded() throws Exception {
+    Path first = Files.createDirectory(directory.resolve("first"));
+    Path second = Files.createDirectory(directory.resolve("second"));
+    try (FileMetadataCache cache = builder().setWatch(true).setMaxWatchedDirectories(1).build()) {
+      assertNull(cache.get(first.resolve("a.txt")));
+      assertEquals(1, cache.getEntryCount());
+      assertNull(cache.get(second.resolve("a.txt")));
+      assertEquals(1, cache.getWatchedDirectoryCount());
+      // The first directory is no longer watched, so its entry must not be used any more.
+      assertEquals(1, cache.getEntryCount());
+      Files.write(first.resolve("a.txt"), "hello".getBytes(StandardCharsets.UTF_8));
+      assertNotNull(cache.get(first.resolve("a.txt")));
+      assertEquals(1, cache.getWatchedDirectoryCount());
+    } finally {
+      Files.deleteIfExists(first.resolve("a.txt"));
+      Files.delete(first);
+      Files.delete(second);
+    }
+  }
+
+  @Test
+  public void staticFileCacheUsesMetadataCache() throws Exception {
+    Path path = directory.resolve("a.txt");
+    FileMetadataCache metadataCache = builder().build();
+    StaticFileCache cache = new StaticFileCache.Builder().setMetadataCache(metadataCache).build();
+    assertNull(cache.get(path));
+    write("a.txt", "hello");
+    assertNull(cache.get(path));
+    metadataCache.invalidate(path);
+    assertEquals(5, cache.get(path).getSize());
+  }
+}
@@ -0,0 +1,69 @@
+package de.ofahrt.catfish.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class HttpAcceptEncodingTest {
+  private static String negotiate(String acceptEncoding) {
+    return HttpAcceptEncoding.negotiate(
+        acceptEncoding, HttpAcceptEncoding.GZIP, HttpAcceptEncoding.DEFLATE);
+  }
+
+  @Test
+  public void missingHeader() {
+    assertNull(negotiate(null));
+  }
+
+  @Test
+  public void simple() {
+    assertEquals("gzip", negotiate("gzip"));
+    assertEquals("deflate", negotiate("deflate"));
+    assertEquals("gzip", negotiate("gzip, deflate, br"));
+    assertEquals("gzip", negotiate("deflate, gzip"));
+  }
+
+  @Test
+  public void caseInsensitive() {
+    assertEquals("gzip", negotiate("GZip"));
+  }
+
+  @Test
+  public void xGzipIsAnAlias() {
+    assertEquals("gzip", negotiate("x-gzip"));
+  }
+
+  @Test
+  public void qualityValues() {
+    assertEquals("deflate", negotiate("gzip;q=0.5, deflate"));
+    assertEquals("deflate", negotiate("gzip; q=0.5, deflate;q=0.8"));
+    assertEquals("gzip", negotiate("gzip;q=1.0, deflate;q=1.0"));
+  }
+
+  @Test
+  public void zeroQualityMeansNotAcceptable() {
+    assertNull(negotiate("gzip;q=0"));
+    assertNull(negotiate("gzip;q=0, deflate;q=0.000"));
+    assertEquals("deflate", negotiate("gzip;q=0, deflate"));
+  }
+
+  @Test
+  public void wildcard() {
+    assertEquals("gzip", negotiate("*"));
+    assertEquals("deflate", negotiate("gzip;q=0, *"));
+    assertNull(negotiate("*;q=0"));
+    assertEquals("gzip", negotiate("gzip, *;q=0"));
+  }
+
+  @Test
+  public void unknownCodings() {
+    assertNull(negotiate("br, identity"));
+    assertNull(negotiate(""));
+  }
+
+  @Test
+  public void invalidQualityValue() {
+    assertNull(negotiate("gzip;q=abc"));
+    assertNull(negotiate("gzip;q=2"));
+  }
+}
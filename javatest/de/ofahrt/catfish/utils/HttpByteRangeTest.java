@@ -0,0 +1,147 @@
+package de.ofahrt.catfish.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class HttpByteRangeTest {
+  private static final byte[] CONTENT = "0123456789".getBytes(StandardCharsets.UTF_8);
+
+  private static List<HttpByteRange> ranges(long... bounds) {
+    HttpByteRange[] result = new HttpByteRange[bounds.length / 2];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = new HttpByteRange(bounds[2 * i], bounds[2 * i + 1]);
+    }
+    return Arrays.asList(result);
+  }
+
+  @Test
+  public void simpleRange() {
+    assertEquals(ranges(0, 4), HttpByteRange.parse("bytes=0-4", 10));
+  }
+
+  @Test
+  public void openEndedRange() {
+    assertEquals(ranges(7, 9), HttpByteRange.parse("bytes=7-", 10));
+  }
+
+  @Test
+  public void lastIsClampedToLength() {
+    assertEquals(ranges(5, 9), HttpByteRange.parse("bytes=5-100", 10));
+  }
+
+  @Test
+  public void suffixRange() {
+    assertEquals(ranges(7, 9), HttpByteRange.parse("bytes=-3", 10));
+    assertEquals(ranges(0, 9), HttpByteRange.parse("bytes=-30", 10));
+  }
+
+  @Test
+  public void multipleRanges() {
+    assertEquals(ranges(0, 0, 2, 3, 9, 9), HttpByteRange.parse("bytes=0-0, 2-3,,-1", 10));
+  }
+
+  @Test
+  public void unitIsCaseInsensitive() {
+    assertEquals(ranges(0, 4), HttpByteRange.parse("Bytes = 0-4", 10));
+  }
+
+  @Test
+  public void unsatisfiableRanges() {
+    assertEquals(Collections.emptyList(), HttpByteRange.parse("bytes=10-", 10));
+    assertEquals(Collections.emptyList(), HttpByteRange.parse("bytes=-0", 10));
+    assertEquals(Collections.emptyList(), HttpByteRange.parse("bytes=0-", 0));
+  }
+
+  @Test
+  public void invalidHeadersAreIgnored() {
+    assertNull(HttpByteRange.parse(null, 10));
+    assertNull(HttpByteRange.parse("items=0-4", 10));
+    assertNull(HttpByteRange.parse("bytes=4-0", 10));
+    assertNull(HttpByteRange.parse("bytes=a-b", 10));
+    assertNull(HttpByteRange.parse("bytes=5", 10));
+    assertNull(HttpByteRange.parse("bytes=", 10));
+    assertNull(HttpByteRange.parse("bytes=-", 10));
+    assertNull(HttpByteRange.parse("bytes=99999999999999999999-", 10));
+  }
+
+  @Test
+  public void tooManyRangesAreIgnored() {
+    StringBuilder header = new StringBuilder("bytes=0-0");
+    for (int i = 0; i < 16; i++) {
+      header.append(",0-0");
+    }
+    assertNull(HttpByteRange.parse(header.toString(), 10));
+  }
+
+  @Test
+  public void contentRange() {
+    assertEquals("bytes 2-5/10", new HttpByteRange(2, 5).toContentRange(10));
+    assertEquals("bytes */10", HttpByteRange.unsatisfiedContentRange(10));
+  }
+
+  @Test
+  public void ifRange() {
+    long lastModified = 784111777000L;
+    assertTrue(HttpByteRange.ifRangeMatches(null, null, lastModified));
+    assertTrue(HttpByteRange.ifRangeMatches("Sun, 06 Nov 1994 08:49:37 GMT", null, lastModified));
+    assertTrue(HttpByteRange.ifRangeMatches("Sun, 06 Nov 1994 08:49:37 GMT", null, lastModified + 999));
+    assertFalse(HttpByteRange.ifRangeMatches("Sun, 06 Nov 1994 08:49:38 GMT", null, lastModified));
+    assertFalse(HttpByteRange.ifRangeMatches("\"abc\"", null, lastModified));
+    assertTrue(HttpByteRange.ifRangeMatches("\"abc\"", "\"abc\"", lastModified));
+    assertFalse(HttpByteRange.ifRangeMatches("W/\"abc\"", "\"abc\"", lastModified));
+    assertFalse(HttpByteRange.ifRangeMatches("\"abd\"", "\"abc\"", lastModified));
+  }
+
+  @Test
+  public void sliceDoesNotChangeBuffer() {
+    ByteBuffer content = ByteBuffer.wrap(CONTENT);
+    ByteBuffer slice = new HttpByteRange(2, 4).slice(content);
+    assertEquals(3, slice.remaining());
+    assertEquals('2', slice.get());
+    assertEquals(0, content.position());
+    assertEquals(10, content.limit());
+  }
+
+  @Test
+  public void multipartFromBuffer() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HttpByteRange.writeMultipart(out, "XYZ", "text/plain", ranges(0, 1, 8, 9), 10, ByteBuffer.wrap(CONTENT));
+    assertEquals(
+        "\r\n--XYZ\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-1/10\r\n\r\n01"
+            + "\r\n--XYZ\r\nContent-Type: text/plain\r\nContent-Range: bytes 8-9/10\r\n\r\n89"
+            + "\r\n--XYZ--\r\n",
+        new String(out.toByteArray(), StandardCharsets.ISO_8859_1));
+  }
+
+  @Test
+  public void multipartFromFile() throws Exception {
+    Path file = Files.createTempFile("catfish-test-", ".txt");
+    try {
+      Files.write(file, CONTENT);
+      ByteArrayOutputStream fromFile = new ByteArrayOutputStream();
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        HttpByteRange.writeMultipart(fromFile, "XYZ", null, ranges(3, 5, 0, 0), 10, channel);
+      }
+      ByteArrayOutputStream fromBuffer = new ByteArrayOutputStream();
+      HttpByteRange.writeMultipart(fromBuffer, "XYZ", null, ranges(3, 5, 0, 0), 10, ByteBuffer.wrap(CONTENT));
+      assertEquals(
+          new String(fromBuffer.toByteArray(), StandardCharsets.ISO_8859_1),
+          new String(fromFile.toByteArray(), StandardCharsets.ISO_8859_1));
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
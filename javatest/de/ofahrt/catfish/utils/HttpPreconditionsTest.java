@@ -0,0 +1,101 @@
+package de.ofahrt.catfish.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import de.ofahrt.catfish.model.HttpHeaderName;
+import de.ofahrt.catfish.model.HttpMethodName;
+import de.ofahrt.catfish.utils.HttpPreconditions.Result;
+
+public class HttpPreconditionsTest {
+  private static final String ETAG = "\"abc\"";
+  private static final long LAST_MODIFIED = 784111777000L;
+  private static final String LAST_MODIFIED_TEXT = "Sun, 06 Nov 1994 08:49:37 GMT";
+  private static final String EARLIER_TEXT = "Sun, 06 Nov 1994 08:49:36 GMT";
+
+  private static Result evaluate(String method, String... headers) {
+    Map<String, String> map = new HashMap<>();
+    for (int i = 0; i < headers.length; i += 2) {
+      map.put(headers[i], headers[i + 1]);
+    }
+    return HttpPreconditions.evaluate(method, map::get, ETAG, LAST_MODIFIED + 500);
+  }
+
+  @Test
+  public void noConditions() {
+    assertEquals(Result.PROCEED, evaluate(HttpMethodName.GET));
+  }
+
+  @Test
+  public void ifMatch() {
+    assertEquals(Result.PROCEED, evaluate(HttpMethodName.PUT, HttpHeaderName.IF_MATCH, "\"x\", \"abc\""));
+    assertEquals(Result.PROCEED, evaluate(HttpMethodName.PUT, HttpHeaderName.IF_MATCH, "*"));
+    assertEquals(Result.PRECONDITION_FAILED, evaluate(HttpMethodName.PUT, HttpHeaderName.IF_MATCH, "\"x\""));
+    // If-Match uses the strong comparison.
+    assertEquals(Result.PRECONDITION_FAILED, evaluate(HttpMethodName.PUT, HttpHeaderName.IF_MATCH, "W/\"abc\""));
+  }
+
+  @Test
+  public void ifUnmodifiedSince() {
+    assertEquals(Result.PROCEED,
+        evaluate(HttpMethodName.PUT, HttpHeaderName.IF_UNMODIFIED_SINCE, LAST_MODIFIED_TEXT));
+    assertEquals(Result.PRECONDITION_FAILED,
+        evaluate(HttpMethodName.PUT, HttpHeaderName.IF_UNMODIFIED_SINCE, EARLIER_TEXT));
+  }
+
+  @Test
+  public void ifMatchTakesPrecedenceOverIfUnmodifiedSince() {
+    assertEquals(Result.PROCEED, evaluate(HttpMethodName.PUT,
+        HttpHeaderName.IF_MATCH, ETAG,
+        HttpHeaderName.IF_UNMODIFIED_SINCE, EARLIER_TEXT));
+  }
+
+  @Test
+  public void ifNoneMatch() {
+    assertEquals(Result.NOT_MODIFIED, evaluate(HttpMethodName.GET, HttpHeaderName.IF_NONE_MATCH, ETAG));
+    assertEquals(Result.NOT_MODIFIED, evaluate(HttpMethodName.HEAD, HttpHeaderName.IF_NONE_MATCH, "*"));
+    // If-None-Match uses the weak comparison.
+    assertEquals(Result.NOT_MODIFIED, evaluate(HttpMethodName.GET, HttpHeaderName.IF_NONE_MATCH, "W/\"abc\""));
+    assertEquals(Result.PROCEED, evaluate(HttpMethodName.GET, HttpHeaderName.IF_NONE_MATCH, "\"x\""));
+    assertEquals(Result.PRECONDITION_FAILED, evaluate(HttpMethodName.POST, HttpHeaderName.IF_NONE_MATCH, ETAG));
+  }
+
+  @Test
+  public void ifModifiedSince() {
+    assertEquals(Result.NOT_MODIFIED,
+        evaluate(HttpMethodName.GET, HttpHeaderName.IF_MODIFIED_SINCE, LAST_MODIFIED_TEXT));
+    assertEquals(Result.PROCEED,
+        evaluate(HttpMethodName.GET, HttpHeaderName.IF_MODIFIED_SINCE, EARLIER_TEXT));
+    assertEquals(Result.PROCEED,
+        evaluate(HttpMethodName.POST, HttpHeaderName.IF_MODIFIED_SINCE, LAST_MODIFIED_TEXT));
+  }
+
+  @Test
+  public void ifNoneMatchTakesPrecedenceOverIfModifiedSince() {
+    assertEquals(Result.PROCEED, evaluate(HttpMethodName.GET,
+        HttpHeaderName.IF_NONE_MATCH, "\"x\"",
+        HttpHeaderName.IF_MODIFIED_SINCE, LAST_MODIFIED_TEXT));
+  }
+
+  @Test
+  public void missingETagNeverMatches() {
+    assertFalse(HttpPreconditions.matches("\"abc\"", null, false));
+    assertTrue(HttpPreconditions.matches("*", null, false));
+  }
+
+  @Test
+  public void parseEntityTags() {
+    assertEquals(Arrays.asList("\"a\"", "W/\"b,c\"", "\"\""),
+        HttpPreconditions.parseEntityTags(" \"a\",W/\"b,c\" , bogus, \"\""));
+  }
+
+  @Test
+  public void variant() {
+    assertEquals("\"abc-gzip\"", HttpPreconditions.variant(ETAG, "gzip"));
+    assertEquals("W/\"abc-gzip\"", HttpPreconditions.variant("W/\"abc\"", "gzip"));
+  }
+}
@@ -0,0 +1,126 @@
+package de.ofahrt.catfish.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+import org.junit.Test;
+
+public class InflatingDecoderTest {
+  private static final byte[] CONTENT =
+      "Lorem ipsum dolor sit amet, consectetur adipiscing elit. Lorem ipsum dolor sit amet."
+          .getBytes(StandardCharsets.UTF_8);
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] deflate(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DeflaterOutputStream deflate = new DeflaterOutputStream(out)) {
+      deflate.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] decodeInChunks(InflatingDecoder decoder, byte[] data, int chunkSize)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < data.length; i += chunkSize) {
+      int length = Math.min(chunkSize, data.length - i);
+      assertEquals(length, decoder.decode(data, i, length, out::write));
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void gzip() throws Exception {
+    InflatingDecoder decoder = InflatingDecoder.forContentEncoding("gzip", new InflaterPool(1));
+    assertArrayEquals(CONTENT, decodeInChunks(decoder, gzip(CONTENT), 1000));
+    assertTrue(decoder.isFinished());
+    assertEquals(CONTENT.length, decoder.getDecodedLength());
+  }
+
+  @Test
+  public void gzipOneByteAtATime() throws Exception {
+    InflatingDecoder decoder = InflatingDecoder.forContentEncoding("GZIP", new InflaterPool(1));
+    assertArrayEquals(CONTENT, decodeInChunks(decoder, gzip(CONTENT), 1));
+    assertTrue(decoder.isFinished());
+  }
+
+  @Test
+  public void gzipWithFileNameAndExtraField() throws Exception {
+    byte[] compressed = gzip(CONTENT);
+    byte[] name = "a.txt\0".getBytes(StandardCharsets.US_ASCII);
+    byte[] extra = new byte[] { 3, 0, 'x', 'y', 'z' };
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    data.write(compressed, 0, 3);
+    data.write(compressed[3] | 4 | 8);
+    data.write(compressed, 4, 6);
+    data.write(extra);
+    data.write(name);
+    data.write(compressed, 10, compressed.length - 10);
+    InflatingDecoder decoder = InflatingDecoder.forContentEncoding("gzip", new InflaterPool(1));
+    assertArrayEquals(CONTENT, decodeInChunks(decoder, data.toByteArray(), 2));
+    assertTrue(decoder.isFinished());
+  }
+
+  @Test
+  public void deflate() throws Exception {
+    InflatingDecoder decoder = InflatingDecoder.forContentEncoding("deflate", new InflaterPool(1));
+    assertArrayEquals(CONTENT, decodeInChunks(decoder, deflate(CONTENT), 7));
+    assertTrue(decoder.isFinished());
+  }
+
+  @Test
+  public void stopsAtEndOfStream() throws Exception {
+    byte[] compressed = gzip(CONTENT);
+    byte[] data = new byte[compressed.length + 3];
+    System.arraycopy(compressed, 0, data, 0, compressed.length);
+    InflatingDecoder decoder = InflatingDecoder.forContentEncoding("gzip", new InflaterPool(1));
+    assertEquals(compressed.length, decoder.decode(data, 0, data.length, (b, o, l) -> {}));
+    assertTrue(decoder.isFinished());
+  }
+
+  @Test(expected = ZipException.class)
+  public void corruptTrailer() throws Exception {
+    byte[] data = gzip(CONTENT);
+    data[data.length - 5] ^= 1;
+    InflatingDecoder decoder = InflatingDecoder.forContentEncoding("gzip", new InflaterPool(1));
+    decoder.decode(data, 0, data.length, (b, o, l) -> {});
+  }
+
+  @Test(expected = ZipException.class)
+  public void notGzip() throws Exception {
+    byte[] data = CONTENT;
+    InflatingDecoder decoder = InflatingDecoder.forContentEncoding("gzip", new InflaterPool(1));
+    decoder.decode(data, 0, data.length, (b, o, l) -> {});
+  }
+
+  @Test
+  public void inflaterIsReturnedToPool() throws Exception {
+    InflaterPool pool = new InflaterPool(1);
+    byte[] data = gzip(CONTENT);
+    InflatingDecoder decoder = InflatingDecoder.forContentEncoding("gzip", pool);
+    decoder.decode(data, 0, data.length / 2, (b, o, l) -> {});
+    assertFalse(decoder.isFinished());
+    assertEquals(0, pool.size());
+    decoder.decode(data, data.length / 2, data.length - data.length / 2, (b, o, l) -> {});
+    assertEquals(1, pool.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unsupportedEncoding() {
+    InflatingDecoder.forContentEncoding("br", new InflaterPool(1));
+  }
+}
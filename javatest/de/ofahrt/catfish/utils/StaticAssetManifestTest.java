@@ -0,0 +1,97 @@
+package de.ofahrt.catfish.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StaticAssetManifestTest {
+  private Path directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("catfish-test-");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+    }
+  }
+
+  private Path write(String name, String content) throws Exception {
+    Path path = directory.resolve(name);
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    return path;
+  }
+
+  @Test
+  public void fingerprintIsInsertedBeforeExtension() {
+    assertEquals("app.abc.js", StaticAssetManifest.fingerprint("app.js", "abc"));
+    assertEquals("app.min.abc.js", StaticAssetManifest.fingerprint("app.min.js", "abc"));
+    assertEquals("README.abc", StaticAssetManifest.fingerprint("README", "abc"));
+    assertEquals(".htaccess.abc", StaticAssetManifest.fingerprint(".htaccess", "abc"));
+  }
+
+  @Test
+  public void lookupAndResolve() throws Exception {
+    write("app.js", "alert(1);");
+    StaticAssetManifest manifest = StaticAssetManifest.scan(directory);
+    String fingerprinted = manifest.getFingerprintedName("app.js");
+    assertTrue(fingerprinted, fingerprinted.matches("app\\.[0-9a-f]{10}\\.js"));
+    StaticAssetManifest.Asset asset = manifest.resolve(fingerprinted);
+    assertEquals("app.js", asset.getName());
+    assertNull(manifest.resolve("app.js"));
+    assertNull(manifest.getFingerprintedName("missing.js"));
+  }
+
+  @Test
+  public void fingerprintDependsOnContent() throws Exception {
+    write("a.js", "one");
+    write("b.js", "one");
+    write("c.js", "two");
+    StaticAssetManifest manifest = StaticAssetManifest.scan(directory);
+    String a = manifest.getFingerprintedName("a.js").substring(2);
+    String b = manifest.getFingerprintedName("b.js").substring(2);
+    String c = manifest.getFingerprintedName("c.js").substring(2);
+    assertEquals(a, b);
+    assertNotEquals(a, c);
+  }
+
+  @Test
+  public void hiddenFilesAndDirectoriesAreSkipped() throws Exception {
+    write(".secret", "x");
+    Files.createDirectory(directory.resolve("sub"));
+    write("a.css", "x");
+    StaticAssetManifest manifest = StaticAssetManifest.scan(directory);
+    assertEquals(1, manifest.size());
+    assertNull(manifest.getFingerprintedName(".secret"));
+  }
+
+  @Test
+  public void changedFileIsNotCurrent() throws Exception {
+    Path path = write("a.css", "x");
+    StaticAssetManifest manifest = StaticAssetManifest.scan(directory);
+    StaticAssetManifest.Asset asset = manifest.resolve(manifest.getFingerprintedName("a.css"));
+    long lastModified = Files.getLastModifiedTime(path).toMillis();
+    assertTrue(asset.isCurrent(1, lastModified));
+    assertFalse(asset.isCurrent(1, lastModified + 2000));
+    assertFalse(asset.isCurrent(2, lastModified));
+    assertSame(asset, manifest.resolve(asset.getFingerprintedName()));
+  }
+
+  @Test
+  public void immutableCacheControl() {
+    assertEquals("public, max-age=31536000, immutable", StaticAssetManifest.IMMUTABLE_CACHE_CONTROL);
+  }
+}
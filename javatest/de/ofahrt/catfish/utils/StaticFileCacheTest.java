@@ -0,0 +1,283 @@
+package de.ofahrt.catfish.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StaticFileCacheTest {
+  private Path directory;
+  private long now;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("catfish-test-");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      files.forEach(p -> p.toFile().delete());
+    }
+    Files.delete(directory);
+  }
+
+  private StaticFileCache.Builder builder() {
+    return new StaticFileCache.Builder()
+        .setRevalidateAfter(1, TimeUnit.SECONDS)
+        .setClock(() -> now);
+  }
+
+  private Path write(String name, String content) throws Exception {
+    Path path = directory.resolve(name);
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    return path;
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] result = new byte[buffer.remaining()];
+    buffer.get(result);
+    return result;
+  }
+
+  private static String gunzip(ByteBuffer buffer) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(toArray(buffer)))) {
+      byte[] chunk = new byte[1024];
+      int length;
+      while ((length = in.read(chunk)) > 0) {
+        out.write(chunk, 0, length);
+      }
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static String repeat(String s, int count) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      result.append(s);
+    }
+    return result.toString();
+  }
+
+  @Test
+  public void smallFileIsCopiedToHeap() throws Exception {
+    Path path = write("a.txt", "hello");
+    StaticFileCache cache = builder().build();
+    StaticFileCache.Entry entry = cache.get(path);
+    assertFalse(entry.isMapped());
+    assertEquals(5, entry.getSize());
+    assertArrayEquals("hello".getBytes(StandardCharsets.UTF_8), toArray(entry.getContent()));
+    assertEquals(1, cache.getMissCount());
+    assertEquals(5, cache.getCachedBytes());
+  }
+
+  @Test
+  public void largerFileIsMapped() throws Exception {
+    Path path = write("a.txt", "hello");
+    StaticFileCache cache = builder().setMapThreshold(4).build();
+    StaticFileCache.Entry entry = cache.get(path);
+    assertTrue(entry.isMapped());
+    assertArrayEquals("hello".getBytes(StandardCharsets.UTF_8), toArray(entry.getContent()));
+  }
+
+  @Test
+  public void contentViewsAreIndependent() throws Exception {
+    Path path = write("a.txt", "hello");
+    StaticFileCache.Entry entry = builder().build().get(path);
+    toArray(entry.getContent());
+    assertEquals(5, entry.getContent().remaining());
+  }
+
+  @Test
+  public void hitWithinRevalidationIntervalDoesNotTouchFileSystem() throws Exception {
+    Path path = write("a.txt", "hello");
+    StaticFileCache cache = builder().build();
+    StaticFileCache.Entry entry = cache.get(path);
+    Files.delete(path);
+    now += TimeUnit.MILLISECONDS.toNanos(999);
+    assertSame(entry, cache.get(path));
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void unchangedFileIsRevalidated() throws Exception {
+    Path path = write("a.txt", "hello");
+    StaticFileCache cache = builder().build();
+    StaticFileCache.Entry entry = cache.get(path);
+    now += TimeUnit.SECONDS.toNanos(2);
+    assertSame(entry, cache.get(path));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void modifiedFileIsReloaded() throws Exception {
+    Path path = write("a.txt", "hello");
+    StaticFileCache cache = builder().build();
+    StaticFileCache.Entry entry = cache.get(path);
+    write("a.txt", "world");
+    Files.setLastModifiedTime(path, FileTime.fromMillis(entry.getLastModified() + 2000));
+    now += TimeUnit.SECONDS.toNanos(2);
+    StaticFileCache.Entry reloaded = cache.get(path);
+    assertNotSame(entry, reloaded);
+    assertArrayEquals("world".getBytes(StandardCharsets.UTF_8), toArray(reloaded.getContent()));
+    assertEquals(2, cache.getMissCount());
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(5, cache.getCachedBytes());
+  }
+
+  @Test
+  public void deletedFileIsRemoved() throws Exception {
+    Path path = write("a.txt", "hello");
+    StaticFileCache cache = builder().build();
+    cache.get(path);
+    Files.delete(path);
+    now += TimeUnit.SECONDS.toNanos(2);
+    assertNull(cache.get(path));
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.getCachedBytes());
+  }
+
+  @Test
+  public void directoryIsNotFound() throws Exception {
+    assertNull(builder().build().get(directory));
+  }
+
+  @Test
+  public void leastRecentlyUsedEntryIsEvicted() throws Exception {
+    Path a = write("a.txt", "aaaa");
+    Path b = write("b.txt", "bbbb");
+    Path c = write("c.txt", "cccc");
+    StaticFileCache cache = builder().setMaxBytes(10).build();
+    cache.get(a);
+    cache.get(b);
+    cache.get(a);
+    cache.get(c);
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2, cache.getEntryCount());
+    assertEquals(8, cache.getCachedBytes());
+    long misses = cache.getMissCount();
+    cache.get(a);
+    assertEquals(misses, cache.getMissCount());
+    cache.get(b);
+    assertEquals(misses + 1, cache.getMissCount());
+  }
+
+  @Test
+  public void fileLargerThanMaxEntrySizeIsNotCached() throws Exception {
+    Path path = write("a.txt", "hello");
+    StaticFileCache cache = builder().setMaxEntrySize(4).build();
+    StaticFileCache.Entry entry = cache.get(path);
+    assertFalse(entry.hasContent());
+    assertNull(entry.getContent());
+    assertEquals(5, entry.getSize());
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void gzipContentIsComputedOnce() throws Exception {
+    String content = repeat("body { color: red; }\n", 100);
+    Path path = write("a.css", content);
+    StaticFileCache cache = builder().build();
+    StaticFileCache.Entry entry = cache.get(path);
+    ByteBuffer first = cache.getGzipContent(entry);
+    assertEquals(content, gunzip(first));
+    assertEquals(content.length() + first.capacity(), cache.getCachedBytes());
+    ByteBuffer second = cache.getGzipContent(entry);
+    assertEquals(first.capacity(), second.remaining());
+    assertEquals(content.length() + first.capacity(), cache.getCachedBytes());
+  }
+
+  @Test
+  public void incompressibleContentHasNoGzipVariant() throws Exception {
+    Path path = write("a.txt", "x");
+    StaticFileCache cache = builder().build();
+    assertNull(cache.getGzipContent(cache.get(path)));
+  }
+
+  @Test
+  public void precompressedSiblingIsPreferred() throws Exception {
+    String content = repeat("body { color: red; }\n", 100);
+    Path path = write("a.css", content);
+    Path sibling = write("a.css.gz", "");
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (CompressingOutputStream out = new CompressingOutputStream(
+        compressed, HttpAcceptEncoding.GZIP, 1, DeflaterPool.DEFAULT, false)) {
+      out.write("precompressed".getBytes(StandardCharsets.UTF_8));
+    }
+    Files.write(sibling, compressed.toByteArray());
+    StaticFileCache cache = builder().build();
+    StaticFileCache.Entry entry = cache.get(path);
+    assertEquals("precompressed", gunzip(cache.getGzipContent(entry)));
+    assertEquals("precompressed", gunzip(cache.getGzipContent(entry)));
+  }
+
+  @Test
+  public void outdatedSiblingIsIgnored() throws Exception {
+    String content = repeat("body { color: red; }\n", 100);
+    Path path = write("a.css", content);
+    Path sibling = write("a.css.gz", "not even gzip");
+    Files.setLastModifiedTime(sibling, FileTime.fromMillis(Files.getLastModifiedTime(path).toMillis() - 2000));
+    StaticFileCache cache = builder().build();
+    assertEquals(content, gunzip(cache.getGzipContent(cache.get(path))));
+  }
+
+  @Test
+  public void etagIsStableAndSurvivesEviction() throws Exception {
+    Path path = write("a.txt", "hello");
+    StaticFileCache cache = builder().setMaxBytes(5).build();
+    String etag = cache.getETag(cache.get(path));
+    assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+    cache.clear();
+    assertEquals(etag, cache.getETag(cache.get(path)));
+  }
+
+  @Test
+  public void etagChangesWithContent() throws Exception {
+    Path path = write("a.txt", "hello");
+    StaticFileCache cache = builder().build();
+    StaticFileCache.Entry entry = cache.get(path);
+    String etag = cache.getETag(entry);
+    write("a.txt", "world");
+    Files.setLastModifiedTime(path, FileTime.fromMillis(entry.getLastModified() + 2000));
+    now += TimeUnit.SECONDS.toNanos(2);
+    assertNotEquals(etag, cache.getETag(cache.get(path)));
+  }
+
+  @Test
+  public void etagOfUncachedFileIsDerivedFromMetadata() throws Exception {
+    Path path = write("a.txt", "hello");
+    StaticFileCache cache = builder().setMaxEntrySize(1).build();
+    StaticFileCache.Entry entry = cache.get(path);
+    assertFalse(entry.hasContent());
+    String etag = cache.getETag(entry);
+    assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+    // Same file, size and modification time: the content is not looked at.
+    Files.write(path, "world".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(path, FileTime.fromMillis(entry.getLastModified()));
+    now += TimeUnit.SECONDS.toNanos(2);
+    assertEquals(etag, cache.getETag(cache.get(path)));
+    Files.setLastModifiedTime(path, FileTime.fromMillis(entry.getLastModified() + 2000));
+    now += TimeUnit.SECONDS.toNanos(2);
+    assertNotEquals(etag, cache.getETag(cache.get(path)));
+  }
+}